@@ -0,0 +1,386 @@
+/**
+ * 特权辅助进程 - 通过 su 启动一次，常驻处理亲和性请求
+ *
+ * 每个请求直接调用 sched_setaffinity / sched_getaffinity 或读写文件，
+ * 不再为每个线程 fork taskset 和 sh；只有 OP_EXEC 才会启动 shell。
+ * 不依赖 Android 库，可以在 Linux 主机上编译运行（非 root 时只能操作自己的线程）。
+ */
+#include "helper_protocol.h"
+#include "cpuset_backend.h"
+#include "sched_control.h"
+#include "thread_sampler.h"
+#include "thread_watcher.h"
+
+#include <sched.h>
+#include <dirent.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <signal.h>
+#include <unistd.h>
+#include <sys/wait.h>
+#include <time.h>
+#include <algorithm>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <map>
+#include <string>
+#include <vector>
+
+using namespace helper;
+
+static bool readFully(int fd, void* buf, size_t len) {
+    char* p = static_cast<char*>(buf);
+    while (len > 0) {
+        ssize_t n = read(fd, p, len);
+        if (n < 0 && errno == EINTR) continue;
+        if (n <= 0) return false;
+        p += n;
+        len -= n;
+    }
+    return true;
+}
+
+static bool writeFully(int fd, const void* buf, size_t len) {
+    const char* p = static_cast<const char*>(buf);
+    while (len > 0) {
+        ssize_t n = write(fd, p, len);
+        if (n < 0 && errno == EINTR) continue;
+        if (n <= 0) return false;
+        p += n;
+        len -= n;
+    }
+    return true;
+}
+
+static int setAffinity(int tid, uint64_t mask) {
+    cpu_set_t set;
+    CPU_ZERO(&set);
+    for (int cpu = 0; cpu < 64; cpu++) {
+        if (mask & (1ULL << cpu)) CPU_SET(cpu, &set);
+    }
+    return sched_setaffinity(tid, sizeof(set), &set) == 0 ? 0 : -errno;
+}
+
+static int getAffinity(int tid, uint64_t* mask) {
+    cpu_set_t set;
+    CPU_ZERO(&set);
+    if (sched_getaffinity(tid, sizeof(set), &set) != 0) return -errno;
+    uint64_t result = 0;
+    for (int cpu = 0; cpu < 64; cpu++) {
+        if (CPU_ISSET(cpu, &set)) result |= (1ULL << cpu);
+    }
+    *mask = result;
+    return 0;
+}
+
+static int writeFile(const char* path, const char* data, size_t len) {
+    int fd = open(path, O_WRONLY | O_CLOEXEC);
+    if (fd < 0) return -errno;
+    int status = 0;
+    errno = 0;
+    if (!writeFully(fd, data, len)) status = errno ? -errno : -EIO;
+    close(fd);
+    return status;
+}
+
+static int readFile(const char* path, size_t limit, std::string* out) {
+    int fd = open(path, O_RDONLY | O_CLOEXEC);
+    if (fd < 0) return -errno;
+    char buf[4096];
+    while (out->size() < limit) {
+        ssize_t n = read(fd, buf, std::min(sizeof(buf), limit - out->size()));
+        if (n < 0 && errno == EINTR) continue;
+        if (n < 0) {
+            int err = errno;
+            close(fd);
+            return -err;
+        }
+        if (n == 0) break;
+        out->append(buf, n);
+    }
+    close(fd);
+    return 0;
+}
+
+static int listTasks(int pid, std::string* out) {
+    char path[64];
+    snprintf(path, sizeof(path), "/proc/%d/task", pid);
+    DIR* dir = opendir(path);
+    if (!dir) return -errno;
+    struct dirent* entry;
+    while ((entry = readdir(dir)) != nullptr) {
+        int32_t tid = atoi(entry->d_name);
+        if (tid <= 0) continue;
+        out->append(reinterpret_cast<const char*>(&tid), sizeof(tid));
+    }
+    closedir(dir);
+    return 0;
+}
+
+static long long nowMs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000LL + ts.tv_nsec / 1000000;
+}
+
+/**
+ * 执行 shell 命令（stdout 和 stderr 合并），超时时杀掉整个进程组
+ */
+static int execCommand(const char* command, int timeoutMs, std::string* out, int* exitStatus) {
+    int pipefd[2];
+    if (pipe(pipefd) != 0) return -errno;
+    const char* shell = access("/system/bin/sh", X_OK) == 0 ? "/system/bin/sh" : "/bin/sh";
+
+    pid_t pid = fork();
+    if (pid < 0) {
+        int err = errno;
+        close(pipefd[0]);
+        close(pipefd[1]);
+        return -err;
+    }
+    if (pid == 0) {
+        setpgid(0, 0);
+        int devnull = open("/dev/null", O_RDONLY);
+        if (devnull >= 0) dup2(devnull, STDIN_FILENO);
+        dup2(pipefd[1], STDOUT_FILENO);
+        dup2(pipefd[1], STDERR_FILENO);
+        close(pipefd[0]);
+        close(pipefd[1]);
+        signal(SIGPIPE, SIG_DFL);
+        execl(shell, "sh", "-c", command, (char*)nullptr);
+        _exit(127);
+    }
+    close(pipefd[1]);
+
+    long long deadline = nowMs() + (timeoutMs > 0 ? timeoutMs : 5000);
+    bool timedOut = false;
+    char buf[4096];
+    while (true) {
+        long long remaining = deadline - nowMs();
+        if (remaining <= 0) {
+            timedOut = true;
+            break;
+        }
+        struct pollfd pfd = { pipefd[0], POLLIN, 0 };
+        int ready = poll(&pfd, 1, static_cast<int>(remaining));
+        if (ready < 0 && errno == EINTR) continue;
+        if (ready <= 0) continue;
+        ssize_t n = read(pipefd[0], buf, sizeof(buf));
+        if (n < 0 && errno == EINTR) continue;
+        if (n <= 0) break;
+        if (out->size() < kMaxPayload) {
+            out->append(buf, std::min(static_cast<size_t>(n), kMaxPayload - out->size()));
+        }
+    }
+    close(pipefd[0]);
+
+    if (timedOut) {
+        kill(-pid, SIGKILL);
+    }
+    int status = 0;
+    while (waitpid(pid, &status, 0) < 0 && errno == EINTR) {}
+    if (timedOut) return -ETIMEDOUT;
+    *exitStatus = WIFEXITED(status) ? WEXITSTATUS(status) : 128 + WTERMSIG(status);
+    return 0;
+}
+
+/**
+ * 解析监听规则: 每行 "线程名\t十六进制掩码[\tcpuset 分组]"，线程名为空的一行 "\t根目录" 给出 cpuset 根目录
+ */
+static void parseWatchRules(const char* text, std::map<std::string, ThreadWatcher::Rule>* rules,
+                            std::string* cpusetRoot) {
+    const char* line = text;
+    while (*line != '\0') {
+        const char* end = strchr(line, '\n');
+        if (end == nullptr) end = line + strlen(line);
+        const char* tab = static_cast<const char*>(memchr(line, '\t', end - line));
+        if (tab == line) {
+            cpusetRoot->assign(tab + 1, end - tab - 1);
+        } else if (tab != nullptr) {
+            ThreadWatcher::Rule rule;
+            rule.mask = strtoull(tab + 1, nullptr, 16);
+            const char* groupTab = static_cast<const char*>(memchr(tab + 1, '\t', end - tab - 1));
+            if (groupTab != nullptr) rule.group.assign(groupTab + 1, end - groupTab - 1);
+            if (rule.mask != 0) (*rules)[std::string(line, tab - line)] = rule;
+        }
+        line = *end == '\n' ? end + 1 : end;
+    }
+}
+
+/**
+ * 按 '\0' 拆分负载
+ */
+static std::vector<std::string> splitPayload(const char* data, size_t len) {
+    std::vector<std::string> parts;
+    size_t start = 0;
+    for (size_t i = 0; i <= len; i++) {
+        if (i == len || data[i] == '\0') {
+            parts.emplace_back(data + start, i - start);
+            start = i + 1;
+        }
+    }
+    return parts;
+}
+
+int main() {
+    static ThreadWatcher watcher;
+    static CpusetBackend cpusets;
+
+    // 客户端退出时写失败直接返回错误，而不是被信号杀死
+    signal(SIGPIPE, SIG_IGN);
+
+    std::vector<char> payload;
+    std::string out;
+    while (true) {
+        RequestHeader req;
+        if (!readFully(STDIN_FILENO, &req, sizeof(req))) break;
+        if (req.magic != kRequestMagic || req.payloadLen > kMaxPayload) {
+            fprintf(stderr, "affinity_helper: bad request header\n");
+            break;
+        }
+        payload.resize(req.payloadLen + 1);
+        if (req.payloadLen > 0 && !readFully(STDIN_FILENO, payload.data(), req.payloadLen)) break;
+        payload[req.payloadLen] = '\0';
+
+        ResponseHeader resp = {};
+        resp.magic = kResponseMagic;
+        resp.id = req.id;
+        out.clear();
+
+        switch (req.op) {
+            case OP_PING:
+                resp.value = static_cast<uint64_t>(getpid());
+                break;
+            case OP_SET_AFFINITY:
+                resp.status = setAffinity(req.tid, req.arg);
+                break;
+            case OP_GET_AFFINITY:
+                resp.status = getAffinity(req.tid, &resp.value);
+                break;
+            case OP_CPUSET_MOVE: {
+                std::string tasks = std::string(payload.data()) + "/tasks";
+                char tid[16];
+                int len = snprintf(tid, sizeof(tid), "%d", req.tid);
+                resp.status = writeFile(tasks.c_str(), tid, len);
+                break;
+            }
+            case OP_READ_FILE: {
+                size_t limit = req.arg > 0 && req.arg < kMaxPayload ? req.arg : kMaxPayload;
+                resp.status = readFile(payload.data(), limit, &out);
+                break;
+            }
+            case OP_WRITE_FILE: {
+                // payload = 路径 '\0' 内容
+                size_t pathLen = strnlen(payload.data(), req.payloadLen);
+                if (pathLen >= req.payloadLen) {
+                    resp.status = -EINVAL;
+                } else {
+                    resp.status = writeFile(payload.data(), payload.data() + pathLen + 1,
+                                            req.payloadLen - pathLen - 1);
+                }
+                break;
+            }
+            case OP_LIST_TASKS:
+                resp.status = listTasks(req.tid, &out);
+                break;
+            case OP_EXEC: {
+                int exitStatus = 0;
+                resp.status = execCommand(payload.data(), static_cast<int>(req.arg), &out, &exitStatus);
+                resp.value = static_cast<uint64_t>(exitStatus);
+                break;
+            }
+            case OP_WATCH_SET: {
+                std::map<std::string, ThreadWatcher::Rule> rules;
+                std::string cpusetRoot;
+                parseWatchRules(payload.data(), &rules, &cpusetRoot);
+                resp.value = static_cast<uint64_t>(watcher.setRules(req.tid, rules, cpusetRoot));
+                break;
+            }
+            case OP_WATCH_STATS:
+                resp.value = static_cast<uint64_t>(watcher.mode());
+                out = watcher.stats();
+                break;
+            case OP_WATCH_DRAIN:
+                out = watcher.drainPinned(&resp.value);
+                break;
+            case OP_CPUSET_GROUP: {
+                std::vector<std::string> parts = splitPayload(payload.data(), req.payloadLen);
+                if (parts.size() != 3) {
+                    resp.status = -EINVAL;
+                    break;
+                }
+                resp.status = cpusets.open(parts[0]);
+                if (resp.status == 0) resp.status = cpusets.ensureGroup(parts[1], parts[2]);
+                resp.value = static_cast<uint64_t>(cpusets.layout());
+                break;
+            }
+            case OP_CPUSET_PLACE: {
+                std::vector<std::string> parts = splitPayload(payload.data(), req.payloadLen);
+                if (parts.size() != 2) {
+                    resp.status = -EINVAL;
+                    break;
+                }
+                resp.status = cpusets.open(parts[0]);
+                if (resp.status == 0) resp.status = cpusets.place(parts[1], req.tid);
+                break;
+            }
+            case OP_SCHED_SET: {
+                if (req.payloadLen != sizeof(SchedParams)) {
+                    resp.status = -EINVAL;
+                    break;
+                }
+                SchedParams want;
+                memcpy(&want, payload.data(), sizeof(want));
+                resp.status = setSchedParams(req.tid, want);
+                // 回读实际生效的参数，调用方据此校验
+                SchedParams actual;
+                if (getSchedParams(req.tid, &actual) == 0) {
+                    out.assign(reinterpret_cast<const char*>(&actual), sizeof(actual));
+                }
+                break;
+            }
+            case OP_SCHED_GET: {
+                SchedParams actual;
+                resp.status = getSchedParams(req.tid, &actual);
+                if (resp.status == 0) out.assign(reinterpret_cast<const char*>(&actual), sizeof(actual));
+                break;
+            }
+            case OP_THREAD_SAMPLE: {
+                std::vector<int> pids(req.payloadLen / sizeof(int32_t));
+                if (!pids.empty()) memcpy(pids.data(), payload.data(), pids.size() * sizeof(int32_t));
+                std::vector<ThreadSample> samples;
+                uint32_t births = 0, deaths = 0;
+                resp.status = sampleThreads(pids.data(), pids.size(), static_cast<uint32_t>(req.arg),
+                                            &samples, &births, &deaths);
+                resp.value = births | static_cast<uint64_t>(deaths) << 32;
+                out.assign(reinterpret_cast<const char*>(samples.data()), samples.size() * sizeof(ThreadSample));
+                break;
+            }
+            case OP_SYSTEM_TOP: {
+                std::vector<int> pids(req.payloadLen / sizeof(int32_t));
+                if (!pids.empty()) memcpy(pids.data(), payload.data(), pids.size() * sizeof(int32_t));
+                int selfPid = pids.empty() ? 0 : pids[0];
+                size_t excludeCount = pids.size() > 1 ? pids.size() - 1 : 0;
+                resp.status = sampleSystemTop(selfPid, excludeCount ? pids.data() + 1 : nullptr, excludeCount,
+                                              static_cast<uint32_t>(req.arg),
+                                              static_cast<long long>(req.arg >> 32) * 1000000LL, &out);
+                break;
+            }
+            case OP_SHUTDOWN:
+                watcher.stop();
+                writeFully(STDOUT_FILENO, &resp, sizeof(resp));
+                return 0;
+            default:
+                resp.status = -ENOSYS;
+                break;
+        }
+
+        resp.payloadLen = static_cast<uint32_t>(out.size());
+        if (!writeFully(STDOUT_FILENO, &resp, sizeof(resp))) break;
+        if (!out.empty() && !writeFully(STDOUT_FILENO, out.data(), out.size())) break;
+    }
+    watcher.stop();
+    return 0;
+}
@@ -5,6 +5,7 @@
 #define LOG_TAG "AffinityMgr-JNI"
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
+#define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 
 AffinityManager::AffinityManager() {
@@ -18,17 +19,67 @@ AffinityManager::~AffinityManager() {
 bool AffinityManager::setAffinity(int tid, uint64_t mask) {
     LOGI("setAffinity() called: tid=%d, mask=0x%llX", tid, (unsigned long long)mask);
     
-    // 使用持久化 shell 设置亲和性
+    // RootShell 经特权辅助进程完成 cpuset 迁移和 sched_setaffinity
     bool result = RootShell::getInstance().setThreadAffinity(tid, mask);
     
     LOGI("setAffinity() result: %s", result ? "SUCCESS" : "FAILED");
     return result;
 }
 
+bool AffinityManager::setAffinityBatch(const std::vector<int>& tids, const std::vector<uint64_t>& masks,
+                                       std::vector<int>* statuses) {
+    LOGI("setAffinityBatch() called: count=%zu", tids.size());
+    return RootShell::getInstance().setThreadAffinityBatch(tids, masks, statuses);
+}
+
+bool AffinityManager::getAffinityBatch(const std::vector<int>& tids, std::vector<uint64_t>* masks) {
+    LOGD("getAffinityBatch() called: count=%zu", tids.size());
+    return RootShell::getInstance().getThreadAffinityBatch(tids, masks);
+}
+
+int AffinityManager::setThreadWatch(int tgid, const std::vector<std::string>& names,
+                                    const std::vector<uint64_t>& masks, const std::string& cpusetRoot,
+                                    const std::vector<std::string>& groups) {
+    LOGD("setThreadWatch() called: pid=%d, rules=%zu", tgid, names.size());
+    return RootShell::getInstance().setThreadWatch(tgid, names, masks, cpusetRoot, groups);
+}
+
+std::string AffinityManager::getThreadWatchStats() {
+    return RootShell::getInstance().getThreadWatchStats();
+}
+
+bool AffinityManager::drainThreadWatch(std::string* out) {
+    return RootShell::getInstance().drainThreadWatch(out);
+}
+
+int AffinityManager::setupCpusetGroup(const std::string& root, const std::string& name,
+                                      const std::string& cpus) {
+    LOGD("setupCpusetGroup() called: %s/%s cpus=%s", root.c_str(), name.c_str(), cpus.c_str());
+    return RootShell::getInstance().setupCpusetGroup(root, name, cpus);
+}
+
+bool AffinityManager::placeInCpuset(const std::string& root, const std::string& name,
+                                    const std::vector<int>& tids, std::vector<int>* statuses) {
+    LOGD("placeInCpuset() called: %s/%s count=%zu", root.c_str(), name.c_str(), tids.size());
+    return RootShell::getInstance().placeInCpuset(root, name, tids, statuses);
+}
+
+bool AffinityManager::setThreadSched(const std::vector<int>& tids,
+                                     const std::vector<helper::SchedParams>& params,
+                                     std::vector<helper::SchedParams>* actual, std::vector<int>* statuses) {
+    LOGD("setThreadSched() called: count=%zu", tids.size());
+    return RootShell::getInstance().setThreadSched(tids, params, actual, statuses);
+}
+
+bool AffinityManager::getThreadSched(const std::vector<int>& tids,
+                                     std::vector<helper::SchedParams>* actual, std::vector<int>* statuses) {
+    LOGD("getThreadSched() called: count=%zu", tids.size());
+    return RootShell::getInstance().getThreadSched(tids, actual, statuses);
+}
+
 uint64_t AffinityManager::getAffinity(int tid) {
     LOGD("getAffinity() called: tid=%d", tid);
     
-    // 使用持久化 shell 获取亲和性
     uint64_t mask = RootShell::getInstance().getThreadAffinity(tid);
     
     LOGD("getAffinity() result: mask=0x%llX", (unsigned long long)mask);
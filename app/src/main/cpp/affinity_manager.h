@@ -2,17 +2,52 @@
 #define AFFINITY_MANAGER_H
 
 #include <cstdint>
+#include <string>
+#include <vector>
+#include "helper_protocol.h"
 
 class AffinityManager {
 public:
     AffinityManager();
     ~AffinityManager();
 
-    // 设置线程亲和性（只使用 force_cpu_affinity sysctl）
+    // 设置线程亲和性（经 Native 层的特权辅助进程直接系统调用）
     bool setAffinity(int tid, uint64_t mask);
+
+    // 批量设置线程亲和性，statuses 输出每个线程的结果（0 或 -errno）
+    bool setAffinityBatch(const std::vector<int>& tids, const std::vector<uint64_t>& masks,
+                          std::vector<int>* statuses);
     
     // 获取线程亲和性
     uint64_t getAffinity(int tid);
+
+    // 批量获取线程当前生效的亲和性（失败的线程为 0）
+    bool getAffinityBatch(const std::vector<int>& tids, std::vector<uint64_t>* masks);
+
+    // 设置新线程监听规则，返回监听模式（0 表示未启用）
+    int setThreadWatch(int tgid, const std::vector<std::string>& names, const std::vector<uint64_t>& masks,
+                       const std::string& cpusetRoot, const std::vector<std::string>& groups);
+
+    // 新线程监听统计
+    std::string getThreadWatchStats();
+
+    // 取走新线程监听修改过的线程及其原状态，通道不可用时返回 false
+    bool drainThreadWatch(std::string* out);
+
+    // 创建/更新自建 cpuset 分组，返回 cgroup 布局（0 表示失败）
+    int setupCpusetGroup(const std::string& root, const std::string& name, const std::string& cpus);
+
+    // 批量把线程放入自建 cpuset 分组，statuses 输出每个线程的结果（0 或 -errno）
+    bool placeInCpuset(const std::string& root, const std::string& name,
+                       const std::vector<int>& tids, std::vector<int>* statuses);
+
+    // 批量设置线程调度参数，actual 输出回读值，statuses 输出每个线程的结果（0 或 -errno）
+    bool setThreadSched(const std::vector<int>& tids, const std::vector<helper::SchedParams>& params,
+                        std::vector<helper::SchedParams>* actual, std::vector<int>* statuses);
+
+    // 批量读取线程调度参数
+    bool getThreadSched(const std::vector<int>& tids,
+                        std::vector<helper::SchedParams>* actual, std::vector<int>* statuses);
 };
 
 #endif // AFFINITY_MANAGER_H
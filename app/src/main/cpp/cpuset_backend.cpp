@@ -0,0 +1,126 @@
+#include "cpuset_backend.h"
+
+#include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/stat.h>
+#include <cstdio>
+#include <cstring>
+
+static bool fileExists(const std::string& path) {
+    struct stat st;
+    return stat(path.c_str(), &st) == 0;
+}
+
+static int readText(const std::string& path, std::string* out) {
+    int fd = ::open(path.c_str(), O_RDONLY | O_CLOEXEC);
+    if (fd < 0) return -errno;
+    char buf[256];
+    ssize_t n = read(fd, buf, sizeof(buf));
+    int err = errno;
+    close(fd);
+    if (n < 0) return -err;
+    out->assign(buf, n);
+    // 去掉结尾换行
+    while (!out->empty() && (out->back() == '\n' || out->back() == ' ')) out->pop_back();
+    return 0;
+}
+
+/**
+ * 写控制文件；O_CREAT 只对模拟用的普通目录生效，cgroup 文件系统会忽略
+ */
+static int writeText(const std::string& path, const std::string& text, bool append) {
+    int flags = O_WRONLY | O_CREAT | O_CLOEXEC | (append ? O_APPEND : O_TRUNC);
+    int fd = ::open(path.c_str(), flags, 0644);
+    if (fd < 0) return -errno;
+    ssize_t n = write(fd, text.data(), text.size());
+    int err = errno;
+    close(fd);
+    if (n < 0) return -err;
+    return n == static_cast<ssize_t>(text.size()) ? 0 : -EIO;
+}
+
+/**
+ * 分组名只允许小写字母、数字和下划线，避免路径穿越
+ */
+static bool validName(const std::string& name) {
+    if (name.empty() || name.size() > 32) return false;
+    for (char c : name) {
+        if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_')) return false;
+    }
+    return true;
+}
+
+CpusetBackend::CpusetBackend() : m_layout(LAYOUT_NONE) {
+}
+
+int CpusetBackend::open(const std::string& root) {
+    if (root == m_root && m_layout != LAYOUT_NONE) return 0;
+    m_root = root;
+    m_prefix.clear();
+    m_layout = LAYOUT_NONE;
+
+    if (fileExists(root + "/cgroup.controllers")) {
+        m_layout = LAYOUT_V2;
+        m_prefix = "cpuset.";
+        // 子组需要启用 cpuset 控制器；已启用时写入无副作用
+        writeText(root + "/cgroup.subtree_control", "+cpuset", false);
+    } else if (fileExists(root + "/cpuset.cpus")) {
+        m_layout = LAYOUT_V1;
+        m_prefix = "cpuset.";
+    } else if (fileExists(root + "/cpus")) {
+        m_layout = LAYOUT_V1;  // Android 以 noprefix 方式挂载
+    } else {
+        return fileExists(root) ? -ENOTSUP : -ENOENT;
+    }
+    return 0;
+}
+
+std::string CpusetBackend::groupDir(const std::string& name) const {
+    return m_root + "/" + name;
+}
+
+std::string CpusetBackend::controlFile(const std::string& dir, const char* file) const {
+    return dir + "/" + m_prefix + file;
+}
+
+int CpusetBackend::ensureGroup(const std::string& name, const std::string& cpus) {
+    if (m_layout == LAYOUT_NONE) return -ENOTCONN;
+    if (!validName(name)) return -EINVAL;
+
+    std::string dir = groupDir(name);
+    if (mkdir(dir.c_str(), 0755) != 0 && errno != EEXIST) return -errno;
+
+    if (m_layout == LAYOUT_V2) {
+        // 线程级放置需要线程模式子组
+        std::string type;
+        if (readText(dir + "/cgroup.type", &type) != 0 || type != "threaded") {
+            int status = writeText(dir + "/cgroup.type", "threaded", false);
+            if (status != 0) return status;
+        }
+    } else {
+        // v1 的 mems 为空时无法加入任务，沿用根目录的设置
+        std::string mems;
+        if (readText(controlFile(dir, "mems"), &mems) != 0 || mems.empty()) {
+            std::string rootMems;
+            if (readText(controlFile(m_root, "mems"), &rootMems) != 0 || rootMems.empty()) rootMems = "0";
+            int status = writeText(controlFile(dir, "mems"), rootMems, false);
+            if (status != 0) return status;
+        }
+    }
+
+    std::string current;
+    if (readText(controlFile(dir, "cpus"), &current) == 0 && current == cpus) {
+        return 0;
+    }
+    return writeText(controlFile(dir, "cpus"), cpus, false);
+}
+
+int CpusetBackend::place(const std::string& name, int tid) {
+    if (m_layout == LAYOUT_NONE) return -ENOTCONN;
+    if (!validName(name)) return -EINVAL;
+    char buf[16];
+    snprintf(buf, sizeof(buf), "%d\n", tid);
+    const char* file = m_layout == LAYOUT_V2 ? "cgroup.threads" : "tasks";
+    return writeText(groupDir(name) + "/" + file, buf, true);
+}
@@ -0,0 +1,48 @@
+#ifndef CPUSET_BACKEND_H
+#define CPUSET_BACKEND_H
+
+#include <string>
+
+/**
+ * 自建 cpuset 分组（运行在特权辅助进程内）
+ *
+ * 在 cpuset 根目录下为每个核心分组创建子 cpuset（如 ta_small / ta_large），
+ * 线程放入分组只需一次写 tasks，修改整组核心只需一次写 cpus。
+ * 支持 cgroup v1（/dev/cpuset，文件名带或不带 "cpuset." 前缀）和 cgroup v2（线程模式子组）。
+ * 根目录可以指定，方便在 Linux 主机上用临时目录模拟。
+ */
+class CpusetBackend {
+public:
+    enum Layout { LAYOUT_NONE = 0, LAYOUT_V1 = 1, LAYOUT_V2 = 2 };
+
+    CpusetBackend();
+
+    /**
+     * 切换根目录并识别布局（根目录未变化时直接返回）
+     * @return 0 或 -errno（无法识别为 -ENOTSUP）
+     */
+    int open(const std::string& root);
+
+    /**
+     * 创建分组（已存在时复用），并设置核心列表；核心列表未变化时不写入
+     * @param cpus 核心列表，如 "0-3" 或 "4,7"
+     */
+    int ensureGroup(const std::string& name, const std::string& cpus);
+
+    /**
+     * 把线程放入分组（一次写入）
+     */
+    int place(const std::string& name, int tid);
+
+    Layout layout() const { return m_layout; }
+
+private:
+    std::string groupDir(const std::string& name) const;
+    std::string controlFile(const std::string& dir, const char* file) const;
+
+    std::string m_root;
+    std::string m_prefix;  // v1 控制文件前缀（"cpuset." 或 Android noprefix 挂载时为空）
+    Layout m_layout;
+};
+
+#endif // CPUSET_BACKEND_H
@@ -0,0 +1,610 @@
+#include "helper_client.h"
+#include <android/log.h>
+#include <errno.h>
+#include <poll.h>
+#include <signal.h>
+#include <unistd.h>
+#include <sys/socket.h>
+#include <sys/wait.h>
+#include <time.h>
+#include <cstring>
+#include <cstdio>
+#include <algorithm>
+
+#define LOG_TAG "HelperClient-JNI"
+#define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
+#define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+
+using namespace helper;
+
+static const int kStartTimeoutMs = 10000;    // su 首次授权可能弹窗，给足时间
+static const int kRequestTimeoutMs = 2000;
+static const int kSampleTimeoutMs = 5000;          // 线程采样耗时随线程数增长
+static const long long kRestartIntervalMs = 5000;  // ensureRunning 重启的最小间隔
+static const size_t kBatchChunk = 256;             // 每块线程数，保证响应不会塞满 socket 缓冲区
+
+static long long nowMs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000LL + ts.tv_nsec / 1000000;
+}
+
+HelperClient& HelperClient::getInstance() {
+    static HelperClient instance;
+    return instance;
+}
+
+HelperClient::HelperClient()
+    : m_lastStartAttemptMs(0)
+    , m_fd(-1)
+    , m_pid(-1)
+    , m_nextId(1) {
+}
+
+HelperClient::~HelperClient() {
+    stop();
+}
+
+bool HelperClient::start(const std::string& helperPath, const std::string& launcher) {
+    std::lock_guard<std::mutex> lock(m_mutex);
+    if (m_fd >= 0) {
+        return true;
+    }
+    m_helperPath = helperPath;
+    m_launcher = launcher;
+    return startLocked();
+}
+
+bool HelperClient::ensureRunning() {
+    if (isRunning()) return true;
+    std::lock_guard<std::mutex> lock(m_mutex);
+    if (m_fd >= 0) return true;
+    if (m_helperPath.empty()) return false;
+    long long now = nowMs();
+    if (m_lastStartAttemptMs != 0 && now - m_lastStartAttemptMs < kRestartIntervalMs) {
+        return false;
+    }
+    LOGW("Helper not running, restarting");
+    return startLocked();
+}
+
+bool HelperClient::startLocked() {
+    m_lastStartAttemptMs = nowMs();
+    int sv[2];
+    if (socketpair(AF_UNIX, SOCK_STREAM | SOCK_CLOEXEC, 0, sv) != 0) {
+        LOGE("socketpair failed: %s", strerror(errno));
+        return false;
+    }
+
+    // fork 之后只能调用 async-signal-safe 函数，参数提前准备好
+    const char* path = m_helperPath.c_str();
+    const char* launcherPath = m_launcher.c_str();
+
+    pid_t pid = fork();
+    if (pid < 0) {
+        LOGE("fork failed: %s", strerror(errno));
+        ::close(sv[0]);
+        ::close(sv[1]);
+        return false;
+    }
+    if (pid == 0) {
+        // 子进程：socket 作为 stdin/stdout（dup2 后的描述符不带 CLOEXEC）
+        dup2(sv[1], STDIN_FILENO);
+        dup2(sv[1], STDOUT_FILENO);
+        if (launcherPath[0] != '\0') {
+            execlp(launcherPath, launcherPath, "-c", path, (char*)nullptr);
+        } else {
+            execl(path, path, (char*)nullptr);
+        }
+        _exit(127);
+    }
+
+    ::close(sv[1]);
+    m_fd = sv[0];
+    m_pid = pid;
+
+    uint64_t helperPid = 0;
+    int status = transactLocked(OP_PING, 0, 0, nullptr, 0, &helperPid, nullptr, kStartTimeoutMs);
+    if (status != 0) {
+        LOGE("Helper did not answer ping (%d), path=%s", status, path);
+        stopLocked();
+        return false;
+    }
+    LOGI("Helper started: %s via '%s', helper pid=%llu", path, launcherPath,
+         (unsigned long long)helperPid);
+    return true;
+}
+
+bool HelperClient::isRunning() {
+    std::lock_guard<std::mutex> lock(m_mutex);
+    if (m_fd < 0) return false;
+    int status;
+    if (waitpid(m_pid, &status, WNOHANG) == m_pid) {
+        // 启动器已退出
+        m_pid = -1;
+        stopLocked();
+        return false;
+    }
+    return true;
+}
+
+void HelperClient::stop() {
+    if (this != &execChannel()) {
+        execChannel().stop();
+    }
+    std::lock_guard<std::mutex> lock(m_mutex);
+    if (m_fd >= 0) {
+        // 通知辅助进程退出（root 进程无法被 App 直接 kill）
+        RequestHeader req = {};
+        req.magic = kRequestMagic;
+        req.id = m_nextId++;
+        req.op = OP_SHUTDOWN;
+        sendAll(&req, sizeof(req));
+    }
+    stopLocked();
+}
+
+void HelperClient::stopLocked() {
+    if (m_fd >= 0) {
+        ::close(m_fd);
+        m_fd = -1;
+    }
+    if (m_pid > 0) {
+        // 关闭 socket 后辅助进程读到 EOF 会退出；启动器不退出时强制结束
+        int status;
+        if (waitpid(m_pid, &status, WNOHANG) == 0) {
+            kill(m_pid, SIGTERM);
+            waitpid(m_pid, &status, 0);
+        }
+        m_pid = -1;
+        LOGI("Helper stopped");
+    }
+}
+
+bool HelperClient::sendAll(const void* buf, size_t len) {
+    const char* p = static_cast<const char*>(buf);
+    while (len > 0) {
+        ssize_t n = send(m_fd, p, len, MSG_NOSIGNAL);
+        if (n < 0 && errno == EINTR) continue;
+        if (n <= 0) return false;
+        p += n;
+        len -= n;
+    }
+    return true;
+}
+
+bool HelperClient::waitReadable(int timeoutMs) {
+    while (true) {
+        struct pollfd pfd = { m_fd, POLLIN, 0 };
+        int ready = poll(&pfd, 1, timeoutMs);
+        if (ready < 0 && errno == EINTR) continue;
+        return ready > 0;
+    }
+}
+
+bool HelperClient::recvAll(void* buf, size_t len, int timeoutMs) {
+    char* p = static_cast<char*>(buf);
+    while (len > 0) {
+        struct pollfd pfd = { m_fd, POLLIN, 0 };
+        int ready = poll(&pfd, 1, timeoutMs);
+        if (ready < 0 && errno == EINTR) continue;
+        if (ready <= 0) return false;
+        ssize_t n = recv(m_fd, p, len, 0);
+        if (n < 0 && errno == EINTR) continue;
+        if (n <= 0) return false;
+        p += n;
+        len -= n;
+    }
+    return true;
+}
+
+int HelperClient::transactLocked(uint16_t op, int tid, uint64_t arg,
+                                 const void* payload, uint32_t payloadLen,
+                                 uint64_t* value, std::string* out, int timeoutMs, bool restartOnTimeout) {
+    if (m_fd < 0) return -ENOTCONN;
+
+    RequestHeader req = {};
+    req.magic = kRequestMagic;
+    req.id = m_nextId++;
+    req.op = op;
+    req.tid = tid;
+    req.arg = arg;
+    req.payloadLen = payloadLen;
+
+    if (!sendAll(&req, sizeof(req)) || (payloadLen > 0 && !sendAll(payload, payloadLen))) {
+        LOGE("Helper send failed: %s", strerror(errno));
+        stopLocked();
+        return -ENOTCONN;
+    }
+
+    ResponseHeader resp;
+    int status = recvResponseLocked(req.id, &resp, out, timeoutMs, restartOnTimeout);
+    if (status != 0) {
+        LOGE("Helper response invalid or timed out (op=%d)", op);
+        return status;
+    }
+    if (value) *value = resp.value;
+    return resp.status;
+}
+
+int HelperClient::recvResponseLocked(uint32_t id, ResponseHeader* resp, std::string* out, int timeoutMs,
+                                     bool restartOnTimeout) {
+    long long deadline = nowMs() + timeoutMs;
+    while (true) {
+        // 响应还没开始到达时连接仍是对齐的，可以只让本次请求超时
+        if (!waitReadable(static_cast<int>(std::max(0LL, deadline - nowMs())))) {
+            if (restartOnTimeout) stopLocked();
+            return -ETIMEDOUT;
+        }
+        if (!recvAll(resp, sizeof(*resp), timeoutMs) ||
+            resp->magic != kResponseMagic || resp->payloadLen > kMaxPayload) {
+            // 读到一半超时或协议错乱：后续响应无法对齐，直接关闭，下次调用时重启
+            stopLocked();
+            return -ETIMEDOUT;
+        }
+        std::string body(resp->payloadLen, '\0');
+        if (resp->payloadLen > 0 && !recvAll(&body[0], resp->payloadLen, timeoutMs)) {
+            stopLocked();
+            return -ETIMEDOUT;
+        }
+        if (resp->id == id) {
+            if (out) out->swap(body);
+            return 0;
+        }
+        if (static_cast<int32_t>(resp->id - id) < 0) {
+            // 之前超时的请求迟到的响应
+            LOGW("Discarded late helper response (id=%u)", resp->id);
+            continue;
+        }
+        stopLocked();
+        return -ETIMEDOUT;
+    }
+}
+
+int HelperClient::setAffinity(int tid, uint64_t mask) {
+    std::lock_guard<std::mutex> lock(m_mutex);
+    return transactLocked(OP_SET_AFFINITY, tid, mask, nullptr, 0, nullptr, nullptr, kRequestTimeoutMs);
+}
+
+int HelperClient::getAffinity(int tid, uint64_t* mask) {
+    std::lock_guard<std::mutex> lock(m_mutex);
+    return transactLocked(OP_GET_AFFINITY, tid, 0, nullptr, 0, mask, nullptr, kRequestTimeoutMs);
+}
+
+int HelperClient::moveToCpuset(int tid, const std::string& cpusetDir) {
+    std::lock_guard<std::mutex> lock(m_mutex);
+    return transactLocked(OP_CPUSET_MOVE, tid, 0, cpusetDir.c_str(), cpusetDir.size(),
+                          nullptr, nullptr, kRequestTimeoutMs);
+}
+
+int HelperClient::readFile(const std::string& path, std::string* out, size_t limit) {
+    std::lock_guard<std::mutex> lock(m_mutex);
+    return transactLocked(OP_READ_FILE, 0, limit, path.c_str(), path.size(),
+                          nullptr, out, kRequestTimeoutMs);
+}
+
+int HelperClient::writeFile(const std::string& path, const std::string& data) {
+    std::string payload = path;
+    payload.push_back('\0');
+    payload += data;
+    std::lock_guard<std::mutex> lock(m_mutex);
+    return transactLocked(OP_WRITE_FILE, 0, 0, payload.data(), payload.size(),
+                          nullptr, nullptr, kRequestTimeoutMs);
+}
+
+int HelperClient::listTasks(int pid, std::vector<int>* tids) {
+    std::string body;
+    int status;
+    {
+        std::lock_guard<std::mutex> lock(m_mutex);
+        status = transactLocked(OP_LIST_TASKS, pid, 0, nullptr, 0, nullptr, &body, kRequestTimeoutMs);
+    }
+    if (status != 0) return status;
+    size_t count = body.size() / sizeof(int32_t);
+    tids->resize(count);
+    for (size_t i = 0; i < count; i++) {
+        int32_t tid;
+        memcpy(&tid, body.data() + i * sizeof(int32_t), sizeof(tid));
+        (*tids)[i] = tid;
+    }
+    return 0;
+}
+
+int HelperClient::sampleThreads(const int* pids, size_t count, uint32_t flags, std::vector<ThreadSample>* samples,
+                                uint32_t* births, uint32_t* deaths) {
+    std::vector<int32_t> payload(pids, pids + count);
+    std::string body;
+    uint64_t value = 0;
+    int status;
+    {
+        std::lock_guard<std::mutex> lock(m_mutex);
+        status = transactLocked(OP_THREAD_SAMPLE, 0, flags, payload.data(), payload.size() * sizeof(int32_t),
+                                &value, &body, kSampleTimeoutMs, false);
+    }
+    if (status != 0) return status;
+    *births = static_cast<uint32_t>(value);
+    *deaths = static_cast<uint32_t>(value >> 32);
+    samples->resize(body.size() / sizeof(ThreadSample));
+    if (!samples->empty()) memcpy(samples->data(), body.data(), samples->size() * sizeof(ThreadSample));
+    return 0;
+}
+
+int HelperClient::sampleSystemTop(const int* pids, size_t count, uint32_t limit, uint32_t budgetMs,
+                                  std::string* payload) {
+    std::vector<int32_t> body(pids, pids + count);
+    uint64_t value = 0;
+    std::lock_guard<std::mutex> lock(m_mutex);
+    // 辅助进程按预算遍历，超时在预算之外再留出正常请求的余量
+    int timeoutMs = static_cast<int>(budgetMs) + kRequestTimeoutMs;
+    return transactLocked(OP_SYSTEM_TOP, 0, limit | static_cast<uint64_t>(budgetMs) << 32,
+                          body.data(), body.size() * sizeof(int32_t), &value, payload, timeoutMs, false);
+}
+
+HelperClient& HelperClient::execChannel() {
+    static HelperClient channel;
+    return channel;
+}
+
+int HelperClient::exec(const std::string& command, std::string* out, int timeoutMs, int* exitStatus) {
+    HelperClient& channel = execChannel();
+    if (this != &channel) {
+        std::string path;
+        std::string launcher;
+        {
+            std::lock_guard<std::mutex> lock(m_mutex);
+            path = m_helperPath;
+            launcher = m_launcher;
+        }
+        if (path.empty()) return -ENOTCONN;
+        {
+            std::lock_guard<std::mutex> lock(channel.m_mutex);
+            channel.m_helperPath = path;
+            channel.m_launcher = launcher;
+        }
+        return channel.exec(command, out, timeoutMs, exitStatus);
+    }
+
+    if (!ensureRunning()) return -ENOTCONN;
+    uint64_t value = 0;
+    std::lock_guard<std::mutex> lock(m_mutex);
+    // 辅助进程自己负责命令超时，通道超时多留一点余量
+    int status = transactLocked(OP_EXEC, 0, timeoutMs, command.c_str(), command.size(),
+                                &value, out, timeoutMs + 1000);
+    if (exitStatus) *exitStatus = static_cast<int>(value);
+    return status;
+}
+
+int HelperClient::setWatchRules(int tgid, const std::string& rules, int* mode) {
+    uint64_t value = 0;
+    std::lock_guard<std::mutex> lock(m_mutex);
+    int status = transactLocked(OP_WATCH_SET, tgid, 0, rules.data(), rules.size(),
+                                &value, nullptr, kRequestTimeoutMs);
+    if (mode) *mode = static_cast<int>(value);
+    return status;
+}
+
+int HelperClient::watchDrain(std::string* out, uint64_t* dropped) {
+    uint64_t value = 0;
+    std::lock_guard<std::mutex> lock(m_mutex);
+    int status = transactLocked(OP_WATCH_DRAIN, 0, 0, nullptr, 0, &value, out, kRequestTimeoutMs);
+    if (dropped) *dropped = value;
+    return status;
+}
+
+int HelperClient::watchStats(std::string* out, int* mode) {
+    uint64_t value = 0;
+    std::lock_guard<std::mutex> lock(m_mutex);
+    int status = transactLocked(OP_WATCH_STATS, 0, 0, nullptr, 0, &value, out, kRequestTimeoutMs);
+    if (mode) *mode = static_cast<int>(value);
+    return status;
+}
+
+int HelperClient::cpusetGroup(const std::string& root, const std::string& name,
+                              const std::string& cpus, int* layout) {
+    std::string payload = root;
+    payload.push_back('\0');
+    payload += name;
+    payload.push_back('\0');
+    payload += cpus;
+    uint64_t value = 0;
+    std::lock_guard<std::mutex> lock(m_mutex);
+    int status = transactLocked(OP_CPUSET_GROUP, 0, 0, payload.data(), payload.size(),
+                                &value, nullptr, kRequestTimeoutMs);
+    if (layout) *layout = static_cast<int>(value);
+    return status;
+}
+
+int HelperClient::cpusetPlaceBatch(const std::string& root, const std::string& name,
+                                   const int* tids, size_t count, int* statuses) {
+    std::string payload = root;
+    payload.push_back('\0');
+    payload += name;
+
+    std::lock_guard<std::mutex> lock(m_mutex);
+    if (m_fd < 0) return -ENOTCONN;
+
+    std::string buffer;
+    for (size_t base = 0; base < count; base += kBatchChunk) {
+        size_t n = std::min(kBatchChunk, count - base);
+        uint32_t firstId = m_nextId;
+        buffer.clear();
+        for (size_t i = base; i < base + n; i++) {
+            RequestHeader req = {};
+            req.magic = kRequestMagic;
+            req.id = m_nextId++;
+            req.op = OP_CPUSET_PLACE;
+            req.tid = tids[i];
+            req.payloadLen = static_cast<uint32_t>(payload.size());
+            buffer.append(reinterpret_cast<const char*>(&req), sizeof(req));
+            buffer.append(payload);
+        }
+
+        if (!sendAll(buffer.data(), buffer.size())) {
+            LOGE("Helper batch send failed: %s", strerror(errno));
+            stopLocked();
+            return -ENOTCONN;
+        }
+
+        for (size_t k = 0; k < n; k++) {
+            ResponseHeader resp;
+            int status = recvResponseLocked(firstId + k, &resp, nullptr, kRequestTimeoutMs);
+            if (status != 0) {
+                LOGE("Helper batch response invalid or timed out");
+                return status;
+            }
+            statuses[base + k] = resp.status;
+        }
+    }
+    return 0;
+}
+
+int HelperClient::setSchedBatch(const int* tids, const SchedParams* params, size_t count,
+                                SchedParams* actual, int* statuses) {
+    return schedBatch(OP_SCHED_SET, tids, params, count, actual, statuses);
+}
+
+int HelperClient::getSchedBatch(const int* tids, size_t count, SchedParams* actual, int* statuses) {
+    return schedBatch(OP_SCHED_GET, tids, nullptr, count, actual, statuses);
+}
+
+int HelperClient::schedBatch(uint16_t op, const int* tids, const SchedParams* params, size_t count,
+                             SchedParams* actual, int* statuses) {
+    std::lock_guard<std::mutex> lock(m_mutex);
+    if (m_fd < 0) return -ENOTCONN;
+
+    std::string buffer;
+    std::string out;
+    for (size_t base = 0; base < count; base += kBatchChunk) {
+        size_t n = std::min(kBatchChunk, count - base);
+        uint32_t firstId = m_nextId;
+        buffer.clear();
+        for (size_t i = base; i < base + n; i++) {
+            RequestHeader req = {};
+            req.magic = kRequestMagic;
+            req.id = m_nextId++;
+            req.op = op;
+            req.tid = tids[i];
+            req.payloadLen = params ? sizeof(SchedParams) : 0;
+            buffer.append(reinterpret_cast<const char*>(&req), sizeof(req));
+            if (params) buffer.append(reinterpret_cast<const char*>(&params[i]), sizeof(SchedParams));
+        }
+
+        if (!sendAll(buffer.data(), buffer.size())) {
+            LOGE("Helper batch send failed: %s", strerror(errno));
+            stopLocked();
+            return -ENOTCONN;
+        }
+
+        for (size_t k = 0; k < n; k++) {
+            ResponseHeader resp;
+            int status = recvResponseLocked(firstId + k, &resp, &out, kRequestTimeoutMs);
+            if (status != 0) {
+                LOGE("Helper batch response invalid or timed out");
+                return status;
+            }
+            statuses[base + k] = resp.status;
+            memset(&actual[base + k], 0, sizeof(SchedParams));
+            if (out.size() == sizeof(SchedParams)) {
+                memcpy(&actual[base + k], out.data(), sizeof(SchedParams));
+            }
+        }
+    }
+    return 0;
+}
+
+int HelperClient::setAffinityBatch(const int* tids, const uint64_t* masks, size_t count,
+                                   const std::string& cpusetDir, int* statuses) {
+    std::lock_guard<std::mutex> lock(m_mutex);
+    if (m_fd < 0) return -ENOTCONN;
+
+    const bool moveCpuset = !cpusetDir.empty();
+    const size_t perThread = moveCpuset ? 2 : 1;
+    std::string buffer;
+    std::vector<uint32_t> ids;
+
+    for (size_t base = 0; base < count; base += kBatchChunk) {
+        size_t n = std::min(kBatchChunk, count - base);
+        buffer.clear();
+        ids.clear();
+        for (size_t i = base; i < base + n; i++) {
+            RequestHeader req = {};
+            req.magic = kRequestMagic;
+            req.tid = tids[i];
+            if (moveCpuset) {
+                req.id = m_nextId++;
+                req.op = OP_CPUSET_MOVE;
+                req.payloadLen = cpusetDir.size();
+                buffer.append(reinterpret_cast<const char*>(&req), sizeof(req));
+                buffer.append(cpusetDir);
+                ids.push_back(req.id);
+            }
+            req.id = m_nextId++;
+            req.op = OP_SET_AFFINITY;
+            req.arg = masks[i];
+            req.payloadLen = 0;
+            buffer.append(reinterpret_cast<const char*>(&req), sizeof(req));
+            ids.push_back(req.id);
+        }
+
+        // 一块请求一次写出
+        if (!sendAll(buffer.data(), buffer.size())) {
+            LOGE("Helper batch send failed: %s", strerror(errno));
+            stopLocked();
+            return -ENOTCONN;
+        }
+
+        for (size_t k = 0; k < ids.size(); k++) {
+            ResponseHeader resp;
+            int status = recvResponseLocked(ids[k], &resp, nullptr, kRequestTimeoutMs);
+            if (status != 0) {
+                LOGE("Helper batch response invalid or timed out");
+                return status;
+            }
+            // 只记录 sched_setaffinity 的结果，cpuset 迁移失败不影响掩码设置
+            if (k % perThread == perThread - 1) {
+                statuses[base + k / perThread] = resp.status;
+            }
+        }
+    }
+    return 0;
+}
+
+int HelperClient::getAffinityBatch(const int* tids, size_t count, uint64_t* masks, int* statuses) {
+    std::lock_guard<std::mutex> lock(m_mutex);
+    if (m_fd < 0) return -ENOTCONN;
+
+    std::string buffer;
+    for (size_t base = 0; base < count; base += kBatchChunk) {
+        size_t n = std::min(kBatchChunk, count - base);
+        uint32_t firstId = m_nextId;
+        buffer.clear();
+        for (size_t i = base; i < base + n; i++) {
+            RequestHeader req = {};
+            req.magic = kRequestMagic;
+            req.id = m_nextId++;
+            req.op = OP_GET_AFFINITY;
+            req.tid = tids[i];
+            buffer.append(reinterpret_cast<const char*>(&req), sizeof(req));
+        }
+
+        if (!sendAll(buffer.data(), buffer.size())) {
+            LOGE("Helper batch send failed: %s", strerror(errno));
+            stopLocked();
+            return -ENOTCONN;
+        }
+
+        for (size_t k = 0; k < n; k++) {
+            ResponseHeader resp;
+            int status = recvResponseLocked(firstId + k, &resp, nullptr, kRequestTimeoutMs);
+            if (status != 0) {
+                LOGE("Helper batch response invalid or timed out");
+                return status;
+            }
+            statuses[base + k] = resp.status;
+            masks[base + k] = resp.status == 0 ? resp.value : 0;
+        }
+    }
+    return 0;
+}
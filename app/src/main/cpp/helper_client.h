@@ -0,0 +1,185 @@
+#ifndef HELPER_CLIENT_H
+#define HELPER_CLIENT_H
+
+#include <string>
+#include <vector>
+#include <mutex>
+#include <cstdint>
+#include <sys/types.h>
+#include "helper_protocol.h"
+
+/**
+ * 特权辅助进程客户端
+ * 通过 su 启动 affinity_helper，经 Unix 域 socket 对发送二进制请求
+ * 每次亲和性设置只是一次 socket 往返 + 一次系统调用，不再 fork taskset/sh
+ */
+class HelperClient {
+public:
+    static HelperClient& getInstance();
+
+    // 禁止拷贝和赋值
+    HelperClient(const HelperClient&) = delete;
+    HelperClient& operator=(const HelperClient&) = delete;
+
+    /**
+     * 启动辅助进程（已运行时直接返回 true）
+     * @param helperPath 辅助进程可执行文件路径
+     * @param launcher 启动器（默认 su），为空时直接执行（用于 Linux 主机测试）
+     */
+    bool start(const std::string& helperPath, const std::string& launcher = "su");
+
+    /**
+     * 辅助进程未运行时用上次的参数重新启动（限频，避免反复弹出 su 授权）
+     * @return 是否在运行
+     */
+    bool ensureRunning();
+
+    /**
+     * 辅助进程是否在运行
+     */
+    bool isRunning();
+
+    /**
+     * 停止辅助进程
+     */
+    void stop();
+
+    // 以下操作返回 0 表示成功，否则为 -errno（辅助进程未运行时为 -ENOTCONN）
+    int setAffinity(int tid, uint64_t mask);
+    int getAffinity(int tid, uint64_t* mask);
+    int moveToCpuset(int tid, const std::string& cpusetDir);
+    int readFile(const std::string& path, std::string* out, size_t limit = 0);
+    int writeFile(const std::string& path, const std::string& data);
+    int listTasks(int pid, std::vector<int>* tids);
+
+    /**
+     * 以 root 执行 shell 命令（stdout+stderr）
+     * 命令在单独的辅助进程（执行通道，第一次调用时启动）上运行：
+     * 辅助进程单线程处理请求，慢命令放在主通道上会让所有亲和性请求等待
+     * @param exitStatus 命令退出码
+     * @return 0 表示命令已执行；未调用过 start() 或执行通道无法启动时为 -ENOTCONN，命令超时为 -ETIMEDOUT
+     */
+    int exec(const std::string& command, std::string* out, int timeoutMs, int* exitStatus);
+
+    /**
+     * 批量设置亲和性：请求分块一次写出，再按顺序读取响应
+     * @param cpusetDir 非空时先把每个线程移入该 cpuset
+     * @param statuses 输出每个线程 sched_setaffinity 的结果（0 或 -errno）
+     * @return 0 表示所有请求都得到了响应，否则为通道错误
+     */
+    int setAffinityBatch(const int* tids, const uint64_t* masks, size_t count,
+                         const std::string& cpusetDir, int* statuses);
+
+    /**
+     * 批量读取亲和性（sched_getaffinity），同样分块流水线发送
+     * @param masks 输出每个线程当前生效的掩码（失败时为 0）
+     * @param statuses 输出每个线程的结果（0 或 -errno）
+     */
+    int getAffinityBatch(const int* tids, size_t count, uint64_t* masks, int* statuses);
+
+    /**
+     * 设置新线程监听规则（由辅助进程在线程创建时直接应用）
+     * @param rules 每行 "线程名\t十六进制掩码[\t分组]"，另有 "\t根目录" 一行时有分组的规则放入 cpuset 分组；
+     *              为空表示取消该进程的监听
+     * @param mode 输出监听模式（ThreadWatcher::Mode）
+     */
+    int setWatchRules(int tgid, const std::string& rules, int* mode);
+
+    /**
+     * 读取新线程监听统计
+     */
+    int watchStats(std::string* out, int* mode);
+
+    /**
+     * 取走新线程监听修改过的线程及其修改前的状态（OP_WATCH_DRAIN 的文本格式）
+     * @param dropped 输出辅助进程缓存已满丢弃的条数
+     */
+    int watchDrain(std::string* out, uint64_t* dropped);
+
+    /**
+     * 在 cpuset 根目录下创建/更新分组（核心列表未变化时不写入）
+     * @param layout 输出 cgroup 布局（CpusetBackend::Layout）
+     */
+    int cpusetGroup(const std::string& root, const std::string& name, const std::string& cpus, int* layout);
+
+    /**
+     * 批量把线程放入分组，每个线程一次写入，分块流水线发送
+     * @param statuses 输出每个线程的结果（0 或 -errno）
+     */
+    int cpusetPlaceBatch(const std::string& root, const std::string& name,
+                         const int* tids, size_t count, int* statuses);
+
+    /**
+     * 批量设置调度参数（策略/nice/uclamp），分块流水线发送
+     * @param actual 输出每个线程写入后回读的参数（回读失败时 fields 为 0）
+     * @param statuses 输出每个线程的结果（0 或 -errno）
+     */
+    int setSchedBatch(const int* tids, const helper::SchedParams* params, size_t count,
+                      helper::SchedParams* actual, int* statuses);
+
+    /**
+     * 批量读取调度参数
+     * @param actual 输出每个线程当前的参数（失败时 fields 为 0）
+     */
+    int getSchedBatch(const int* tids, size_t count, helper::SchedParams* actual, int* statuses);
+
+    /**
+     * 采样多个进程的所有线程（一次往返），辅助进程按进程保存记录表，只读取变化的部分
+     * @param flags helper::kSample* 标志
+     * @param samples 输出采样记录（按 tid 排序）
+     * @param births 输出与上次采样相比新出现的线程数
+     * @param deaths 输出已退出的线程数
+     */
+    int sampleThreads(const int* pids, size_t count, uint32_t flags, std::vector<helper::ThreadSample>* samples,
+                      uint32_t* births, uint32_t* deaths);
+
+    /**
+     * 全系统线程占用排行（辅助进程保存所有线程的上次 schedstat）
+     * @param pids [本 App pid, 排除的 pid...]
+     * @param budgetMs 遍历预算，超出时下次继续
+     * @param payload 输出 SystemTopHeader + TopThread[] + TopGroup[] + TopGroup[]
+     */
+    int sampleSystemTop(const int* pids, size_t count, uint32_t limit, uint32_t budgetMs, std::string* payload);
+
+private:
+    HelperClient();
+    ~HelperClient();
+
+    /**
+     * 执行通道：与主通道使用相同的辅助进程和启动器，只发送 OP_EXEC
+     */
+    static HelperClient& execChannel();
+
+    /**
+     * 发送一个请求并等待响应（调用方已持有 m_mutex）
+     * @param restartOnTimeout 为 false 时，响应还没开始到达就超时不关闭连接：
+     *        迟到的响应在下一次接收时按编号丢弃（用于耗时随线程数增长的采样请求）
+     */
+    int transactLocked(uint16_t op, int tid, uint64_t arg,
+                       const void* payload, uint32_t payloadLen,
+                       uint64_t* value, std::string* out, int timeoutMs, bool restartOnTimeout = true);
+
+    bool startLocked();
+    int recvResponseLocked(uint32_t id, helper::ResponseHeader* resp, std::string* out, int timeoutMs,
+                           bool restartOnTimeout = true);
+
+    /**
+     * OP_SCHED_SET / OP_SCHED_GET 的批量收发（params 为 nullptr 时不带负载）
+     */
+    int schedBatch(uint16_t op, const int* tids, const helper::SchedParams* params, size_t count,
+                   helper::SchedParams* actual, int* statuses);
+    bool sendAll(const void* buf, size_t len);
+    bool recvAll(void* buf, size_t len, int timeoutMs);
+    bool waitReadable(int timeoutMs);
+    void stopLocked();
+
+    std::mutex m_mutex;
+    std::string m_helperPath;
+    std::string m_launcher;
+    long long m_lastStartAttemptMs;
+    int m_fd;
+    pid_t m_pid;
+    uint32_t m_nextId;
+};
+
+#endif // HELPER_CLIENT_H
@@ -0,0 +1,155 @@
+#ifndef HELPER_PROTOCOL_H
+#define HELPER_PROTOCOL_H
+
+#include <cstdint>
+
+/**
+ * 特权辅助进程（affinity_helper）与 App 之间的二进制协议
+ *
+ * 辅助进程通过 su 启动一次，之后从 stdin 读取请求、向 stdout 写回响应。
+ * 每个请求/响应都是固定长度的头部 + 可选的变长负载，字段均为本机字节序
+ * （两端运行在同一台设备上）。
+ *
+ * 请求: RequestHeader + payload[payloadLen]
+ * 响应: ResponseHeader + payload[payloadLen]
+ * 响应按请求顺序返回，id 原样带回用于校验。
+ */
+namespace helper {
+
+constexpr uint32_t kRequestMagic  = 0x51524641;  // "AFRQ"
+constexpr uint32_t kResponseMagic = 0x53524641;  // "AFRS"
+constexpr uint32_t kMaxPayload    = 4 * 1024 * 1024;
+
+enum Op : uint16_t {
+    OP_PING          = 1,  // 返回 value = 辅助进程 pid
+    OP_SET_AFFINITY  = 2,  // tid, arg = 掩码
+    OP_GET_AFFINITY  = 3,  // tid, 返回 value = 掩码
+    OP_CPUSET_MOVE   = 4,  // tid, payload = cpuset 目录（如 /dev/cpuset/top-app）
+    OP_READ_FILE     = 5,  // payload = 路径, arg = 最大读取字节数（0 表示上限）, 返回 payload = 内容
+    OP_WRITE_FILE    = 6,  // payload = 路径 '\0' 内容
+    OP_LIST_TASKS    = 7,  // tid = 进程 pid, 返回 payload = int32 tid 数组
+    OP_SHUTDOWN      = 8,
+    OP_EXEC          = 9,  // payload = shell 命令, arg = 超时毫秒, 返回 value = 退出码, payload = stdout+stderr
+    OP_WATCH_SET     = 10, // tid = 进程 pid, payload = 每行 "线程名\t十六进制掩码[\t cpuset 分组]"（为空表示取消），
+                           // 线程名为空的一行 "\t根目录" 给出 cpuset 根目录（有分组的规则放入分组）, 返回 value = 监听模式
+    OP_WATCH_STATS   = 11, // 返回 value = 监听模式, payload = 统计文本
+    OP_CPUSET_GROUP  = 12, // payload = 根目录 '\0' 分组名 '\0' 核心列表, 返回 value = cgroup 布局
+    OP_CPUSET_PLACE  = 13, // tid, payload = 根目录 '\0' 分组名
+    OP_SCHED_SET     = 14, // tid, payload = SchedParams, 返回 payload = 写入后回读的 SchedParams
+    OP_SCHED_GET     = 15, // tid, 返回 payload = SchedParams
+    OP_THREAD_SAMPLE = 16, // payload = int32 pid 数组, arg = kSample* 标志,
+                           // 返回 payload = ThreadSample 数组（按 tid 排序）, value = 出生数 | 退出数 << 32
+    OP_SYSTEM_TOP    = 17, // 全系统线程占用排行, payload = int32 数组 [本 App pid, 排除的 pid...],
+                           // arg = 数量上限 | 遍历预算毫秒 << 32,
+                           // 返回 payload = SystemTopHeader + TopThread[] + TopGroup[]（进程）+ TopGroup[]（线程名）
+    OP_WATCH_DRAIN   = 18, // 取走新线程监听修改过的线程及其修改前的状态,
+                           // 返回 payload = 每行 "tid\ttgid\t十六进制原掩码\t原 cpuset\t线程名", value = 丢弃的条数
+};
+
+// OP_THREAD_SAMPLE 标志
+constexpr uint32_t kSampleNamesOnly = 1 << 0; // 只需要线程名：已知线程不重读 stat，CPU 时间可能是旧值
+
+// SchedParams.fields：哪些字段有效（写入时表示要设置的字段）
+constexpr uint32_t kSchedFieldPolicy    = 1 << 0; // policy + priority
+constexpr uint32_t kSchedFieldNice      = 1 << 1;
+constexpr uint32_t kSchedFieldUclampMin = 1 << 2;
+constexpr uint32_t kSchedFieldUclampMax = 1 << 3;
+
+/**
+ * 线程调度参数（OP_SCHED_SET / OP_SCHED_GET 的负载）
+ */
+struct SchedParams {
+    uint32_t fields;
+    int32_t  policy;     // SCHED_OTHER/BATCH/IDLE/FIFO/RR
+    int32_t  priority;   // 实时优先级 1-99（FIFO/RR）
+    int32_t  nice;       // -20..19
+    int32_t  uclampMin;  // 0..1024
+    int32_t  uclampMax;  // 0..1024
+};
+
+/**
+ * 线程采样记录（OP_THREAD_SAMPLE 的负载），字段来自 /proc/<pid>/task/<tid>/stat 和 schedstat
+ */
+struct ThreadSample {
+    int32_t  tid;
+    int32_t  tgid;
+    uint64_t utime;      // 时钟节拍
+    uint64_t stime;
+    uint64_t startTime;  // 线程启动时间（节拍），用于识别 tid 复用
+    int32_t  processor;  // 最近运行的核心
+    char     state;      // R/S/D/...
+    uint8_t  flags;      // kSampleHas*
+    char     reserved[2];
+    char     comm[16];   // 以 '\0' 结尾
+    uint64_t runtimeNs;  // 累计运行时间（纳秒），schedstat 不可用时由 utime+stime 按 CLK_TCK 换算
+    uint64_t waitNs;     // 可运行但在运行队列中等待的累计时间（纳秒），仅 schedstat 可用时有效
+    uint64_t timeslices; // 在 CPU 上运行过的次数，仅 schedstat 可用时有效
+};
+
+// ThreadSample.flags
+constexpr uint8_t kSampleHasSchedstat = 1 << 0; // runtimeNs/waitNs/timeslices 来自 schedstat
+
+/**
+ * OP_SYSTEM_TOP 的负载：头部之后依次为 threadCount 个 TopThread、processCount 个 TopGroup（按进程）
+ * 和 nameCount 个 TopGroup（按线程名），都按运行占比从高到低排序
+ */
+struct SystemTopHeader {
+    uint32_t threadCount;
+    uint32_t processCount;
+    uint32_t nameCount;
+    uint32_t tasksScanned;  // 本次读取的线程数（超出预算时只遍历了部分进程）
+    uint32_t tasksTracked;  // 记录表中的线程数
+    uint32_t flags;         // kSampleHasSchedstat：占比来自 schedstat，否则由节拍换算、没有等待占比
+    uint64_t scanNs;        // 本次遍历耗时
+};
+
+struct TopThread {
+    int32_t tid;
+    int32_t tgid;
+    float   runPercent;   // 最近一次读取区间内的运行占比（100 = 一个核心）
+    float   waitPercent;  // 可运行但在运行队列中等待的占比
+    int32_t processor;
+    char    state;
+    char    reserved[3];
+    char    comm[16];
+};
+
+struct TopGroup {
+    int32_t id;           // 按进程: tgid；按线程名: 线程都属于同一进程时为其 tgid，否则为 0
+    int32_t threads;      // 有占用的线程数
+    int32_t tid;          // 占比最高的线程
+    float   runPercent;
+    float   waitPercent;
+    char    name[16];     // 进程名（主线程名）或线程名；本 App 的线程合并为一组，id 为本 App pid
+};
+
+struct RequestHeader {
+    uint32_t magic;
+    uint32_t id;
+    uint16_t op;
+    uint16_t flags;
+    int32_t  tid;
+    uint64_t arg;
+    uint32_t payloadLen;
+    uint32_t reserved;
+};
+
+struct ResponseHeader {
+    uint32_t magic;
+    uint32_t id;
+    int32_t  status;      // 0 成功，否则为 -errno
+    uint32_t payloadLen;
+    uint64_t value;
+};
+
+static_assert(sizeof(RequestHeader) == 32, "RequestHeader layout");
+static_assert(sizeof(ResponseHeader) == 24, "ResponseHeader layout");
+static_assert(sizeof(SchedParams) == 24, "SchedParams layout");
+static_assert(sizeof(ThreadSample) == 80, "ThreadSample layout");
+static_assert(sizeof(SystemTopHeader) == 32, "SystemTopHeader layout");
+static_assert(sizeof(TopThread) == 40, "TopThread layout");
+static_assert(sizeof(TopGroup) == 36, "TopGroup layout");
+
+} // namespace helper
+
+#endif // HELPER_PROTOCOL_H
@@ -3,12 +3,18 @@
 #include <vector>
 #include <dirent.h>
 #include <errno.h>
+#include <time.h>
 #include <unistd.h>
+#include <algorithm>
 #include <cstring>
+#include <mutex>
+#include <unordered_map>
 #include <android/log.h>
 #include "affinity_manager.h"
 #include "cpu_monitor.h"
 #include "root_shell.h"
+#include "helper_client.h"
+#include "thread_sampler.h"
 
 #define LOG_TAG "ThreadAffinity-JNI"
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
@@ -18,14 +24,10 @@
 static AffinityManager g_affinityManager;
 static CpuMonitor g_cpuMonitor;
 
-// JNI_OnLoad - 在库加载时调用，设置 JavaVM
+// JNI_OnLoad - 在库加载时调用
+// Native 层的 root 操作走自己的特权辅助进程，不再需要保存 JavaVM 回调 Java 层 shell
 JNIEXPORT jint JNI_OnLoad(JavaVM* vm, void* reserved) {
-    LOGI("JNI_OnLoad called - setting JavaVM for RootShell");
-    
-    // 设置 JavaVM 到 RootShell，用于回调 Java 层的持久化 shell
-    RootShell::getInstance().setJavaVM(vm);
-    
-    LOGI("JNI_OnLoad completed - RootShell will use Java persistent shell (12MB buffer)");
+    LOGI("JNI_OnLoad called - RootShell uses native helper channel");
     return JNI_VERSION_1_6;
 }
 
@@ -93,14 +95,23 @@ static int readThreadCpu(int tid) {
     return cpu;
 }
 
-// 通过包名获取pid
-static int getPidByPackageName(const char* packageName) {
+// 进程名（cmdline 第一个参数）是否属于该包：pkg 或 pkg:xxx
+static bool isPackageProcess(const char* processName, const char* packageName) {
+    size_t len = strlen(packageName);
+    return strncmp(processName, packageName, len) == 0 &&
+           (processName[len] == '\0' || processName[len] == ':');
+}
+
+// 通过包名获取该包的所有进程（pkg 和 pkg:*），主进程在前
+// @return 主进程 pid，主进程未运行返回 -1
+static int getPidsByPackageName(const char* packageName, std::vector<int>* pids) {
     DIR* procDir = opendir("/proc");
     if (!procDir) {
-        LOGE("getPidByPackageName: cannot open /proc");
+        LOGE("getPidsByPackageName: cannot open /proc");
         return -1;
     }
     
+    int mainPid = -1;
     struct dirent* entry;
     while ((entry = readdir(procDir)) != nullptr) {
         // 只处理数字目录（进程ID）
@@ -120,17 +131,29 @@ static int getPidByPackageName(const char* packageName) {
         fread(cmdline, 1, sizeof(cmdline) - 1, f);
         fclose(f);
         
-        // cmdline 以 null 结尾，比较包名
+        // cmdline 以 null 分隔参数，只比较第一个参数
+        if (!isPackageProcess(cmdline, packageName)) continue;
         if (strcmp(cmdline, packageName) == 0) {
-            closedir(procDir);
-            LOGI("getPidByPackageName: found pid=%d for %s", pid, packageName);
-            return pid;
+            mainPid = pid;
+            pids->insert(pids->begin(), pid);
+        } else {
+            pids->push_back(pid);
         }
     }
     
     closedir(procDir);
-    LOGE("getPidByPackageName: not found for %s", packageName);
-    return -1;
+    if (pids->empty()) {
+        LOGE("getPidsByPackageName: not found for %s", packageName);
+    } else {
+        LOGI("getPidsByPackageName: %zu processes for %s (main pid=%d)", pids->size(), packageName, mainPid);
+    }
+    return mainPid;
+}
+
+// 通过包名获取主进程pid
+static int getPidByPackageName(const char* packageName) {
+    std::vector<int> pids;
+    return getPidsByPackageName(packageName, &pids);
 }
 
 extern "C" {
@@ -144,6 +167,265 @@ Java_com_threadaffinity_manager_NativeHelper_setThreadAffinity(
     return result ? JNI_TRUE : JNI_FALSE;
 }
 
+// 批量设置结果码（与 NativeHelper.AFFINITY_* 一致）
+static const jint AFFINITY_OK = 0;
+static const jint AFFINITY_NO_SUCH_THREAD = 1;
+static const jint AFFINITY_INVALID_MASK = 2;
+static const jint AFFINITY_FAILED = 3;
+
+// 系统调用结果 (0 / -errno) -> NativeHelper.AFFINITY_*
+static jint toAffinityCode(int status) {
+    if (status == 0) return AFFINITY_OK;
+    if (status == -ESRCH) return AFFINITY_NO_SUCH_THREAD;
+    if (status == -EINVAL) return AFFINITY_INVALID_MASK;
+    return AFFINITY_FAILED;
+}
+
+JNIEXPORT jintArray JNICALL
+Java_com_threadaffinity_manager_NativeHelper_setThreadAffinities(
+        JNIEnv *env, jclass clazz, jintArray tids, jlongArray masks) {
+    if (tids == nullptr || masks == nullptr) return nullptr;
+    jsize count = env->GetArrayLength(tids);
+    if (env->GetArrayLength(masks) != count) {
+        jclass iae = env->FindClass("java/lang/IllegalArgumentException");
+        if (iae != nullptr) env->ThrowNew(iae, "tids and masks length mismatch");
+        return nullptr;
+    }
+
+    std::vector<int> tidVec(count);
+    std::vector<jlong> maskRaw(count);
+    env->GetIntArrayRegion(tids, 0, count, tidVec.data());
+    env->GetLongArrayRegion(masks, 0, count, maskRaw.data());
+    std::vector<uint64_t> maskVec(maskRaw.begin(), maskRaw.end());
+
+    // 一次写出所有请求，辅助进程逐个 sched_setaffinity
+    // 通道失败时返回 null（与 getThreadAffinities 一致），由 Java 层退回 shell
+    std::vector<int> statuses;
+    if (!g_affinityManager.setAffinityBatch(tidVec, maskVec, &statuses)) {
+        LOGE("JNI setThreadAffinities: helper channel failed");
+        return nullptr;
+    }
+
+    std::vector<jint> codes(count);
+    int ok = 0;
+    for (jsize i = 0; i < count; i++) {
+        codes[i] = toAffinityCode(statuses[i]);
+        if (codes[i] == AFFINITY_OK) ok++;
+    }
+    LOGI("JNI setThreadAffinities: %d/%d applied", ok, (int)count);
+
+    jintArray result = env->NewIntArray(count);
+    if (result != nullptr) {
+        env->SetIntArrayRegion(result, 0, count, codes.data());
+    }
+    return result;
+}
+
+JNIEXPORT jlongArray JNICALL
+Java_com_threadaffinity_manager_NativeHelper_getThreadAffinities(
+        JNIEnv *env, jclass clazz, jintArray tids) {
+    if (tids == nullptr) return nullptr;
+    jsize count = env->GetArrayLength(tids);
+    std::vector<int> tidVec(count);
+    env->GetIntArrayRegion(tids, 0, count, tidVec.data());
+
+    std::vector<uint64_t> masks;
+    if (!g_affinityManager.getAffinityBatch(tidVec, &masks)) {
+        return nullptr;
+    }
+
+    std::vector<jlong> out(masks.begin(), masks.end());
+    jlongArray result = env->NewLongArray(count);
+    if (result != nullptr) {
+        env->SetLongArrayRegion(result, 0, count, out.data());
+    }
+    return result;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_threadaffinity_manager_NativeHelper_setThreadWatch(
+        JNIEnv *env, jclass clazz, jint pid, jobjectArray names, jlongArray masks,
+        jstring cpusetRoot, jobjectArray groups) {
+    std::vector<std::string> nameVec;
+    std::vector<uint64_t> maskVec;
+    std::vector<std::string> groupVec;
+    if (names != nullptr && masks != nullptr) {
+        jsize count = env->GetArrayLength(names);
+        if (count != env->GetArrayLength(masks)) {
+            LOGE("setThreadWatch: length mismatch");
+            return 0;
+        }
+        std::vector<jlong> rawMasks(count);
+        env->GetLongArrayRegion(masks, 0, count, rawMasks.data());
+        for (jsize i = 0; i < count; i++) {
+            jstring name = static_cast<jstring>(env->GetObjectArrayElement(names, i));
+            if (name == nullptr) continue;
+            const char* chars = env->GetStringUTFChars(name, nullptr);
+            nameVec.push_back(chars);
+            maskVec.push_back(static_cast<uint64_t>(rawMasks[i]));
+            env->ReleaseStringUTFChars(name, chars);
+            env->DeleteLocalRef(name);
+
+            // 分组与规则一一对应，没有分组时为空字符串
+            std::string group;
+            if (groups != nullptr && i < env->GetArrayLength(groups)) {
+                jstring groupName = static_cast<jstring>(env->GetObjectArrayElement(groups, i));
+                if (groupName != nullptr) {
+                    const char* groupChars = env->GetStringUTFChars(groupName, nullptr);
+                    group = groupChars;
+                    env->ReleaseStringUTFChars(groupName, groupChars);
+                    env->DeleteLocalRef(groupName);
+                }
+            }
+            groupVec.push_back(group);
+        }
+    }
+    std::string root;
+    if (cpusetRoot != nullptr) {
+        const char* rootChars = env->GetStringUTFChars(cpusetRoot, nullptr);
+        root = rootChars;
+        env->ReleaseStringUTFChars(cpusetRoot, rootChars);
+    }
+    return g_affinityManager.setThreadWatch(pid, nameVec, maskVec, root, groupVec);
+}
+
+JNIEXPORT jstring JNICALL
+Java_com_threadaffinity_manager_NativeHelper_getThreadWatchStats(
+        JNIEnv *env, jclass clazz) {
+    return env->NewStringUTF(g_affinityManager.getThreadWatchStats().c_str());
+}
+
+// 线程名不一定是合法的 modified UTF-8，按字节返回由 Java 层解码
+JNIEXPORT jbyteArray JNICALL
+Java_com_threadaffinity_manager_NativeHelper_drainThreadWatch(
+        JNIEnv *env, jclass clazz) {
+    std::string out;
+    if (!g_affinityManager.drainThreadWatch(&out)) {
+        return nullptr;
+    }
+    jbyteArray result = env->NewByteArray(static_cast<jsize>(out.size()));
+    if (result != nullptr) {
+        env->SetByteArrayRegion(result, 0, static_cast<jsize>(out.size()),
+                                reinterpret_cast<const jbyte*>(out.data()));
+    }
+    return result;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_threadaffinity_manager_NativeHelper_setupCpusetGroup(
+        JNIEnv *env, jclass clazz, jstring root, jstring name, jstring cpus) {
+    if (root == nullptr || name == nullptr || cpus == nullptr) return 0;
+    const char* rootChars = env->GetStringUTFChars(root, nullptr);
+    const char* nameChars = env->GetStringUTFChars(name, nullptr);
+    const char* cpusChars = env->GetStringUTFChars(cpus, nullptr);
+    int layout = g_affinityManager.setupCpusetGroup(rootChars, nameChars, cpusChars);
+    env->ReleaseStringUTFChars(root, rootChars);
+    env->ReleaseStringUTFChars(name, nameChars);
+    env->ReleaseStringUTFChars(cpus, cpusChars);
+    return layout;
+}
+
+JNIEXPORT jintArray JNICALL
+Java_com_threadaffinity_manager_NativeHelper_placeThreads(
+        JNIEnv *env, jclass clazz, jstring root, jstring name, jintArray tids) {
+    if (root == nullptr || name == nullptr || tids == nullptr) return nullptr;
+    jsize count = env->GetArrayLength(tids);
+    std::vector<int> tidVec(count);
+    env->GetIntArrayRegion(tids, 0, count, tidVec.data());
+
+    const char* rootChars = env->GetStringUTFChars(root, nullptr);
+    const char* nameChars = env->GetStringUTFChars(name, nullptr);
+    std::vector<int> statuses;
+    bool ok = g_affinityManager.placeInCpuset(rootChars, nameChars, tidVec, &statuses);
+    env->ReleaseStringUTFChars(root, rootChars);
+    env->ReleaseStringUTFChars(name, nameChars);
+    if (!ok) return nullptr;
+
+    std::vector<jint> codes(count);
+    for (jsize i = 0; i < count; i++) {
+        codes[i] = toAffinityCode(statuses[i]);
+    }
+    jintArray result = env->NewIntArray(count);
+    if (result != nullptr) {
+        env->SetIntArrayRegion(result, 0, count, codes.data());
+    }
+    return result;
+}
+
+// Java 层调度参数按 int 数组平铺：fields, policy, priority, nice, uclampMin, uclampMax
+static const int kSchedParamCount = 6;
+
+static void schedToInts(const helper::SchedParams& p, jint* out) {
+    out[0] = static_cast<jint>(p.fields);
+    out[1] = p.policy;
+    out[2] = p.priority;
+    out[3] = p.nice;
+    out[4] = p.uclampMin;
+    out[5] = p.uclampMax;
+}
+
+JNIEXPORT jintArray JNICALL
+Java_com_threadaffinity_manager_NativeHelper_setThreadSched(
+        JNIEnv *env, jclass clazz, jintArray tids, jintArray params) {
+    if (tids == nullptr || params == nullptr) return nullptr;
+    jsize count = env->GetArrayLength(tids);
+    if (env->GetArrayLength(params) != count * kSchedParamCount) return nullptr;
+    std::vector<int> tidVec(count);
+    env->GetIntArrayRegion(tids, 0, count, tidVec.data());
+    std::vector<jint> flat(count * kSchedParamCount);
+    env->GetIntArrayRegion(params, 0, flat.size(), flat.data());
+
+    std::vector<helper::SchedParams> paramVec(count);
+    for (jsize i = 0; i < count; i++) {
+        const jint* p = &flat[i * kSchedParamCount];
+        paramVec[i].fields = static_cast<uint32_t>(p[0]);
+        paramVec[i].policy = p[1];
+        paramVec[i].priority = p[2];
+        paramVec[i].nice = p[3];
+        paramVec[i].uclampMin = p[4];
+        paramVec[i].uclampMax = p[5];
+    }
+    std::vector<helper::SchedParams> actual;
+    std::vector<int> statuses;
+    if (!g_affinityManager.setThreadSched(tidVec, paramVec, &actual, &statuses)) return nullptr;
+
+    // 每个线程：结果码 + 回读的参数
+    const int stride = kSchedParamCount + 1;
+    std::vector<jint> out(count * stride);
+    for (jsize i = 0; i < count; i++) {
+        out[i * stride] = toAffinityCode(statuses[i]);
+        schedToInts(actual[i], &out[i * stride + 1]);
+    }
+    jintArray result = env->NewIntArray(out.size());
+    if (result != nullptr) {
+        env->SetIntArrayRegion(result, 0, out.size(), out.data());
+    }
+    return result;
+}
+
+JNIEXPORT jintArray JNICALL
+Java_com_threadaffinity_manager_NativeHelper_getThreadSched(
+        JNIEnv *env, jclass clazz, jintArray tids) {
+    if (tids == nullptr) return nullptr;
+    jsize count = env->GetArrayLength(tids);
+    std::vector<int> tidVec(count);
+    env->GetIntArrayRegion(tids, 0, count, tidVec.data());
+
+    std::vector<helper::SchedParams> actual;
+    std::vector<int> statuses;
+    if (!g_affinityManager.getThreadSched(tidVec, &actual, &statuses)) return nullptr;
+
+    std::vector<jint> out(count * kSchedParamCount);
+    for (jsize i = 0; i < count; i++) {
+        schedToInts(actual[i], &out[i * kSchedParamCount]);
+    }
+    jintArray result = env->NewIntArray(out.size());
+    if (result != nullptr) {
+        env->SetIntArrayRegion(result, 0, out.size(), out.data());
+    }
+    return result;
+}
+
 JNIEXPORT jlong JNICALL
 Java_com_threadaffinity_manager_NativeHelper_getThreadAffinity(
         JNIEnv *env, jclass clazz, jint tid) {
@@ -159,6 +441,13 @@ Java_com_threadaffinity_manager_NativeHelper_getCpuCount(
     return count;
 }
 
+JNIEXPORT jint JNICALL
+Java_com_threadaffinity_manager_NativeHelper_getClockTicks(
+        JNIEnv *env, jclass clazz) {
+    long tck = sysconf(_SC_CLK_TCK);
+    return tck > 0 ? static_cast<jint>(tck) : 100;
+}
+
 JNIEXPORT jfloatArray JNICALL
 Java_com_threadaffinity_manager_NativeHelper_getCpuUsage(
         JNIEnv *env, jclass clazz) {
@@ -251,6 +540,22 @@ Java_com_threadaffinity_manager_NativeHelper_getPidByPackage(
     return pid;
 }
 
+// 通过包名获取该包的所有进程PID（主进程在前）
+JNIEXPORT jintArray JNICALL
+Java_com_threadaffinity_manager_NativeHelper_getPidsByPackage(
+        JNIEnv *env, jclass clazz, jstring packageNameStr) {
+    const char* packageName = env->GetStringUTFChars(packageNameStr, nullptr);
+    std::vector<int> pids;
+    getPidsByPackageName(packageName, &pids);
+    env->ReleaseStringUTFChars(packageNameStr, packageName);
+    
+    jintArray result = env->NewIntArray(pids.size());
+    if (result && !pids.empty()) {
+        env->SetIntArrayRegion(result, 0, pids.size(), pids.data());
+    }
+    return result;
+}
+
 // 检查进程是否存在
 JNIEXPORT jboolean JNICALL
 Java_com_threadaffinity_manager_NativeHelper_isProcessRunning(
@@ -275,4 +580,182 @@ Java_com_threadaffinity_manager_NativeHelper_isRootShellAlive(
     return RootShell::getInstance().isAlive() ? JNI_TRUE : JNI_FALSE;
 }
 
+// 启动特权辅助进程
+JNIEXPORT jboolean JNICALL
+Java_com_threadaffinity_manager_NativeHelper_startHelper(
+        JNIEnv *env, jclass clazz, jstring helperPathStr) {
+    const char* helperPath = env->GetStringUTFChars(helperPathStr, nullptr);
+    bool started = HelperClient::getInstance().start(helperPath);
+    env->ReleaseStringUTFChars(helperPathStr, helperPath);
+    return started ? JNI_TRUE : JNI_FALSE;
+}
+
+// 停止特权辅助进程
+JNIEXPORT void JNICALL
+Java_com_threadaffinity_manager_NativeHelper_stopHelper(
+        JNIEnv *env, jclass clazz) {
+    HelperClient::getInstance().stop();
+}
+
+// 检查特权辅助进程是否存活
+JNIEXPORT jboolean JNICALL
+Java_com_threadaffinity_manager_NativeHelper_isHelperAlive(
+        JNIEnv *env, jclass clazz) {
+    return HelperClient::getInstance().isRunning() ? JNI_TRUE : JNI_FALSE;
+}
+
+// 线程采样缓冲区布局（与 util.ThreadSnapshot 一致）
+// 头部: count, recordSize, 线程名表代数, 线程名表大小, 出生数, 退出数, 采样时间（CLOCK_MONOTONIC 纳秒）
+// 记录: tid, tgid, utime, stime, startTime, processor, commId, state, flags, runtimeNs, waitNs, timeslices
+static const size_t kSnapshotHeaderSize = 32;
+static const size_t kSnapshotRecordSize = 72;
+static const size_t kMaxCommNames = 8192; // 超过后清空重建（代数加一）
+
+// 线程名表：记录里只放编号，Java 层按编号缓存 String，不用每次创建
+static std::mutex g_commMutex;
+static std::unordered_map<std::string, int32_t> g_commIds;
+static std::vector<std::string> g_commNames;
+static int32_t g_commGeneration = 1;
+
+static int32_t internCommLocked(const char* comm) {
+    auto it = g_commIds.find(comm);
+    if (it != g_commIds.end()) return it->second;
+    int32_t id = static_cast<int32_t>(g_commNames.size());
+    g_commNames.emplace_back(comm);
+    g_commIds.emplace(g_commNames.back(), id);
+    return id;
+}
+
+// 采样进程的所有线程，定长记录写入 direct ByteBuffer（按 tid 排序）
+// 优先通过特权辅助进程读取，不可用时直接读 /proc（仅在 /proc 可见时有效）
+// @param namesOnly 只需要线程名（已知线程不重读 stat，CPU 时间可能是旧值）
+// @return 线程总数（可能大于缓冲区容量，只写入放得下的部分），失败返回 -1
+JNIEXPORT jint JNICALL
+Java_com_threadaffinity_manager_NativeHelper_sampleThreads(
+        JNIEnv *env, jclass clazz, jintArray pidArray, jobject buffer, jboolean namesOnly) {
+    uint8_t* base = static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+    jlong capacity = env->GetDirectBufferCapacity(buffer);
+    if (base == nullptr || pidArray == nullptr || capacity < (jlong)kSnapshotHeaderSize) return -1;
+    jsize pidCount = env->GetArrayLength(pidArray);
+    std::vector<int> pids(pidCount);
+    env->GetIntArrayRegion(pidArray, 0, pidCount, pids.data());
+
+    // 每个调用线程复用自己的采样数组，避免反复分配
+    static thread_local std::vector<helper::ThreadSample> samples;
+    samples.clear();
+    uint32_t flags = namesOnly ? helper::kSampleNamesOnly : 0;
+    uint32_t births = 0, deaths = 0;
+    HelperClient& helper = HelperClient::getInstance();
+    bool running = helper.ensureRunning();
+    // 采样时间取读取前后的中点，与各线程 schedstat 的读取时刻误差不超过采样耗时的一半
+    struct timespec before, after;
+    clock_gettime(CLOCK_MONOTONIC, &before);
+    int status = running
+        ? helper.sampleThreads(pids.data(), pids.size(), flags, &samples, &births, &deaths) : -ENOTCONN;
+    if (status != 0) {
+        samples.clear();
+        status = sampleThreads(pids.data(), pids.size(), flags, &samples, &births, &deaths);
+        if (status == 0 && samples.empty()) status = -EACCES;
+    }
+    if (status != 0) return -1;
+    clock_gettime(CLOCK_MONOTONIC, &after);
+    int64_t timestampNs = (static_cast<int64_t>(before.tv_sec) + after.tv_sec) * 500000000LL
+        + (static_cast<int64_t>(before.tv_nsec) + after.tv_nsec) / 2;
+
+    size_t fit = (static_cast<size_t>(capacity) - kSnapshotHeaderSize) / kSnapshotRecordSize;
+    size_t written = std::min(fit, samples.size());
+    int32_t header[6];
+    {
+        std::lock_guard<std::mutex> lock(g_commMutex);
+        if (g_commNames.size() > kMaxCommNames) {
+            g_commIds.clear();
+            g_commNames.clear();
+            g_commGeneration++;
+        }
+        for (size_t i = 0; i < written; i++) {
+            const helper::ThreadSample& sample = samples[i];
+            uint8_t* record = base + kSnapshotHeaderSize + i * kSnapshotRecordSize;
+            int32_t commId = internCommLocked(sample.comm);
+            int32_t state = static_cast<unsigned char>(sample.state);
+            int32_t flags = sample.flags;
+            memcpy(record + 0, &sample.tid, 4);
+            memcpy(record + 4, &sample.tgid, 4);
+            memcpy(record + 8, &sample.utime, 8);
+            memcpy(record + 16, &sample.stime, 8);
+            memcpy(record + 24, &sample.startTime, 8);
+            memcpy(record + 32, &sample.processor, 4);
+            memcpy(record + 36, &commId, 4);
+            memcpy(record + 40, &state, 4);
+            memcpy(record + 44, &flags, 4);
+            memcpy(record + 48, &sample.runtimeNs, 8);
+            memcpy(record + 56, &sample.waitNs, 8);
+            memcpy(record + 64, &sample.timeslices, 8);
+        }
+        header[0] = static_cast<int32_t>(samples.size());
+        header[1] = static_cast<int32_t>(kSnapshotRecordSize);
+        header[2] = g_commGeneration;
+        header[3] = static_cast<int32_t>(g_commNames.size());
+    }
+    header[4] = static_cast<int32_t>(births);
+    header[5] = static_cast<int32_t>(deaths);
+    memcpy(base, header, sizeof(header));
+    memcpy(base + sizeof(header), &timestampNs, 8);
+    return static_cast<jint>(samples.size());
+}
+
+// 全系统线程占用排行，原样写入 direct ByteBuffer（布局见 helper_protocol.h 的 SystemTopHeader）
+// 优先通过特权辅助进程读取，不可用时直接读 /proc（只能看到有权限的进程）
+// @param pids [本 App pid, 排除的 pid...]
+// @return 写入的字节数，失败返回 -1
+JNIEXPORT jint JNICALL
+Java_com_threadaffinity_manager_NativeHelper_sampleSystemTop(
+        JNIEnv *env, jclass clazz, jintArray pidArray, jint limit, jint budgetMs, jobject buffer) {
+    uint8_t* base = static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+    jlong capacity = env->GetDirectBufferCapacity(buffer);
+    if (base == nullptr || pidArray == nullptr || limit <= 0 || budgetMs < 0) return -1;
+    jsize pidCount = env->GetArrayLength(pidArray);
+    std::vector<int> pids(pidCount);
+    env->GetIntArrayRegion(pidArray, 0, pidCount, pids.data());
+
+    std::string payload;
+    HelperClient& helper = HelperClient::getInstance();
+    int status = helper.ensureRunning()
+        ? helper.sampleSystemTop(pids.data(), pids.size(), limit, budgetMs, &payload) : -ENOTCONN;
+    if (status != 0) {
+        int selfPid = pids.empty() ? 0 : pids[0];
+        size_t excludeCount = pids.size() > 1 ? pids.size() - 1 : 0;
+        status = sampleSystemTop(selfPid, excludeCount ? pids.data() + 1 : nullptr, excludeCount,
+                                 limit, budgetMs * 1000000LL, &payload);
+    }
+    if (status != 0 || payload.size() < sizeof(helper::SystemTopHeader)
+            || payload.size() > static_cast<size_t>(capacity)) {
+        return -1;
+    }
+    memcpy(base, payload.data(), payload.size());
+    return static_cast<jint>(payload.size());
+}
+
+// 线程名表中 fromId 之后的名称，按 [长度 1 字节][原始字节] 依次排列，由 Java 层按 UTF-8 解码
+// （comm 是内核截断的原始字节，可能不是合法的 UTF-8，不能交给 NewStringUTF）
+// 代数已变化（表被重建）时返回 null
+JNIEXPORT jbyteArray JNICALL
+Java_com_threadaffinity_manager_NativeHelper_getCommNames(
+        JNIEnv *env, jclass clazz, jint generation, jint fromId) {
+    std::string packed;
+    {
+        std::lock_guard<std::mutex> lock(g_commMutex);
+        if (generation != g_commGeneration || fromId < 0) return nullptr;
+        for (size_t i = fromId; i < g_commNames.size(); i++) {
+            const std::string& name = g_commNames[i];
+            size_t length = std::min<size_t>(name.size(), 255);
+            packed.push_back(static_cast<char>(length));
+            packed.append(name, 0, length);
+        }
+    }
+    jbyteArray result = env->NewByteArray(packed.size());
+    if (result == nullptr) return nullptr;
+    env->SetByteArrayRegion(result, 0, packed.size(), reinterpret_cast<const jbyte*>(packed.data()));
+    return result;
+}
+
 } // extern "C"
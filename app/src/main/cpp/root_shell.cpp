@@ -1,7 +1,9 @@
 #include "root_shell.h"
+#include "helper_client.h"
 #include <android/log.h>
 #include <cstring>
 #include <cstdio>
+#include <cerrno>
 
 #define LOG_TAG "RootShell-JNI"
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
@@ -9,263 +11,281 @@
 #define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 
+static const char* kTopAppCpuset = "/dev/cpuset/top-app";
+
 RootShell& RootShell::getInstance() {
     static RootShell instance;
     return instance;
 }
 
-RootShell::RootShell() 
-    : m_javaVM(nullptr)
-    , m_initialized(false)
-    , m_javaRefsInitialized(false)
-    , m_rootShellClass(nullptr)
-    , m_executeMethod(nullptr) {
-    LOGI("RootShell constructor - using Java persistent shell");
+RootShell::RootShell() {
+    LOGI("RootShell constructor - using native helper channel");
 }
 
 RootShell::~RootShell() {
-    close();
     LOGI("RootShell destructor");
 }
 
-void RootShell::setJavaVM(JavaVM* vm) {
-    m_javaVM = vm;
-    LOGI("JavaVM set: %p", vm);
+bool RootShell::init() {
+    LOGI("Testing root access via helper...");
+
+    std::string result;
+    int status = execute("id", &result, 5000);
+    if (status != 0) {
+        LOGE("Root test failed: %s", strerror(-status));
+        return false;
+    }
+    LOGI("Root test result: '%s'", result.c_str());
+
+    if (result.find("uid=0") != std::string::npos) {
+        LOGI("Root access confirmed (uid=0) via helper");
+        return true;
+    }
+    LOGE("Root access NOT available! Result: '%s'", result.c_str());
+    return false;
+}
+
+bool RootShell::isAlive() {
+    return HelperClient::getInstance().isRunning();
 }
 
-JNIEnv* RootShell::getJNIEnv() {
-    if (!m_javaVM) {
-        LOGE("JavaVM is null!");
-        return nullptr;
-    }
-    
-    JNIEnv* env = nullptr;
-    int status = m_javaVM->GetEnv((void**)&env, JNI_VERSION_1_6);
-    
-    if (status == JNI_EDETACHED) {
-        // 当前线程未附加到 JVM，需要附加
-        if (m_javaVM->AttachCurrentThread(&env, nullptr) != JNI_OK) {
-            LOGE("Failed to attach current thread to JVM");
-            return nullptr;
-        }
-        LOGD("Thread attached to JVM");
-    } else if (status != JNI_OK) {
-        LOGE("GetEnv failed with status %d", status);
-        return nullptr;
+void RootShell::close() {
+    HelperClient::getInstance().stop();
+    LOGI("RootShell closed");
+}
+
+int RootShell::execute(const std::string& command, std::string* out, int timeoutMs, int* exitStatus) {
+    out->clear();
+    LOGD("execute() via helper: cmd='%s'", command.c_str());
+    int code = 0;
+    int status = HelperClient::getInstance().exec(command, out, timeoutMs, &code);
+    if (status != 0) {
+        LOGE("execute() failed: %s", strerror(-status));
+        return status;
     }
-    
-    return env;
+    if (exitStatus) *exitStatus = code;
+    LOGD("execute() exit=%d length=%zu", code, out->length());
+    return 0;
 }
 
-bool RootShell::initJavaRefs(JNIEnv* env) {
-    if (m_javaRefsInitialized && m_rootShellClass && m_executeMethod) {
+bool RootShell::setThreadAffinity(int tid, uint64_t mask) {
+    HelperClient& helper = HelperClient::getInstance();
+    if (!helper.ensureRunning()) {
+        LOGE("setThreadAffinity(): helper not running");
+        return false;
+    }
+
+    // 先移到 top-app cpuset，否则掩码会被 cpuset 限制
+    bool cpusetResult = moveToTopAppCpuset(tid);
+    LOGD("moveToTopAppCpuset result: %d", cpusetResult);
+
+    int status = helper.setAffinity(tid, mask);
+    if (status == 0) {
+        LOGI("setThreadAffinity SUCCESS: tid=%d, mask=0x%llX", tid, (unsigned long long)mask);
         return true;
     }
-    
-    LOGI("Initializing Java references...");
-    
-    // 查找 RootShell 类
-    jclass localClass = env->FindClass("com/threadaffinity/manager/util/RootShell");
-    if (!localClass) {
-        LOGE("Failed to find RootShell class");
+    LOGE("setThreadAffinity FAILED: tid=%d, mask=0x%llX, %s",
+         tid, (unsigned long long)mask, strerror(-status));
+    return false;
+}
+
+bool RootShell::setThreadAffinityBatch(const std::vector<int>& tids, const std::vector<uint64_t>& masks,
+                                       std::vector<int>* statuses) {
+    statuses->assign(tids.size(), -ENOTCONN);
+    if (tids.empty()) {
+        return true;
+    }
+    HelperClient& helper = HelperClient::getInstance();
+    if (!helper.ensureRunning()) {
+        LOGE("setThreadAffinityBatch(): helper not running");
         return false;
     }
-    
-    // 创建全局引用
-    m_rootShellClass = (jclass)env->NewGlobalRef(localClass);
-    env->DeleteLocalRef(localClass);
-    
-    if (!m_rootShellClass) {
-        LOGE("Failed to create global ref for RootShell class");
+    int status = helper.setAffinityBatch(tids.data(), masks.data(), tids.size(),
+                                         kTopAppCpuset, statuses->data());
+    if (status != 0) {
+        LOGE("setThreadAffinityBatch failed: %s", strerror(-status));
         return false;
     }
-    
-    // 查找 execute 静态方法: public static String execute(String command, long timeoutMs)
-    m_executeMethod = env->GetStaticMethodID(m_rootShellClass, "execute", 
-                                              "(Ljava/lang/String;J)Ljava/lang/String;");
-    if (!m_executeMethod) {
-        LOGE("Failed to find execute method");
-        env->DeleteGlobalRef(m_rootShellClass);
-        m_rootShellClass = nullptr;
+    return true;
+}
+
+bool RootShell::getThreadAffinityBatch(const std::vector<int>& tids, std::vector<uint64_t>* masks) {
+    masks->assign(tids.size(), 0);
+    if (tids.empty()) {
+        return true;
+    }
+    HelperClient& helper = HelperClient::getInstance();
+    if (!helper.ensureRunning()) {
+        LOGE("getThreadAffinityBatch(): helper not running");
+        return false;
+    }
+    std::vector<int> statuses(tids.size());
+    int status = helper.getAffinityBatch(tids.data(), tids.size(), masks->data(), statuses.data());
+    if (status != 0) {
+        LOGE("getThreadAffinityBatch failed: %s", strerror(-status));
         return false;
     }
-    
-    m_javaRefsInitialized = true;
-    LOGI("Java references initialized successfully");
     return true;
 }
 
-std::string RootShell::executeViaJava(const std::string& command, int timeoutMs) {
-    JNIEnv* env = getJNIEnv();
-    if (!env) {
-        LOGE("executeViaJava: Failed to get JNIEnv");
-        return "";
+int RootShell::setThreadWatch(int tgid, const std::vector<std::string>& names,
+                              const std::vector<uint64_t>& masks, const std::string& cpusetRoot,
+                              const std::vector<std::string>& groups) {
+    HelperClient& helper = HelperClient::getInstance();
+    if (!helper.ensureRunning()) {
+        LOGE("setThreadWatch(): helper not running");
+        return 0;
     }
-    
-    if (!initJavaRefs(env)) {
-        LOGE("executeViaJava: Failed to init Java refs");
-        return "";
+    std::string rules;
+    if (!cpusetRoot.empty() && !names.empty()) {
+        rules.push_back('\t');
+        rules += cpusetRoot;
+        rules.push_back('\n');
     }
-    
-    // 创建 Java 字符串
-    jstring jCommand = env->NewStringUTF(command.c_str());
-    if (!jCommand) {
-        LOGE("executeViaJava: Failed to create jstring");
-        return "";
+    char hex[24];
+    for (size_t i = 0; i < names.size() && i < masks.size(); i++) {
+        snprintf(hex, sizeof(hex), "%llx", (unsigned long long)masks[i]);
+        rules += names[i];
+        rules.push_back('\t');
+        rules += hex;
+        if (i < groups.size() && !groups[i].empty()) {
+            rules.push_back('\t');
+            rules += groups[i];
+        }
+        rules.push_back('\n');
     }
-    
-    // 调用 Java 方法
-    LOGD("Calling Java RootShell.execute('%s', %d)", command.c_str(), timeoutMs);
-    jstring jResult = (jstring)env->CallStaticObjectMethod(
-        m_rootShellClass, m_executeMethod, jCommand, (jlong)timeoutMs);
-    
-    env->DeleteLocalRef(jCommand);
-    
-    // 检查异常
-    if (env->ExceptionCheck()) {
-        LOGE("executeViaJava: Java exception occurred");
-        env->ExceptionDescribe();
-        env->ExceptionClear();
+    int mode = 0;
+    int status = helper.setWatchRules(tgid, rules, &mode);
+    if (status != 0) {
+        LOGE("setThreadWatch failed: pid=%d, %s", tgid, strerror(-status));
+        return 0;
+    }
+    LOGI("setThreadWatch: pid=%d, rules=%zu, mode=%d", tgid, names.size(), mode);
+    return mode;
+}
+
+std::string RootShell::getThreadWatchStats() {
+    HelperClient& helper = HelperClient::getInstance();
+    if (!helper.isRunning()) {
         return "";
     }
-    
-    // 转换结果
-    std::string result;
-    if (jResult) {
-        const char* cResult = env->GetStringUTFChars(jResult, nullptr);
-        if (cResult) {
-            result = cResult;
-            env->ReleaseStringUTFChars(jResult, cResult);
-        }
-        env->DeleteLocalRef(jResult);
+    std::string out;
+    int mode = 0;
+    if (helper.watchStats(&out, &mode) != 0) {
+        return "";
     }
-    
-    LOGD("Java RootShell.execute returned: length=%zu", result.length());
-    return result;
+    return out;
 }
 
-bool RootShell::init() {
-    std::lock_guard<std::mutex> lock(m_mutex);
-    
-    LOGI("Testing root access via Java persistent shell...");
-    
-    std::string result = executeViaJava("id", 5000);
-    LOGI("Root test result: '%s'", result.c_str());
-    
-    if (result.find("uid=0") != std::string::npos) {
-        m_initialized = true;
-        LOGI("Root access confirmed (uid=0) via Java persistent shell");
-        return true;
-    } else {
-        LOGE("Root access NOT available! Result: '%s'", result.c_str());
-        m_initialized = false;
+bool RootShell::drainThreadWatch(std::string* out) {
+    out->clear();
+    HelperClient& helper = HelperClient::getInstance();
+    if (!helper.isRunning()) {
         return false;
     }
+    uint64_t dropped = 0;
+    int status = helper.watchDrain(out, &dropped);
+    if (status != 0) {
+        LOGE("drainThreadWatch failed: %s", strerror(-status));
+        return false;
+    }
+    if (dropped > 0) {
+        LOGW("drainThreadWatch: %llu records dropped", (unsigned long long)dropped);
+    }
+    return true;
 }
 
-bool RootShell::isAlive() {
-    std::lock_guard<std::mutex> lock(m_mutex);
-    return m_initialized && m_javaVM != nullptr;
+int RootShell::setupCpusetGroup(const std::string& root, const std::string& name, const std::string& cpus) {
+    HelperClient& helper = HelperClient::getInstance();
+    if (!helper.ensureRunning()) {
+        LOGE("setupCpusetGroup(): helper not running");
+        return 0;
+    }
+    int layout = 0;
+    int status = helper.cpusetGroup(root, name, cpus, &layout);
+    if (status != 0) {
+        LOGE("setupCpusetGroup failed: %s/%s cpus=%s, %s",
+             root.c_str(), name.c_str(), cpus.c_str(), strerror(-status));
+        return 0;
+    }
+    LOGI("setupCpusetGroup: %s/%s cpus=%s layout=%d", root.c_str(), name.c_str(), cpus.c_str(), layout);
+    return layout;
 }
 
-void RootShell::close() {
-    std::lock_guard<std::mutex> lock(m_mutex);
-    
-    // 清理 Java 全局引用
-    if (m_rootShellClass && m_javaVM) {
-        JNIEnv* env = nullptr;
-        if (m_javaVM->GetEnv((void**)&env, JNI_VERSION_1_6) == JNI_OK && env) {
-            env->DeleteGlobalRef(m_rootShellClass);
-        }
+bool RootShell::placeInCpuset(const std::string& root, const std::string& name,
+                              const std::vector<int>& tids, std::vector<int>* statuses) {
+    statuses->assign(tids.size(), -ENOTCONN);
+    if (tids.empty()) {
+        return true;
     }
-    
-    m_rootShellClass = nullptr;
-    m_executeMethod = nullptr;
-    m_javaRefsInitialized = false;
-    m_initialized = false;
-    
-    LOGI("RootShell closed");
+    HelperClient& helper = HelperClient::getInstance();
+    if (!helper.ensureRunning()) {
+        LOGE("placeInCpuset(): helper not running");
+        return false;
+    }
+    int status = helper.cpusetPlaceBatch(root, name, tids.data(), tids.size(), statuses->data());
+    if (status != 0) {
+        LOGE("placeInCpuset failed: %s", strerror(-status));
+        return false;
+    }
+    return true;
 }
 
-std::string RootShell::execute(const std::string& command, int timeoutMs) {
-    std::lock_guard<std::mutex> lock(m_mutex);
-    
-    LOGI("execute() via Java shell: cmd='%s'", command.c_str());
-    
-    std::string result = executeViaJava(command, timeoutMs);
-    
-    LOGD("execute() result length=%zu", result.length());
-    
-    return result;
+bool RootShell::setThreadSched(const std::vector<int>& tids, const std::vector<helper::SchedParams>& params,
+                               std::vector<helper::SchedParams>* actual, std::vector<int>* statuses) {
+    statuses->assign(tids.size(), -ENOTCONN);
+    actual->assign(tids.size(), helper::SchedParams());
+    if (tids.empty()) {
+        return true;
+    }
+    HelperClient& helper = HelperClient::getInstance();
+    if (!helper.ensureRunning()) {
+        LOGE("setThreadSched(): helper not running");
+        return false;
+    }
+    int status = helper.setSchedBatch(tids.data(), params.data(), tids.size(), actual->data(), statuses->data());
+    if (status != 0) {
+        LOGE("setThreadSched failed: %s", strerror(-status));
+        return false;
+    }
+    return true;
 }
 
-bool RootShell::setThreadAffinity(int tid, uint64_t mask) {
-    LOGI("setThreadAffinity() via Java shell: tid=%d, mask=0x%llX", 
-         tid, (unsigned long long)mask);
-    
-    // 先移到 top-app cpuset
-    bool cpusetResult = moveToTopAppCpuset(tid);
-    LOGD("moveToTopAppCpuset result: %d", cpusetResult);
-    
-    // 使用 taskset 设置亲和性，掩码以十六进制格式
-    char cmd[128];
-    snprintf(cmd, sizeof(cmd), "taskset -p %llX %d 2>&1", 
-             (unsigned long long)mask, tid);
-    
-    LOGD("Executing via Java shell: %s", cmd);
-    
-    std::string result = execute(cmd, 3000);
-    
-    LOGD("taskset result: '%s'", result.c_str());
-    
-    // 检查是否成功
-    bool success = !result.empty() && 
-                   result.find("failed") == std::string::npos &&
-                   result.find("Invalid") == std::string::npos &&
-                   result.find("error") == std::string::npos &&
-                   result.find("No such") == std::string::npos;
-    
-    if (success) {
-        LOGI("setThreadAffinity SUCCESS via Java shell: tid=%d, mask=0x%llX", 
-             tid, (unsigned long long)mask);
-    } else {
-        LOGE("setThreadAffinity FAILED via Java shell: tid=%d, mask=0x%llX, result='%s'", 
-             tid, (unsigned long long)mask, result.c_str());
-    }
-    
-    return success;
+bool RootShell::getThreadSched(const std::vector<int>& tids,
+                               std::vector<helper::SchedParams>* actual, std::vector<int>* statuses) {
+    statuses->assign(tids.size(), -ENOTCONN);
+    actual->assign(tids.size(), helper::SchedParams());
+    if (tids.empty()) {
+        return true;
+    }
+    HelperClient& helper = HelperClient::getInstance();
+    if (!helper.ensureRunning()) {
+        LOGE("getThreadSched(): helper not running");
+        return false;
+    }
+    int status = helper.getSchedBatch(tids.data(), tids.size(), actual->data(), statuses->data());
+    if (status != 0) {
+        LOGE("getThreadSched failed: %s", strerror(-status));
+        return false;
+    }
+    return true;
 }
 
 uint64_t RootShell::getThreadAffinity(int tid) {
-    char cmd[64];
-    snprintf(cmd, sizeof(cmd), "taskset -p %d 2>&1", tid);
-    
-    std::string result = execute(cmd, 2000);
-    
-    // 解析输出: "pid 12345's current affinity mask: ff"
+    HelperClient& helper = HelperClient::getInstance();
+    if (!helper.ensureRunning()) {
+        return 0;
+    }
     uint64_t mask = 0;
-    size_t pos = result.find("mask:");
-    if (pos != std::string::npos) {
-        pos += 5;
-        while (pos < result.length() && result[pos] == ' ') pos++;
-        mask = strtoull(result.c_str() + pos, nullptr, 16);
-    }
-    
-    LOGD("getThreadAffinity via Java shell: tid=%d, mask=0x%llX", 
-         tid, (unsigned long long)mask);
+    int status = helper.getAffinity(tid, &mask);
+    if (status != 0) {
+        LOGD("getThreadAffinity failed: tid=%d, %s", tid, strerror(-status));
+        return 0;
+    }
+    LOGD("getThreadAffinity: tid=%d, mask=0x%llX", tid, (unsigned long long)mask);
     return mask;
 }
 
 bool RootShell::moveToTopAppCpuset(int tid) {
-    char cmd[128];
-    snprintf(cmd, sizeof(cmd), "echo %d > /dev/cpuset/top-app/tasks 2>&1", tid);
-    
-    std::string result = execute(cmd, 1000);
-    
-    // 如果没有错误输出，认为成功
-    bool success = result.empty() || 
-                   (result.find("error") == std::string::npos &&
-                    result.find("Permission") == std::string::npos);
-    
-    return success;
+    return HelperClient::getInstance().moveToCpuset(tid, kTopAppCpuset) == 0;
 }
@@ -1,100 +1,138 @@
 #ifndef ROOT_SHELL_H
 #define ROOT_SHELL_H
 
-#include <jni.h>
 #include <string>
-#include <mutex>
+#include <vector>
 #include <cstdint>
+#include "helper_protocol.h"
 
 /**
- * Root Shell - 通过 JNI 回调 Java 层的持久化 Shell
- * Java 层的 RootShell 有 12MB 缓冲区，真正的持久化 su 进程
+ * Root Shell - Native 层自己的特权通道
+ * 所有操作经 HelperClient 发给通过 su 启动的辅助进程，不再回调 Java 层的 RootShell
+ * 亲和性和 cpuset 操作直接走系统调用，只有 execute() 才会启动 shell
  */
 class RootShell {
 public:
     static RootShell& getInstance();
-    
+
     // 禁止拷贝和赋值
     RootShell(const RootShell&) = delete;
     RootShell& operator=(const RootShell&) = delete;
-    
-    /**
-     * 设置 JavaVM（必须在 JNI_OnLoad 中调用）
-     */
-    void setJavaVM(JavaVM* vm);
-    
+
     /**
      * 初始化（测试 root 权限）
      */
     bool init();
-    
+
     /**
-     * 执行命令（通过 Java 层的持久化 shell）
+     * 以 root 执行 shell 命令（在辅助进程的执行通道上，不阻塞亲和性操作）
      * @param command 要执行的命令
+     * @param out 输出命令输出（stdout+stderr）
      * @param timeoutMs 超时时间（毫秒）
-     * @return 命令输出，失败返回空字符串
+     * @param exitStatus 输出命令退出码，可为 nullptr
+     * @return 0 表示命令已执行；辅助进程不可用为 -ENOTCONN，超时为 -ETIMEDOUT，其它为 -errno
      */
-    std::string execute(const std::string& command, int timeoutMs = 5000);
-    
+    int execute(const std::string& command, std::string* out, int timeoutMs = 5000, int* exitStatus = nullptr);
+
     /**
-     * 设置线程亲和性（通过 taskset）
+     * 设置线程亲和性（先移入 top-app cpuset，再 sched_setaffinity）
      * @param tid 线程ID
      * @param mask CPU亲和性掩码
      * @return 是否成功
      */
     bool setThreadAffinity(int tid, uint64_t mask);
-    
+
+    /**
+     * 批量设置线程亲和性，所有线程的请求分块一次写出
+     * @param statuses 输出每个线程的结果（0 或 -errno）
+     * @return 通道是否可用
+     */
+    bool setThreadAffinityBatch(const std::vector<int>& tids, const std::vector<uint64_t>& masks,
+                                std::vector<int>* statuses);
+
+    /**
+     * 批量获取线程当前生效的亲和性
+     * @param masks 输出每个线程的掩码（失败时为 0）
+     * @return 通道是否可用
+     */
+    bool getThreadAffinityBatch(const std::vector<int>& tids, std::vector<uint64_t>* masks);
+
+    /**
+     * 设置新线程监听规则（线程名 -> 掩码），规则为空时取消监听该进程
+     * @param cpusetRoot 自建 cpuset 分组的根目录，为空时都移入 top-app 再 sched_setaffinity
+     * @param groups 与 names 对应的分组名（为空的规则不放入分组），可以为空数组
+     * @return 监听模式（0 表示未启用）
+     */
+    int setThreadWatch(int tgid, const std::vector<std::string>& names, const std::vector<uint64_t>& masks,
+                       const std::string& cpusetRoot, const std::vector<std::string>& groups);
+
+    /**
+     * 新线程监听统计，通道不可用时返回空字符串
+     */
+    std::string getThreadWatchStats();
+
+    /**
+     * 取走新线程监听修改过的线程（每行 "tid\ttgid\t十六进制原掩码\t原 cpuset\t线程名"）
+     * @return 是否成功（通道不可用时返回 false）
+     */
+    bool drainThreadWatch(std::string* out);
+
+    /**
+     * 创建/更新自建 cpuset 分组
+     * @return cgroup 布局（0 表示失败）
+     */
+    int setupCpusetGroup(const std::string& root, const std::string& name, const std::string& cpus);
+
+    /**
+     * 批量把线程放入自建 cpuset 分组（每个线程一次写入，不再 sched_setaffinity）
+     * @param statuses 输出每个线程的结果（0 或 -errno）
+     * @return 通道是否可用
+     */
+    bool placeInCpuset(const std::string& root, const std::string& name,
+                       const std::vector<int>& tids, std::vector<int>* statuses);
+
+    /**
+     * 批量设置线程调度参数（策略/nice/uclamp）
+     * @param actual 输出写入后回读的参数（回读失败时 fields 为 0）
+     * @param statuses 输出每个线程的结果（0 或 -errno）
+     * @return 通道是否可用
+     */
+    bool setThreadSched(const std::vector<int>& tids, const std::vector<helper::SchedParams>& params,
+                        std::vector<helper::SchedParams>* actual, std::vector<int>* statuses);
+
+    /**
+     * 批量读取线程调度参数
+     */
+    bool getThreadSched(const std::vector<int>& tids,
+                        std::vector<helper::SchedParams>* actual, std::vector<int>* statuses);
+
     /**
      * 获取线程亲和性
      * @param tid 线程ID
-     * @return CPU亲和性掩码
+     * @return CPU亲和性掩码，失败返回 0
      */
     uint64_t getThreadAffinity(int tid);
-    
+
     /**
      * 将线程移到 top-app cpuset
      * @param tid 线程ID
      * @return 是否成功
      */
     bool moveToTopAppCpuset(int tid);
-    
+
     /**
-     * 关闭 shell
+     * 关闭通道（停止辅助进程）
      */
     void close();
-    
+
     /**
-     * 检查 shell 是否存活
+     * 检查通道是否存活
      */
     bool isAlive();
 
 private:
     RootShell();
     ~RootShell();
-    
-    /**
-     * 获取当前线程的 JNIEnv
-     */
-    JNIEnv* getJNIEnv();
-    
-    /**
-     * 调用 Java 层的 RootShell.execute()
-     */
-    std::string executeViaJava(const std::string& command, int timeoutMs);
-    
-    /**
-     * 初始化 Java 类和方法引用
-     */
-    bool initJavaRefs(JNIEnv* env);
-    
-    JavaVM* m_javaVM;
-    bool m_initialized;
-    bool m_javaRefsInitialized;
-    std::mutex m_mutex;
-    
-    // 缓存的 Java 类和方法引用（全局引用）
-    jclass m_rootShellClass;
-    jmethodID m_executeMethod;
 };
 
 #endif // ROOT_SHELL_H
@@ -0,0 +1,134 @@
+#include "sched_control.h"
+
+#include <errno.h>
+#include <sched.h>
+#include <unistd.h>
+#include <sys/syscall.h>
+#include <cstdint>
+#include <cstring>
+
+using namespace helper;
+
+namespace {
+
+// 与内核 struct sched_attr 一致（SCHED_ATTR_SIZE_VER1 = 56，含 uclamp）
+struct KernelSchedAttr {
+    uint32_t size;
+    uint32_t sched_policy;
+    uint64_t sched_flags;
+    int32_t  sched_nice;
+    uint32_t sched_priority;
+    uint64_t sched_runtime;
+    uint64_t sched_deadline;
+    uint64_t sched_period;
+    uint32_t sched_util_min;
+    uint32_t sched_util_max;
+};
+
+constexpr uint32_t kAttrSizeVer0 = 48;
+constexpr uint32_t kAttrSizeVer1 = 56;
+constexpr uint64_t kFlagResetOnFork   = 0x01;
+constexpr uint64_t kFlagKeepPolicy    = 0x08;
+constexpr uint64_t kFlagKeepParams    = 0x10;
+constexpr uint64_t kFlagUtilClampMin  = 0x20;
+constexpr uint64_t kFlagUtilClampMax  = 0x40;
+constexpr uint32_t kResetOnFork       = 0x40000000;
+
+static_assert(sizeof(KernelSchedAttr) == kAttrSizeVer1, "sched_attr layout");
+
+int sysGetattr(int tid, KernelSchedAttr* attr) {
+    memset(attr, 0, sizeof(*attr));
+    if (syscall(__NR_sched_getattr, tid, attr, sizeof(*attr), 0) != 0) return -errno;
+    return 0;
+}
+
+int sysSetattr(int tid, KernelSchedAttr* attr) {
+    if (syscall(__NR_sched_setattr, tid, attr, 0) != 0) return -errno;
+    return 0;
+}
+
+/**
+ * 内核是否支持 uclamp：sched_getattr 的结构总是带 uclamp 字段，
+ * 只能对自己按当前值写一次 uclamp 来探测（不改变实际参数），结果缓存
+ */
+bool uclampSupported() {
+    static int supported = -1;
+    if (supported < 0) {
+        KernelSchedAttr current;
+        KernelSchedAttr probe = {};
+        probe.size = kAttrSizeVer1;
+        probe.sched_flags = kFlagKeepPolicy | kFlagKeepParams | kFlagUtilClampMin | kFlagUtilClampMax;
+        if (sysGetattr(0, &current) == 0 && current.size >= kAttrSizeVer1) {
+            probe.sched_util_min = current.sched_util_min;
+            probe.sched_util_max = current.sched_util_max;
+            supported = sysSetattr(0, &probe) == 0 ? 1 : 0;
+        } else {
+            supported = 0;
+        }
+    }
+    return supported == 1;
+}
+
+} // namespace
+
+int getSchedParams(int tid, SchedParams* out) {
+    KernelSchedAttr attr;
+    int status = sysGetattr(tid, &attr);
+    if (status != 0) return status;
+    memset(out, 0, sizeof(*out));
+    out->fields = kSchedFieldPolicy | kSchedFieldNice;
+    out->policy = static_cast<int32_t>(attr.sched_policy & ~kResetOnFork);
+    out->priority = static_cast<int32_t>(attr.sched_priority);
+    out->nice = attr.sched_nice;
+    if (uclampSupported()) {
+        out->fields |= kSchedFieldUclampMin | kSchedFieldUclampMax;
+        out->uclampMin = static_cast<int32_t>(attr.sched_util_min);
+        out->uclampMax = static_cast<int32_t>(attr.sched_util_max);
+    }
+    return 0;
+}
+
+int setSchedParams(int tid, const SchedParams& want) {
+    int result = 0;
+
+    if (want.fields & (kSchedFieldPolicy | kSchedFieldNice)) {
+        KernelSchedAttr attr;
+        int status = sysGetattr(tid, &attr);
+        if (status != 0) return status;
+        uint32_t policy = attr.sched_policy & ~kResetOnFork;
+        uint32_t priority = attr.sched_priority;
+        if (want.fields & kSchedFieldPolicy) {
+            policy = static_cast<uint32_t>(want.policy);
+            priority = static_cast<uint32_t>(want.priority);
+        }
+        if (policy != SCHED_FIFO && policy != SCHED_RR) priority = 0;
+
+        KernelSchedAttr set = {};
+        set.size = kAttrSizeVer0;
+        // sched_getattr 把 reset-on-fork 放在 sched_flags 中，不带上时 setattr 会把它清掉
+        set.sched_flags = attr.sched_flags & kFlagResetOnFork;
+        set.sched_policy = policy;
+        set.sched_priority = priority;
+        set.sched_nice = (want.fields & kSchedFieldNice) ? want.nice : attr.sched_nice;
+        result = sysSetattr(tid, &set);
+        if (result == -ESRCH) return result;
+    }
+
+    if ((want.fields & (kSchedFieldUclampMin | kSchedFieldUclampMax)) && uclampSupported()) {
+        // 只改 uclamp，策略和参数保持不变
+        KernelSchedAttr set = {};
+        set.size = kAttrSizeVer1;
+        set.sched_flags = kFlagKeepPolicy | kFlagKeepParams;
+        if (want.fields & kSchedFieldUclampMin) {
+            set.sched_flags |= kFlagUtilClampMin;
+            set.sched_util_min = static_cast<uint32_t>(want.uclampMin);
+        }
+        if (want.fields & kSchedFieldUclampMax) {
+            set.sched_flags |= kFlagUtilClampMax;
+            set.sched_util_max = static_cast<uint32_t>(want.uclampMax);
+        }
+        int status = sysSetattr(tid, &set);
+        if (result == 0) result = status;
+    }
+    return result;
+}
@@ -0,0 +1,27 @@
+#ifndef SCHED_CONTROL_H
+#define SCHED_CONTROL_H
+
+#include "helper_protocol.h"
+
+/**
+ * 线程调度参数读写（运行在特权辅助进程内）
+ *
+ * 通过 sched_getattr/sched_setattr 系统调用读写调度策略、实时优先级、nice 和 uclamp。
+ * 内核不支持 uclamp（5.3 以前或未启用 CONFIG_UCLAMP_TASK）时只读写前三项，
+ * uclamp 字段不会出现在回读结果中，写入时忽略。
+ */
+
+/**
+ * 读取线程当前的调度参数
+ * @return 0 或 -errno
+ */
+int getSchedParams(int tid, helper::SchedParams* out);
+
+/**
+ * 设置 want.fields 指定的调度参数，其余保持不变
+ * 策略/nice 与 uclamp 分两次写入，互不影响
+ * @return 0，或第一个失败的 -errno
+ */
+int setSchedParams(int tid, const helper::SchedParams& want);
+
+#endif // SCHED_CONTROL_H
@@ -0,0 +1,607 @@
+#include "thread_sampler.h"
+
+#include <dirent.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <time.h>
+#include <unistd.h>
+#include <algorithm>
+#include <cstdio>
+#include <cstring>
+#include <mutex>
+
+using helper::ThreadSample;
+
+static const long long kRenameWindowMs = 3000; // 新线程出现后每次重读 stat 的时间窗口
+static const uint32_t kRefreshTicks = 20;      // 每隔多少次采样全部重读 stat
+static const long long kTrackerIdleMs = 60000; // 多久没有采样的进程释放记录表
+static const uint32_t kCommRefreshTicks = 10;  // 全系统采样：运行过的线程每隔多少次采样重读线程名
+static const uint32_t kMaxTopLimit = 256;
+
+// 节拍 -> 纳秒（schedstat 不可用时换算 utime+stime），按实际的 CLK_TCK，不假设为 100
+static uint64_t nsPerTick() {
+    static const uint64_t value = [] {
+        long tck = sysconf(_SC_CLK_TCK);
+        return static_cast<uint64_t>(1000000000LL / (tck > 0 ? tck : 100));
+    }();
+    return value;
+}
+
+static long long monotonicNs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return static_cast<long long>(ts.tv_sec) * 1000000000LL + ts.tv_nsec;
+}
+
+static long long monotonicMs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return static_cast<long long>(ts.tv_sec) * 1000 + ts.tv_nsec / 1000000;
+}
+
+/**
+ * 相对 task 目录读取 "<tid>/<name>"
+ * @return 读取的字节数，失败返回 -1
+ */
+static ssize_t readTaskFile(int taskFd, int tid, const char* name, char* buf, size_t size) {
+    char path[32];
+    snprintf(path, sizeof(path), "%d/%s", tid, name);
+    int fd = openat(taskFd, path, O_RDONLY | O_CLOEXEC);
+    if (fd < 0) return -1;
+    ssize_t n = read(fd, buf, size - 1);
+    close(fd);
+    if (n >= 0) buf[n] = '\0';
+    return n;
+}
+
+/**
+ * 解析 stat 中 ')' 之后的字段（comm 可能包含空格和括号，以最后一个 ')' 为准）
+ */
+static bool parseStat(const char* buf, size_t len, ThreadSample* sample) {
+    const char* open = static_cast<const char*>(memchr(buf, '(', len));
+    const char* close = nullptr;
+    for (const char* p = buf + len; p > buf; p--) {
+        if (p[-1] == ')') {
+            close = p - 1;
+            break;
+        }
+    }
+    if (!open || !close || close < open) return false;
+    size_t commLen = std::min(static_cast<size_t>(close - open - 1), sizeof(sample->comm) - 1);
+    memcpy(sample->comm, open + 1, commLen);
+    sample->comm[commLen] = '\0';
+
+    // ')' 之后第 1 个字段为 state（stat 第 3 列），依次编号
+    const char* p = close + 1;
+    const char* end = buf + len;
+    for (int field = 3; p < end && field <= 39; field++) {
+        while (p < end && *p == ' ') p++;
+        if (p >= end) break;
+        if (field == 3) {
+            sample->state = *p;
+        } else if (field == 14 || field == 15 || field == 22 || field == 39) {
+            uint64_t value = 0;
+            for (const char* q = p; q < end && *q >= '0' && *q <= '9'; q++) value = value * 10 + (*q - '0');
+            if (field == 14) sample->utime = value;
+            else if (field == 15) sample->stime = value;
+            else if (field == 22) sample->startTime = value;
+            else sample->processor = static_cast<int32_t>(value);
+        }
+        while (p < end && *p != ' ') p++;
+    }
+    return true;
+}
+
+TaskTracker::TaskTracker(int pid)
+    : m_pid(pid), m_tick(0), m_schedstat(true), m_lastUsedMs(monotonicMs()) {
+}
+
+bool TaskTracker::readStat(int taskFd, int tid, ThreadSample* sample) {
+    char buf[1024];
+    ssize_t n = readTaskFile(taskFd, tid, "stat", buf, sizeof(buf));
+    if (n <= 0) return false;
+    memset(sample, 0, sizeof(*sample));
+    sample->tid = tid;
+    sample->tgid = m_pid;
+    sample->processor = -1;
+    return parseStat(buf, static_cast<size_t>(n), sample);
+}
+
+/**
+ * 读取线程名（去掉结尾的换行）
+ */
+static void readComm(int taskFd, int tid, char comm[16]) {
+    char buf[32];
+    ssize_t n = readTaskFile(taskFd, tid, "comm", buf, sizeof(buf));
+    if (n <= 0) {
+        comm[0] = '\0';
+        return;
+    }
+    if (buf[n - 1] == '\n') buf[--n] = '\0';
+    size_t len = std::min(static_cast<size_t>(n), static_cast<size_t>(15));
+    memcpy(comm, buf, len);
+    comm[len] = '\0';
+}
+
+/**
+ * 读取 schedstat 的三列（运行时间ns、运行队列等待时间ns、时间片数）
+ */
+static bool readSchedstat(int taskFd, int tid, uint64_t values[3]) {
+    // 格式: "运行时间ns 等待时间ns 时间片数\n"
+    char buf[96];
+    ssize_t n = readTaskFile(taskFd, tid, "schedstat", buf, sizeof(buf));
+    if (n <= 0) return false;
+    const char* p = buf;
+    for (int i = 0; i < 3; i++) {
+        while (*p == ' ') p++;
+        if (*p < '0' || *p > '9') return false;
+        uint64_t value = 0;
+        for (; *p >= '0' && *p <= '9'; p++) value = value * 10 + (*p - '0');
+        values[i] = value;
+    }
+    return true;
+}
+
+static void applySchedstat(ThreadSample* sample, const uint64_t values[3]) {
+    sample->runtimeNs = values[0];
+    sample->waitNs = values[1];
+    sample->timeslices = values[2];
+    sample->flags |= helper::kSampleHasSchedstat;
+}
+
+/**
+ * 从新读取的 stat 记录更新线程：保留已读到的 schedstat 字段，没有 schedstat 时由节拍换算运行时间
+ */
+static void updateFromStat(ThreadSample* sample, const ThreadSample& fresh) {
+    uint8_t flags = sample->flags;
+    uint64_t runtimeNs = sample->runtimeNs, waitNs = sample->waitNs, timeslices = sample->timeslices;
+    *sample = fresh;
+    if (flags & helper::kSampleHasSchedstat) {
+        sample->flags = flags;
+        sample->runtimeNs = runtimeNs;
+        sample->waitNs = waitNs;
+        sample->timeslices = timeslices;
+    } else {
+        sample->runtimeNs = (sample->utime + sample->stime) * nsPerTick();
+    }
+}
+
+int TaskTracker::sample(bool namesOnly, std::vector<ThreadSample>* out, uint32_t* births, uint32_t* deaths) {
+    char path[32];
+    snprintf(path, sizeof(path), "/proc/%d/task", m_pid);
+    int taskFd = open(path, O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+    if (taskFd < 0) return -errno;
+    DIR* dir = fdopendir(taskFd);
+    if (!dir) {
+        int err = -errno;
+        close(taskFd);
+        return err;
+    }
+
+    long long now = monotonicMs();
+    bool first = m_tick == 0;
+    bool refresh = !first && m_tick % kRefreshTicks == 0;
+    uint32_t tick = ++m_tick;
+    m_lastUsedMs = now;
+
+    struct dirent* entry;
+    while ((entry = readdir(dir)) != nullptr) {
+        int tid = atoi(entry->d_name);
+        if (tid <= 0) continue;
+        auto it = m_tasks.find(tid);
+        if (it == m_tasks.end()) {
+            Task task;
+            ThreadSample fresh;
+            uint64_t values[3];
+            bool wantSchedstat = !namesOnly && m_schedstat;
+            bool hasSchedstat = wantSchedstat && readSchedstat(taskFd, tid, values);
+            if (!readStat(taskFd, tid, &fresh)) continue; // 线程已退出
+            // 与 SystemSampler::readCounters 一致：schedstat 读取失败后 stat 仍能读，才说明内核没有开启
+            if (wantSchedstat && !hasSchedstat) m_schedstat = false;
+            memset(&task.sample, 0, sizeof(task.sample));
+            if (hasSchedstat) applySchedstat(&task.sample, values);
+            updateFromStat(&task.sample, fresh);
+            task.bornMs = first ? 0 : now;
+            task.seenTick = tick;
+            m_tasks.emplace(tid, task);
+            if (!first) (*births)++;
+            continue;
+        }
+
+        Task& task = it->second;
+        task.seenTick = tick;
+        bool reread = refresh || now - task.bornMs < kRenameWindowMs;
+        if (!namesOnly) {
+            // schedstat 每次都读（线程没有运行时等待时间也可能在增长）；
+            // 运行时间没有变化说明线程没有运行过，stat 中的 CPU 时间和核心也不会变
+            uint64_t values[3];
+            if (m_schedstat && readSchedstat(taskFd, tid, values)) {
+                if (values[0] != task.sample.runtimeNs) reread = true;
+                applySchedstat(&task.sample, values);
+            } else {
+                reread = true;
+            }
+        }
+        if (reread) {
+            ThreadSample fresh;
+            if (!readStat(taskFd, tid, &fresh)) {
+                task.seenTick = 0; // 读取时已退出
+                continue;
+            }
+            if (fresh.startTime != task.sample.startTime) {
+                // tid 被复用：按一次退出 + 一次出生计算
+                (*deaths)++;
+                (*births)++;
+                task.bornMs = now;
+            }
+            updateFromStat(&task.sample, fresh);
+        }
+    }
+    closedir(dir); // 同时关闭 taskFd
+
+    for (auto it = m_tasks.begin(); it != m_tasks.end();) {
+        if (it->second.seenTick != tick) {
+            (*deaths)++;
+            it = m_tasks.erase(it);
+        } else {
+            out->push_back(it->second.sample);
+            ++it;
+        }
+    }
+    return 0;
+}
+
+static std::mutex g_trackerMutex;
+static std::map<long long, TaskTracker> g_trackers; // 键: pid * 2 + 是否只要线程名
+
+int sampleThreads(const int* pids, size_t count, uint32_t flags,
+                  std::vector<ThreadSample>* out, uint32_t* births, uint32_t* deaths) {
+    bool namesOnly = (flags & helper::kSampleNamesOnly) != 0;
+    bool sampled = count == 0;
+    int lastError = -ESRCH;
+    *births = 0;
+    *deaths = 0;
+
+    std::lock_guard<std::mutex> lock(g_trackerMutex);
+    for (size_t i = 0; i < count; i++) {
+        long long key = static_cast<long long>(pids[i]) * 2 + (namesOnly ? 1 : 0);
+        auto it = g_trackers.find(key);
+        if (it == g_trackers.end()) it = g_trackers.emplace(key, TaskTracker(pids[i])).first;
+        int result = it->second.sample(namesOnly, out, births, deaths);
+        if (result == 0) {
+            sampled = true;
+        } else {
+            lastError = result;
+            g_trackers.erase(it); // 进程已退出，pid 复用时重新开始
+        }
+    }
+    long long now = monotonicMs();
+    for (auto it = g_trackers.begin(); it != g_trackers.end();) {
+        if (now - it->second.lastUsedMs() > kTrackerIdleMs) {
+            it = g_trackers.erase(it);
+        } else {
+            ++it;
+        }
+    }
+    if (count > 1) {
+        std::sort(out->begin(), out->end(),
+                  [](const ThreadSample& a, const ThreadSample& b) { return a.tid < b.tid; });
+    }
+    return sampled ? 0 : lastError;
+}
+
+/**
+ * 有界堆：只保留分数最高的 limit 个
+ */
+template <typename T>
+class TopN {
+public:
+    explicit TopN(size_t limit) : m_limit(limit) {
+        m_heap.reserve(limit);
+    }
+
+    void push(float score, const T& item) {
+        if (m_limit == 0) return;
+        if (m_heap.size() < m_limit) {
+            m_heap.emplace_back(score, item);
+            std::push_heap(m_heap.begin(), m_heap.end(), greater);
+        } else if (score > m_heap.front().first) {
+            // 堆顶是当前保留的最小值
+            std::pop_heap(m_heap.begin(), m_heap.end(), greater);
+            m_heap.back() = std::make_pair(score, item);
+            std::push_heap(m_heap.begin(), m_heap.end(), greater);
+        }
+    }
+
+    /**
+     * 按分数从高到低取出
+     */
+    std::vector<T> take() {
+        std::sort_heap(m_heap.begin(), m_heap.end(), greater);
+        std::vector<T> items;
+        items.reserve(m_heap.size());
+        for (const auto& entry : m_heap) items.push_back(entry.second);
+        m_heap.clear();
+        return items;
+    }
+
+private:
+    static bool greater(const std::pair<float, T>& a, const std::pair<float, T>& b) {
+        return a.first > b.first;
+    }
+
+    size_t m_limit;
+    std::vector<std::pair<float, T>> m_heap;
+};
+
+SystemSampler::SystemSampler()
+    : m_tick(0), m_cycleTick(1), m_resumePid(0), m_schedstat(true) {
+}
+
+bool SystemSampler::readCounters(int taskFd, int tid, uint64_t* runtimeNs, uint64_t* waitNs, char* comm) {
+    if (m_schedstat) {
+        uint64_t values[3];
+        if (readSchedstat(taskFd, tid, values)) {
+            *runtimeNs = values[0];
+            *waitNs = values[1];
+            return true;
+        }
+    }
+    // 线程已退出，或内核没有 schedstat：读 stat，运行时间由节拍换算
+    char buf[1024];
+    ssize_t n = readTaskFile(taskFd, tid, "stat", buf, sizeof(buf));
+    if (n <= 0) return false;
+    ThreadSample sample;
+    memset(&sample, 0, sizeof(sample));
+    if (!parseStat(buf, static_cast<size_t>(n), &sample)) return false;
+    m_schedstat = false; // stat 能读而 schedstat 不能，说明内核没有开启
+    *runtimeNs = (sample.utime + sample.stime) * nsPerTick();
+    *waitNs = 0;
+    memcpy(comm, sample.comm, sizeof(sample.comm));
+    return true;
+}
+
+uint32_t SystemSampler::scanProcess(int pid, long long now) {
+    char path[32];
+    snprintf(path, sizeof(path), "/proc/%d/task", pid);
+    int taskFd = open(path, O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+    if (taskFd < 0) return 0;
+    DIR* dir = fdopendir(taskFd);
+    if (!dir) {
+        close(taskFd);
+        return 0;
+    }
+
+    uint32_t scanned = 0;
+    struct dirent* entry;
+    while ((entry = readdir(dir)) != nullptr) {
+        int tid = atoi(entry->d_name);
+        if (tid <= 0) continue;
+        uint64_t runtime, wait;
+        char comm[16];
+        comm[0] = '\0';
+        if (!readCounters(taskFd, tid, &runtime, &wait, comm)) continue; // 线程已退出
+        scanned++;
+
+        auto it = m_tasks.find(tid);
+        if (it == m_tasks.end() || it->second.tgid != pid || runtime < it->second.runtimeNs) {
+            // 新线程（或 tid 被复用）：这次只记录，下次才有占比
+            Task task;
+            task.runtimeNs = runtime;
+            task.waitNs = wait;
+            task.readNs = now;
+            task.runPercent = 0;
+            task.waitPercent = 0;
+            task.tgid = pid;
+            task.seenTick = m_tick;
+            task.commTick = m_tick;
+            if (comm[0]) {
+                memcpy(task.comm, comm, sizeof(task.comm));
+            } else {
+                readComm(taskFd, tid, task.comm);
+            }
+            m_tasks[tid] = task;
+            continue;
+        }
+
+        Task& task = it->second;
+        long long interval = now - task.readNs;
+        if (interval > 0) {
+            task.runPercent = (runtime - task.runtimeNs) * 100.0f / interval;
+            task.waitPercent = wait >= task.waitNs ? (wait - task.waitNs) * 100.0f / interval : 0;
+        }
+        bool ran = runtime != task.runtimeNs;
+        task.runtimeNs = runtime;
+        task.waitNs = wait;
+        task.readNs = now;
+        task.seenTick = m_tick;
+        if (comm[0]) {
+            memcpy(task.comm, comm, sizeof(task.comm));
+        } else if (ran && m_tick - task.commTick >= kCommRefreshTicks) {
+            // 只有运行过的线程才可能改名后出现在排行里
+            readComm(taskFd, tid, task.comm);
+            task.commTick = m_tick;
+        }
+    }
+    closedir(dir); // 同时关闭 taskFd
+    return scanned;
+}
+
+int SystemSampler::sample(int selfPid, const int* excludePids, size_t excludeCount, uint32_t limit,
+                          long long budgetNs, std::string* out) {
+    long long start = monotonicNs();
+    DIR* proc = opendir("/proc");
+    if (!proc) return -errno;
+    std::vector<int> pids;
+    struct dirent* entry;
+    while ((entry = readdir(proc)) != nullptr) {
+        int pid = atoi(entry->d_name);
+        if (pid > 0 && std::find(excludePids, excludePids + excludeCount, pid) == excludePids + excludeCount) {
+            pids.push_back(pid);
+        }
+    }
+    closedir(proc);
+    std::sort(pids.begin(), pids.end());
+
+    m_tick++;
+    uint32_t scanned = 0;
+    bool stopped = false;
+    auto it = std::upper_bound(pids.begin(), pids.end(), m_resumePid);
+    for (; it != pids.end(); ++it) {
+        scanned += scanProcess(*it, monotonicNs());
+        if (monotonicNs() - start > budgetNs && it + 1 != pids.end()) {
+            m_resumePid = *it;
+            stopped = true;
+            break;
+        }
+    }
+    if (!stopped) {
+        // 完整遍历了一轮：释放这一轮没有出现的线程（已退出，或所属进程被排除）
+        for (auto task = m_tasks.begin(); task != m_tasks.end();) {
+            if (task->second.seenTick < m_cycleTick) {
+                task = m_tasks.erase(task);
+            } else {
+                ++task;
+            }
+        }
+        m_cycleTick = m_tick + 1;
+        m_resumePid = 0;
+    }
+
+    helper::SystemTopHeader header;
+    memset(&header, 0, sizeof(header));
+    header.tasksScanned = scanned;
+    header.tasksTracked = static_cast<uint32_t>(m_tasks.size());
+    header.flags = m_schedstat ? helper::kSampleHasSchedstat : 0;
+    header.scanNs = static_cast<uint64_t>(monotonicNs() - start);
+    report(selfPid, std::min(limit, kMaxTopLimit), out, &header);
+    return 0;
+}
+
+namespace {
+struct Group {
+    int32_t id = 0;
+    int32_t threads = 0;
+    int32_t tid = 0;
+    float best = -1;
+    float run = 0;
+    float wait = 0;
+};
+
+void addToGroup(Group* group, int tid, int tgid, float run, float wait) {
+    if (group->threads == 0) {
+        group->id = tgid;
+    } else if (group->id != tgid) {
+        group->id = 0;
+    }
+    group->threads++;
+    group->run += run;
+    group->wait += wait;
+    if (run > group->best) {
+        group->best = run;
+        group->tid = tid;
+    }
+}
+
+// 剩余字节清零（记录按原样传给 Java 层）
+void copyName(char dest[16], const char* name) {
+    memset(dest, 0, 16);
+    size_t n = strnlen(name, 15);
+    memcpy(dest, name, n);
+    dest[n] = '\0';
+}
+} // namespace
+
+void SystemSampler::report(int selfPid, uint32_t limit, std::string* out, helper::SystemTopHeader* header) {
+    TopN<int> threads(limit);
+    std::unordered_map<int, Group> processes;
+    std::unordered_map<std::string, Group> names; // 本 App 的线程用空字符串合并为一组
+    for (const auto& entry : m_tasks) {
+        const Task& task = entry.second;
+        if (task.runPercent <= 0 && task.waitPercent <= 0) continue;
+        threads.push(task.runPercent, entry.first);
+        addToGroup(&processes[task.tgid], entry.first, task.tgid, task.runPercent, task.waitPercent);
+        addToGroup(&names[task.tgid == selfPid ? std::string() : std::string(task.comm)],
+                   entry.first, task.tgid, task.runPercent, task.waitPercent);
+    }
+
+    auto commOf = [this](int tid) -> const char* {
+        auto it = m_tasks.find(tid);
+        return it != m_tasks.end() ? it->second.comm : "";
+    };
+
+    std::vector<int> topThreads = threads.take();
+    out->assign(sizeof(*header), '\0');
+    for (int tid : topThreads) {
+        const Task& task = m_tasks[tid];
+        helper::TopThread record;
+        memset(&record, 0, sizeof(record));
+        record.tid = tid;
+        record.tgid = task.tgid;
+        record.runPercent = task.runPercent;
+        record.waitPercent = task.waitPercent;
+        record.processor = -1;
+        record.state = '?';
+        // 只为排行中的线程读 stat（核心和状态）
+        char path[32];
+        snprintf(path, sizeof(path), "/proc/%d/task", task.tgid);
+        int taskFd = open(path, O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+        if (taskFd >= 0) {
+            ThreadSample sample;
+            char buf[1024];
+            ssize_t n = readTaskFile(taskFd, tid, "stat", buf, sizeof(buf));
+            memset(&sample, 0, sizeof(sample));
+            if (n > 0 && parseStat(buf, static_cast<size_t>(n), &sample)) {
+                record.processor = sample.processor;
+                record.state = sample.state;
+            }
+            close(taskFd);
+        }
+        copyName(record.comm, task.comm);
+        out->append(reinterpret_cast<const char*>(&record), sizeof(record));
+    }
+    header->threadCount = static_cast<uint32_t>(topThreads.size());
+
+    TopN<const Group*> topProcesses(limit);
+    for (const auto& entry : processes) topProcesses.push(entry.second.run, &entry.second);
+    for (const Group* group : topProcesses.take()) {
+        helper::TopGroup record;
+        memset(&record, 0, sizeof(record));
+        record.id = group->id;
+        record.threads = group->threads;
+        record.tid = group->tid;
+        record.runPercent = group->run;
+        record.waitPercent = group->wait;
+        // 进程名取主线程名，主线程不在记录表中时用占比最高的线程名
+        const char* name = commOf(group->id);
+        copyName(record.name, name[0] ? name : commOf(group->tid));
+        out->append(reinterpret_cast<const char*>(&record), sizeof(record));
+        header->processCount++;
+    }
+
+    TopN<std::pair<const std::string*, const Group*>> topNames(limit);
+    for (const auto& entry : names) topNames.push(entry.second.run, std::make_pair(&entry.first, &entry.second));
+    for (const auto& item : topNames.take()) {
+        const Group* group = item.second;
+        helper::TopGroup record;
+        memset(&record, 0, sizeof(record));
+        record.id = item.first->empty() ? selfPid : group->id;
+        record.threads = group->threads;
+        record.tid = group->tid;
+        record.runPercent = group->run;
+        record.waitPercent = group->wait;
+        copyName(record.name, item.first->empty() ? commOf(selfPid) : item.first->c_str());
+        out->append(reinterpret_cast<const char*>(&record), sizeof(record));
+        header->nameCount++;
+    }
+    memcpy(&(*out)[0], header, sizeof(*header));
+}
+
+static std::mutex g_systemMutex;
+static SystemSampler g_systemSampler;
+
+int sampleSystemTop(int selfPid, const int* excludePids, size_t excludeCount, uint32_t limit,
+                    long long budgetNs, std::string* out) {
+    std::lock_guard<std::mutex> lock(g_systemMutex);
+    return g_systemSampler.sample(selfPid, excludePids, excludeCount, limit, budgetNs, out);
+}
@@ -0,0 +1,118 @@
+#ifndef THREAD_SAMPLER_H
+#define THREAD_SAMPLER_H
+
+#include <cstddef>
+#include <cstdint>
+#include <map>
+#include <string>
+#include <unordered_map>
+#include <vector>
+#include "helper_protocol.h"
+
+/**
+ * 线程采样：按进程保存 tid -> 记录表，每次只读取必要的文件
+ *
+ * 辅助进程（OP_THREAD_SAMPLE）和 App 进程（辅助进程不可用时直接读取）共用。
+ * - 比较 /proc/<pid>/task 目录列表得到新线程和已退出的线程（顺带统计出生/退出数）
+ * - 新线程读一次 stat（线程名、启动时间、CPU 时间、核心）
+ * - 已知线程只读 schedstat（运行时间、运行队列等待时间、时间片数），运行时间没有变化时沿用上次的 stat，
+ *   变化时才重读；schedstat 不可用时每次读 stat，运行时间按 CLK_TCK 由节拍换算
+ * - 只要线程名时（kSampleNamesOnly）已知线程什么都不读
+ * - 新线程出现后的一段时间内、以及每隔若干次采样全部重读 stat，用于发现重命名
+ * 目录和文件都用 openat 相对打开，不拼接完整路径，不经过 stdio。
+ */
+class TaskTracker {
+public:
+    explicit TaskTracker(int pid);
+
+    /**
+     * 采样一次，结果（按 tid 排序）追加到 out
+     * @param namesOnly 只需要线程名，已知线程不读 stat/schedstat
+     * @param births 输出与上次采样相比新出现的线程数（第一次采样为 0）
+     * @param deaths 输出已退出的线程数
+     * @return 0，或 -errno（进程目录无法打开）
+     */
+    int sample(bool namesOnly, std::vector<helper::ThreadSample>* out, uint32_t* births, uint32_t* deaths);
+
+    long long lastUsedMs() const { return m_lastUsedMs; }
+
+private:
+    struct Task {
+        helper::ThreadSample sample;
+        long long bornMs;      // 第一次看到的时间（重命名检查窗口）
+        uint32_t seenTick;
+    };
+
+    bool readStat(int taskFd, int tid, helper::ThreadSample* sample);
+
+    int m_pid;
+    std::map<int, Task> m_tasks;
+    uint32_t m_tick;
+    bool m_schedstat;          // schedstat 不可用（内核未开启）时每次读 stat
+    long long m_lastUsedMs;
+};
+
+/**
+ * 采样多个进程，每个进程使用自己的 TaskTracker（按 pid 和模式保存，长时间不用或进程退出时释放）
+ * 结果按 tid 排序
+ * @param flags helper::kSample* 标志
+ * @return 0 表示至少一个进程采样成功，否则为最后一个 -errno
+ */
+int sampleThreads(const int* pids, size_t count, uint32_t flags,
+                  std::vector<helper::ThreadSample>* out, uint32_t* births, uint32_t* deaths);
+
+/**
+ * 全系统线程占用排行：遍历 /proc/<pid>/task/<tid>，按 tid 保存上次的 schedstat
+ *
+ * - 每个线程每次只读一个 schedstat（运行时间、运行队列等待时间），线程名只在第一次看到时读取，
+ *   运行过的线程每隔若干次采样重读一次线程名
+ * - 占比按每个线程自己的读取间隔计算，排行从整个记录表中选出（有界堆），并按进程、按线程名合并
+ * - 遍历超出预算时记下停止的位置，下次从那里继续；没有轮到的线程沿用上次的占比
+ * - 完整遍历一轮后释放这一轮没有出现的线程
+ */
+class SystemSampler {
+public:
+    SystemSampler();
+
+    /**
+     * 采样并输出 SystemTopHeader + TopThread[] + TopGroup[] + TopGroup[]
+     * @param selfPid 本 App 的 pid，它的线程按线程名合并时归为一组
+     * @param excludePids 不遍历的进程（例如正在单独监控的 App）
+     * @param limit 每种排行的数量上限
+     * @param budgetNs 遍历预算，至少遍历一个进程
+     * @return 0，或 -errno（/proc 无法打开）
+     */
+    int sample(int selfPid, const int* excludePids, size_t excludeCount, uint32_t limit,
+               long long budgetNs, std::string* out);
+
+private:
+    struct Task {
+        uint64_t runtimeNs;
+        uint64_t waitNs;
+        long long readNs;   // 上次读取的时间（CLOCK_MONOTONIC）
+        float runPercent;   // 上次读取区间内的占比
+        float waitPercent;
+        int32_t tgid;
+        uint32_t seenTick;
+        uint32_t commTick;  // 上次读取线程名的采样次数
+        char comm[16];
+    };
+
+    bool readCounters(int taskFd, int tid, uint64_t* runtimeNs, uint64_t* waitNs, char* comm);
+    uint32_t scanProcess(int pid, long long now);
+    void report(int selfPid, uint32_t limit, std::string* out, helper::SystemTopHeader* header);
+
+    std::unordered_map<int, Task> m_tasks;
+    uint32_t m_tick;
+    uint32_t m_cycleTick;   // 当前这一轮遍历开始时的采样次数
+    int m_resumePid;        // 上次因超出预算停止的位置（0 表示从头开始）
+    bool m_schedstat;
+};
+
+/**
+ * 全系统线程占用排行（进程内共用一个 SystemSampler）
+ */
+int sampleSystemTop(int selfPid, const int* excludePids, size_t excludeCount, uint32_t limit,
+                    long long budgetNs, std::string* out);
+
+#endif // THREAD_SAMPLER_H
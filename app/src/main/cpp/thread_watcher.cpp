@@ -0,0 +1,492 @@
+#include "thread_watcher.h"
+
+#include <dirent.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <sched.h>
+#include <unistd.h>
+#include <sys/socket.h>
+#include <linux/cn_proc.h>
+#include <linux/connector.h>
+#include <linux/netlink.h>
+#include <time.h>
+#include <algorithm>
+#include <cctype>
+#include <cstdio>
+#include <cstring>
+#include <vector>
+
+static const char* kTopAppTasks = "/dev/cpuset/top-app/tasks";
+static const int kPollIntervalMs = 100;        // 轮询模式的目录比较间隔
+static const long long kRenameWindowMs = 3000; // 新线程出现后检查重命名的时间窗口
+static const int kRecvTimeoutMs = 200;         // netlink 等待超时（用于检查停止标志）
+static const size_t kMaxPinned = 4096;         // 待取走的修改记录上限（Java 层每轮检查时取走）
+
+static long long monotonicMs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return static_cast<long long>(ts.tv_sec) * 1000 + ts.tv_nsec / 1000000;
+}
+
+static long long monotonicUs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return static_cast<long long>(ts.tv_sec) * 1000000 + ts.tv_nsec / 1000;
+}
+
+/**
+ * 规则中的线程名去掉了空白字符（与 Java 层读取线程名的方式一致）
+ */
+static std::string normalizeName(const char* comm) {
+    std::string name;
+    for (const char* p = comm; *p != '\0'; p++) {
+        if (*p != ' ' && *p != '\t' && *p != '\r' && *p != '\n') name.push_back(*p);
+    }
+    return name;
+}
+
+static std::string toLower(const std::string& s) {
+    std::string lower(s);
+    for (char& c : lower) c = static_cast<char>(tolower(static_cast<unsigned char>(c)));
+    return lower;
+}
+
+static size_t literalCount(const std::string& glob) {
+    return glob.size() - std::count(glob.begin(), glob.end(), '*') - std::count(glob.begin(), glob.end(), '?');
+}
+
+/**
+ * 通配符匹配（'*' 任意个字符，'?' 一个字符），两者都已转成小写
+ */
+static bool globMatch(const std::string& glob, const std::string& name) {
+    size_t g = 0, n = 0, star = std::string::npos, mark = 0;
+    while (n < name.size()) {
+        if (g < glob.size() && (glob[g] == '?' || glob[g] == name[n])) {
+            g++;
+            n++;
+        } else if (g < glob.size() && glob[g] == '*') {
+            star = g++;
+            mark = n;
+        } else if (star != std::string::npos) {
+            g = star + 1;
+            n = ++mark;
+        } else {
+            return false;
+        }
+    }
+    while (g < glob.size() && glob[g] == '*') g++;
+    return g == glob.size();
+}
+
+static bool readComm(int tgid, int tid, char* buf, size_t size) {
+    char path[64];
+    snprintf(path, sizeof(path), "/proc/%d/task/%d/comm", tgid, tid);
+    int fd = open(path, O_RDONLY | O_CLOEXEC);
+    if (fd < 0) return false;
+    ssize_t n = read(fd, buf, size - 1);
+    close(fd);
+    if (n <= 0) return false;
+    buf[n] = '\0';
+    return true;
+}
+
+static void listTids(int tgid, std::set<int>* tids) {
+    char path[64];
+    snprintf(path, sizeof(path), "/proc/%d/task", tgid);
+    DIR* dir = opendir(path);
+    if (dir == nullptr) return;
+    struct dirent* entry;
+    while ((entry = readdir(dir)) != nullptr) {
+        int tid = atoi(entry->d_name);
+        if (tid > 0) tids->insert(tid);
+    }
+    closedir(dir);
+}
+
+ThreadWatcher::ThreadWatcher()
+    : m_targetsVersion(1), m_watchedVersion(0), m_running(false), m_mode(MODE_OFF), m_sock(-1), m_pinnedCount(0),
+      m_events(0), m_matched(0), m_applied(0), m_failed(0), m_overruns(0), m_maxApplyUs(0),
+      m_placed(0), m_pinnedDropped(0) {
+}
+
+ThreadWatcher::~ThreadWatcher() {
+    stop();
+}
+
+ThreadWatcher::Mode ThreadWatcher::setRules(int tgid, const std::map<std::string, Rule>& rules,
+                                            const std::string& cpusetRoot) {
+    {
+        std::lock_guard<std::mutex> lock(m_mutex);
+        m_targetsVersion++;
+        if (rules.empty()) {
+            m_targets.erase(tgid);
+        } else {
+            Target& target = m_targets[tgid];
+            bool isNew = target.rules.empty() && target.globs.empty();
+            target.rules.clear();
+            target.globs.clear();
+            target.cpusetRoot = cpusetRoot;
+            for (const auto& rule : rules) {
+                std::string name = toLower(rule.first);
+                if (name.find_first_of("*?") != std::string::npos) {
+                    target.globs.emplace_back(name, rule.second);
+                } else {
+                    target.rules.emplace(name, rule.second);
+                }
+            }
+            // 与 Java 层一致：字面字符多的通配符优先，同级按名称排序
+            std::sort(target.globs.begin(), target.globs.end(),
+                [](const std::pair<std::string, Rule>& a, const std::pair<std::string, Rule>& b) {
+                    size_t la = literalCount(a.first), lb = literalCount(b.first);
+                    return la != lb ? la > lb : a.first < b.first;
+                });
+            if (isNew) seedLocked(tgid, target);
+        }
+    }
+
+    if (!m_running.load() && !rules.empty()) {
+        // netlink 打开失败时退回轮询，模式在启动线程前确定
+        m_mode = openNetlink() ? MODE_NETLINK : MODE_POLL;
+        m_running = true;
+        m_thread = std::thread(&ThreadWatcher::run, this);
+    }
+    return static_cast<Mode>(m_mode.load());
+}
+
+void ThreadWatcher::stop() {
+    if (!m_running.exchange(false)) return;
+    if (m_thread.joinable()) m_thread.join();
+    if (m_sock >= 0) {
+        close(m_sock);
+        m_sock = -1;
+    }
+    m_mode = MODE_OFF;
+}
+
+std::string ThreadWatcher::stats() {
+    size_t targets;
+    {
+        std::lock_guard<std::mutex> lock(m_mutex);
+        targets = m_targets.size();
+    }
+    static const char* kModeNames[] = {"off", "netlink", "poll"};
+    char buf[320];
+    snprintf(buf, sizeof(buf),
+             "watch mode=%s targets=%zu events=%llu matched=%llu applied=%llu placed=%llu failed=%llu "
+             "overruns=%llu maxApplyUs=%llu pinnedDropped=%llu",
+             kModeNames[m_mode.load()], targets,
+             (unsigned long long)m_events.load(), (unsigned long long)m_matched.load(),
+             (unsigned long long)m_applied.load(), (unsigned long long)m_placed.load(),
+             (unsigned long long)m_failed.load(), (unsigned long long)m_overruns.load(),
+             (unsigned long long)m_maxApplyUs.load(), (unsigned long long)m_pinnedDropped.load());
+    return buf;
+}
+
+std::string ThreadWatcher::drainPinned(uint64_t* dropped) {
+    std::string out;
+    std::lock_guard<std::mutex> lock(m_mutex);
+    out.swap(m_pinned);
+    m_pinnedCount = 0;
+    *dropped = m_pinnedDropped.exchange(0);
+    return out;
+}
+
+void ThreadWatcher::run() {
+    if (m_mode.load() == MODE_NETLINK) {
+        netlinkLoop();
+    } else {
+        pollLoop();
+    }
+}
+
+bool ThreadWatcher::openNetlink() {
+    int sock = socket(PF_NETLINK, SOCK_DGRAM | SOCK_CLOEXEC, NETLINK_CONNECTOR);
+    if (sock < 0) return false;
+
+    struct sockaddr_nl addr = {};
+    addr.nl_family = AF_NETLINK;
+    addr.nl_groups = CN_IDX_PROC;
+    addr.nl_pid = 0;  // 由内核分配
+    if (bind(sock, reinterpret_cast<struct sockaddr*>(&addr), sizeof(addr)) != 0) {
+        close(sock);
+        return false;
+    }
+
+    // 订阅请求: nlmsghdr + cn_msg + PROC_CN_MCAST_LISTEN
+    char buf[NLMSG_SPACE(sizeof(struct cn_msg) + sizeof(enum proc_cn_mcast_op))] = {};
+    struct nlmsghdr* nl = reinterpret_cast<struct nlmsghdr*>(buf);
+    struct cn_msg* cn = reinterpret_cast<struct cn_msg*>(NLMSG_DATA(nl));
+    enum proc_cn_mcast_op op = PROC_CN_MCAST_LISTEN;
+    nl->nlmsg_len = NLMSG_LENGTH(sizeof(struct cn_msg) + sizeof(op));
+    nl->nlmsg_type = NLMSG_DONE;
+    nl->nlmsg_pid = getpid();
+    cn->id.idx = CN_IDX_PROC;
+    cn->id.val = CN_VAL_PROC;
+    cn->len = sizeof(op);
+    memcpy(cn->data, &op, sizeof(op));
+    if (send(sock, nl, nl->nlmsg_len, 0) < 0) {
+        close(sock);
+        return false;
+    }
+    m_sock = sock;
+    return true;
+}
+
+void ThreadWatcher::netlinkLoop() {
+    std::vector<char> buf(64 * 1024);
+    while (m_running.load()) {
+        struct pollfd pfd = {m_sock, POLLIN, 0};
+        int ready = poll(&pfd, 1, kRecvTimeoutMs);
+        if (ready <= 0) continue;
+
+        ssize_t len = recv(m_sock, buf.data(), buf.size(), 0);
+        if (len < 0) {
+            if (errno == ENOBUFS) {
+                // 事件太多被内核丢弃：对所有目标做一次全量检查
+                m_overruns++;
+                std::vector<int> tgids;
+                {
+                    std::lock_guard<std::mutex> lock(m_mutex);
+                    for (auto& entry : m_targets) tgids.push_back(entry.first);
+                }
+                for (int tgid : tgids) {
+                    std::set<int> tids;
+                    listTids(tgid, &tids);
+                    char comm[32];
+                    for (int tid : tids) {
+                        if (readComm(tgid, tid, comm, sizeof(comm))) handleThread(tgid, tid, comm);
+                    }
+                }
+            }
+            continue;
+        }
+
+        for (struct nlmsghdr* nl = reinterpret_cast<struct nlmsghdr*>(buf.data());
+             NLMSG_OK(nl, static_cast<unsigned int>(len)); nl = NLMSG_NEXT(nl, len)) {
+            if (nl->nlmsg_type == NLMSG_ERROR || nl->nlmsg_type == NLMSG_NOOP) continue;
+            struct cn_msg* cn = reinterpret_cast<struct cn_msg*>(NLMSG_DATA(nl));
+            if (cn->id.idx != CN_IDX_PROC || cn->id.val != CN_VAL_PROC) continue;
+            struct proc_event* ev = reinterpret_cast<struct proc_event*>(cn->data);
+
+            switch (ev->what) {
+                case proc_event::PROC_EVENT_FORK: {
+                    int tgid = ev->event_data.fork.child_tgid;
+                    int tid = ev->event_data.fork.child_pid;
+                    if (tid == tgid) break;  // 新进程，不是新线程
+                    m_events++;
+                    // 全系统的 fork 都会收到，先排除不监听的进程，不为它们读 /proc
+                    if (!isWatched(tgid)) break;
+                    // 新线程沿用创建者的名字，通常随后会有 COMM 事件
+                    char comm[32];
+                    if (readComm(tgid, tid, comm, sizeof(comm))) handleThread(tgid, tid, comm);
+                    break;
+                }
+                case proc_event::PROC_EVENT_COMM: {
+                    m_events++;
+                    if (!isWatched(ev->event_data.comm.process_tgid)) break;
+                    char comm[sizeof(ev->event_data.comm.comm) + 1];
+                    memcpy(comm, ev->event_data.comm.comm, sizeof(ev->event_data.comm.comm));
+                    comm[sizeof(ev->event_data.comm.comm)] = '\0';
+                    handleThread(ev->event_data.comm.process_tgid, ev->event_data.comm.process_pid, comm);
+                    break;
+                }
+                case proc_event::PROC_EVENT_EXIT: {
+                    int tgid = ev->event_data.exit.process_tgid;
+                    if (ev->event_data.exit.process_pid == tgid && isWatched(tgid)) {
+                        // 被监听进程退出，规则失效（pid 可能被复用）
+                        std::lock_guard<std::mutex> lock(m_mutex);
+                        m_targets.erase(tgid);
+                        m_targetsVersion++;
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+    }
+}
+
+void ThreadWatcher::pollLoop() {
+    while (m_running.load()) {
+        long long now = monotonicMs();
+        std::vector<int> tgids;
+        {
+            std::lock_guard<std::mutex> lock(m_mutex);
+            for (auto& entry : m_targets) tgids.push_back(entry.first);
+        }
+        for (int tgid : tgids) {
+            Target snapshot;
+            {
+                std::lock_guard<std::mutex> lock(m_mutex);
+                auto it = m_targets.find(tgid);
+                if (it == m_targets.end()) continue;
+                snapshot = it->second;
+            }
+            pollTarget(tgid, snapshot, now);
+            std::lock_guard<std::mutex> lock(m_mutex);
+            auto it = m_targets.find(tgid);
+            if (it != m_targets.end()) {
+                it->second.knownTids.swap(snapshot.knownTids);
+                it->second.youngTids.swap(snapshot.youngTids);
+                it->second.lastComm.swap(snapshot.lastComm);
+            }
+        }
+        usleep(kPollIntervalMs * 1000);
+    }
+}
+
+void ThreadWatcher::pollTarget(int tgid, Target& target, long long now) {
+    std::set<int> tids;
+    listTids(tgid, &tids);
+    if (tids.empty()) {
+        // 进程已退出
+        std::lock_guard<std::mutex> lock(m_mutex);
+        m_targets.erase(tgid);
+        m_targetsVersion++;
+        return;
+    }
+
+    char comm[32];
+    for (int tid : tids) {
+        if (target.knownTids.count(tid) == 0) {
+            m_events++;
+            target.youngTids[tid] = now;
+            if (readComm(tgid, tid, comm, sizeof(comm))) {
+                target.lastComm[tid] = comm;
+                handleThread(tgid, tid, comm);
+            }
+        }
+    }
+
+    // 新线程在时间窗口内改名时重新匹配
+    for (auto it = target.youngTids.begin(); it != target.youngTids.end(); ) {
+        int tid = it->first;
+        if (tids.count(tid) == 0 || now - it->second > kRenameWindowMs) {
+            target.lastComm.erase(tid);
+            it = target.youngTids.erase(it);
+            continue;
+        }
+        if (readComm(tgid, tid, comm, sizeof(comm)) && target.lastComm[tid] != comm) {
+            m_events++;
+            target.lastComm[tid] = comm;
+            handleThread(tgid, tid, comm);
+        }
+        ++it;
+    }
+    target.knownTids.swap(tids);
+}
+
+bool ThreadWatcher::isWatched(int tgid) {
+    // 只在监听线程上调用：进程集合没有变化时直接查缓存
+    uint32_t version = m_targetsVersion.load();
+    if (version != m_watchedVersion) {
+        std::lock_guard<std::mutex> lock(m_mutex);
+        m_watchedTgids.clear();
+        for (auto& entry : m_targets) m_watchedTgids.push_back(entry.first);
+        m_watchedVersion = m_targetsVersion.load();
+    }
+    return std::binary_search(m_watchedTgids.begin(), m_watchedTgids.end(), tgid);
+}
+
+void ThreadWatcher::seedLocked(int tgid, Target& target) {
+    // 已有线程由 Java 层的循环处理，轮询模式只关心之后出现的线程
+    listTids(tgid, &target.knownTids);
+}
+
+void ThreadWatcher::handleThread(int tgid, int tid, const char* comm) {
+    long long start = monotonicUs();
+    Rule rule;
+    std::string cpusetRoot;
+    {
+        std::lock_guard<std::mutex> lock(m_mutex);
+        auto target = m_targets.find(tgid);
+        if (target == m_targets.end()) return;
+        std::string name = toLower(normalizeName(comm));
+        auto exact = target->second.rules.find(name);
+        if (exact != target->second.rules.end()) {
+            rule = exact->second;
+        } else {
+            auto glob = std::find_if(target->second.globs.begin(), target->second.globs.end(),
+                [&name](const std::pair<std::string, Rule>& g) { return globMatch(g.first, name); });
+            if (glob == target->second.globs.end()) return;
+            rule = glob->second;
+        }
+        cpusetRoot = target->second.cpusetRoot;
+    }
+    m_matched++;
+    recordPinned(tgid, tid, comm);
+
+    // 掩码对应自建分组时只写一次 tasks；写入失败（如被 SELinux 拒绝）时与 Java 层一样退回 sched_setaffinity
+    if (!rule.group.empty() && !cpusetRoot.empty()
+            && m_cpusets.open(cpusetRoot) == 0 && m_cpusets.place(rule.group, tid) == 0) {
+        m_applied++;
+        m_placed++;
+    } else {
+        // 先移到 top-app cpuset，否则掩码会被 cpuset 限制
+        int fd = open(kTopAppTasks, O_WRONLY | O_CLOEXEC);
+        if (fd >= 0) {
+            char buf[16];
+            int n = snprintf(buf, sizeof(buf), "%d", tid);
+            (void)write(fd, buf, n);
+            close(fd);
+        }
+
+        cpu_set_t set;
+        CPU_ZERO(&set);
+        for (int cpu = 0; cpu < 64 && cpu < CPU_SETSIZE; cpu++) {
+            if (rule.mask & (1ULL << cpu)) CPU_SET(cpu, &set);
+        }
+        if (sched_setaffinity(tid, sizeof(set), &set) == 0) {
+            m_applied++;
+        } else {
+            m_failed++;
+        }
+    }
+
+    uint64_t elapsed = static_cast<uint64_t>(monotonicUs() - start);
+    uint64_t prev = m_maxApplyUs.load();
+    while (elapsed > prev && !m_maxApplyUs.compare_exchange_weak(prev, elapsed)) {
+    }
+}
+
+/**
+ * 修改前记录线程的掩码和 cpuset（/proc/<tid>/cpuset，相对 cpuset 根目录），供 Java 层写入还原日志
+ * 同一线程改名后可能再次记录，Java 层只保留第一次
+ */
+void ThreadWatcher::recordPinned(int tgid, int tid, const char* comm) {
+    uint64_t mask = 0;
+    cpu_set_t set;
+    CPU_ZERO(&set);
+    if (sched_getaffinity(tid, sizeof(set), &set) == 0) {
+        for (int cpu = 0; cpu < 64 && cpu < CPU_SETSIZE; cpu++) {
+            if (CPU_ISSET(cpu, &set)) mask |= 1ULL << cpu;
+        }
+    }
+    char cpuset[128] = "";
+    char path[64];
+    snprintf(path, sizeof(path), "/proc/%d/task/%d/cpuset", tgid, tid);
+    int fd = open(path, O_RDONLY | O_CLOEXEC);
+    if (fd >= 0) {
+        ssize_t n = read(fd, cpuset, sizeof(cpuset) - 1);
+        close(fd);
+        cpuset[n > 0 ? n : 0] = '\0';
+        char* newline = strchr(cpuset, '\n');
+        if (newline != nullptr) *newline = '\0';
+    }
+    std::string name = comm;
+    name.erase(std::remove_if(name.begin(), name.end(),
+                              [](char c) { return c == '\n' || c == '\t'; }), name.end());
+
+    char line[256];
+    snprintf(line, sizeof(line), "%d\t%d\t%llx\t%s\t%s\n",
+             tid, tgid, (unsigned long long)mask, cpuset, name.c_str());
+    std::lock_guard<std::mutex> lock(m_mutex);
+    if (m_pinnedCount >= kMaxPinned) {
+        m_pinnedDropped++;
+        return;
+    }
+    m_pinned += line;
+    m_pinnedCount++;
+}
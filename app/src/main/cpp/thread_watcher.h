@@ -0,0 +1,111 @@
+#ifndef THREAD_WATCHER_H
+#define THREAD_WATCHER_H
+
+#include "cpuset_backend.h"
+
+#include <atomic>
+#include <cstdint>
+#include <map>
+#include <mutex>
+#include <set>
+#include <string>
+#include <thread>
+#include <utility>
+#include <vector>
+
+/**
+ * 新线程监听（运行在特权辅助进程内）
+ *
+ * 通过 netlink proc connector 订阅 PROC_EVENT_FORK / COMM / EXIT，
+ * 被监听进程创建或重命名线程时立即按线程名规则设置亲和性，不用等下一轮循环。
+ * netlink 不可用（内核未开启 CONFIG_PROC_EVENTS 或被 SELinux 拒绝）时，
+ * 退回到定时比较 /proc/<pid>/task 目录，新线程出现后的一段时间内持续检查重命名。
+ *
+ * 放置方式与 Java 层一致：规则带 cpuset 分组时写入分组（CpusetPlacement），
+ * 否则移入 top-app 再 sched_setaffinity。修改前的掩码和 cpuset 记录下来，
+ * 由 Java 层通过 drainPinned() 取走写入还原日志。
+ */
+class ThreadWatcher {
+public:
+    enum Mode { MODE_OFF = 0, MODE_NETLINK = 1, MODE_POLL = 2 };
+
+    struct Rule {
+        uint64_t mask;
+        std::string group;  // cpuset 分组名，为空时移入 top-app 再 sched_setaffinity
+    };
+
+    ThreadWatcher();
+    ~ThreadWatcher();
+
+    /**
+     * 设置进程的规则（线程名 -> 掩码和分组），rules 为空时停止监听该进程
+     * 线程名不区分大小写，含 '*' / '?' 的按通配符匹配（精确优先，其次字面字符多的通配符）
+     * 首次设置规则时启动监听线程
+     * @param cpusetRoot 分组所在的 cpuset 根目录，为空时忽略规则中的分组
+     * @return 当前模式
+     */
+    Mode setRules(int tgid, const std::map<std::string, Rule>& rules, const std::string& cpusetRoot);
+
+    /**
+     * 停止监听线程
+     */
+    void stop();
+
+    Mode mode() const { return static_cast<Mode>(m_mode.load()); }
+
+    /**
+     * 统计信息（文本）
+     */
+    std::string stats();
+
+    /**
+     * 取走修改过的线程：每行 "tid\ttgid\t十六进制原掩码\t原 cpuset\t线程名"（原掩码读取失败为 0）
+     * @param dropped 输出缓存已满被丢弃的条数
+     */
+    std::string drainPinned(uint64_t* dropped);
+
+private:
+    struct Target {
+        std::map<std::string, Rule> rules;       // 精确线程名（小写）
+        std::vector<std::pair<std::string, Rule>> globs; // 通配符（小写），按优先级排列
+        std::string cpusetRoot;                  // 规则中分组所在的根目录
+        std::set<int> knownTids;                 // 轮询模式：上次看到的线程
+        std::map<int, long long> youngTids;      // 轮询模式：新线程 -> 首次出现时间（用于检查重命名）
+        std::map<int, std::string> lastComm;     // 轮询模式：新线程上次检查到的名称
+    };
+
+    void run();
+    bool openNetlink();
+    void netlinkLoop();
+    void pollLoop();
+    void pollTarget(int tgid, Target& target, long long now);
+    void seedLocked(int tgid, Target& target);
+    void handleThread(int tgid, int tid, const char* comm);
+    void recordPinned(int tgid, int tid, const char* comm);
+    bool isWatched(int tgid);
+
+    std::mutex m_mutex;
+    std::map<int, Target> m_targets;
+    std::atomic<uint32_t> m_targetsVersion;  // m_targets 增删进程时加一
+    std::vector<int> m_watchedTgids;         // 监听线程缓存的被监听进程（有序），避免每个事件都加锁
+    uint32_t m_watchedVersion;
+    std::thread m_thread;
+    std::atomic<bool> m_running;
+    std::atomic<int> m_mode;
+    int m_sock;
+    CpusetBackend m_cpusets;  // 只在监听线程上使用
+    std::string m_pinned;     // 待取走的修改记录（drainPinned 的格式）
+    size_t m_pinnedCount;
+
+    // 统计
+    std::atomic<uint64_t> m_events;
+    std::atomic<uint64_t> m_matched;
+    std::atomic<uint64_t> m_applied;
+    std::atomic<uint64_t> m_failed;
+    std::atomic<uint64_t> m_overruns;
+    std::atomic<uint64_t> m_maxApplyUs;
+    std::atomic<uint64_t> m_placed;
+    std::atomic<uint64_t> m_pinnedDropped;
+};
+
+#endif // THREAD_WATCHER_H
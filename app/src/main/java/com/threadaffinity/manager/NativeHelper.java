@@ -26,6 +26,24 @@ public class NativeHelper {
      */
     public static native boolean setThreadAffinity(int tid, long mask);
 
+    /** 批量设置结果：成功 */
+    public static final int AFFINITY_OK = 0;
+    /** 批量设置结果：线程不存在（已退出） */
+    public static final int AFFINITY_NO_SUCH_THREAD = 1;
+    /** 批量设置结果：掩码不在线程允许的 cpuset 范围内（EINVAL） */
+    public static final int AFFINITY_INVALID_MASK = 2;
+    /** 批量设置结果：其它错误（权限不足、特权通道不可用等） */
+    public static final int AFFINITY_FAILED = 3;
+
+    /**
+     * 批量设置线程亲和性，所有线程在一次 native 调用中完成
+     * 每个线程先移入 top-app cpuset，再 sched_setaffinity
+     * @param tids 线程ID数组
+     * @param masks 与 tids 一一对应的掩码数组（长度必须相同）
+     * @return 每个线程的结果码（AFFINITY_*）；特权通道不可用或中途断开时返回 null
+     */
+    public static native int[] setThreadAffinities(int[] tids, long[] masks);
+
     /**
      * 获取线程亲和性
      * @param tid 线程ID
@@ -33,12 +51,112 @@ public class NativeHelper {
      */
     public static native long getThreadAffinity(int tid);
 
+    /**
+     * 批量获取线程当前生效的亲和性（sched_getaffinity，已受 cpuset 限制）
+     * @param tids 线程ID数组
+     * @return 与 tids 对应的掩码，读取失败的线程为 0；特权通道不可用时返回 null
+     */
+    public static native long[] getThreadAffinities(int[] tids);
+
+    /** 新线程监听模式：未启用 */
+    public static final int WATCH_OFF = 0;
+    /** 新线程监听模式：proc connector 事件 */
+    public static final int WATCH_NETLINK = 1;
+    /** 新线程监听模式：定时比较线程目录 */
+    public static final int WATCH_POLL = 2;
+
+    /**
+     * 设置新线程监听规则，特权辅助进程在该进程创建或重命名线程时立即按线程名设置亲和性
+     * 放置方式与 {@link com.threadaffinity.manager.util.CpusetPlacement} 一致：有分组的规则写入分组，
+     * 其余移入 top-app 再 sched_setaffinity
+     * @param pid 进程ID
+     * @param names 线程名（去掉空白字符），为空数组时取消监听
+     * @param masks 与 names 对应的掩码
+     * @param cpusetRoot 自建分组的 cpuset 根目录，null 表示不使用分组
+     * @param groups 与 names 对应的分组名（null 元素表示不放入分组），可以为 null
+     * @return 监听模式（WATCH_*）
+     */
+    public static native int setThreadWatch(int pid, String[] names, long[] masks, String cpusetRoot, String[] groups);
+
+    /**
+     * 新线程监听统计（调试用）
+     */
+    public static native String getThreadWatchStats();
+
+    /**
+     * 取走新线程监听修改过的线程及其修改前的状态，用于写入还原日志
+     * @return UTF-8 文本，每行 "tid\ttgid\t十六进制原掩码\t原 cpuset\t线程名"；特权通道不可用时返回 null
+     */
+    public static native byte[] drainThreadWatch();
+
+    /**
+     * 在 cpuset 根目录下创建/更新自建分组（核心列表未变化时不写入）
+     * @param root cpuset 根目录（如 /dev/cpuset）
+     * @param name 分组名（小写字母、数字、下划线）
+     * @param cpus 核心列表，如 "4-6"
+     * @return cgroup 布局：1 = v1，2 = v2，0 = 失败
+     */
+    public static native int setupCpusetGroup(String root, String name, String cpus);
+
+    /**
+     * 批量把线程放入自建 cpuset 分组，每个线程一次写入
+     * @return 每个线程的结果码（AFFINITY_*）；特权通道不可用时返回 null
+     */
+    public static native int[] placeThreads(String root, String name, int[] tids);
+
+    /** 调度参数字段：策略 + 实时优先级 */
+    public static final int SCHED_FIELD_POLICY = 1;
+    /** 调度参数字段：nice */
+    public static final int SCHED_FIELD_NICE = 1 << 1;
+    /** 调度参数字段：uclamp 下限 */
+    public static final int SCHED_FIELD_UCLAMP_MIN = 1 << 2;
+    /** 调度参数字段：uclamp 上限 */
+    public static final int SCHED_FIELD_UCLAMP_MAX = 1 << 3;
+    /** 每个线程的调度参数个数：fields, policy, priority, nice, uclampMin, uclampMax */
+    public static final int SCHED_PARAM_COUNT = 6;
+
+    /**
+     * 批量设置线程调度参数（sched_setattr），只设置 fields 指定的部分
+     * @param params 每个线程 SCHED_PARAM_COUNT 个值，与 tids 对应
+     * @return 每个线程 SCHED_PARAM_COUNT + 1 个值：结果码（AFFINITY_*）+ 写入后回读的参数
+     *         （回读失败时 fields 为 0）；特权通道不可用时返回 null
+     */
+    public static native int[] setThreadSched(int[] tids, int[] params);
+
+    /**
+     * 批量读取线程调度参数（sched_getattr）
+     * @return 每个线程 SCHED_PARAM_COUNT 个值，读取失败的线程 fields 为 0；
+     *         内核不支持 uclamp 时不含 uclamp 字段；特权通道不可用时返回 null
+     */
+    public static native int[] getThreadSched(int[] tids);
+
     /**
      * 获取CPU核心数
      * @return CPU核心数
      */
     public static native int getCpuCount();
 
+    /**
+     * 每秒时钟节拍数（sysconf(_SC_CLK_TCK)），/proc stat 中 utime/stime 的单位
+     */
+    public static native int getClockTicks();
+
+    private static int clockTicks;
+
+    /**
+     * {@link #getClockTicks} 的缓存，native 库不可用时按 100（Android 的 USER_HZ）
+     */
+    public static int clockTicksPerSecond() {
+        if (clockTicks <= 0) {
+            try {
+                clockTicks = getClockTicks();
+            } catch (Throwable e) {
+                clockTicks = 100;
+            }
+        }
+        return clockTicks;
+    }
+
     /**
      * 获取各CPU使用率
      * @return 使用率数组，index 0为总体，1-N为各核心
@@ -76,12 +194,20 @@ public class NativeHelper {
     public static native String getThreadName(int pid, int tid);
     
     /**
-     * 通过包名获取进程ID
+     * 通过包名获取主进程ID
      * @param packageName 包名
      * @return 进程ID，未找到返回-1
      */
     public static native int getPidByPackage(String packageName);
     
+    /**
+     * 通过包名获取该包的所有进程ID（包名进程 pkg 和 pkg:*，主进程在前）
+     * 没有 root 时受 /proc 可见性限制，服务中使用 ProcessHelper.getPackageProcesses
+     * @param packageName 包名
+     * @return 进程ID数组，未找到返回空数组
+     */
+    public static native int[] getPidsByPackage(String packageName);
+    
     /**
      * 检查进程是否存在
      * @param pid 进程ID
@@ -100,4 +226,52 @@ public class NativeHelper {
      * @return 是否存活
      */
     public static native boolean isRootShellAlive();
+    
+    /**
+     * 通过 su 启动特权辅助进程（libaffinity_helper.so）
+     * 启动后亲和性设置直接走系统调用，不再 fork taskset
+     * @param helperPath 辅助进程可执行文件路径
+     * @return 是否启动成功
+     */
+    public static native boolean startHelper(String helperPath);
+    
+    /**
+     * 停止特权辅助进程
+     */
+    public static native void stopHelper();
+    
+    /**
+     * 检查特权辅助进程是否存活
+     * @return 是否存活
+     */
+    public static native boolean isHelperAlive();
+
+    /**
+     * 采样进程的所有线程，定长记录写入 direct ByteBuffer（布局见 util.ThreadSnapshot）
+     * 优先通过特权辅助进程读取，不可用时直接读 /proc；每个进程的线程表保存在 native 层，
+     * 只读取新线程和有变化的线程
+     * @param pids 进程ID数组
+     * @param buffer allocateDirect 分配的缓冲区
+     * @param namesOnly 只需要线程名（已知线程不重读 stat，CPU 时间可能是旧值）
+     * @return 线程总数（大于缓冲区容量时只写入放得下的部分），失败返回 -1
+     */
+    public static native int sampleThreads(int[] pids, java.nio.ByteBuffer buffer, boolean namesOnly);
+
+    /**
+     * 采样记录中线程名编号对应的名称
+     * @param generation 缓冲区头部的线程名表代数
+     * @param fromId 起始编号
+     * @return fromId 之后的所有名称，每个名称为 1 字节长度加原始字节（未解码），代数已变化时返回 null
+     */
+    public static native byte[] getCommNames(int generation, int fromId);
+
+    /**
+     * 全系统线程占用排行（遍历所有进程的线程，按线程、进程、线程名各取前 limit 个），
+     * 见 util.SystemTopSnapshot
+     * @param pids [本 App pid, 排除的 pid...]
+     * @param budgetMs 遍历预算（毫秒），超出时下次从停止的位置继续
+     * @param buffer allocateDirect 分配的缓冲区，容量至少为 SystemTopSnapshot.bufferSize(limit)
+     * @return 写入的字节数，失败返回 -1
+     */
+    public static native int sampleSystemTop(int[] pids, int limit, int budgetMs, java.nio.ByteBuffer buffer);
 }
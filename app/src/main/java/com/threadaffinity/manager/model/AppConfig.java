@@ -1,11 +1,21 @@
 package com.threadaffinity.manager.model;
 
+import com.threadaffinity.manager.util.ThreadNameMatcher;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
 /**
  * 应用配置模型，用于保存和加载亲和性配置
  * 掩码以十六进制字符串格式保存（如 "0x80"）
+ *
+ * threadAffinities 作用于包的所有进程；processAffinities 按进程分组（可选），
+ * 键为 ":remote" 这类进程名后缀，或子进程的线程名，其中的规则覆盖同名的通用规则
+ *
+ * threadPolicies（可选）为线程设置调度策略/nice/uclamp，作用于包的所有进程
+ *
+ * 所有规则的线程名都可以写成通配符（"PoolThread_*"）或正则（"re:Thread-\\d+"），
+ * 匹配规则和优先级见 {@link ThreadNameMatcher}
  */
 public class AppConfig {
     private String packageName;
@@ -13,6 +23,13 @@ public class AppConfig {
     private long timestamp;
     // 线程名 -> 亲和性掩码（十六进制字符串，如 "0x80"）
     private Map<String, String> threadAffinities;
+    // 进程键 -> (线程名 -> 掩码)，旧配置没有这一项
+    private Map<String, Map<String, String>> processAffinities;
+    // 线程名（可带结尾 '*'）-> 调度规则，旧配置没有这一项
+    private Map<String, ThreadPolicy> threadPolicies;
+    // 编译后的匹配器（不保存），规则修改时清空
+    private transient Map<String, ThreadNameMatcher<Long>> affinityMatchers;
+    private transient ThreadNameMatcher<ThreadPolicy> policyMatcher;
 
     public AppConfig() {
         threadAffinities = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
@@ -40,6 +57,131 @@ public class AppConfig {
         if (threadAffinities != null) {
             this.threadAffinities.putAll(threadAffinities);
         }
+        affinityMatchers = null;
+    }
+
+    public Map<String, Map<String, String>> getProcessAffinities() { return processAffinities; }
+    public void setProcessAffinities(Map<String, Map<String, String>> processAffinities) {
+        affinityMatchers = null;
+        if (processAffinities == null || processAffinities.isEmpty()) {
+            this.processAffinities = null;
+            return;
+        }
+        this.processAffinities = new TreeMap<>();
+        for (Map.Entry<String, Map<String, String>> entry : processAffinities.entrySet()) {
+            if (entry.getValue() == null) continue;
+            Map<String, String> rules = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            rules.putAll(entry.getValue());
+            this.processAffinities.put(entry.getKey(), rules);
+        }
+    }
+
+    /**
+     * 添加某个进程的线程亲和性配置
+     * @param processKey ":remote" 这类进程名后缀，或子进程的线程名
+     */
+    public void addProcessThreadAffinity(String processKey, String threadName, long mask) {
+        if (processAffinities == null) processAffinities = new TreeMap<>();
+        affinityMatchers = null;
+        Map<String, String> rules = processAffinities.get(processKey);
+        if (rules == null) {
+            rules = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            processAffinities.put(processKey, rules);
+        }
+        rules.put(threadName, "0x" + Long.toHexString(mask).toUpperCase());
+    }
+
+    /**
+     * 某个进程实际生效的规则：通用规则 + 该进程的规则（同名时进程规则优先）
+     * @param processKey 主进程为 ""
+     * @return 线程名 -> 掩码（线程名不区分大小写）
+     */
+    public Map<String, Long> getEffectiveAffinities(String processKey) {
+        Map<String, Long> result = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (threadAffinities != null) {
+            for (Map.Entry<String, String> entry : threadAffinities.entrySet()) {
+                result.put(entry.getKey(), parseHexMask(entry.getValue()));
+            }
+        }
+        Map<String, String> rules = processAffinities != null ? processAffinities.get(processKey) : null;
+        if (rules != null) {
+            for (Map.Entry<String, String> entry : rules.entrySet()) {
+                result.put(entry.getKey(), parseHexMask(entry.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 某个进程的规则编译成的匹配器（缓存，规则修改前重复使用）
+     * @param processKey 主进程为 ""
+     */
+    public synchronized ThreadNameMatcher<Long> getAffinityMatcher(String processKey) {
+        if (affinityMatchers == null) affinityMatchers = new HashMap<>();
+        ThreadNameMatcher<Long> matcher = affinityMatchers.get(processKey);
+        if (matcher == null) {
+            matcher = new ThreadNameMatcher<>(getEffectiveAffinities(processKey));
+            affinityMatchers.put(processKey, matcher);
+        }
+        return matcher;
+    }
+
+    /**
+     * 按通用规则匹配线程名（精确/通配符/正则），返回生效的掩码
+     * @return 没有匹配的规则返回 null
+     */
+    public Long matchThreadAffinity(String threadName) {
+        return getAffinityMatcher("").get(threadName);
+    }
+
+    /**
+     * 是否有任何规则（亲和性通用/按进程，或调度规则）
+     */
+    public boolean hasRules() {
+        if (threadAffinities != null && !threadAffinities.isEmpty()) return true;
+        if (hasThreadPolicies()) return true;
+        if (processAffinities != null) {
+            for (Map<String, String> rules : processAffinities.values()) {
+                if (rules != null && !rules.isEmpty()) return true;
+            }
+        }
+        return false;
+    }
+
+    public Map<String, ThreadPolicy> getThreadPolicies() { return threadPolicies; }
+    public void setThreadPolicies(Map<String, ThreadPolicy> threadPolicies) {
+        policyMatcher = null;
+        if (threadPolicies == null || threadPolicies.isEmpty()) {
+            this.threadPolicies = null;
+            return;
+        }
+        this.threadPolicies = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, ThreadPolicy> entry : threadPolicies.entrySet()) {
+            if (entry.getValue() != null) this.threadPolicies.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void setThreadPolicy(String threadName, ThreadPolicy policy) {
+        if (threadPolicies == null) threadPolicies = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        threadPolicies.put(threadName, policy);
+        policyMatcher = null;
+    }
+
+    /**
+     * 获取线程的调度规则（精确/通配符/正则匹配）
+     * @return 未配置返回 null
+     */
+    public synchronized ThreadPolicy getThreadPolicy(String threadName) {
+        if (threadPolicies == null || threadName == null) return null;
+        if (policyMatcher == null) policyMatcher = new ThreadNameMatcher<>(threadPolicies);
+        return policyMatcher.get(threadName);
+    }
+
+    /**
+     * 是否配置了调度规则
+     */
+    public boolean hasThreadPolicies() {
+        return threadPolicies != null && !threadPolicies.isEmpty();
     }
 
     /**
@@ -47,6 +189,7 @@ public class AppConfig {
      */
     public void addThreadAffinity(String threadName, long mask) {
         threadAffinities.put(threadName, "0x" + Long.toHexString(mask).toUpperCase());
+        affinityMatchers = null;
     }
 
     /**
@@ -8,6 +8,7 @@ public class ThreadInfo {
     private String name;
     private long affinityMask;
     private float cpuUsage;
+    private float waitUsage;    // 可运行但在运行队列中等待的时间占比，未知为 -1
     private int runningCpu;
     private String state;
     private int sameNameCount;  // 同名线程数量
@@ -17,6 +18,7 @@ public class ThreadInfo {
         this.name = name;
         this.affinityMask = -1L; // 默认所有CPU
         this.cpuUsage = 0f;
+        this.waitUsage = -1f;
         this.runningCpu = -1;
         this.state = "unknown";
         this.sameNameCount = 1;
@@ -34,6 +36,9 @@ public class ThreadInfo {
     public float getCpuUsage() { return cpuUsage; }
     public void setCpuUsage(float cpuUsage) { this.cpuUsage = cpuUsage; }
 
+    public float getWaitUsage() { return waitUsage; }
+    public void setWaitUsage(float waitUsage) { this.waitUsage = waitUsage; }
+
     public int getRunningCpu() { return runningCpu; }
     public void setRunningCpu(int runningCpu) { this.runningCpu = runningCpu; }
 
@@ -0,0 +1,146 @@
+package com.threadaffinity.manager.model;
+
+import com.threadaffinity.manager.NativeHelper;
+
+/**
+ * 线程调度规则（与亲和性掩码并列，保存在 AppConfig.threadPolicies）
+ * 每一项都可以省略，省略的项保持线程原值，例如:
+ *   {"policy": "fifo", "priority": 2, "uclampMin": 512}
+ *   {"policy": "idle"}
+ *   {"nice": 10, "uclampMax": 256}
+ */
+public class ThreadPolicy {
+    // 与内核 SCHED_* 一致
+    public static final int SCHED_OTHER = 0;
+    public static final int SCHED_FIFO = 1;
+    public static final int SCHED_RR = 2;
+    public static final int SCHED_BATCH = 3;
+    public static final int SCHED_IDLE = 5;
+
+    private String policy;      // other / batch / idle / fifo / rr
+    private Integer priority;   // fifo / rr 的实时优先级 1-99
+    private Integer nice;       // -20..19（实时策略下无效）
+    private Integer uclampMin;  // 0..1024
+    private Integer uclampMax;  // 0..1024
+
+    public ThreadPolicy() {
+    }
+
+    public String getPolicy() { return policy; }
+    public void setPolicy(String policy) { this.policy = policy; }
+
+    public Integer getPriority() { return priority; }
+    public void setPriority(Integer priority) { this.priority = priority; }
+
+    public Integer getNice() { return nice; }
+    public void setNice(Integer nice) { this.nice = nice; }
+
+    public Integer getUclampMin() { return uclampMin; }
+    public void setUclampMin(Integer uclampMin) { this.uclampMin = uclampMin; }
+
+    public Integer getUclampMax() { return uclampMax; }
+    public void setUclampMax(Integer uclampMax) { this.uclampMax = uclampMax; }
+
+    /**
+     * 策略名 -> 内核值，无法识别返回 -1
+     */
+    public static int policyValue(String name) {
+        if (name == null) return -1;
+        switch (name.trim().toLowerCase()) {
+            case "other":
+            case "normal": return SCHED_OTHER;
+            case "fifo": return SCHED_FIFO;
+            case "rr": return SCHED_RR;
+            case "batch": return SCHED_BATCH;
+            case "idle": return SCHED_IDLE;
+            default: return -1;
+        }
+    }
+
+    public static String policyName(int value) {
+        switch (value) {
+            case SCHED_OTHER: return "other";
+            case SCHED_FIFO: return "fifo";
+            case SCHED_RR: return "rr";
+            case SCHED_BATCH: return "batch";
+            case SCHED_IDLE: return "idle";
+            default: return String.valueOf(value);
+        }
+    }
+
+    private static boolean isRealtime(int policy) {
+        return policy == SCHED_FIFO || policy == SCHED_RR;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * 转换为 NativeHelper.setThreadSched 的参数（SCHED_PARAM_COUNT 个值），超出范围的值被截断
+     */
+    public int[] toParams() {
+        int[] params = new int[NativeHelper.SCHED_PARAM_COUNT];
+        int value = policyValue(policy);
+        if (value >= 0) {
+            params[0] |= NativeHelper.SCHED_FIELD_POLICY;
+            params[1] = value;
+            params[2] = isRealtime(value) ? clamp(priority != null ? priority : 1, 1, 99) : 0;
+        }
+        if (nice != null) {
+            params[0] |= NativeHelper.SCHED_FIELD_NICE;
+            params[3] = clamp(nice, -20, 19);
+        }
+        if (uclampMin != null) {
+            params[0] |= NativeHelper.SCHED_FIELD_UCLAMP_MIN;
+            params[4] = clamp(uclampMin, 0, 1024);
+        }
+        if (uclampMax != null) {
+            params[0] |= NativeHelper.SCHED_FIELD_UCLAMP_MAX;
+            params[5] = clamp(uclampMax, 0, 1024);
+        }
+        return params;
+    }
+
+    /**
+     * 当前参数是否已满足规则：只比较规则指定、且回读中存在的字段
+     * （内核不支持 uclamp 时回读没有 uclamp 字段；实时策略下 nice 无意义）
+     * @param actual getThreadSched 的结果，offset 处开始的 SCHED_PARAM_COUNT 个值
+     */
+    public static boolean matches(int[] want, int[] actual, int offset) {
+        int fields = want[0] & actual[offset];
+        if ((fields & NativeHelper.SCHED_FIELD_POLICY) != 0
+                && (want[1] != actual[offset + 1] || want[2] != actual[offset + 2])) {
+            return false;
+        }
+        if ((fields & NativeHelper.SCHED_FIELD_NICE) != 0 && !isRealtime(actual[offset + 1])
+                && want[3] != actual[offset + 3]) {
+            return false;
+        }
+        if ((fields & NativeHelper.SCHED_FIELD_UCLAMP_MIN) != 0 && want[4] != actual[offset + 4]) {
+            return false;
+        }
+        return (fields & NativeHelper.SCHED_FIELD_UCLAMP_MAX) == 0 || want[5] == actual[offset + 5];
+    }
+
+    /**
+     * 参数数组的可读形式（日志/调试用）
+     */
+    public static String describe(int[] params, int offset) {
+        int fields = params[offset];
+        StringBuilder sb = new StringBuilder();
+        if ((fields & NativeHelper.SCHED_FIELD_POLICY) != 0) {
+            sb.append(policyName(params[offset + 1]));
+            if (isRealtime(params[offset + 1])) sb.append(':').append(params[offset + 2]);
+        }
+        if ((fields & NativeHelper.SCHED_FIELD_NICE) != 0) sb.append(" nice=").append(params[offset + 3]);
+        if ((fields & NativeHelper.SCHED_FIELD_UCLAMP_MIN) != 0) sb.append(" umin=").append(params[offset + 4]);
+        if ((fields & NativeHelper.SCHED_FIELD_UCLAMP_MAX) != 0) sb.append(" umax=").append(params[offset + 5]);
+        return sb.toString().trim();
+    }
+
+    @Override
+    public String toString() {
+        return describe(toParams(), 0);
+    }
+}
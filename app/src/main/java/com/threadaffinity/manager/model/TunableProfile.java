@@ -0,0 +1,34 @@
+package com.threadaffinity.manager.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 内核参数配置（JSON），由 TunablesEngine 应用
+ *
+ * 路径中的 {cpu} 展开为每个核心分组的第一个核心，值中的 {cores} 展开为该分组的核心数
+ */
+public class TunableProfile {
+    private String name;
+    private long verifyIntervalMs = 10000; // 重新检查的周期
+    private List<Entry> tunables = new ArrayList<>();
+
+    /**
+     * 单个参数
+     */
+    public static class Entry {
+        private String path;
+        private String value;
+        private String clusters;  // 路径含 {cpu} 时展开的分组：all（默认）/ first / rest
+        private boolean chmod;    // 写入前先 chmod 644（部分节点默认只读）
+
+        public String getPath() { return path; }
+        public String getValue() { return value; }
+        public String getClusters() { return clusters != null ? clusters : "all"; }
+        public boolean isChmod() { return chmod; }
+    }
+
+    public String getName() { return name; }
+    public long getVerifyIntervalMs() { return verifyIntervalMs; }
+    public List<Entry> getTunables() { return tunables != null ? tunables : new ArrayList<>(); }
+}
@@ -7,9 +7,26 @@ import android.util.Log;
 import com.threadaffinity.manager.NativeHelper;
 import com.threadaffinity.manager.model.AppConfig;
 import com.threadaffinity.manager.model.ThreadInfo;
+import com.threadaffinity.manager.model.ThreadPolicy;
+import com.threadaffinity.manager.util.AffinityEnforcer;
+import com.threadaffinity.manager.util.AffinityJournal;
 import com.threadaffinity.manager.util.ConfigManager;
+import com.threadaffinity.manager.util.CpusetPlacement;
+import com.threadaffinity.manager.util.EnforcementScheduler;
 import com.threadaffinity.manager.util.ProcessHelper;
 import com.threadaffinity.manager.util.RootHelper;
+import com.threadaffinity.manager.util.RootJobManager;
+import com.threadaffinity.manager.util.RootQueryCache;
+import com.threadaffinity.manager.util.RootShell;
+import com.threadaffinity.manager.util.SchedPolicyEnforcer;
+import com.threadaffinity.manager.util.ShellStats;
+import com.threadaffinity.manager.util.SystemTopSnapshot;
+import com.threadaffinity.manager.util.ThreadNameMatcher;
+import com.threadaffinity.manager.util.ThreadSnapshot;
+import com.threadaffinity.manager.util.ThreadStatsTable;
+import com.threadaffinity.manager.util.TunablesEngine;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -41,6 +58,34 @@ import java.util.Map;
  * 
  * 8. 查看已保存的配置:
  *    adb shell am broadcast -n com.threadaffinity.manager/.receiver.DebugReceiver -a com.threadaffinity.DEBUG --es cmd show_config --es package com.tencent.tmgp.dfm
+ *
+ * 9. 查看 Root 命令耗时统计（可选 --es file 路径 写入文件，--ez reset true 输出后清零）:
+ *    adb shell am broadcast -n com.threadaffinity.manager/.receiver.DebugReceiver -a com.threadaffinity.DEBUG --es cmd shell_stats --es file /sdcard/shell_stats.txt
+ *
+ * 10. 查看 Root 后台任务（--ez reap true 同时回收遗留任务）:
+ *    adb shell am broadcast -n com.threadaffinity.manager/.receiver.DebugReceiver -a com.threadaffinity.DEBUG --es cmd jobs --ez reap true
+ *
+ * 11. 查看亲和性漂移检测统计（含调度参数和新线程监听统计）:
+ *    adb shell am broadcast -n com.threadaffinity.manager/.receiver.DebugReceiver -a com.threadaffinity.DEBUG --es cmd enforce_stats
+ *
+ * 12. 查看亲和性漂移报告（哪些线程被重置、被改成什么、检查间隔；--ei limit 最多列出的线程数）:
+ *    adb shell am broadcast -n com.threadaffinity.manager/.receiver.DebugReceiver -a com.threadaffinity.DEBUG --es cmd drift_report --ei limit 20
+ *
+ * 13. 切换放置后端（--es backend cpuset|affinity，可选 --es root 指定 cpuset 根目录；
+ *     --es group ta_large --es cpus 5-7 修改整组核心）:
+ *    adb shell am broadcast -n com.threadaffinity.manager/.receiver.DebugReceiver -a com.threadaffinity.DEBUG --es cmd placement --es backend cpuset
+ *
+ * 14. 查看内核参数状态（目标值、原值、不存在的路径、写入失败次数）:
+ *    adb shell am broadcast -n com.threadaffinity.manager/.receiver.DebugReceiver -a com.threadaffinity.DEBUG --es cmd tunables
+ *
+ * 15. 还原所有修改过的线程的原始亲和性和 cpuset（服务仍在运行时下一轮检查会重新应用）:
+ *    adb shell am broadcast -n com.threadaffinity.manager/.receiver.DebugReceiver -a com.threadaffinity.DEBUG --es cmd restore
+ *
+ * 16. 二进制线程采样耗时（包的所有进程，--ei rounds 采样次数，--ei limit 列出运行时间最多的线程数，含运行队列等待时间）:
+ *    adb shell am broadcast -n com.threadaffinity.manager/.receiver.DebugReceiver -a com.threadaffinity.DEBUG --es cmd sample_threads --es package com.tencent.tmgp.dfm
+ *
+ * 17. 全系统线程占用排行（所有进程，按线程/进程/线程名，--ei rounds 采样次数 2-5，--ei limit 数量，--ei budget 遍历预算毫秒）:
+ *    adb shell am broadcast -n com.threadaffinity.manager/.receiver.DebugReceiver -a com.threadaffinity.DEBUG --es cmd system_top --ei rounds 3
  */
 public class DebugReceiver extends BroadcastReceiver {
     private static final String TAG = "DebugReceiver";
@@ -60,6 +105,9 @@ public class DebugReceiver extends BroadcastReceiver {
 
         Log.i(TAG, "Received command: " + cmd);
 
+        // 服务未启动时 JNI 层的特权通道也可能还没建立
+        RootHelper.ensureAffinityHelper(context);
+
         switch (cmd) {
             case "set_affinity":
                 handleSetAffinity(intent);
@@ -88,11 +136,145 @@ public class DebugReceiver extends BroadcastReceiver {
             case "show_config":
                 handleShowConfig(context, intent);
                 break;
+            case "shell_stats":
+                handleShellStats(context, intent);
+                break;
+            case "jobs":
+                handleJobs(intent);
+                break;
+            case "enforce_stats":
+                Log.i(TAG, AffinityEnforcer.describe());
+                Log.i(TAG, SchedPolicyEnforcer.describe());
+                if (NativeHelper.isHelperAlive()) {
+                    Log.i(TAG, NativeHelper.getThreadWatchStats());
+                }
+                break;
+            case "tunables":
+                for (String line : TunablesEngine.describeActive().split("\n")) {
+                    Log.i(TAG, line);
+                }
+                break;
+            case "placement":
+                handlePlacement(intent);
+                break;
+            case "restore":
+                AffinityJournal.init(context);
+                Log.i(TAG, AffinityJournal.describe());
+                Log.i(TAG, "Restored threads: " + AffinityJournal.restoreAll());
+                break;
+            case "sample_threads":
+                handleSampleThreads(intent);
+                break;
+            case "system_top":
+                handleSystemTop(intent);
+                break;
+            case "drift_report":
+                Log.i(TAG, EnforcementScheduler.describeActive());
+                for (String line : AffinityEnforcer.driftReport(intent.getIntExtra("limit", 20)).split("\n")) {
+                    Log.i(TAG, line);
+                }
+                break;
             default:
                 Log.e(TAG, "Unknown command: " + cmd);
         }
     }
 
+    private void handleSampleThreads(Intent intent) {
+        String packageName = intent.getStringExtra("package");
+        if (packageName == null) {
+            Log.e(TAG, "Missing package");
+            return;
+        }
+        List<ProcessHelper.PackageProcess> processes = ProcessHelper.getPackageProcesses(packageName);
+        if (processes.isEmpty()) {
+            Log.e(TAG, "Process not running: " + packageName);
+            return;
+        }
+        int[] pids = new int[processes.size()];
+        for (int i = 0; i < pids.length; i++) {
+            pids[i] = processes.get(i).pid;
+        }
+
+        ThreadSnapshot snapshot = new ThreadSnapshot();
+        int rounds = Math.max(1, intent.getIntExtra("rounds", 5));
+        ThreadStatsTable stats = new ThreadStatsTable(rounds);
+        for (int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            boolean ok = snapshot.sample(pids);
+            Log.i(TAG, "Sample " + (r + 1) + ": " + (ok ? snapshot.count() + " threads (+" + snapshot.births()
+                + " -" + snapshot.deaths() + ")" : "failed") + " in " + (System.nanoTime() - start) / 1000 + "us");
+            if (!ok) return;
+            // 每轮的占用率写入历史，最后输出平均值/峰值
+            long intervalNs = stats.beginSample(snapshot.timestampNs());
+            for (int i = 0; i < snapshot.count(); i++) {
+                int slot = stats.update(snapshot.tid(i), snapshot.startTime(i), snapshot.runtimeNs(i), -1);
+                if (intervalNs > 0 && stats.delta(slot) >= 0) {
+                    stats.pushUsage(slot, stats.delta(slot) * 100f / intervalNs);
+                }
+            }
+            stats.endSample();
+        }
+
+        // 累计运行时间最多的线程（wait = 可运行但在运行队列中等待的累计时间）
+        int limit = Math.min(intent.getIntExtra("limit", 10), snapshot.count());
+        Integer[] order = new Integer[snapshot.count()];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        java.util.Arrays.sort(order, (a, b) -> Long.compare(snapshot.runtimeNs(b), snapshot.runtimeNs(a)));
+        for (int k = 0; k < limit; k++) {
+            int i = order[k];
+            Log.i(TAG, "  tid=" + snapshot.tid(i) + " pid=" + snapshot.tgid(i) + " name=" + snapshot.name(i)
+                + " state=" + snapshot.state(i) + " cpu=" + snapshot.processor(i)
+                + " run=" + snapshot.runtimeNs(i) / 1000000 + "ms"
+                + usageSummary(stats, snapshot.tid(i))
+                + (snapshot.hasSchedstat(i) ? " wait=" + snapshot.waitNs(i) / 1000000 + "ms slices="
+                    + snapshot.timeslices(i) : " (no schedstat)"));
+        }
+    }
+
+    private void handleSystemTop(Intent intent) {
+        // 在主线程上执行，次数限制在广播超时之内
+        int rounds = Math.min(5, Math.max(2, intent.getIntExtra("rounds", 3)));
+        int limit = Math.max(1, intent.getIntExtra("limit", 10));
+        int budgetMs = Math.max(0, intent.getIntExtra("budget", 50));
+        SystemTopSnapshot top = new SystemTopSnapshot();
+        int[] pids = {android.os.Process.myPid()};
+        // 第一次只建立记录表，之后每次间隔 1 秒
+        for (int r = 0; r < rounds; r++) {
+            if (r > 0) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (!top.sample(pids, limit, budgetMs)) {
+                Log.e(TAG, "System sample failed");
+                return;
+            }
+            Log.i(TAG, "Sample " + (r + 1) + ": scanned " + top.tasksScanned() + " / tracked " + top.tasksTracked()
+                + " tasks in " + top.scanNs() / 1000 + "us" + (top.hasSchedstat() ? "" : " (no schedstat)"));
+        }
+        for (int i = 0; i < top.threadCount(); i++) {
+            Log.i(TAG, String.format(java.util.Locale.US, "  thread %d/%d %s run=%.1f%% wait=%.1f%% cpu=%d state=%c",
+                top.threadTid(i), top.threadTgid(i), top.threadName(i), top.threadRun(i), top.threadWait(i),
+                top.threadProcessor(i), top.threadState(i)));
+        }
+        int[] kinds = {SystemTopSnapshot.PROCESSES, SystemTopSnapshot.NAMES};
+        for (int kind : kinds) {
+            for (int i = 0; i < top.groupCount(kind); i++) {
+                Log.i(TAG, String.format(java.util.Locale.US, "  %s %s id=%d threads=%d run=%.1f%% wait=%.1f%%",
+                    kind == SystemTopSnapshot.PROCESSES ? "process" : "name", top.groupName(kind, i),
+                    top.groupId(kind, i), top.groupThreads(kind, i), top.groupRun(kind, i), top.groupWait(kind, i)));
+            }
+        }
+    }
+
+    private static String usageSummary(ThreadStatsTable stats, int tid) {
+        int slot = stats.slotOf(tid);
+        if (slot < 0 || stats.historySize(slot) == 0) return "";
+        return String.format(java.util.Locale.US, " avg=%.1f%% peak=%.1f%%", stats.averageUsage(slot), stats.peakUsage(slot));
+    }
+
     private void handleSetAffinity(Intent intent) {
         int tid = intent.getIntExtra("tid", -1);
         long mask = intent.getLongExtra("mask", -1);
@@ -168,14 +350,21 @@ public class DebugReceiver extends BroadcastReceiver {
         Log.i(TAG, "Setting all threads affinity for PID " + pid + " to 0x" + Long.toHexString(mask));
         List<ThreadInfo> threads = ProcessHelper.getThreads(pid);
         
+        int[] tids = new int[threads.size()];
+        long[] masks = new long[threads.size()];
+        for (int i = 0; i < tids.length; i++) {
+            tids[i] = threads.get(i).getTid();
+            masks[i] = mask;
+        }
+        int[] results = RootHelper.setThreadAffinityBatch(tids, masks);
+        
         int success = 0, failed = 0;
-        for (ThreadInfo thread : threads) {
-            boolean result = NativeHelper.setThreadAffinity(thread.getTid(), mask);
-            if (result) {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == NativeHelper.AFFINITY_OK) {
                 success++;
             } else {
                 failed++;
-                Log.w(TAG, "Failed to set affinity for tid " + thread.getTid());
+                Log.w(TAG, "Failed to set affinity for tid " + tids[i] + " (code " + results[i] + ")");
             }
         }
         
@@ -208,7 +397,7 @@ public class DebugReceiver extends BroadcastReceiver {
     }
 
     /**
-     * 应用已保存的配置（按线程名称匹配）
+     * 应用已保存的配置（按线程名称匹配，覆盖包的所有进程）
      */
     private void handleApplyConfig(Context context, Intent intent) {
         String packageName = intent.getStringExtra("package");
@@ -225,38 +414,68 @@ public class DebugReceiver extends BroadcastReceiver {
             return;
         }
 
-        int pid = ProcessHelper.getPidByPackage(packageName);
-        if (pid <= 0) {
+        List<ProcessHelper.PackageProcess> processes = ProcessHelper.getPackageProcesses(packageName);
+        if (processes.isEmpty()) {
             Log.e(TAG, "Process not running: " + packageName);
             return;
         }
 
-        Log.i(TAG, "Applying config for " + packageName + " (PID: " + pid + ")");
-        Log.i(TAG, "Config has " + config.getThreadAffinities().size() + " thread rules");
-
-        List<ThreadInfo> threads = ProcessHelper.getThreads(pid);
-        
-        int matched = 0, applied = 0, failed = 0;
-        
-        for (ThreadInfo thread : threads) {
-            String threadName = thread.getName();
-            // 从配置获取掩码（十六进制字符串 -> long）
-            Long mask = config.getThreadAffinity(threadName);
-            
-            if (mask != null) {
-                matched++;
-                boolean result = NativeHelper.setThreadAffinity(thread.getTid(), mask);
-                if (result) {
-                    applied++;
-                    Log.i(TAG, "  Applied: " + threadName + " (TID:" + thread.getTid() + ") -> 0x" + Long.toHexString(mask));
-                } else {
-                    failed++;
-                    Log.w(TAG, "  Failed: " + threadName + " (TID:" + thread.getTid() + ")");
+        Log.i(TAG, "Applying config for " + packageName + " (processes: " + processes + ")");
+        Log.i(TAG, "Config has " + config.getThreadAffinities().size() + " thread rules"
+            + (config.getProcessAffinities() != null ? ", process sections " + config.getProcessAffinities().keySet() : ""));
+
+        // 每个进程按通用规则 + 该进程的分组规则匹配
+        List<ThreadInfo> threads = new ArrayList<>();
+        List<ThreadInfo> matchedThreads = new ArrayList<>();
+        List<Long> matchedMasks = new ArrayList<>();
+        List<Integer> policyTids = new ArrayList<>();
+        List<ThreadPolicy> policies = new ArrayList<>();
+        for (ProcessHelper.PackageProcess process : processes) {
+            ThreadNameMatcher<Long> rules = config.getAffinityMatcher(process.key);
+            List<ThreadInfo> processThreads = ProcessHelper.getThreads(process.pid);
+            threads.addAll(processThreads);
+            for (ThreadInfo thread : processThreads) {
+                Long mask = rules.get(thread.getName());
+                if (mask != null) {
+                    matchedThreads.add(thread);
+                    matchedMasks.add(mask);
+                }
+                ThreadPolicy policy = config.getThreadPolicy(thread.getName());
+                if (policy != null) {
+                    policyTids.add(thread.getTid());
+                    policies.add(policy);
                 }
             }
         }
         
+        int matched = matchedThreads.size(), applied = 0, failed = 0;
+        int[] tids = new int[matched];
+        long[] masks = new long[matched];
+        for (int i = 0; i < matched; i++) {
+            tids[i] = matchedThreads.get(i).getTid();
+            masks[i] = matchedMasks.get(i);
+        }
+        // 所有匹配线程一次批量写入
+        int[] results = RootHelper.setThreadAffinityBatch(tids, masks);
+        for (int i = 0; i < matched; i++) {
+            String threadName = matchedThreads.get(i).getName();
+            if (results[i] == NativeHelper.AFFINITY_OK) {
+                applied++;
+                Log.i(TAG, "  Applied: " + threadName + " (TID:" + tids[i] + ") -> 0x" + Long.toHexString(masks[i]));
+            } else {
+                failed++;
+                Log.w(TAG, "  Failed: " + threadName + " (TID:" + tids[i] + ", code " + results[i] + ")");
+            }
+        }
+        
         Log.i(TAG, "Result: " + matched + " matched, " + applied + " applied, " + failed + " failed");
+        if (!policyTids.isEmpty()) {
+            int[] policyTidArray = new int[policyTids.size()];
+            for (int i = 0; i < policyTidArray.length; i++) {
+                policyTidArray[i] = policyTids.get(i);
+            }
+            Log.i(TAG, "Sched policies: " + SchedPolicyEnforcer.enforce(policyTidArray, policies.toArray(new ThreadPolicy[0])));
+        }
         Log.i(TAG, "Total threads: " + threads.size());
     }
 
@@ -331,4 +550,61 @@ public class DebugReceiver extends BroadcastReceiver {
             Log.i(TAG, "  " + entry.getKey() + " -> " + hexMask + " (" + mask + ")");
         }
     }
+
+    /**
+     * 输出 Root 命令耗时统计，可选写入文件
+     */
+    private void handleShellStats(Context context, Intent intent) {
+        for (String line : ShellStats.report().split("\n")) {
+            Log.i(TAG, line);
+        }
+        Log.i(TAG, RootShell.pool().describe());
+        Log.i(TAG, RootQueryCache.describe());
+
+        String path = intent.getStringExtra("file");
+        if (path != null && !path.isEmpty()) {
+            File file = new File(path);
+            if (!ShellStats.dump(file)) {
+                // 外部路径不可写时退回到应用私有目录
+                file = new File(context.getFilesDir(), "shell_stats.txt");
+                ShellStats.dump(file);
+            }
+            Log.i(TAG, "Stats written to: " + file.getAbsolutePath());
+        }
+
+        if (intent.getBooleanExtra("reset", false)) {
+            ShellStats.reset();
+            Log.i(TAG, "Stats reset");
+        }
+    }
+
+    /**
+     * 列出 Root 后台任务（含 CPU 时间），可选回收遗留任务
+     */
+    private void handleJobs(Intent intent) {
+        if (intent.getBooleanExtra("reap", false)) {
+            Log.i(TAG, "Reaped orphan jobs: " + RootJobManager.reapOrphans());
+        }
+        for (String line : RootJobManager.describe().split("\n")) {
+            Log.i(TAG, line);
+        }
+    }
+
+    /**
+     * 切换放置后端（cpuset / affinity），可指定 cpuset 根目录，或修改某个分组的核心
+     */
+    private void handlePlacement(Intent intent) {
+        String backend = intent.getStringExtra("backend");
+        if (backend != null) {
+            boolean ok = CpusetPlacement.setEnabled("cpuset".equals(backend), intent.getStringExtra("root"));
+            Log.i(TAG, "Set placement backend " + backend + ": " + (ok ? "OK" : "FAILED"));
+        }
+        String group = intent.getStringExtra("group");
+        String cpus = intent.getStringExtra("cpus");
+        if (group != null && cpus != null) {
+            Log.i(TAG, "Retarget " + group + " -> " + cpus + ": "
+                + (CpusetPlacement.retarget(group, cpus) ? "OK" : "FAILED"));
+        }
+        Log.i(TAG, CpusetPlacement.describe());
+    }
 }
@@ -19,11 +19,28 @@ import com.threadaffinity.manager.NativeHelper;
 import com.threadaffinity.manager.R;
 import com.threadaffinity.manager.model.AppConfig;
 import com.threadaffinity.manager.model.ThreadInfo;
+import com.threadaffinity.manager.model.ThreadPolicy;
 import com.threadaffinity.manager.util.CpuInfo;
 import com.threadaffinity.manager.util.ConfigManager;
+import com.threadaffinity.manager.util.EnforcementScheduler;
+import com.threadaffinity.manager.util.LineFields;
 import com.threadaffinity.manager.util.LocaleHelper;
 import com.threadaffinity.manager.util.ProcessHelper;
+import com.threadaffinity.manager.util.AffinityEnforcer;
+import com.threadaffinity.manager.util.AffinityJournal;
 import com.threadaffinity.manager.util.RootHelper;
+import com.threadaffinity.manager.util.RootJobManager;
+import com.threadaffinity.manager.util.RootQueryCache;
+import com.threadaffinity.manager.util.RootShell;
+import com.threadaffinity.manager.util.RootShellPool;
+import com.threadaffinity.manager.util.SchedPolicyEnforcer;
+import com.threadaffinity.manager.util.ShellStats;
+import com.threadaffinity.manager.util.ThreadNameMatcher;
+import com.threadaffinity.manager.util.SystemTopSnapshot;
+import com.threadaffinity.manager.util.ThreadSnapshot;
+import com.threadaffinity.manager.util.ThreadStatsTable;
+import com.threadaffinity.manager.util.ThreadUsageRanking;
+import com.threadaffinity.manager.util.TunablesEngine;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -33,7 +50,15 @@ public class FloatingWindowService extends Service {
     private static final int NOTIFICATION_ID = 1;
     private static final int UPDATE_INTERVAL_MS = 1800; // 1.8秒统一刷新间隔
     private static final int FPS_UPDATE_INTERVAL_MS = 1200; // 1.2秒帧率刷新间隔
-    private static final int AFFINITY_APPLY_INTERVAL_MS = 10000; // 10秒循环应用亲和性（分散写入）
+    private static final int AFFINITY_LEASE_WAIT_MS = 2000; // 等待独占 Root 会话的最长时间
+    private static final String VOLUME_KEY_JOB = "volumekey"; // 音量键监听后台任务名
+    private static final String LAYER_LIST_COMMAND = "dumpsys SurfaceFlinger --list 2>/dev/null";
+    private static final long LAYER_LIST_TTL_MS = 5000; // Layer 列表缓存时间
+    private static final float WAIT_DISPLAY_THRESHOLD = 5f; // 运行队列等待占比超过此值时在占用率旁显示
+    private static final int SYSTEM_TOP_BUDGET_MS = 8; // 全系统线程采样每次遍历的预算，超出时下次继续
+    private static final long TEARDOWN_WAIT_MS = 5000; // 停止时等待正在执行的检查结束的最长时间
+    // 本 APP 执行命令时产生的线程名，系统线程列表中整合为"本APP"
+    private static final Set<String> SELF_THREAD_NAMES = new HashSet<>(Arrays.asList("top", "sh", "awk"));
     
     // 配置文件中存储的键名（固定字符串，不随语言变化）
     private static final String CONFIG_KEY_THIS_APP = "_THIS_APP_";
@@ -49,6 +74,7 @@ public class FloatingWindowService extends Service {
     private TextView tvTitle, tvCpuTotal, tvAlpha, tvMinimize, tvClose, tvExpand;
     private TextView tvSystemThreadsTitle, tvThreadsTitle;
     private TextView tvFps, tvMiniFps; // 帧率显示
+    private TextView tvDriftSummary; // 亲和性漂移摘要
     private TextView[] tvFreqs = new TextView[8];
     private TextView[] tvMiniCores = new TextView[8];
     private View[] barCores = new View[8];
@@ -59,8 +85,12 @@ public class FloatingWindowService extends Service {
     private String packageName;
     private ScheduledExecutorService scheduler;
     private ScheduledExecutorService affinityScheduler; // 循环应用亲和性
+    private EnforcementScheduler enforcementScheduler; // 自适应检查调度
+    private TunablesEngine tunablesEngine; // 内核参数
     private ScheduledExecutorService fpsScheduler; // 帧率更新
     private Handler mainHandler;
+    private Thread teardownThread; // 停止时的后台还原线程，只启动一次
+    private static volatile Thread lastTeardown; // 上一个服务实例的还原线程，新实例的检查等它结束后再开始
     private boolean isMinimized = false;
     private int cpuCount = 8;
     private int[] maxFreqs = new int[8];
@@ -101,8 +131,10 @@ public class FloatingWindowService extends Service {
         prefs = getSharedPreferences("floating_window", MODE_PRIVATE);
         alphaLevel = prefs.getInt("alpha_level", 2);
         configManager = new ConfigManager(this);
+        AffinityJournal.init(this);
         readMaxFrequencies();
         createNotificationChannel();
+        startAffinityHelper();
         
         // 注册音量键监听
         registerVolumeKeyReceiver();
@@ -111,6 +143,17 @@ public class FloatingWindowService extends Service {
         // bindSelfToBigCores();
     }
     
+    /**
+     * 后台启动特权辅助进程（su 授权可能需要等待，不阻塞主线程）
+     * JNI 层的 root 操作都经该进程完成；上次异常退出未还原的线程亲和性在这里还原
+     */
+    private void startAffinityHelper() {
+        new Thread(() -> {
+            RootHelper.ensureAffinityHelper(getApplicationContext());
+            AffinityJournal.recoverIfNeeded();
+        }, "AffinityHelper-start").start();
+    }
+    
     /**
      * 将本APK绑定到大核心6、7 (暂时禁用)
      */
@@ -241,6 +284,7 @@ public class FloatingWindowService extends Service {
         // 帧率显示
         tvFps = floatingView.findViewById(R.id.tvFps);
         tvMiniFps = floatingView.findViewById(R.id.tvMiniFps);
+        tvDriftSummary = floatingView.findViewById(R.id.tvDriftSummary);
 
         // 频率显示
         tvFreqs[0] = floatingView.findViewById(R.id.tvFreq0);
@@ -354,26 +398,35 @@ public class FloatingWindowService extends Service {
 
     private void startMonitoring() {
         // 各任务错开执行，避免同时占用 CPU
+        // 每个任务带标签，Root 命令耗时按任务统计（DebugReceiver cmd shell_stats 查看）
         // CPU 信息更新（1.8秒周期，0ms 开始）
         scheduler = Executors.newSingleThreadScheduledExecutor();
-        scheduler.scheduleAtFixedRate(this::updateStats, 0, UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(ShellStats.tagged("stats", this::updateStats), 0, UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
         
         // 帧率更新（1.2秒周期，独立调度）
         fpsScheduler = Executors.newSingleThreadScheduledExecutor();
-        fpsScheduler.scheduleAtFixedRate(this::updateFpsAsync, 300, FPS_UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        fpsScheduler.scheduleAtFixedRate(ShellStats.tagged("fps", this::updateFpsAsync), 300, FPS_UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
         
         // APP 线程列表更新（1.8秒周期，600ms 开始）
         threadScheduler = Executors.newSingleThreadScheduledExecutor();
-        threadScheduler.scheduleAtFixedRate(this::updateThreadsAsync, 600, UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        threadScheduler.scheduleAtFixedRate(ShellStats.tagged("appThreads", this::updateThreadsAsync), 600, UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
         
         // 系统线程列表更新（1.8秒周期，1200ms 开始）
         sysThreadScheduler = Executors.newSingleThreadScheduledExecutor();
-        sysThreadScheduler.scheduleAtFixedRate(this::updateSystemThreadsAsync, 1200, UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        sysThreadScheduler.scheduleAtFixedRate(ShellStats.tagged("sysThreads", this::updateSystemThreadsAsync), 1200, UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS);
         
-        // 循环应用亲和性（10秒周期，2秒后开始，避免启动时集中执行）
+        // 循环应用亲和性（自适应周期，2秒后开始，避免启动时集中执行）
         affinityScheduler = Executors.newSingleThreadScheduledExecutor();
-        affinityScheduler.scheduleAtFixedRate(this::applyAffinityInBackground, 
-            2000, AFFINITY_APPLY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        // 上一个实例还在还原时先等它结束，避免新写入的掩码被还原
+        affinityScheduler.execute(FloatingWindowService::awaitLastTeardown);
+        enforcementScheduler = new EnforcementScheduler(affinityScheduler,
+            ShellStats.tagged("affinity", this::applyAffinityInBackground));
+        enforcementScheduler.start(2000);
+        // 内核参数（调度器/调频）按配置检查，只写入不同的值；服务停止时恢复
+        tunablesEngine = new TunablesEngine(this);
+        long tunablesInterval = tunablesEngine.load();
+        affinityScheduler.scheduleWithFixedDelay(ShellStats.tagged("tunables", tunablesEngine::apply),
+            1000, tunablesInterval, TimeUnit.MILLISECONDS);
         Log.i(TAG, "Started monitoring for: " + packageName);
     }
     
@@ -418,96 +471,102 @@ public class FloatingWindowService extends Service {
     private void applyAffinityInBackground() {
         if (packageName == null || packageName.isEmpty()) return;
         
-        try {
-            // ========== 调度器参数设置（每10秒强制刷新，防止被系统重置） ==========
-            // 1. 禁用能效感知调度 (EAS) - 防止系统基于能效重置亲和性
-            // 2. 禁用强制负载均衡 - 防止系统强制迁移线程
-            // 3. 禁用 WALT 大任务轮转 - 防止大任务被自动迁移
-            // 4. 禁用线程迁移数量
-            // 5. 禁用 cpuset 负载均衡
-            // 6. 禁用 core_ctl
-            // 7. 开启全局 boost，允许 CPU 达到最高频率
-            // 8. 禁用努比亚的 cpufreq_ctrl 限制
-            // 9. 设置激进升频参数
-            RootHelper.executeRootCommand(
-                // 禁用调度器的亲和性重置机制
-                "sysctl -w kernel.sched_energy_aware=0 2>/dev/null; " +
-                "sysctl -w kernel.sched_force_lb_enable=0 2>/dev/null; " +
-                "sysctl -w kernel.sched_walt_rotate_big_tasks=0 2>/dev/null; " +
-                "sysctl -w kernel.sched_nr_migrate=0 2>/dev/null; " +
-                "echo 0 > /dev/cpuset/sched_load_balance 2>/dev/null; " +
-                // 禁用 core_ctl
-                "echo 0 > /sys/devices/system/cpu/cpu0/core_ctl/enable 2>/dev/null; " +
-                // 开启全局 boost
-                "chmod 644 /sys/devices/system/cpu/cpufreq/boost 2>/dev/null; " +
-                "echo 1 > /sys/devices/system/cpu/cpufreq/boost 2>/dev/null; " +
-                // 禁用努比亚 cpufreq_ctrl 限制
-                "echo 0 > /sys/devices/system/cpu/cpu0/cpufreq/walt/cpufreq_ctrl 2>/dev/null; " +
-                "echo 0 > /sys/devices/system/cpu/cpu3/cpufreq/walt/cpufreq_ctrl 2>/dev/null; " +
-                "echo 0 > /sys/devices/system/cpu/cpu7/cpufreq/walt/cpufreq_ctrl 2>/dev/null; " +
-                // 设置升频无延迟
-                "echo 0 > /sys/devices/system/cpu/cpu0/cpufreq/walt/up_rate_limit_us 2>/dev/null; " +
-                "echo 0 > /sys/devices/system/cpu/cpu3/cpufreq/walt/up_rate_limit_us 2>/dev/null; " +
-                "echo 0 > /sys/devices/system/cpu/cpu7/cpufreq/walt/up_rate_limit_us 2>/dev/null; " +
-                // 设置 40% 负载触发高频
-                "echo 40 > /sys/devices/system/cpu/cpu0/cpufreq/walt/hispeed_load 2>/dev/null; " +
-                "echo 40 > /sys/devices/system/cpu/cpu3/cpufreq/walt/hispeed_load 2>/dev/null; " +
-                "echo 40 > /sys/devices/system/cpu/cpu7/cpufreq/walt/hispeed_load 2>/dev/null; " +
-                // 确保所有核心活跃
-                "echo 4 > /sys/devices/system/cpu/cpu3/core_ctl/min_cpus 2>/dev/null; " +
-                "echo 1 > /sys/devices/system/cpu/cpu7/core_ctl/min_cpus 2>/dev/null");
-            
+        // 亲和性循环独占一个 Root 会话，不会被帧率/线程采样的慢命令阻塞
+        try (RootShellPool.Lease lease = RootShell.acquire(AFFINITY_LEASE_WAIT_MS)) {
             // 先应用全局系统配置（优先级低）
             applySystemGlobalAffinity();
             
-            // 每次重新获取pid（进程可能重启）
-            int currentPid = ProcessHelper.getPidByPackage(packageName);
-            if (currentPid <= 0) {
+            // 每次重新获取包的所有进程（进程可能重启，pkg:remote 等子进程按需启动）
+            List<ProcessHelper.PackageProcess> processes = ProcessHelper.getPackageProcesses(packageName);
+            if (processes.isEmpty()) {
                 Log.d(TAG, "Process not running, skipping affinity apply");
                 return;
             }
             
-            // 更新pid
-            pid = currentPid;
+            // 更新pid（界面显示主进程）
+            if (processes.get(0).isMain()) {
+                pid = processes.get(0).pid;
+            }
             
             // 再应用APP配置（优先级高，可覆盖系统全局配置）
             // 统一使用 JNI 写入，掩码从十六进制字符串解析
             AppConfig config = configManager.loadConfig(packageName);
-            if (config != null && config.getThreadAffinities() != null && !config.getThreadAffinities().isEmpty()) {
-                // 使用awk一次性获取所有线程tid和名称，避免while read + cat导致大量fork
-                String result = RootHelper.executeRootCommand(
-                    "ls /proc/" + currentPid + "/task 2>/dev/null | awk -v pid=" + currentPid + " '{" +
-                    "tid=$1; comm_file=\"/proc/\"pid\"/task/\"tid\"/comm\"; name=\"\"; " +
-                    "if ((getline name < comm_file) > 0) { gsub(/[ \\t\\r\\n]/, \"\", name); } close(comm_file); " +
-                    "print tid\":\"name; " +
-                    "}'");
+            if (config != null && config.hasRules()) {
+                // 每个进程的规则：通用规则 + 该进程的分组规则
+                Map<Integer, ThreadNameMatcher<Long>> rulesByPid = new HashMap<>();
+                StringBuilder pidList = new StringBuilder();
+                boolean hasPolicies = config.hasThreadPolicies();
+                for (ProcessHelper.PackageProcess process : processes) {
+                    ThreadNameMatcher<Long> rules = config.getAffinityMatcher(process.key);
+                    if (rules.isEmpty() && !hasPolicies) continue;
+                    rulesByPid.put(process.pid, rules);
+                    pidList.append(' ').append(process.pid);
+                    // 新线程由辅助进程在创建时直接应用，下面的循环检查作为兜底
+                    if (!rules.isEmpty()) AffinityEnforcer.watch(process.pid, rules.getRules());
+                }
+                if (rulesByPid.isEmpty()) return;
+
+                List<Integer> tids = new ArrayList<>();
+                List<Long> masks = new ArrayList<>();
+                List<String> names = new ArrayList<>();
+                List<Integer> policyTids = new ArrayList<>();
+                List<ThreadPolicy> policies = new ArrayList<>();
                 
-                if (result != null && !result.isEmpty()) {
-                    int applied = 0;
+                // 线程列表优先取 native 线程表：只读取新线程的线程名，已知线程不读任何文件
+                int[] pidArray = new int[rulesByPid.size()];
+                int pidCount = 0;
+                for (Integer p : rulesByPid.keySet()) {
+                    pidArray[pidCount++] = p;
+                }
+                if (ruleSnapshot.sampleNames(pidArray)) {
+                    if (ruleSnapshot.births() > 0 || ruleSnapshot.deaths() > 0) {
+                        Log.d(TAG, "Threads of " + packageName + ": +" + ruleSnapshot.births()
+                            + " -" + ruleSnapshot.deaths() + " (total " + ruleSnapshot.count() + ")");
+                    }
+                    for (int i = 0; i < ruleSnapshot.count(); i++) {
+                        String name = ruleSnapshot.ruleName(i);
+                        if (name.isEmpty()) continue;
+                        collectRuleTarget(config, rulesByPid.get(ruleSnapshot.tgid(i)), hasPolicies,
+                            ruleSnapshot.tid(i), name, tids, masks, names, policyTids, policies);
+                    }
+                } else {
+                    // 一条命令列出所有进程的线程，每个进程一次 awk，避免 while read + cat 导致大量fork
+                    // 输出格式: pid:tid:name
+                    String result = RootHelper.executeRootCommand(
+                        "for p in" + pidList + "; do ls /proc/$p/task 2>/dev/null | awk -v pid=$p '{" +
+                        "tid=$1; comm_file=\"/proc/\"pid\"/task/\"tid\"/comm\"; name=\"\"; " +
+                        "if ((getline name < comm_file) > 0) { gsub(/[ \\t\\r\\n]/, \"\", name); } close(comm_file); " +
+                        "print pid\":\"tid\":\"name; " +
+                        "}'; done");
+                    if (result == null || result.isEmpty()) return;
                     
                     for (String line : result.trim().split("\n")) {
-                        String[] parts = line.split(":", 2);
-                        if (parts.length >= 2) {
+                        String[] parts = line.split(":", 3);
+                        if (parts.length >= 3) {
                             try {
-                                int tid = Integer.parseInt(parts[0].trim());
-                                String name = parts[1].trim();
-                                // 从配置获取掩码（十六进制字符串 -> long）
-                                Long mask = config.getThreadAffinity(name);
-                                if (mask != null) {
-                                    Log.d(TAG, "APP: Calling JNI setThreadAffinity: tid=" + tid + " name=" + name + " mask=0x" + Long.toHexString(mask));
-                                    boolean success = NativeHelper.setThreadAffinity(tid, mask);
-                                    if (success) {
-                                        applied++;
-                                    }
-                                }
+                                collectRuleTarget(config, rulesByPid.get(Integer.parseInt(parts[0].trim())), hasPolicies,
+                                    Integer.parseInt(parts[1].trim()), parts[2].trim(), tids, masks, names, policyTids, policies);
                             } catch (Exception e) {
                                 Log.w(TAG, "APP affinity error: " + e.getMessage());
                             }
                         }
                     }
-                    
-                    if (applied > 0) {
-                        Log.i(TAG, "APP affinity apply: " + applied + " threads for " + packageName);
+                }
+                
+                // 只重写掩码发生漂移的线程
+                AffinityEnforcer.PassStats stats = enforceAffinity(tids, masks, names);
+                if (stats.rewritten > 0 || stats.failed > 0) {
+                    Log.i(TAG, "APP affinity enforce for " + packageName + " " + processes + ": " + stats);
+                }
+                if (!policyTids.isEmpty()) {
+                    int[] policyTidArray = new int[policyTids.size()];
+                    for (int i = 0; i < policyTidArray.length; i++) {
+                        policyTidArray[i] = policyTids.get(i);
+                    }
+                    AffinityEnforcer.PassStats schedStats = SchedPolicyEnforcer.enforce(
+                        policyTidArray, policies.toArray(new ThreadPolicy[0]));
+                    if (schedStats.rewritten > 0 || schedStats.failed > 0) {
+                        Log.i(TAG, "APP sched policy enforce for " + packageName + ": " + schedStats);
                     }
                 }
             }
@@ -517,6 +576,26 @@ public class FloatingWindowService extends Service {
         }
     }
     
+    /**
+     * 按线程名匹配亲和性规则和调度规则，命中的加入对应列表
+     */
+    private static void collectRuleTarget(AppConfig config, ThreadNameMatcher<Long> rules, boolean hasPolicies,
+                                          int tid, String name, List<Integer> tids, List<Long> masks,
+                                          List<String> names, List<Integer> policyTids, List<ThreadPolicy> policies) {
+        Long mask = rules != null ? rules.get(name) : null;
+        if (mask != null) {
+            tids.add(tid);
+            masks.add(mask);
+            names.add(name);
+        }
+        // 调度规则（策略/nice/uclamp）
+        ThreadPolicy policy = hasPolicies ? config.getThreadPolicy(name) : null;
+        if (policy != null) {
+            policyTids.add(tid);
+            policies.add(policy);
+        }
+    }
+    
     /**
      * 应用全局系统线程亲和性配置
      * 统一使用 JNI 写入，掩码以十六进制格式处理
@@ -565,16 +644,17 @@ public class FloatingWindowService extends Service {
             awkScript.append("if(start>0 && end>start) { ");
             awkScript.append("  comm=substr($0, start+1, end-start-1); ");
             awkScript.append("  tid=substr($0, 1, start-2); gsub(/[^0-9]/, \"\", tid); ");
-            awkScript.append("  if(comm in masks) print tid, masks[comm]; ");
+            awkScript.append("  if(comm in masks) print tid, masks[comm], comm; ");
             awkScript.append("} }");
             
             // 遍历关键系统进程的线程
             // surfaceflinger, system_server, 以及本APP
             int myPid = android.os.Process.myPid();
-            String sfPid = RootHelper.executeRootCommand("pidof surfaceflinger 2>/dev/null");
-            String ssPid = RootHelper.executeRootCommand("pidof system_server 2>/dev/null");
-            if (sfPid != null) sfPid = sfPid.trim();
-            if (ssPid != null) ssPid = ssPid.trim();
+            // pid 缓存在 RootQueryCache 中，不必每轮都执行 pidof
+            String sfPid = ProcessHelper.getPidOf("surfaceflinger");
+            String ssPid = ProcessHelper.getPidOf("system_server");
+            watchSystemProcess(sfPid, sysAffinities);
+            watchSystemProcess(ssPid, sysAffinities);
             
             StringBuilder catCmd = new StringBuilder();
             if (sfPid != null && !sfPid.isEmpty()) {
@@ -592,36 +672,91 @@ public class FloatingWindowService extends Service {
             Log.d(TAG, "System affinity awk output: " + (result != null ? result.substring(0, Math.min(200, result.length())) : "null"));
             
             if (result != null && !result.trim().isEmpty()) {
+                List<Integer> tids = new ArrayList<>();
+                List<Long> masks = new ArrayList<>();
+                List<String> names = new ArrayList<>();
                 for (String line : result.trim().split("\n")) {
-                    String[] parts = line.trim().split("\\s+");
+                    // 线程名可能含空格，放在最后
+                    String[] parts = line.trim().split("\\s+", 3);
                     if (parts.length >= 2) {
                         try {
                             int tid = Integer.parseInt(parts[0]);
                             long mask = Long.parseLong(parts[1]);
-                            Log.i(TAG, "Calling JNI setThreadAffinity: tid=" + tid + " mask=0x" + Long.toHexString(mask));
-                            // 使用 JNI 调用持久化 shell 设置亲和性
-                            boolean success = NativeHelper.setThreadAffinity(tid, mask);
-                            if (success) {
-                                applied++;
-                            }
-                            Log.i(TAG, "JNI setThreadAffinity result: tid=" + tid + " -> " + (success ? "OK" : "FAIL"));
+                            tids.add(tid);
+                            masks.add(mask);
+                            names.add(parts.length > 2 ? parts[2] : null);
                         } catch (Exception e) {
-                            Log.w(TAG, "Failed to parse/apply: " + line + ", error: " + e.getMessage());
+                            Log.w(TAG, "Failed to parse: " + line + ", error: " + e.getMessage());
                         }
                     }
                 }
+                // 只重写掩码发生漂移的线程
+                AffinityEnforcer.PassStats stats = enforceAffinity(tids, masks, names);
+                applied = stats.rewritten;
+                Log.d(TAG, "System global affinity enforce: " + stats);
             }
             
             if (applied > 0) {
-                Log.i(TAG, "System global affinity applied: " + applied + " threads");
-            } else {
-                Log.d(TAG, "System global affinity: no threads matched");
+                Log.i(TAG, "System global affinity rewritten: " + applied + " threads");
             }
         } catch (Exception e) {
             Log.e(TAG, "Error applying system global affinity: " + e.getMessage());
         }
     }
 
+    /**
+     * 为系统进程下发新线程监听规则
+     */
+    private void watchSystemProcess(String pidStr, Map<String, Long> rules) {
+        if (pidStr == null || pidStr.isEmpty()) return;
+        try {
+            // pidof 可能返回多个 pid，取第一个
+            AffinityEnforcer.watch(Integer.parseInt(pidStr.trim().split("\\s+")[0]), rules);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Bad pid for thread watch: " + pidStr);
+        }
+    }
+
+    /**
+     * 循环应用时使用：批量读取当前掩码，只重写漂移的线程
+     */
+    private AffinityEnforcer.PassStats enforceAffinity(List<Integer> tids, List<Long> masks, List<String> names) {
+        int[] tidArray = new int[tids.size()];
+        long[] maskArray = new long[masks.size()];
+        String[] nameArray = names.toArray(new String[0]);
+        for (int i = 0; i < tidArray.length; i++) {
+            tidArray[i] = tids.get(i);
+            maskArray[i] = masks.get(i);
+        }
+        return AffinityEnforcer.enforce(tidArray, maskArray, nameArray);
+    }
+    
+    /**
+     * 批量设置线程亲和性（所有线程一次写入持久化 shell）
+     * @return 成功的线程数
+     */
+    private int applyAffinityBatch(List<Integer> tids, List<Long> masks) {
+        if (tids.isEmpty()) return 0;
+        int[] tidArray = new int[tids.size()];
+        long[] maskArray = new long[masks.size()];
+        for (int i = 0; i < tidArray.length; i++) {
+            tidArray[i] = tids.get(i);
+            maskArray[i] = masks.get(i);
+        }
+        int[] results = RootHelper.setThreadAffinityBatch(tidArray, maskArray);
+        int applied = 0;
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == NativeHelper.AFFINITY_OK) {
+                applied++;
+            } else if (results[i] != NativeHelper.AFFINITY_NO_SUCH_THREAD) {
+                // 线程已退出不算失败
+                Log.w(TAG, "setThreadAffinity failed (" + results[i] + "): tid=" + tidArray[i]
+                    + " mask=0x" + Long.toHexString(maskArray[i]));
+            }
+        }
+        return applied;
+    }
+    
     private void updateStats() {
         try {
             // 获取CPU负载和频率（直接读取文件，不用root，很快）
@@ -699,16 +834,21 @@ public class FloatingWindowService extends Service {
         if (isMinimized || packageName == null) return;
         
         try {
-            // 用 shell 获取 pid（JNI 没有权限读取其他进程）
-            if (pid <= 0 || !ProcessHelper.isProcessRunning(pid)) {
-                pid = ProcessHelper.getPidByPackage(packageName);
-                Log.d(TAG, "updateThreadsAsync: shell got pid=" + pid + " for " + packageName);
+            // 用 shell 获取包的所有进程（JNI 没有权限读取其他进程；结果有缓存）
+            List<ProcessHelper.PackageProcess> processes = ProcessHelper.getPackageProcesses(packageName);
+            int[] pids = new int[processes.size()];
+            for (int i = 0; i < pids.length; i++) {
+                pids[i] = processes.get(i).pid;
+            }
+            if (!processes.isEmpty() && processes.get(0).isMain()) {
+                pid = processes.get(0).pid;
             }
+            Log.d(TAG, "updateThreadsAsync: processes " + processes + " for " + packageName);
             
-            if (pid > 0) {
-                // 获取APP线程
-                List<ThreadInfo> threads = getTopThreadsWithCpu(pid, 10);
-                Log.d(TAG, "updateThreadsAsync: got " + (threads != null ? threads.size() : 0) + " threads for pid=" + pid);
+            if (pids.length > 0) {
+                // 获取APP线程（包的所有进程，同名线程合并）
+                List<ThreadInfo> threads = getTopThreadsWithCpu(pids, 10);
+                Log.d(TAG, "updateThreadsAsync: got " + (threads != null ? threads.size() : 0) + " threads for " + pids.length + " processes");
                 if (threads != null && !threads.isEmpty()) {
                     cachedThreads = threads;
                 }
@@ -742,34 +882,84 @@ public class FloatingWindowService extends Service {
         }
     }
     
-    // CPU 时间缓存，用于计算 CPU 占用率
-    private Map<Integer, Long> lastThreadCpuTimes = new HashMap<>();
-    private long lastSampleTime = 0;
+    // 全系统采样结果（复用缓冲区）
+    private final SystemTopSnapshot systemTop = new SystemTopSnapshot();
+    
+    // 系统线程的上次 CPU 时间（节拍）和同名线程合并
+    private final ThreadStatsTable systemStats = new ThreadStatsTable(0);
+    private final ThreadUsageRanking systemRanking = new ThreadUsageRanking();
     
     /**
      * 获取系统其他进程的高CPU线程（排除指定APP）
-     * 优化：使用 /proc 直接读取代替 top 命令，大幅降低 CPU 占用
+     * 优先用全系统采样（所有进程的所有线程），不可用时退回 awk 读取几个关键进程
      */
     private List<ThreadInfo> getTopSystemThreads(int excludePid, int limit) {
-        Map<String, ThreadInfo> mergedThreads = new LinkedHashMap<>();
+        List<ThreadInfo> sampled = getTopSystemThreadsFromSampler(excludePid, limit);
+        if (sampled != null) {
+            return sampled;
+        }
+        return getTopSystemThreadsFromShell(excludePid, limit);
+    }
+    
+    /**
+     * 是否为本 APP 产生的线程（root shell、命令、辅助进程），显示时整合为"本APP"
+     */
+    private static boolean isSelfThreadName(String name) {
+        return SELF_THREAD_NAMES.contains(name) || name.contains("ffinity");
+    }
+    
+    /**
+     * 通过 NativeHelper.sampleSystemTop 取全系统按线程名合并的排行
+     * 排除正在监控的 APP 的所有进程，本 APP 的线程由 native 层合并为一组
+     * @return 采样不可用时返回 null
+     */
+    private List<ThreadInfo> getTopSystemThreadsFromSampler(int excludePid, int limit) {
+        int myPid = android.os.Process.myPid();
+        List<ProcessHelper.PackageProcess> excluded = packageName != null
+            ? ProcessHelper.getPackageProcesses(packageName) : Collections.emptyList();
+        int[] pids = new int[excluded.size() + 2];
+        int count = 0;
+        pids[count++] = myPid;
+        if (excludePid > 0) pids[count++] = excludePid;
+        for (ProcessHelper.PackageProcess process : excluded) {
+            if (process.pid != excludePid) pids[count++] = process.pid;
+        }
+        // 多取几组，合并"本APP"后仍能凑满 limit 个
+        if (!systemTop.sample(Arrays.copyOf(pids, count), limit * 2, SYSTEM_TOP_BUDGET_MS)) {
+            return null;
+        }
         
+        String thisAppLabel = localizedContext.getString(R.string.this_app);
+        int kind = SystemTopSnapshot.NAMES;
+        for (int i = 0; i < systemTop.groupCount(kind); i++) {
+            float cpuUsage = systemTop.groupRun(kind, i);
+            if (cpuUsage < 0.5f) continue;
+            String name = systemTop.groupName(kind, i);
+            boolean isSelf = systemTop.groupId(kind, i) == myPid || isSelfThreadName(name);
+            int tid = systemTop.groupTopTid(kind, i);
+            int thread = systemTop.indexOfThread(tid);
+            float waitUsage = systemTop.hasSchedstat() ? systemTop.groupWait(kind, i) : -1;
+            systemRanking.add(systemRanking.idOf(isSelf ? thisAppLabel : name), tid, cpuUsage, waitUsage,
+                thread >= 0 ? systemTop.threadProcessor(thread) : -1, systemTop.groupThreads(kind, i));
+        }
+        return systemRanking.topByName(limit);
+    }
+    
+    /**
+     * awk 读取 surfaceflinger、system_server（前 20 个线程）和本 APP 的线程 CPU 时间
+     */
+    private List<ThreadInfo> getTopSystemThreadsFromShell(int excludePid, int limit) {
         try {
             int myPid = android.os.Process.myPid();
-            long currentTime = System.currentTimeMillis();
-            long timeDiff = lastSampleTime > 0 ? currentTime - lastSampleTime : 1000;
+            long timeDiff = systemStats.beginSample(System.currentTimeMillis());
+            final boolean firstSample = timeDiff <= 0;
+            if (firstSample) timeDiff = 1000;
             if (timeDiff < 100) timeDiff = 100; // 最小 100ms
             
-            // 需要整合为"本APP"的线程名
-            Set<String> mergeToSelfNames = new HashSet<>();
-            mergeToSelfNames.add("top");
-            mergeToSelfNames.add("sh");
-            mergeToSelfNames.add("awk");
-            
             // 获取 surfaceflinger 和 system_server 的 PID
-            String sfPid = RootHelper.executeRootCommand("pidof surfaceflinger 2>/dev/null | awk '{print $1}'");
-            String ssPid = RootHelper.executeRootCommand("pidof system_server 2>/dev/null | awk '{print $1}'");
-            if (sfPid != null) sfPid = sfPid.trim();
-            if (ssPid != null) ssPid = ssPid.trim();
+            // pid 缓存在 RootQueryCache 中，不必每轮都执行 pidof
+            String sfPid = ProcessHelper.getPidOf("surfaceflinger");
+            String ssPid = ProcessHelper.getPidOf("system_server");
             
             // 使用 awk 一次性读取关键进程的线程 CPU 时间
             // 输出格式: tid|comm|cpu_time|core|tgid
@@ -823,75 +1013,59 @@ public class FloatingWindowService extends Service {
             
             cmd.append("}'");
             
-            String result = RootHelper.executeRootCommand(cmd.toString());
-            
-            if (result == null || result.trim().isEmpty()) {
-                return new ArrayList<>();
-            }
-            
-            Map<Integer, Long> currentCpuTimes = new HashMap<>();
+            String thisAppLabel = localizedContext.getString(R.string.this_app);
+            LineFields fields = new LineFields();
+            final long sampleInterval = timeDiff;
             
-            for (String line : result.trim().split("\n")) {
+            // 流式解析：边读边合并，不保留整段输出
+            // 处理器在读取线程上运行；返回后（包括超时）不会再调用，之后才可以重置 systemStats/systemRanking
+            boolean ok = RootHelper.executeRootCommandStreaming(cmd.toString(), line -> {
                 try {
-                    String[] parts = line.split("\\|");
-                    if (parts.length < 5) continue;
+                    fields.reset(line, '|');
+                    if (fields.count() < 5) return;
                     
-                    int tid = Integer.parseInt(parts[0].trim());
-                    String threadName = parts[1].trim();
-                    long cpuTime = Long.parseLong(parts[2].trim());
-                    int runningCpu = !parts[3].trim().isEmpty() ? Integer.parseInt(parts[3].trim()) : -1;
-                    int threadPid = Integer.parseInt(parts[4].trim());
+                    int tid = fields.getInt(0, -1);
+                    long cpuTime = fields.getLong(2, -1);
+                    int runningCpu = fields.getInt(3, -1);
+                    int threadPid = fields.getInt(4, -1);
+                    if (tid <= 0 || cpuTime < 0 || threadPid <= 0) return;
                     
-                    currentCpuTimes.put(tid, cpuTime);
+                    int slot = systemStats.update(tid, 0, cpuTime, -1);
                     
                     // 排除监控的目标APP
-                    if (threadPid == excludePid) continue;
+                    if (threadPid == excludePid) return;
                     
                     // 计算 CPU 占用率
                     float cpuUsage = 0;
-                    if (lastThreadCpuTimes.containsKey(tid)) {
-                        long lastTime = lastThreadCpuTimes.get(tid);
-                        long diff = cpuTime - lastTime;
+                    long diff = systemStats.delta(slot);
+                    if (diff >= 0) {
                         // CPU% = (diff_ticks / time_ms) * 1000 / CLK_TCK * 100
-                        cpuUsage = diff * 100000f / (timeDiff * 100);
+                        cpuUsage = diff * 100000f / (sampleInterval * NativeHelper.clockTicksPerSecond());
                     }
                     
-                    if (cpuUsage < 0.5f && lastSampleTime > 0) continue;
+                    if (cpuUsage < 0.5f && !firstSample) return;
+                    
+                    String threadName = fields.getString(1);
                     
                     // 判断是否需要整合为"本APP"
-                    boolean isSelf = (threadPid == myPid) || 
-                                     mergeToSelfNames.contains(threadName) ||
-                                     threadName.contains("ffinity");
+                    boolean isSelf = (threadPid == myPid) || isSelfThreadName(threadName);
                     
-                    String thisAppLabel = localizedContext.getString(R.string.this_app);
                     String displayName = isSelf ? thisAppLabel : threadName;
-                    
-                    if (mergedThreads.containsKey(displayName)) {
-                        ThreadInfo existing = mergedThreads.get(displayName);
-                        existing.setCpuUsage(existing.getCpuUsage() + cpuUsage);
-                        existing.setSameNameCount(existing.getSameNameCount() + 1);
-                        if (runningCpu >= 0) existing.setRunningCpu(runningCpu);
-                    } else {
-                        ThreadInfo info = new ThreadInfo(tid, displayName);
-                        info.setCpuUsage(cpuUsage);
-                        info.setRunningCpu(runningCpu);
-                        info.setSameNameCount(1);
-                        mergedThreads.put(displayName, info);
-                    }
+                    systemRanking.add(systemRanking.idOf(displayName), tid, cpuUsage, -1, runningCpu);
                 } catch (Exception e) {}
-            }
-            
-            // 更新缓存
-            lastThreadCpuTimes = currentCpuTimes;
-            lastSampleTime = currentTime;
+            });
             
+            if (!ok) {
+                systemRanking.reset();
+                return new ArrayList<>();
+            }
+            systemStats.endSample();
+            return systemRanking.topByName(limit);
         } catch (Exception e) {
             Log.e(TAG, "Failed to get system threads: " + e.getMessage());
+            systemRanking.reset();
+            return new ArrayList<>();
         }
-        
-        List<ThreadInfo> sortedList = new ArrayList<>(mergedThreads.values());
-        sortedList.sort((a, b) -> Float.compare(b.getCpuUsage(), a.getCpuUsage()));
-        return sortedList.size() > limit ? sortedList.subList(0, limit) : sortedList;
     }
     
     /**
@@ -963,27 +1137,79 @@ public class FloatingWindowService extends Service {
         return -1;
     }
     
-    // APP 线程 CPU 时间缓存
-    private Map<Integer, Long> lastAppThreadCpuTimes = new HashMap<>();
-    private long lastAppSampleTime = 0;
+    // APP 线程的上次 CPU 时间：二进制采样（纳秒）和 awk 读取（节拍）分开保存
+    private final ThreadStatsTable appStats = new ThreadStatsTable(0);
+    private final ThreadStatsTable appShellStats = new ThreadStatsTable(0);
+    private final ThreadUsageRanking appRanking = new ThreadUsageRanking();
+    private final ThreadUsageRanking appShellRanking = new ThreadUsageRanking();
+    
+    // 亲和性循环按线程名匹配规则用的线程列表（只取线程名）
+    private final ThreadSnapshot ruleSnapshot = new ThreadSnapshot();
+    
+    // 二进制采样：快照每轮覆盖，上一次的运行时间保存在 appStats
+    private final ThreadSnapshot appSnapshot = new ThreadSnapshot();
     
     /**
      * 获取进程的线程列表及CPU占用，合并同名线程
-     * 优化：使用 /proc 直接读取代替 top 命令，大幅降低 CPU 占用
+     * 优先使用 native 二进制采样，不可用时退回 awk 读取 /proc
      */
-    private List<ThreadInfo> getTopThreadsWithCpu(int pid, int limit) {
-        Map<String, ThreadInfo> mergedThreads = new LinkedHashMap<>();
-        
+    private List<ThreadInfo> getTopThreadsWithCpu(int[] pids, int limit) {
+        List<ThreadInfo> sampled = getTopThreadsFromSnapshot(pids, limit);
+        if (sampled != null) {
+            return sampled;
+        }
+        return getTopThreadsFromShell(pids, limit);
+    }
+    
+    /**
+     * 通过 NativeHelper.sampleThreads 采样：一次往返得到所有线程的定长记录，
+     * 与 appStats 中上一次的运行时间按 tid 对比计算占用率，只为前 limit 个线程名创建对象
+     * 占用率 = 运行时间差 / 采样时间差（都是纳秒），等待占比同理用 schedstat 的运行队列等待时间
+     * @return 采样不可用时返回 null
+     */
+    private List<ThreadInfo> getTopThreadsFromSnapshot(int[] pids, int limit) {
+        ThreadSnapshot current = appSnapshot;
+        if (!current.sample(pids)) {
+            return null;
+        }
+        long intervalNs = appStats.beginSample(current.timestampNs());
+        
+        for (int i = 0; i < current.count(); i++) {
+            // tid 相同且启动时间相同才是同一线程（tid 可能被复用）
+            long wait = current.hasSchedstat(i) ? current.waitNs(i) : -1;
+            int slot = appStats.update(current.tid(i), current.startTime(i), current.runtimeNs(i), wait);
+            float cpuUsage = 0;
+            float waitUsage = -1;
+            if (intervalNs > 0 && appStats.delta(slot) >= 0) {
+                cpuUsage = appStats.delta(slot) * 100f / intervalNs;
+                if (appStats.waitDelta(slot) >= 0) {
+                    waitUsage = appStats.waitDelta(slot) * 100f / intervalNs;
+                }
+            }
+            appRanking.add(current.commId(i), current.tid(i), cpuUsage, waitUsage, current.processor(i));
+        }
+        appStats.endSample();
+        return appRanking.top(current, limit);
+    }
+    
+    /**
+     * awk 读取 /proc 的线程 CPU 时间（特权辅助进程不可用时使用）
+     */
+    private List<ThreadInfo> getTopThreadsFromShell(int[] pids, int limit) {
         try {
-            long currentTime = System.currentTimeMillis();
-            long timeDiff = lastAppSampleTime > 0 ? currentTime - lastAppSampleTime : 1000;
+            long timeDiff = appShellStats.beginSample(System.currentTimeMillis());
+            if (timeDiff <= 0) timeDiff = 1000;
             if (timeDiff < 100) timeDiff = 100;
             
-            // 使用 awk 一次性读取所有线程的 CPU 时间
+            // 使用 awk 一次性读取包内所有进程的线程 CPU 时间（每个进程一次 awk）
             // 输出格式: tid|comm|cpu_time|core
             // 注意：comm 可能包含空格（如 "Job.worker 1"），需要先提取 (comm) 再处理后面的字段
-            String result = RootHelper.executeRootCommand(
-                "ls /proc/" + pid + "/task 2>/dev/null | awk -v pid=" + pid + " '{" +
+            StringBuilder pidList = new StringBuilder();
+            for (int p : pids) {
+                pidList.append(' ').append(p);
+            }
+            String cmd =
+                "for p in" + pidList + "; do ls /proc/$p/task 2>/dev/null | awk -v pid=$p '{" +
                 "tid=$1; stat_file=\"/proc/\"pid\"/task/\"tid\"/stat\"; " +
                 "if ((getline line < stat_file) > 0) { " +
                 // 提取 (comm) - 找到第一个 ( 和最后一个 )
@@ -996,70 +1222,49 @@ public class FloatingWindowService extends Service {
                 // f[1]=state, f[12]=utime, f[13]=stime, f[37]=processor (从 ) 后算起)
                 "  print tid\"|\"comm\"|\"(f[12]+f[13])\"|\"f[37]; " +
                 "} close(stat_file); " +
-                "}'");
-            
-            if (result == null || result.trim().isEmpty()) {
-                return new ArrayList<>();
-            }
+                "}'; done";
             
-            Map<Integer, Long> currentCpuTimes = new HashMap<>();
+            LineFields fields = new LineFields();
+            final long sampleInterval = timeDiff;
             
-            for (String line : result.trim().split("\n")) {
-                String[] parts = line.split("\\|");
-                if (parts.length >= 4) {
+            // 流式解析：边读边合并，不保留整段输出（返回后处理器不会再运行，同上）
+            boolean ok = RootHelper.executeRootCommandStreaming(cmd, line -> {
+                fields.reset(line, '|');
+                if (fields.count() >= 4) {
                     try {
-                        int tid = Integer.parseInt(parts[0].trim());
-                        String name = parts[1].trim();
-                        long cpuTime = Long.parseLong(parts[2].trim());
-                        int runningCpu = !parts[3].trim().isEmpty() ? Integer.parseInt(parts[3].trim()) : -1;
-                        
-                        if (name.isEmpty()) continue;
+                        int tid = fields.getInt(0, -1);
+                        long cpuTime = fields.getLong(2, -1);
+                        int runningCpu = fields.getInt(3, -1);
                         
-                        currentCpuTimes.put(tid, cpuTime);
+                        if (tid <= 0 || cpuTime < 0 || fields.isEmpty(1)) return;
                         
                         // 计算 CPU 占用率
+                        int slot = appShellStats.update(tid, 0, cpuTime, -1);
                         float cpuUsage = 0;
-                        if (lastAppThreadCpuTimes.containsKey(tid)) {
-                            long lastTime = lastAppThreadCpuTimes.get(tid);
-                            long diff = cpuTime - lastTime;
-                            cpuUsage = diff * 100000f / (timeDiff * 100);
+                        long diff = appShellStats.delta(slot);
+                        if (diff >= 0) {
+                            cpuUsage = diff * 100000f / (sampleInterval * NativeHelper.clockTicksPerSecond());
                         }
                         
                         // 合并同名线程
-                        if (mergedThreads.containsKey(name)) {
-                            ThreadInfo existing = mergedThreads.get(name);
-                            existing.setCpuUsage(existing.getCpuUsage() + cpuUsage);
-                            existing.setSameNameCount(existing.getSameNameCount() + 1);
-                            if (cpuUsage > 0 && runningCpu >= 0) {
-                                existing.setRunningCpu(runningCpu);
-                            }
-                        } else {
-                            ThreadInfo info = new ThreadInfo(tid, name);
-                            info.setCpuUsage(cpuUsage);
-                            info.setRunningCpu(runningCpu);
-                            info.setSameNameCount(1);
-                            mergedThreads.put(name, info);
-                        }
+                        appShellRanking.add(appShellRanking.idOf(fields.getString(1)), tid, cpuUsage, -1, runningCpu);
                     } catch (Exception e) {}
                 }
-            }
+            });
             
-            // 更新缓存
-            lastAppThreadCpuTimes = currentCpuTimes;
-            lastAppSampleTime = currentTime;
+            if (!ok) {
+                appShellRanking.reset();
+                return new ArrayList<>();
+            }
+            appShellStats.endSample();
             
+            // 按CPU占用率排序，取前limit个
+            return appShellRanking.topByName(limit);
         } catch (Exception e) {
             Log.e(TAG, "Failed to get threads: " + e.getMessage());
+            appShellRanking.reset();
+            return new ArrayList<>();
         }
-        
-        // 按CPU占用率排序，取前limit个
-        List<ThreadInfo> sortedList = new ArrayList<>(mergedThreads.values());
-        sortedList.sort((a, b) -> Float.compare(b.getCpuUsage(), a.getCpuUsage()));
-        
-        if (sortedList.size() > limit) {
-            return sortedList.subList(0, limit);
-        }
-        return sortedList;
     }
 
     private int[] getCpuFrequencies() {
@@ -1110,8 +1315,8 @@ public class FloatingWindowService extends Service {
             // 获取目标应用的 SurfaceView Layer
             if (packageName != null && !packageName.isEmpty()) {
                 // 先获取所有 Layer 列表
-                String result = RootHelper.executeRootCommand(
-                    "dumpsys SurfaceFlinger --list 2>/dev/null");
+                // Layer 列表变化不频繁，缓存几秒；找不到目标 Layer 时立即失效
+                String result = RootQueryCache.query(LAYER_LIST_COMMAND, LAYER_LIST_TTL_MS);
                 
                 if (result != null && !result.trim().isEmpty()) {
                     String[] layers = result.split("\n");
@@ -1145,12 +1350,18 @@ public class FloatingWindowService extends Service {
                 }
             }
             
-            if (layerName != null) {
+            if (layerName == null) {
+                // 目标 Layer 可能刚创建，下次重新获取列表
+                RootQueryCache.invalidate(LAYER_LIST_COMMAND);
+            } else {
                 // 获取该 Layer 的帧时间戳
                 String result = RootHelper.executeRootCommand(
                     "dumpsys SurfaceFlinger --latency '" + layerName + "' 2>/dev/null");
                 
-                if (result != null && !result.trim().isEmpty()) {
+                if (result == null || result.trim().isEmpty()) {
+                    // Layer 已销毁，缓存的列表过期
+                    RootQueryCache.invalidate(LAYER_LIST_COMMAND);
+                } else {
                     String[] lines = result.trim().split("\n");
                     
                     // 收集有效的帧时间戳（第一列是 desiredPresentTime）
@@ -1280,6 +1491,13 @@ public class FloatingWindowService extends Service {
             tvCpuTotal.setTextColor(getGradientColor(total / 100f));
         }
         
+        // 亲和性漂移摘要：哪个线程被频繁改掉、改成了什么
+        if (tvDriftSummary != null) {
+            String drift = AffinityEnforcer.overlaySummary();
+            tvDriftSummary.setVisibility(drift != null ? View.VISIBLE : View.GONE);
+            if (drift != null) tvDriftSummary.setText(drift);
+        }
+        
         float density = getResources().getDisplayMetrics().density;
         int maxBarHeightMini = (int) (14 * density);  // 最小化视图柱状图高度14dp
         int maxBarHeightMax = (int) (28 * density);   // 最大化视图柱状图高度28dp
@@ -1462,7 +1680,7 @@ public class FloatingWindowService extends Service {
         tvName.setText(displayName);
         
         // 更新亲和性（从配置获取十六进制字符串）
-        Long configMask = (config != null) ? config.getThreadAffinity(thread.getName()) : null;
+        Long configMask = (config != null) ? config.matchThreadAffinity(thread.getName()) : null;
         if (configMask != null) {
             tvAffinity.setTextColor(0xFF4CAF50);
             tvAffinity.setText(maskToShortString(configMask));
@@ -1483,8 +1701,14 @@ public class FloatingWindowService extends Service {
         
         // 更新CPU占用率
         float usage = thread.getCpuUsage();
+        float wait = thread.getWaitUsage();
         tvUsage.setTextColor(getGradientColor(Math.min(usage / 50f, 1f)));
-        tvUsage.setText(String.format(Locale.US, "%.1f%%", usage));
+        if (wait >= WAIT_DISPLAY_THRESHOLD) {
+            // 排队等待核心的时间占比明显时一起显示（核心不够用或被限制在忙碌的核心上）
+            tvUsage.setText(String.format(Locale.US, "%.1f%% w%.0f%%", usage, wait));
+        } else {
+            tvUsage.setText(String.format(Locale.US, "%.1f%%", usage));
+        }
         
         // 更新点击事件
         final String threadName = thread.getName();
@@ -1698,8 +1922,8 @@ public class FloatingWindowService extends Service {
                     if (allThreadsResult != null && !allThreadsResult.isEmpty()) {
                         for (String name : allThreadsResult.trim().split("\n")) {
                             name = name.trim();
-                            if (!name.isEmpty() && finalConfig.getThreadAffinity(name) == null) {
-                                // 未配置的线程添加默认中核3,4,5 (0x38 = 0b00111000)
+                            if (!name.isEmpty() && finalConfig.matchThreadAffinity(name) == null) {
+                                // 未配置（也没有通配符/正则覆盖）的线程添加默认中核3,4,5 (0x38 = 0b00111000)
                                 finalConfig.addThreadAffinity(name, 0x38L);
                             }
                         }
@@ -1717,12 +1941,15 @@ public class FloatingWindowService extends Service {
                         "if ((getline name < comm_file) > 0) { gsub(/[ \\t\\r\\n]/, \"\", name); if (name == tname) print tid; } close(comm_file); " +
                         "}'");
                     if (result != null && !result.isEmpty()) {
+                        List<Integer> tids = new ArrayList<>();
+                        List<Long> masks = new ArrayList<>();
                         for (String tidStr : result.trim().split("\n")) {
                             try {
-                                int tid = Integer.parseInt(tidStr.trim());
-                                NativeHelper.setThreadAffinity(tid, maskToApply);
+                                tids.add(Integer.parseInt(tidStr.trim()));
+                                masks.add(maskToApply);
                             } catch (Exception e) {}
                         }
+                        applyAffinityBatch(tids, masks);
                     }
                     Log.i(TAG, "Immediately applied affinity for " + threadName);
                 } catch (Exception e) {
@@ -1923,30 +2150,36 @@ public class FloatingWindowService extends Service {
                         
                         if (result != null && !result.trim().isEmpty()) {
                             Set<String> savedNames = new HashSet<>();
-                            int appliedCount = 0;
-                            
+                            List<Integer> allTids = new ArrayList<>();
+                            List<String> commCommands = new ArrayList<>();
                             for (String tidStr : result.trim().split("\n")) {
                                 try {
                                     int tid = Integer.parseInt(tidStr.trim());
-                                    // 读取线程名
-                                    String name = RootHelper.executeRootCommand(
-                                        "cat /proc/" + myPid + "/task/" + tid + "/comm 2>/dev/null");
-                                    if (name != null) {
-                                        name = name.trim();
-                                        if (!name.isEmpty()) {
-                                            // 保存到配置（去重）
-                                            if (!savedNames.contains(name)) {
-                                                finalConfig.addThreadAffinity(name, maskToApply);
-                                                savedNames.add(name);
-                                            }
-                                            // 使用 JNI 应用亲和性
-                                            if (NativeHelper.setThreadAffinity(tid, maskToApply)) {
-                                                appliedCount++;
-                                            }
+                                    allTids.add(tid);
+                                    commCommands.add("cat /proc/" + myPid + "/task/" + tid + "/comm 2>/dev/null");
+                                } catch (Exception e) {}
+                            }
+                            
+                            // 一次批量读取所有线程名
+                            List<String> names = RootHelper.executeRootCommands(commCommands);
+                            List<Integer> tids = new ArrayList<>();
+                            List<Long> masks = new ArrayList<>();
+                            for (int i = 0; i < allTids.size(); i++) {
+                                String name = names.get(i);
+                                if (name != null) {
+                                    name = name.trim();
+                                    if (!name.isEmpty()) {
+                                        // 保存到配置（去重）
+                                        if (!savedNames.contains(name)) {
+                                            finalConfig.addThreadAffinity(name, maskToApply);
+                                            savedNames.add(name);
                                         }
+                                        tids.add(allTids.get(i));
+                                        masks.add(maskToApply);
                                     }
-                                } catch (Exception e) {}
+                                }
                             }
+                            int appliedCount = applyAffinityBatch(tids, masks);
                             
                             // 也保存配置键作为标记
                             finalConfig.addThreadAffinity(CONFIG_KEY_THIS_APP, maskToApply);
@@ -1971,10 +2204,9 @@ public class FloatingWindowService extends Service {
                         // 从 /proc/*/task/*/stat 查找同名线程
                         // surfaceflinger, system_server, 本APP
                         int myPid = android.os.Process.myPid();
-                        String sfPid = RootHelper.executeRootCommand("pidof surfaceflinger 2>/dev/null");
-                        String ssPid = RootHelper.executeRootCommand("pidof system_server 2>/dev/null");
-                        if (sfPid != null) sfPid = sfPid.trim();
-                        if (ssPid != null) ssPid = ssPid.trim();
+                        // pid 缓存在 RootQueryCache 中，不必每轮都执行 pidof
+                        String sfPid = ProcessHelper.getPidOf("surfaceflinger");
+                        String ssPid = ProcessHelper.getPidOf("system_server");
                         
                         StringBuilder catCmd = new StringBuilder();
                         if (sfPid != null && !sfPid.isEmpty()) {
@@ -2000,14 +2232,15 @@ public class FloatingWindowService extends Service {
                         int appliedCount = 0;
                         
                         if (result != null && !result.trim().isEmpty()) {
+                            List<Integer> tids = new ArrayList<>();
+                            List<Long> masks = new ArrayList<>();
                             for (String tidStr : result.trim().split("\n")) {
                                 try {
-                                    int tid = Integer.parseInt(tidStr.trim());
-                                    if (NativeHelper.setThreadAffinity(tid, maskToApply)) {
-                                        appliedCount++;
-                                    }
+                                    tids.add(Integer.parseInt(tidStr.trim()));
+                                    masks.add(maskToApply);
                                 } catch (Exception e) {}
                             }
+                            appliedCount = applyAffinityBatch(tids, masks);
                         }
                         
                         Log.i(TAG, "Applied system affinity: " + threadName + " -> 0x" + Long.toHexString(maskToApply) + " (" + appliedCount + " threads)");
@@ -2051,30 +2284,13 @@ public class FloatingWindowService extends Service {
 
     /**
      * 关闭悬浮窗并杀死整个APP进程
-     * 相当于强制停止，重新进入app的状态
+     * 相当于强制停止，重新进入app的状态；还原完成后才退出
      */
     private void killApp() {
         // 先置空视图引用，防止后台线程继续更新UI
         View oldView = floatingView;
         floatingView = null;
         
-        // 停止所有调度器
-        if (scheduler != null) scheduler.shutdownNow();
-        if (fpsScheduler != null) fpsScheduler.shutdownNow();
-        if (threadScheduler != null) threadScheduler.shutdownNow();
-        if (sysThreadScheduler != null) sysThreadScheduler.shutdownNow();
-        if (affinityScheduler != null) affinityScheduler.shutdownNow();
-        
-        // 等待调度器停止（最多200ms）
-        try {
-            if (scheduler != null) scheduler.awaitTermination(50, java.util.concurrent.TimeUnit.MILLISECONDS);
-            if (threadScheduler != null) threadScheduler.awaitTermination(50, java.util.concurrent.TimeUnit.MILLISECONDS);
-            if (sysThreadScheduler != null) sysThreadScheduler.awaitTermination(50, java.util.concurrent.TimeUnit.MILLISECONDS);
-            if (affinityScheduler != null) affinityScheduler.awaitTermination(50, java.util.concurrent.TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            // ignore
-        }
-        
         // 移除悬浮窗
         if (oldView != null && windowManager != null) {
             try {
@@ -2084,16 +2300,14 @@ public class FloatingWindowService extends Service {
             }
         }
         
-        // 关闭Shell
-        RootHelper.closeShell();
-        NativeHelper.closeRootShell();
-        
-        // 停止前台服务
-        stopForeground(true);
-        stopSelf();
-        
-        // 使用 System.exit 退出，比 killProcess 更干净
-        System.exit(0);
+        startTeardown(() -> {
+            // 停止前台服务
+            stopForeground(true);
+            stopSelf();
+            
+            // 使用 System.exit 退出，比 killProcess 更干净
+            System.exit(0);
+        });
     }
 
     @Override
@@ -2103,19 +2317,67 @@ public class FloatingWindowService extends Service {
         // 注销音量键监听
         unregisterVolumeKeyReceiver();
         
-        if (scheduler != null) scheduler.shutdown();
-        if (threadScheduler != null) threadScheduler.shutdown();
-        if (sysThreadScheduler != null) sysThreadScheduler.shutdown();
-        if (affinityScheduler != null) affinityScheduler.shutdown();
         if (floatingView != null && windowManager != null) {
             windowManager.removeView(floatingView);
+            floatingView = null;
         }
-        // 关闭持久化 Root Shell（Java 层和 JNI 层）
-        RootHelper.closeShell();
-        NativeHelper.closeRootShell();
+        startTeardown(null);
         Log.i(TAG, "FloatingWindowService destroyed, affinity loop stopped");
     }
 
+    /**
+     * 停止所有调度器，在后台线程等待检查结束、取消新线程监听、恢复原值并关闭 Shell
+     * @param onDone 全部完成后在主线程执行，可为 null
+     */
+    private void startTeardown(Runnable onDone) {
+        if (teardownThread != null) return;
+        if (scheduler != null) scheduler.shutdownNow();
+        if (fpsScheduler != null) fpsScheduler.shutdownNow();
+        if (threadScheduler != null) threadScheduler.shutdownNow();
+        if (sysThreadScheduler != null) sysThreadScheduler.shutdownNow();
+        if (affinityScheduler != null) affinityScheduler.shutdownNow(); // 取消排队的检查，避免还原后又写回
+
+        final ScheduledExecutorService enforcing = affinityScheduler;
+        final TunablesEngine tunables = tunablesEngine;
+        teardownThread = new Thread(() -> {
+            // 先停止辅助进程的新线程监听，再等待正在执行的检查结束
+            AffinityEnforcer.unwatchAll();
+            try {
+                if (enforcing != null && !enforcing.awaitTermination(TEARDOWN_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Affinity pass still running after " + TEARDOWN_WAIT_MS + "ms, restoring anyway");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // 等待期间的检查可能重新下发了监听
+            AffinityEnforcer.unwatchAll();
+            // 恢复内核参数和线程亲和性原值（需要在关闭 Shell 之前）
+            if (tunables != null) tunables.restore();
+            AffinityJournal.restoreAll();
+            // 关闭持久化 Root Shell（Java 层和 JNI 层）
+            RootHelper.closeShell();
+            NativeHelper.closeRootShell();
+            NativeHelper.stopHelper();
+            Log.i(TAG, "Teardown finished");
+            if (onDone != null) mainHandler.post(onDone);
+        }, "ServiceTeardown");
+        lastTeardown = teardownThread;
+        teardownThread.start();
+    }
+
+    /**
+     * 等待上一个服务实例的还原线程结束
+     */
+    private static void awaitLastTeardown() {
+        Thread previous = lastTeardown;
+        if (previous == null || previous == Thread.currentThread()) return;
+        try {
+            previous.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) { return null; }
     
@@ -2142,6 +2404,9 @@ public class FloatingWindowService extends Service {
     private void startVolumeKeyMonitor() {
         new Thread(() -> {
             try {
+                // 先回收上次服务异常退出遗留的监听循环，避免越积越多
+                RootJobManager.reapOrphans();
+                
                 // 使用 getevent 监听音量减键（KEY_VOLUMEDOWN = 114）
                 // 当检测到按键时，发送广播到 APP
                 String script = 
@@ -2150,7 +2415,8 @@ public class FloatingWindowService extends Service {
                     "  am broadcast -a com.threadaffinity.VOLUME_DOWN --receiver-foreground 2>/dev/null; " +
                     "done";
                 
-                RootHelper.executeRootCommandAsync(script);
+                // 循环被意外杀死时自动重启
+                RootJobManager.start(VOLUME_KEY_JOB, script, RootJobManager.RestartPolicy.ALWAYS);
                 Log.i(TAG, "Volume key monitor started");
             } catch (Exception e) {
                 Log.e(TAG, "Failed to start volume key monitor: " + e.getMessage());
@@ -2229,8 +2495,8 @@ public class FloatingWindowService extends Service {
      */
     private void stopVolumeKeyMonitor() {
         try {
-            // 杀死 getevent 进程
-            RootHelper.executeRootCommand("pkill -f 'getevent.*KEY_VOLUMEDOWN'");
+            // 整个进程组（循环脚本、getevent、grep）一起结束
+            RootJobManager.stop(VOLUME_KEY_JOB);
             Log.i(TAG, "Volume key monitor stopped");
         } catch (Exception e) {
             Log.e(TAG, "Error stopping volume key monitor: " + e.getMessage());
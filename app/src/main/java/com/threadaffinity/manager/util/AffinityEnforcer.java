@@ -0,0 +1,446 @@
+package com.threadaffinity.manager.util;
+
+import android.util.Log;
+import com.threadaffinity.manager.NativeHelper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 亲和性漂移检测与纠正
+ *
+ * 循环应用配置时先批量读取线程当前生效的掩码，与配置比较，只重写发生漂移的线程；
+ * 稳定状态下一轮检查不产生任何写入（也不再重复写 cpuset）。
+ *
+ * 配置掩码可能超出线程所在 cpuset，写入后实际生效的是两者交集，
+ * 因此每次写入后会回读一次，把 "配置掩码 -> 实际生效掩码" 记下来作为该线程的期望值。
+ *
+ * 另外把规则下发给特权辅助进程的新线程监听（{@link #watch}），新线程创建时立即应用，
+ * 循环检查只作为兜底。
+ */
+public class AffinityEnforcer {
+    private static final String TAG = "AffinityEnforcer";
+    private static final long MEMO_EXPIRE_MS = 120000; // 超过该时间未检查的线程记录被清理
+    static final long BASE_INTERVAL_MS = 10000;   // 新线程的检查间隔（与全量检查周期相同）
+    static final long MIN_INTERVAL_MS = 250;      // 频繁被重置的线程最短检查间隔
+    static final long MAX_INTERVAL_MS = 60000;    // 稳定线程最长检查间隔
+    private static final long WATCH_REFRESH_MS = 60000; // 规则未变时重新下发的间隔（辅助进程可能已重启）
+
+    /**
+     * 一轮检查的统计
+     */
+    public static final class PassStats {
+        public final int checked;    // 检查的线程数
+        public final int drifted;    // 掩码与期望不一致的线程数
+        public final int rewritten;  // 重写成功的线程数
+        public final int failed;     // 重写失败的线程数（不含已退出的线程）
+
+        PassStats(int checked, int drifted, int rewritten, int failed) {
+            this.checked = checked;
+            this.drifted = drifted;
+            this.rewritten = rewritten;
+            this.failed = failed;
+        }
+
+        @Override
+        public String toString() {
+            return "checked=" + checked + " drifted=" + drifted + " rewritten=" + rewritten + " failed=" + failed;
+        }
+    }
+
+    /**
+     * 线程的写入状态与漂移统计
+     */
+    private static final class ThreadState {
+        final int tid;
+        volatile String name;
+        volatile long mask;          // 当前配置掩码
+        long configured;             // 上次写入的配置掩码（0 表示未写入过）
+        long effective;              // 上次写入后实际生效的掩码
+        final long firstSeen;
+        volatile long lastSeen;
+        volatile long checks;
+        volatile long drifts;        // 被外部改掉的次数（不含首次写入）
+        volatile long lastDriftAt;
+        volatile long resetTo;       // 最近一次漂移时观察到的掩码（谁改的线索）
+        volatile long intervalMs = BASE_INTERVAL_MS; // 自适应检查间隔
+        volatile long nextDueAt;
+
+        ThreadState(int tid, long now) {
+            this.tid = tid;
+            this.firstSeen = now;
+            this.lastSeen = now;
+        }
+
+        /** 每分钟漂移次数 */
+        double driftRate(long now) {
+            long span = Math.max(now - firstSeen, 60000);
+            return drifts * 60000.0 / span;
+        }
+    }
+
+    /**
+     * 到期需要检查的线程
+     */
+    public static final class DueSet {
+        public final int[] tids;
+        public final long[] masks;
+        public final String[] names;
+
+        DueSet(int[] tids, long[] masks, String[] names) {
+            this.tids = tids;
+            this.masks = masks;
+            this.names = names;
+        }
+    }
+
+    private static final Map<Integer, ThreadState> states = new ConcurrentHashMap<>();
+    private static final AtomicLong passes = new AtomicLong();
+    private static final AtomicLong totalChecked = new AtomicLong();
+    private static final AtomicLong totalDrifted = new AtomicLong();
+    private static final AtomicLong totalRewritten = new AtomicLong();
+    private static final AtomicLong totalFailed = new AtomicLong();
+    private static final AtomicLong zeroWritePasses = new AtomicLong();
+    private static volatile PassStats lastPass;
+    private static final Map<Integer, String> watchSignatures = new ConcurrentHashMap<>();
+    private static final Map<Integer, Long> watchPushedAt = new ConcurrentHashMap<>();
+    private static volatile int watchMode = NativeHelper.WATCH_OFF;
+
+    /**
+     * 检查并只重写漂移的线程
+     * @param tids 线程ID
+     * @param masks 与 tids 对应的配置掩码
+     * @return 本轮统计
+     */
+    public static PassStats enforce(int[] tids, long[] masks) {
+        return enforce(tids, masks, null);
+    }
+
+    /**
+     * 检查并只重写漂移的线程，同时按线程名记录漂移统计
+     * @param names 与 tids 对应的线程名（规则名），可以为 null
+     */
+    public static PassStats enforce(int[] tids, long[] masks, String[] names) {
+        long now = System.currentTimeMillis();
+        if (tids.length == 0) {
+            return record(new PassStats(0, 0, 0, 0));
+        }
+        if (isWatching()) {
+            // 先记录新线程监听改过的线程，它们在下面会被当作已同步
+            AffinityJournal.collectWatched();
+        }
+        long[] current = RootHelper.getThreadAffinityBatch(tids);
+
+        // 收集漂移的线程（只有这些线程会被写入，也只有它们需要记录原始状态）
+        int[] driftTids = new int[tids.length];
+        long[] driftMasks = new long[tids.length];
+        long[] driftCurrent = new long[tids.length];
+        int drifted = 0;
+        for (int i = 0; i < tids.length; i++) {
+            ThreadState state = states.get(tids[i]);
+            if (state == null) {
+                state = new ThreadState(tids[i], now);
+                states.put(tids[i], state);
+            }
+            if (names != null && names[i] != null) state.name = names[i];
+            state.mask = masks[i];
+            state.lastSeen = now;
+            state.checks++;
+
+            if (current[i] == 0) {
+                // 读取失败（线程可能已退出），交给写入结果判断
+                driftTids[drifted] = tids[i];
+                driftMasks[drifted++] = masks[i];
+                continue;
+            }
+            boolean inSync = current[i] == masks[i]
+                || (state.configured == masks[i] && state.effective == current[i]);
+            if (inSync) {
+                // 稳定的线程指数退避
+                state.intervalMs = Math.min(state.intervalMs * 2, MAX_INTERVAL_MS);
+            } else {
+                if (state.configured == masks[i]) {
+                    // 写入过同一配置后又被改掉：计为一次外部重置，缩短检查间隔
+                    state.drifts++;
+                    state.lastDriftAt = now;
+                    state.resetTo = current[i];
+                    state.intervalMs = Math.max(state.intervalMs / 4, MIN_INTERVAL_MS);
+                }
+                driftTids[drifted] = tids[i];
+                driftCurrent[drifted] = current[i];
+                driftMasks[drifted++] = masks[i];
+            }
+            state.nextDueAt = now + state.intervalMs;
+        }
+
+        int rewritten = 0;
+        int failed = 0;
+        int gone = 0;
+        if (drifted > 0) {
+            int[] writeTids = new int[drifted];
+            long[] writeMasks = new long[drifted];
+            long[] writeCurrent = new long[drifted];
+            System.arraycopy(driftTids, 0, writeTids, 0, drifted);
+            System.arraycopy(driftMasks, 0, writeMasks, 0, drifted);
+            System.arraycopy(driftCurrent, 0, writeCurrent, 0, drifted);
+            // 首次写入的线程由 setThreadAffinityBatch 记录原始状态（已读到当前值，不必再读）
+            int[] codes = RootHelper.setThreadAffinityBatch(writeTids, writeMasks, writeCurrent);
+
+            // 回读写入成功的线程，记录实际生效的掩码
+            long[] effective = RootHelper.getThreadAffinityBatch(writeTids);
+            for (int i = 0; i < drifted; i++) {
+                if (codes[i] == NativeHelper.AFFINITY_OK) {
+                    rewritten++;
+                    ThreadState state = states.get(writeTids[i]);
+                    if (state != null) {
+                        state.configured = writeMasks[i];
+                        state.effective = effective[i] != 0 ? effective[i] : writeMasks[i];
+                    }
+                } else if (codes[i] == NativeHelper.AFFINITY_NO_SUCH_THREAD) {
+                    gone++;
+                    states.remove(writeTids[i]);
+                } else {
+                    failed++;
+                    Log.w(TAG, "Rewrite failed (" + codes[i] + "): tid=" + writeTids[i]
+                        + " mask=0x" + Long.toHexString(writeMasks[i]));
+                }
+            }
+        }
+        pruneStates(now);
+        // 已退出的线程不计入漂移
+        return record(new PassStats(tids.length - gone, drifted - gone, rewritten, failed));
+    }
+
+    /**
+     * 检查间隔已缩短且到期的线程（频繁被重置的线程），由调度器在两次全量检查之间单独检查
+     */
+    public static DueSet dueThreads(long now) {
+        List<ThreadState> due = new ArrayList<>();
+        for (ThreadState state : states.values()) {
+            if (state.intervalMs < BASE_INTERVAL_MS && state.nextDueAt <= now) {
+                due.add(state);
+            }
+        }
+        int[] tids = new int[due.size()];
+        long[] masks = new long[due.size()];
+        String[] names = new String[due.size()];
+        for (int i = 0; i < tids.length; i++) {
+            ThreadState state = due.get(i);
+            tids[i] = state.tid;
+            masks[i] = state.mask;
+            names[i] = state.name;
+        }
+        return new DueSet(tids, masks, names);
+    }
+
+    /**
+     * 最早到期的频繁漂移线程的检查时间，没有时返回 Long.MAX_VALUE
+     */
+    public static long nextDueAt() {
+        long next = Long.MAX_VALUE;
+        for (ThreadState state : states.values()) {
+            if (state.intervalMs < BASE_INTERVAL_MS) {
+                next = Math.min(next, state.nextDueAt);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * 稳定线程（间隔未缩短）中最早到期的检查时间，没有时返回 Long.MAX_VALUE
+     */
+    public static long nextStableDueAt() {
+        long next = Long.MAX_VALUE;
+        for (ThreadState state : states.values()) {
+            if (state.intervalMs >= BASE_INTERVAL_MS) {
+                next = Math.min(next, state.nextDueAt);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * 新线程监听是否生效（生效时全量检查可以放慢）
+     */
+    public static boolean isWatching() {
+        return watchMode != NativeHelper.WATCH_OFF;
+    }
+
+    /**
+     * 下发进程的新线程监听规则；规则未变化时不重复下发
+     * @param pid 进程ID
+     * @param rules 线程名 -> 掩码，为空时取消监听；通配符一起下发，正则只由循环检查处理
+     * @return 监听模式（NativeHelper.WATCH_*）
+     */
+    public static int watch(int pid, Map<String, Long> rules) {
+        if (pid <= 0 || !NativeHelper.isHelperAlive()) {
+            return NativeHelper.WATCH_OFF;
+        }
+        // 辅助进程按去掉空白字符后的线程名匹配
+        Map<String, Long> normalized = new TreeMap<>();
+        for (Map.Entry<String, Long> entry : rules.entrySet()) {
+            if (ThreadNameMatcher.isRegex(entry.getKey())) continue;
+            String name = entry.getKey().replaceAll("\\s", "");
+            if (!name.isEmpty() && entry.getValue() != null && entry.getValue() != 0) {
+                normalized.put(name, entry.getValue());
+            }
+        }
+        // 放置方式（自建分组或 top-app）变化时也要重新下发
+        String cpusetRoot = CpusetPlacement.activeRoot();
+        String[] groups = new String[normalized.size()];
+        int g = 0;
+        for (Long mask : normalized.values()) {
+            groups[g++] = CpusetPlacement.groupFor(mask);
+        }
+        String signature = normalized.toString() + cpusetRoot + Arrays.toString(groups);
+        long now = System.currentTimeMillis();
+        // 不再下发的进程（已退出或 pid 变化）不再记录
+        for (Iterator<Map.Entry<Integer, Long>> it = watchPushedAt.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Long> entry = it.next();
+            if (now - entry.getValue() > MEMO_EXPIRE_MS) {
+                watchSignatures.remove(entry.getKey());
+                it.remove();
+            }
+        }
+        Long pushedAt = watchPushedAt.get(pid);
+        if (signature.equals(watchSignatures.get(pid)) && pushedAt != null
+                && now - pushedAt < WATCH_REFRESH_MS) {
+            return watchMode;
+        }
+
+        String[] names = new String[normalized.size()];
+        long[] masks = new long[normalized.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : normalized.entrySet()) {
+            names[i] = entry.getKey();
+            masks[i++] = entry.getValue();
+        }
+        int mode = NativeHelper.setThreadWatch(pid, names, masks, cpusetRoot, groups);
+        if (mode != NativeHelper.WATCH_OFF || normalized.isEmpty()) {
+            watchSignatures.put(pid, signature);
+            watchPushedAt.put(pid, now);
+        }
+        if (mode != watchMode) {
+            Log.i(TAG, "Thread watch mode: " + mode + " (pid=" + pid + ", rules=" + names.length + ")");
+        }
+        watchMode = mode;
+        return mode;
+    }
+
+    /**
+     * 取消所有进程的新线程监听（服务停止时调用，之后辅助进程不再改写新线程）
+     */
+    public static void unwatchAll() {
+        for (Integer pid : watchSignatures.keySet()) {
+            if (NativeHelper.isHelperAlive()) {
+                NativeHelper.setThreadWatch(pid, new String[0], new long[0], null, new String[0]);
+            }
+            watchSignatures.remove(pid);
+            watchPushedAt.remove(pid);
+        }
+        watchMode = NativeHelper.WATCH_OFF;
+    }
+
+    private static PassStats record(PassStats stats) {
+        passes.incrementAndGet();
+        totalChecked.addAndGet(stats.checked);
+        totalDrifted.addAndGet(stats.drifted);
+        totalRewritten.addAndGet(stats.rewritten);
+        totalFailed.addAndGet(stats.failed);
+        if (stats.rewritten == 0 && stats.failed == 0) {
+            zeroWritePasses.incrementAndGet();
+        }
+        lastPass = stats;
+        return stats;
+    }
+
+    private static void pruneStates(long now) {
+        for (Iterator<ThreadState> it = states.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().lastSeen > MEMO_EXPIRE_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * 累计统计（调试用）
+     */
+    public static String describe() {
+        return "enforce passes=" + passes.get() + " zeroWritePasses=" + zeroWritePasses.get()
+            + " checked=" + totalChecked.get() + " drifted=" + totalDrifted.get()
+            + " rewritten=" + totalRewritten.get() + " failed=" + totalFailed.get()
+            + " tracked=" + states.size()
+            + " last=[" + (lastPass != null ? lastPass.toString() : "none") + "]"
+            + " watchedPids=" + watchSignatures.keySet();
+    }
+
+    /**
+     * 漂移报告：按规则（线程名）汇总，再列出漂移最多的线程
+     * @param limit 最多列出的线程数
+     */
+    public static String driftReport(int limit) {
+        long now = System.currentTimeMillis();
+        List<ThreadState> drifting = new ArrayList<>();
+        Map<String, long[]> byRule = new HashMap<>(); // 规则 -> {线程数, 漂移次数}
+        for (ThreadState state : states.values()) {
+            if (state.drifts == 0) continue;
+            drifting.add(state);
+            String rule = state.name != null ? state.name : "?";
+            long[] agg = byRule.get(rule);
+            if (agg == null) {
+                agg = new long[2];
+                byRule.put(rule, agg);
+            }
+            agg[0]++;
+            agg[1] += state.drifts;
+        }
+        if (drifting.isEmpty()) {
+            return "no drift (tracked=" + states.size() + ")\n";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        List<Map.Entry<String, long[]>> rules = new ArrayList<>(byRule.entrySet());
+        Collections.sort(rules, (a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+        sb.append("rules:\n");
+        for (Map.Entry<String, long[]> entry : rules) {
+            sb.append("  ").append(entry.getKey()).append(" threads=").append(entry.getValue()[0])
+              .append(" drifts=").append(entry.getValue()[1]).append('\n');
+        }
+        Collections.sort(drifting, (a, b) -> Long.compare(b.drifts, a.drifts));
+        sb.append("threads:\n");
+        for (int i = 0; i < drifting.size() && i < limit; i++) {
+            ThreadState state = drifting.get(i);
+            sb.append("  ").append(state.name).append(" tid=").append(state.tid)
+              .append(" drifts=").append(state.drifts)
+              .append(String.format(Locale.US, " rate=%.1f/min", state.driftRate(now)))
+              .append(" want=0x").append(Long.toHexString(state.mask))
+              .append(" resetTo=0x").append(Long.toHexString(state.resetTo))
+              .append(" last=").append((now - state.lastDriftAt) / 1000).append("s ago")
+              .append(" interval=").append(state.intervalMs).append("ms\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 悬浮窗用的一行摘要：漂移最多的线程，没有漂移时返回 null
+     */
+    public static String overlaySummary() {
+        ThreadState top = null;
+        int hot = 0;
+        for (ThreadState state : states.values()) {
+            if (state.intervalMs < BASE_INTERVAL_MS) hot++;
+            if (state.drifts > 0 && (top == null || state.drifts > top.drifts)) top = state;
+        }
+        if (top == null) return null;
+        return "drift " + top.name + "×" + top.drifts + " →0x" + Long.toHexString(top.resetTo)
+            + (hot > 0 ? " hot=" + hot : "");
+    }
+}
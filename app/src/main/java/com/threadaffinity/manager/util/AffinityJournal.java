@@ -0,0 +1,453 @@
+package com.threadaffinity.manager.util;
+
+import android.content.Context;
+import android.util.Log;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.threadaffinity.manager.NativeHelper;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 亲和性还原日志
+ *
+ * 第一次修改某个线程前记录它原来的掩码和 cpuset，持久化到 files/affinity_journal.json；
+ * 服务停止、下次启动发现上次未还原（崩溃）、或调试命令 restore 时批量还原。
+ * 还原前核对线程名和所属进程，线程号已被复用的条目直接丢弃。
+ *
+ * 新线程监听在辅助进程内直接修改的线程，由辅助进程记下修改前的掩码和 cpuset，
+ * 经 {@link #collectWatched} 取回记录。仍然在第一次看到时掩码已经是配置值的线程原值未知，
+ * 还原为所属进程主线程的 cpuset 和全部核心。
+ *
+ * 调度参数（策略/nice/uclamp）第一次改写前同样记录原值（{@link #recordSched}），
+ * 还原经特权辅助进程完成；只改过调度参数的线程不还原亲和性。
+ */
+public class AffinityJournal {
+    private static final String TAG = "AffinityJournal";
+    private static final String JOURNAL_FILE = "affinity_journal.json";
+    private static final int MAX_ENTRIES = 8192;
+    private static final int RESTORE_TIMEOUT_MS = 30000;
+    private static final Gson gson = new Gson();
+
+    /**
+     * 线程原始状态
+     */
+    static final class Entry {
+        int tid;
+        int tgid;
+        String comm;
+        long mask;      // 0 表示原值未知
+        String cpuset;  // 相对 cpuset 根目录的路径，如 /top-app；null 表示未知
+        int[] sched;    // 原调度参数（NativeHelper.SCHED_PARAM_COUNT 个值）；null 表示没有改过
+        boolean schedOnly; // 只改过调度参数，亲和性不需要还原
+
+        Entry(int tid, int tgid, String comm, long mask, String cpuset) {
+            this.tid = tid;
+            this.tgid = tgid;
+            this.comm = comm;
+            this.mask = mask;
+            this.cpuset = cpuset;
+        }
+    }
+
+    private static File file;
+    private static boolean pendingRecovery;
+    private static final Map<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>(256, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * 加载日志；文件中有条目说明上次没有正常还原
+     */
+    public static synchronized void init(Context context) {
+        if (file != null) return;
+        file = new File(context.getApplicationContext().getFilesDir(), JOURNAL_FILE);
+        if (!file.exists()) return;
+        try (Reader reader = new FileReader(file)) {
+            List<Entry> saved = gson.fromJson(reader, new TypeToken<List<Entry>>() {}.getType());
+            if (saved != null) {
+                for (Entry entry : saved) {
+                    entries.put(entry.tid, entry);
+                }
+            }
+            pendingRecovery = !entries.isEmpty();
+            Log.i(TAG, "Loaded journal: " + entries.size() + " threads" + (pendingRecovery ? " (unrestored)" : ""));
+        } catch (Exception e) {
+            Log.w(TAG, "Bad journal file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 上次未正常还原时（崩溃或被强杀）先还原，再开始本次会话
+     * @return 还原的线程数
+     */
+    public static int recoverIfNeeded() {
+        synchronized (AffinityJournal.class) {
+            if (!pendingRecovery) return 0;
+            pendingRecovery = false;
+        }
+        Log.i(TAG, "Recovering affinity from previous session");
+        return restoreAll();
+    }
+
+    /**
+     * 修改前记录线程原始状态（已记录的线程跳过）
+     * @param tids 将要修改的线程
+     * @param current 当前掩码，null 时自行读取
+     * @param configured 将要写入的掩码，当前值已经等于它时原值未知
+     */
+    public static void record(int[] tids, long[] current, long[] configured) {
+        List<Integer> fresh = new ArrayList<>();
+        synchronized (AffinityJournal.class) {
+            if (file == null) return;
+            for (int i = 0; i < tids.length; i++) {
+                Entry entry = entries.get(tids[i]);
+                if (entry == null || entry.schedOnly) fresh.add(i);
+            }
+        }
+        if (fresh.isEmpty()) return;
+
+        int[] freshTids = new int[fresh.size()];
+        for (int k = 0; k < freshTids.length; k++) {
+            freshTids[k] = tids[fresh.get(k)];
+        }
+        long[] masks = new long[freshTids.length];
+        if (current != null) {
+            for (int k = 0; k < freshTids.length; k++) {
+                masks[k] = current[fresh.get(k)];
+            }
+        } else {
+            masks = RootHelper.getThreadAffinityBatch(freshTids);
+        }
+        Map<Integer, String[]> info = readThreadInfo(freshTids);
+
+        int added = 0;
+        synchronized (AffinityJournal.class) {
+            for (int k = 0; k < freshTids.length; k++) {
+                String[] fields = info.get(freshTids[k]);
+                if (fields == null) continue; // 线程已退出
+                Entry existing = entries.get(freshTids[k]);
+                if (existing != null && !existing.schedOnly) continue;
+                boolean known = masks[k] != 0 && (configured == null || masks[k] != configured[fresh.get(k)]);
+                if (existing != null) {
+                    // 之前只记录了调度参数，补上亲和性原值
+                    existing.schedOnly = false;
+                    existing.mask = known ? masks[k] : 0;
+                    existing.cpuset = known ? fields[0] : null;
+                    added++;
+                    continue;
+                }
+                Entry entry = newEntry(freshTids[k], fields);
+                if (entry == null) continue;
+                entry.mask = known ? masks[k] : 0;
+                entry.cpuset = known ? fields[0] : null;
+                entries.put(entry.tid, entry);
+                added++;
+            }
+            if (added > 0) save();
+        }
+    }
+
+    /**
+     * 改写调度参数前记录原值（已记录过调度参数的线程跳过）
+     * @param current 与 tids 对应的当前参数，每个线程 SCHED_PARAM_COUNT 个值（fields 为 0 表示读取失败）
+     */
+    public static void recordSched(int[] tids, int[] current) {
+        final int n = NativeHelper.SCHED_PARAM_COUNT;
+        List<Integer> fresh = new ArrayList<>();
+        int added = 0;
+        synchronized (AffinityJournal.class) {
+            if (file == null) return;
+            for (int i = 0; i < tids.length; i++) {
+                if (current[i * n] == 0) continue;
+                Entry entry = entries.get(tids[i]);
+                if (entry == null) {
+                    fresh.add(i);
+                } else if (entry.sched == null) {
+                    entry.sched = Arrays.copyOfRange(current, i * n, i * n + n);
+                    added++;
+                }
+            }
+            if (fresh.isEmpty()) {
+                if (added > 0) save();
+                return;
+            }
+        }
+
+        int[] freshTids = new int[fresh.size()];
+        for (int k = 0; k < freshTids.length; k++) {
+            freshTids[k] = tids[fresh.get(k)];
+        }
+        Map<Integer, String[]> info = readThreadInfo(freshTids);
+        synchronized (AffinityJournal.class) {
+            for (int k = 0; k < freshTids.length; k++) {
+                String[] fields = info.get(freshTids[k]);
+                if (fields == null || entries.containsKey(freshTids[k])) continue;
+                Entry entry = newEntry(freshTids[k], fields);
+                if (entry == null) continue;
+                int i = fresh.get(k);
+                entry.sched = Arrays.copyOfRange(current, i * n, i * n + n);
+                entry.schedOnly = true;
+                entries.put(entry.tid, entry);
+                added++;
+            }
+            if (added > 0) save();
+        }
+    }
+
+    /**
+     * @param fields readThreadInfo 的结果 {cpuset, tgid, comm}
+     */
+    private static Entry newEntry(int tid, String[] fields) {
+        try {
+            return new Entry(tid, Integer.parseInt(fields[1]), fields[2], 0, null);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 写入结果为线程不存在的条目不再需要还原
+     */
+    public static synchronized void forgetExited(int[] tids, int[] codes) {
+        if (codes == null) return;
+        int removed = 0;
+        for (int i = 0; i < tids.length && i < codes.length; i++) {
+            if (codes[i] == NativeHelper.AFFINITY_NO_SUCH_THREAD && entries.remove(tids[i]) != null) removed++;
+        }
+        if (removed > 0) save();
+    }
+
+    /**
+     * 取回新线程监听修改过的线程及其修改前的状态并记录（已记录原值的线程跳过）
+     * @return 新记录的线程数
+     */
+    public static int collectWatched() {
+        if (file == null || !NativeHelper.isHelperAlive()) return 0;
+        byte[] data = NativeHelper.drainThreadWatch();
+        if (data == null || data.length == 0) return 0;
+        int added = 0;
+        synchronized (AffinityJournal.class) {
+            for (String line : new String(data, StandardCharsets.UTF_8).split("\n")) {
+                String[] parts = line.split("\t", 5);
+                if (parts.length < 5) continue;
+                int tid;
+                int tgid;
+                long mask;
+                try {
+                    tid = Integer.parseInt(parts[0]);
+                    tgid = Integer.parseInt(parts[1]);
+                    mask = Long.parseUnsignedLong(parts[2], 16);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                String cpuset = parts[3].isEmpty() ? null : parts[3];
+                Entry existing = entries.get(tid);
+                if (existing == null) {
+                    entries.put(tid, new Entry(tid, tgid, parts[4], mask, cpuset));
+                } else if (existing.schedOnly || (existing.mask == 0 && existing.cpuset == null)) {
+                    // 只记录过调度参数，或之前看到时已被改过（原值未知）：用辅助进程记下的原值
+                    existing.schedOnly = false;
+                    existing.mask = mask;
+                    existing.cpuset = cpuset;
+                } else {
+                    continue;
+                }
+                added++;
+            }
+            if (added > 0) save();
+        }
+        return added;
+    }
+
+    /**
+     * 批量还原所有记录的线程，删除已还原和已退出/被复用的记录；还原命令执行失败时日志保持不变
+     * @return 还原的线程数
+     */
+    public static int restoreAll() {
+        collectWatched();
+        List<Entry> snapshot;
+        synchronized (AffinityJournal.class) {
+            snapshot = new ArrayList<>(entries.values());
+        }
+        if (snapshot.isEmpty()) return 0;
+
+        Map<Integer, Entry> byTid = new LinkedHashMap<>();
+        for (Entry entry : snapshot) {
+            byTid.put(entry.tid, entry);
+        }
+        long allCores = (1L << CpuInfo.getInstance().getCpuCount()) - 1;
+
+        // 每个线程：核对线程名和进程（输出 "V tid"），再移回原 cpuset、恢复原掩码（输出 "R tid"）；
+        // 只用 shell 内建命令读取文件
+        StringBuilder cmd = new StringBuilder();
+        for (Entry entry : snapshot) {
+            cmd.append("n=; g=; read n 2>/dev/null </proc/").append(entry.tid).append("/comm; ")
+               .append("while read k v; do [ \"$k\" = Tgid: ] && { g=$v; break; }; done 2>/dev/null </proc/")
+               .append(entry.tid).append("/status; ")
+               .append("if [ \"$n\" = ").append(quote(entry.comm)).append(" ] && [ \"$g\" = ").append(entry.tgid).append(" ]; then ")
+               .append("echo V ").append(entry.tid).append("; ");
+            if (!entry.schedOnly) {
+                String cpuset = entry.cpuset;
+                if (cpuset == null) {
+                    // 原值未知：使用主线程记录的 cpuset，没有时运行时读取主线程的
+                    Entry main = byTid.get(entry.tgid);
+                    cpuset = main != null ? main.cpuset : null;
+                }
+                long mask = entry.mask != 0 ? entry.mask : allCores;
+                if (cpuset != null) {
+                    cmd.append("c=").append(quote(cpuset)).append("; ");
+                } else {
+                    cmd.append("c=; read c 2>/dev/null </proc/").append(entry.tgid).append("/cpuset; ");
+                }
+                cmd.append("[ -n \"$c\" ] && echo ").append(entry.tid).append(" 2>/dev/null > \"/dev/cpuset${c%/}/tasks\"; ")
+                   .append("taskset -p ").append(Long.toHexString(mask)).append(' ').append(entry.tid)
+                   .append(" >/dev/null 2>&1 && echo R ").append(entry.tid).append("; ");
+            }
+            cmd.append("fi; ");
+        }
+        cmd.append("true");
+        String out = RootShell.execute(cmd.toString(), RESTORE_TIMEOUT_MS);
+        if (out == null) {
+            // 命令没有执行：日志原样保留，下次启动再还原
+            Log.w(TAG, "Restore command failed, keeping " + snapshot.size() + " journal entries");
+            return 0;
+        }
+        Set<Integer> valid = new HashSet<>();
+        Set<Integer> restored = new HashSet<>();
+        for (String line : out.split("\n")) {
+            String[] parts = line.trim().split(" ");
+            if (parts.length != 2) continue;
+            try {
+                int tid = Integer.parseInt(parts[1]);
+                if (parts[0].equals("V")) valid.add(tid);
+                else if (parts[0].equals("R")) restored.add(tid);
+            } catch (NumberFormatException e) {
+                // 忽略
+            }
+        }
+        int schedRestored = restoreSched(snapshot, valid, restored);
+
+        // 只删除已还原的线程和核对后已退出/被复用的线程，核对通过但还原失败的留待重试
+        int kept = 0;
+        synchronized (AffinityJournal.class) {
+            for (Entry entry : snapshot) {
+                if (restored.contains(entry.tid) || !valid.contains(entry.tid)) {
+                    entries.remove(entry.tid);
+                } else {
+                    kept++;
+                }
+            }
+            save();
+        }
+        Log.i(TAG, "Restored " + restored.size() + "/" + snapshot.size() + " threads, "
+            + schedRestored + " with scheduling parameters, " + kept + " kept for retry (others exited or reused)");
+        return restored.size();
+    }
+
+    /**
+     * 经特权辅助进程还原调度参数（只处理核对通过的线程）
+     * @param restored 还原成功的线程加入这里
+     * @return 调度参数还原成功的线程数
+     */
+    private static int restoreSched(List<Entry> snapshot, Set<Integer> valid, Set<Integer> restored) {
+        final int n = NativeHelper.SCHED_PARAM_COUNT;
+        List<Entry> targets = new ArrayList<>();
+        for (Entry entry : snapshot) {
+            if (entry.sched != null && entry.sched.length == n && valid.contains(entry.tid)) targets.add(entry);
+        }
+        if (targets.isEmpty()) return 0;
+        if (!NativeHelper.isHelperAlive()) {
+            Log.w(TAG, "Helper not running, cannot restore scheduling parameters of " + targets.size() + " threads");
+            return 0;
+        }
+        int[] tids = new int[targets.size()];
+        int[] params = new int[targets.size() * n];
+        for (int i = 0; i < tids.length; i++) {
+            tids[i] = targets.get(i).tid;
+            System.arraycopy(targets.get(i).sched, 0, params, i * n, n);
+        }
+        int[] result = NativeHelper.setThreadSched(tids, params);
+        if (result == null) return 0;
+        int count = 0;
+        for (int i = 0; i < tids.length; i++) {
+            if (result[i * (n + 1)] == NativeHelper.AFFINITY_OK) {
+                restored.add(tids[i]);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 读取线程的 cpuset、Tgid 和线程名，只用 shell 内建命令，不为每个线程 fork
+     * @return tid -> {cpuset, tgid, comm}，已退出的线程不在结果中
+     */
+    private static Map<Integer, String[]> readThreadInfo(int[] tids) {
+        StringBuilder cmd = new StringBuilder("for t in");
+        for (int tid : tids) {
+            cmd.append(' ').append(tid);
+        }
+        cmd.append("; do c=; n=; g=; read c 2>/dev/null </proc/$t/cpuset; read n 2>/dev/null </proc/$t/comm; ")
+           .append("while read k v; do [ \"$k\" = Tgid: ] && { g=$v; break; }; done 2>/dev/null </proc/$t/status; ")
+           .append("[ -n \"$g\" ] && printf '%s\\t%s\\t%s\\t%s\\n' $t \"$c\" \"$g\" \"$n\"; done; true");
+        String out = RootHelper.executeRootCommand(cmd.toString());
+        Map<Integer, String[]> result = new LinkedHashMap<>();
+        if (out == null) return result;
+        for (String line : out.split("\n")) {
+            String[] parts = line.split("\t", 4);
+            if (parts.length < 4) continue;
+            try {
+                result.put(Integer.parseInt(parts[0].trim()), new String[] {parts[1], parts[2], parts[3]});
+            } catch (NumberFormatException e) {
+                // 忽略
+            }
+        }
+        return result;
+    }
+
+    private static String quote(String s) {
+        return "'" + (s != null ? s.replace("'", "'\\''") : "") + "'";
+    }
+
+    private static void save() {
+        if (file == null) return;
+        if (entries.isEmpty()) {
+            file.delete();
+            return;
+        }
+        try (FileWriter writer = new FileWriter(file)) {
+            gson.toJson(new ArrayList<>(entries.values()), writer);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 当前状态（调试用）
+     */
+    public static synchronized String describe() {
+        int unknown = 0;
+        int sched = 0;
+        for (Entry entry : entries.values()) {
+            if (!entry.schedOnly && entry.mask == 0) unknown++;
+            if (entry.sched != null) sched++;
+        }
+        return "journal threads=" + entries.size() + " unknownOriginal=" + unknown
+            + " sched=" + sched + " pendingRecovery=" + pendingRecovery;
+    }
+}
@@ -98,6 +98,11 @@ public class ConfigManager {
                 }
                 config.setThreadAffinities(fixed);
             }
+            // 按进程分组的规则和调度规则同样改为线程名不区分大小写
+            if (config != null) {
+                config.setProcessAffinities(config.getProcessAffinities());
+                config.setThreadPolicies(config.getThreadPolicies());
+            }
             
             Log.i(TAG, "Config loaded: " + filename + ", affinities=" + 
                 (config != null && config.getThreadAffinities() != null ? config.getThreadAffinities().size() : 0));
@@ -0,0 +1,210 @@
+package com.threadaffinity.manager.util;
+
+import android.util.Log;
+import com.threadaffinity.manager.NativeHelper;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 自建 cpuset 分组放置（可选的放置后端）
+ *
+ * 默认做法是把线程移入 top-app 再 sched_setaffinity（每个线程两次写入）。
+ * 启用后按 {@link CpuInfo.CoreGroup} 在 cpuset 根目录下创建 ta_small / ta_large 等分组，
+ * 掩码正好是某个分组时只写一次 tasks；修改整组核心只需写一次 cpus。
+ * 掩码不对应任何分组（如跨组组合）的线程仍走 sched_setaffinity。
+ */
+public class CpusetPlacement {
+    private static final String TAG = "CpusetPlacement";
+    public static final String DEFAULT_ROOT = "/dev/cpuset";
+    private static final String GROUP_PREFIX = "ta_";
+
+    private static volatile boolean enabled;
+    private static volatile String root = DEFAULT_ROOT;
+    private static volatile int layout;                       // 0 表示分组尚未创建或创建失败
+    private static final Map<Long, String> groupByMask = new HashMap<>();
+    private static final Map<String, String> cpusByGroup = new HashMap<>();
+
+    /**
+     * 启用/关闭自建 cpuset 放置；启用时立即创建分组
+     * @param cpusetRoot cpuset 根目录，null 表示默认的 /dev/cpuset（主机测试时可指向临时目录）
+     * @return 是否启用成功（分组创建失败时保持关闭）
+     */
+    public static synchronized boolean setEnabled(boolean enable, String cpusetRoot) {
+        String newRoot = cpusetRoot != null && !cpusetRoot.isEmpty() ? cpusetRoot : DEFAULT_ROOT;
+        if (!newRoot.equals(root)) {
+            root = newRoot;
+            layout = 0;
+        }
+        if (!enable) {
+            enabled = false;
+            return true;
+        }
+        enabled = ensureGroups();
+        return enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 分组所在的 cpuset 根目录，未启用时返回 null
+     */
+    public static String activeRoot() {
+        return enabled ? root : null;
+    }
+
+    /**
+     * 掩码对应的分组名
+     * @return 未启用或掩码不对应任何分组时返回 null
+     */
+    public static String groupFor(long mask) {
+        if (!enabled) return null;
+        synchronized (groupByMask) {
+            return groupByMask.get(mask);
+        }
+    }
+
+    /**
+     * 按核心分组创建 cpuset（已存在时复用，核心列表一致时不写入）
+     */
+    private static boolean ensureGroups() {
+        if (!NativeHelper.isHelperAlive()) {
+            Log.w(TAG, "Helper not running, cpuset placement unavailable");
+            return false;
+        }
+        Map<Long, String> masks = new HashMap<>();
+        Map<String, String> cpus = new HashMap<>();
+        int result = 0;
+        for (CpuInfo.CoreGroup group : CpuInfo.getInstance().getCoreGroups()) {
+            String name = GROUP_PREFIX + group.nameEn.toLowerCase(Locale.US);
+            String range = group.startCore + "-" + group.endCore;
+            result = NativeHelper.setupCpusetGroup(root, name, range);
+            if (result == 0) {
+                Log.e(TAG, "Failed to create cpuset " + root + "/" + name);
+                return false;
+            }
+            masks.put(group.mask, name);
+            cpus.put(name, range);
+        }
+        synchronized (groupByMask) {
+            groupByMask.clear();
+            groupByMask.putAll(masks);
+            cpusByGroup.clear();
+            cpusByGroup.putAll(cpus);
+        }
+        layout = result;
+        Log.i(TAG, "Cpuset groups ready under " + root + " (layout=v" + result + "): " + cpus);
+        return result != 0;
+    }
+
+    /**
+     * 修改整组核心（一次写入 cpus），组内所有线程立即生效
+     * @param group 分组名，如 ta_large
+     * @param cpus 核心列表，如 "5-7"
+     */
+    public static boolean retarget(String group, String cpus) {
+        if (!enabled) return false;
+        int result = NativeHelper.setupCpusetGroup(root, group, cpus);
+        if (result == 0) return false;
+        long mask = parseCpuList(cpus);
+        synchronized (groupByMask) {
+            // 重新建立掩码 -> 分组的对应关系
+            groupByMask.values().remove(group);
+            if (mask != 0) groupByMask.put(mask, group);
+            cpusByGroup.put(group, cpus);
+        }
+        return true;
+    }
+
+    /**
+     * 核心列表（如 "0-3,7"）转掩码
+     */
+    static long parseCpuList(String cpus) {
+        long mask = 0;
+        for (String part : cpus.trim().split(",")) {
+            if (part.isEmpty()) continue;
+            try {
+                int dash = part.indexOf('-');
+                int start = Integer.parseInt(dash < 0 ? part.trim() : part.substring(0, dash).trim());
+                int end = dash < 0 ? start : Integer.parseInt(part.substring(dash + 1).trim());
+                for (int cpu = start; cpu <= end && cpu < 64; cpu++) {
+                    mask |= 1L << cpu;
+                }
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * 放置线程：掩码对应分组的线程写入分组，其余线程走 sched_setaffinity
+     * @return 每个线程的结果码（NativeHelper.AFFINITY_*）
+     */
+    public static int[] apply(int[] tids, long[] masks) {
+        // 按分组归类
+        Map<String, List<Integer>> byGroup = new HashMap<>();
+        List<Integer> rest = new ArrayList<>();
+        synchronized (groupByMask) {
+            for (int i = 0; i < tids.length; i++) {
+                String group = groupByMask.get(masks[i]);
+                if (group == null) {
+                    rest.add(i);
+                    continue;
+                }
+                List<Integer> indexes = byGroup.get(group);
+                if (indexes == null) {
+                    indexes = new ArrayList<>();
+                    byGroup.put(group, indexes);
+                }
+                indexes.add(i);
+            }
+        }
+
+        int[] codes = new int[tids.length];
+        for (Map.Entry<String, List<Integer>> entry : byGroup.entrySet()) {
+            List<Integer> indexes = entry.getValue();
+            int[] groupTids = new int[indexes.size()];
+            for (int k = 0; k < groupTids.length; k++) {
+                groupTids[k] = tids[indexes.get(k)];
+            }
+            int[] groupCodes = NativeHelper.placeThreads(root, entry.getKey(), groupTids);
+            for (int k = 0; k < groupTids.length; k++) {
+                if (groupCodes != null && groupCodes[k] != NativeHelper.AFFINITY_FAILED) {
+                    codes[indexes.get(k)] = groupCodes[k];
+                } else {
+                    // 写入分组失败（如被 SELinux 拒绝）时退回 sched_setaffinity
+                    rest.add(indexes.get(k));
+                }
+            }
+        }
+
+        if (!rest.isEmpty()) {
+            int[] restTids = new int[rest.size()];
+            long[] restMasks = new long[rest.size()];
+            for (int k = 0; k < restTids.length; k++) {
+                restTids[k] = tids[rest.get(k)];
+                restMasks[k] = masks[rest.get(k)];
+            }
+            int[] restCodes = RootHelper.setThreadAffinityBatchDirect(restTids, restMasks);
+            for (int k = 0; k < restTids.length; k++) {
+                codes[rest.get(k)] = restCodes[k];
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * 当前状态（调试用）
+     */
+    public static String describe() {
+        synchronized (groupByMask) {
+            return "placement=" + (enabled ? "cpuset" : "affinity") + " root=" + root
+                + " layout=" + (layout == 0 ? "none" : "v" + layout) + " groups=" + cpusByGroup;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.threadaffinity.manager.util;
+
+import android.util.Log;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 自适应的亲和性检查调度
+ *
+ * 代替固定 10 秒周期：
+ * - 全量检查（枚举线程 + 调度器参数）在没有漂移时指数退避，出现漂移时恢复到 10 秒；
+ *   新线程监听未生效时全量检查是发现新线程的唯一途径，保持 10 秒
+ * - 频繁被重置的线程（检查间隔已缩短到 10 秒以下，最短 250ms）在两次全量检查之间单独检查，
+ *   只读写这几个线程的掩码，不枚举线程
+ */
+public class EnforcementScheduler {
+    private static final String TAG = "EnforcementScheduler";
+    private static final long MIN_DELAY_MS = AffinityEnforcer.MIN_INTERVAL_MS;
+    private static final long FULL_PASS_MAX_MS = 30000; // 全量检查最长间隔（调度器参数仍需定期刷新）
+
+    private static volatile EnforcementScheduler active; // 最近启动的调度器（调试命令读取）
+
+    private final ScheduledExecutorService executor;
+    private final Runnable fullPass;
+    private volatile long nextFullAt;
+    private volatile long fullPasses;
+    private volatile long hotPasses;
+
+    /**
+     * @param executor 单线程执行器（全量检查与单独检查不会并发）
+     * @param fullPass 全量检查
+     */
+    public EnforcementScheduler(ScheduledExecutorService executor, Runnable fullPass) {
+        this.executor = executor;
+        this.fullPass = fullPass;
+    }
+
+    public void start(long initialDelayMs) {
+        active = this;
+        nextFullAt = System.currentTimeMillis() + initialDelayMs;
+        schedule(initialDelayMs);
+    }
+
+    private void schedule(long delayMs) {
+        if (executor.isShutdown()) return;
+        try {
+            executor.schedule(this::tick, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // 服务停止时执行器已关闭
+        }
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            if (now >= nextFullAt) {
+                fullPass.run();
+                fullPasses++;
+                now = System.currentTimeMillis();
+                nextFullAt = computeNextFull(now);
+            } else {
+                AffinityEnforcer.DueSet due = AffinityEnforcer.dueThreads(now);
+                if (due.tids.length > 0) {
+                    AffinityEnforcer.PassStats stats = AffinityEnforcer.enforce(due.tids, due.masks, due.names);
+                    hotPasses++;
+                    if (stats.rewritten > 0) {
+                        Log.d(TAG, "Hot pass: " + stats);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Enforcement tick failed: " + e.getMessage());
+        } finally {
+            long now = System.currentTimeMillis();
+            long next = Math.min(nextFullAt, AffinityEnforcer.nextDueAt());
+            schedule(Math.max(next - now, MIN_DELAY_MS));
+        }
+    }
+
+    /**
+     * 下一次全量检查：跟随稳定线程中最早到期的时间，限制在 [10s, 上限] 之间
+     */
+    private long computeNextFull(long now) {
+        long max = AffinityEnforcer.isWatching() ? FULL_PASS_MAX_MS : AffinityEnforcer.BASE_INTERVAL_MS;
+        long stableDue = AffinityEnforcer.nextStableDueAt();
+        long delay = stableDue == Long.MAX_VALUE ? max : stableDue - now;
+        delay = Math.max(AffinityEnforcer.BASE_INTERVAL_MS, Math.min(delay, max));
+        return now + delay;
+    }
+
+    /**
+     * 最近启动的调度器状态，没有时返回说明文字（调试用）
+     */
+    public static String describeActive() {
+        EnforcementScheduler scheduler = active;
+        return scheduler != null ? scheduler.describe() : "scheduler not started";
+    }
+
+    /**
+     * 调度状态（调试用）
+     */
+    public String describe() {
+        long now = System.currentTimeMillis();
+        long hotDue = AffinityEnforcer.nextDueAt();
+        return "scheduler fullPasses=" + fullPasses + " hotPasses=" + hotPasses
+            + " nextFullIn=" + Math.max(0, nextFullAt - now) + "ms"
+            + " nextHotIn=" + (hotDue == Long.MAX_VALUE ? "-" : Math.max(0, hotDue - now) + "ms");
+    }
+}
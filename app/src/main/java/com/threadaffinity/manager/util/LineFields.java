@@ -0,0 +1,83 @@
+package com.threadaffinity.manager.util;
+
+/**
+ * 按分隔符切分一行文本的字段，不创建子字符串
+ * 配合 RootShell 的流式输出使用，一个实例可以反复 reset 复用
+ */
+public class LineFields {
+    private CharSequence line = "";
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int count;
+
+    /**
+     * 切分新的一行（字段两端的空白会被忽略）
+     */
+    public LineFields reset(CharSequence line, char separator) {
+        this.line = line;
+        count = 0;
+        int length = line.length();
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || line.charAt(i) == separator) {
+                add(start, i);
+                start = i + 1;
+            }
+        }
+        return this;
+    }
+
+    private void add(int start, int end) {
+        while (start < end && Character.isWhitespace(line.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(line.charAt(end - 1))) end--;
+        if (count == starts.length) {
+            starts = java.util.Arrays.copyOf(starts, count * 2);
+            ends = java.util.Arrays.copyOf(ends, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public boolean isEmpty(int index) {
+        return index >= count || starts[index] == ends[index];
+    }
+
+    /**
+     * 字段内容（会创建字符串，只在需要保留时使用）
+     */
+    public String getString(int index) {
+        if (index >= count) return "";
+        return line.subSequence(starts[index], ends[index]).toString();
+    }
+
+    public int getInt(int index, int defaultValue) {
+        long value = getLong(index, Long.MIN_VALUE);
+        return value == Long.MIN_VALUE ? defaultValue : (int) value;
+    }
+
+    /**
+     * 解析十进制整数字段，为空或格式错误时返回默认值
+     */
+    public long getLong(int index, long defaultValue) {
+        if (isEmpty(index)) return defaultValue;
+        int i = starts[index];
+        int end = ends[index];
+        boolean negative = false;
+        if (line.charAt(i) == '-') {
+            negative = true;
+            if (++i == end) return defaultValue;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') return defaultValue;
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+}
@@ -4,6 +4,7 @@ import android.util.Log;
 import com.threadaffinity.manager.model.ThreadInfo;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -12,42 +13,148 @@ import java.util.List;
 public class ProcessHelper {
     private static final String TAG = "ProcessHelper";
 
+    private static final long PROCESS_ALIVE_TTL_MS = 3000; // 存活检查结果缓存时间
+    private static final long PACKAGE_PID_TTL_MS = 10000;  // 包名 -> pid 缓存时间
+    private static final long SYSTEM_PID_TTL_MS = 60000;   // 系统进程 pid 很少变化
+
+    // getThreads / refreshThreadStats 共用的线程采样缓冲区
+    private static final ThreadSnapshot threadSnapshot = new ThreadSnapshot();
+
     /**
      * 检查进程是否还在运行
+     * 结果短暂缓存；检测到进程退出时同时失效与该 pid 相关的缓存
      */
     public static boolean isProcessRunning(int pid) {
         if (pid <= 0) return false;
         try {
             // 使用root命令检查进程是否存在
-            String result = RootHelper.executeRootCommand("ls /proc/" + pid + "/stat");
-            return result != null && !result.isEmpty() && !result.contains("No such file");
+            String result = RootQueryCache.query("ls /proc/" + pid + "/stat", PROCESS_ALIVE_TTL_MS);
+            boolean running = result != null && !result.isEmpty() && !result.contains("No such file");
+            if (!running) {
+                RootQueryCache.onProcessDied(pid);
+            }
+            return running;
         } catch (Exception e) {
             return false;
         }
     }
 
     /**
-     * 获取指定包名的进程ID
+     * 包的一个进程
      */
-    public static int getPidByPackage(String packageName) {
-        Log.d(TAG, "Getting PID for package: " + packageName);
-        
+    public static final class PackageProcess {
+        public final int pid;
+        public final int parentPid; // 子进程的父进程；包名进程为 0
+        public final String name;   // 包名进程为进程名（pkg、pkg:remote），子进程为线程名
+        public final String key;    // 规则分组键：主进程 ""，pkg:xxx 为 ":xxx"，子进程为线程名
+
+        PackageProcess(int pid, int parentPid, String name, String packageName) {
+            this.pid = pid;
+            this.parentPid = parentPid;
+            this.name = name;
+            if (parentPid > 0) {
+                this.key = name;
+            } else {
+                this.key = name.length() > packageName.length() ? name.substring(packageName.length()) : "";
+            }
+        }
+
+        public boolean isMain() {
+            return parentPid == 0 && key.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return pid + (key.isEmpty() ? "" : "(" + key + ")");
+        }
+    }
+
+    /**
+     * 获取包的所有进程：主进程 pkg、pkg:* 子进程，以及它们直接创建的原生子进程
+     * 一条 awk 遍历 /proc：cmdline 以包名开头的是包名进程，其余进程读 stat 取父进程；
+     * 结果短暂缓存，未找到时不缓存
+     * @return 主进程在前，其余按 pid 排序；未运行返回空列表
+     */
+    public static List<PackageProcess> getPackageProcesses(String packageName) {
+        List<PackageProcess> processes = new ArrayList<>();
+        if (packageName == null || packageName.isEmpty()) return processes;
+        // 输出格式: pid|父进程|名称（包名进程父进程为 0）
+        String command =
+            "ls /proc 2>/dev/null | awk -v pkg='" + packageName + "' '/^[0-9]+$/ { " +
+            "f=\"/proc/\"$1\"/cmdline\"; s=\"\"; getline s < f; close(f); " +
+            // cmdline 以 NUL 分隔参数：包名之后是结尾、NUL 或 ':' 才算匹配
+            "c=substr(s, length(pkg)+1, 1); " +
+            "if (index(s, pkg)==1 && (c==\"\" || c==\":\" || c<\" \")) { " +
+            "  n=length(s); for (i=1; i<=n; i++) if (substr(s,i,1)<\" \") break; " +
+            "  name[$1]=substr(s,1,i-1); next " +
+            "} " +
+            // 线程名可能含空格和括号：按最后一个 ") " 切分
+            "f=\"/proc/\"$1\"/stat\"; l=\"\"; getline l < f; close(f); " +
+            "k=split(l, x, \") \"); if (k<2) next; " +
+            "split(x[k], y, \" \"); b=index(l, \"(\"); " +
+            "ppid[$1]=y[2]; comm[$1]=substr(l, b+1, length(l)-length(x[k])-b-2) " +
+            "} END { " +
+            "for (p in name) print p\"|0|\"name[p]; " +
+            "for (p in ppid) if (ppid[p] in name) print p\"|\"ppid[p]\"|\"comm[p] " +
+            "}'";
         try {
-            // 使用pidof命令
-            String result = RootHelper.executeRootCommand("pidof " + packageName);
-            if (result != null && !result.trim().isEmpty()) {
-                String[] pids = result.trim().split("\\s+");
-                int pid = Integer.parseInt(pids[0]);
-                Log.i(TAG, "Found PID: " + pid + " for " + packageName);
-                return pid;
+            String result = RootQueryCache.query(command, PACKAGE_PID_TTL_MS);
+            if (result == null || result.trim().isEmpty()) {
+                RootQueryCache.invalidate(command);
+                return processes;
+            }
+            LineFields fields = new LineFields();
+            for (String line : result.trim().split("\n")) {
+                fields.reset(line, '|');
+                if (fields.count() < 3) continue;
+                int pid = fields.getInt(0, -1);
+                int parentPid = fields.getInt(1, -1);
+                // 名称是最后一个字段，线程名中的 '|' 原样保留
+                int split = line.indexOf('|', line.indexOf('|') + 1);
+                String name = line.substring(split + 1).trim();
+                if (pid <= 0 || parentPid < 0 || name.isEmpty()) continue;
+                processes.add(new PackageProcess(pid, parentPid, name, packageName));
             }
         } catch (Exception e) {
-            Log.e(TAG, "Failed to get PID: " + e.getMessage());
+            Log.e(TAG, "Failed to get package processes: " + e.getMessage());
+        }
+        Collections.sort(processes, (a, b) -> {
+            if (a.isMain() != b.isMain()) return a.isMain() ? -1 : 1;
+            return Integer.compare(a.pid, b.pid);
+        });
+        return processes;
+    }
+
+    /**
+     * 获取指定包名的主进程ID（同包的其他进程见 {@link #getPackageProcesses}）
+     */
+    public static int getPidByPackage(String packageName) {
+        Log.d(TAG, "Getting PID for package: " + packageName);
+        for (PackageProcess process : getPackageProcesses(packageName)) {
+            if (process.isMain()) {
+                Log.i(TAG, "Found PID: " + process.pid + " for " + packageName);
+                return process.pid;
+            }
         }
-        
         return -1;
     }
 
+    /**
+     * 获取系统进程（如 surfaceflinger、system_server）的 pid
+     * @return 第一个 pid，未找到返回 null
+     */
+    public static String getPidOf(String processName) {
+        String command = "pidof " + processName + " 2>/dev/null";
+        String result = RootQueryCache.query(command, SYSTEM_PID_TTL_MS);
+        if (result == null || result.trim().isEmpty()) {
+            RootQueryCache.invalidate(command);
+            return null;
+        }
+        result = result.trim();
+        int space = result.indexOf(' ');
+        return space > 0 ? result.substring(0, space) : result;
+    }
+
     /**
      * 获取进程的所有线程（优化版，使用awk批量获取）
      */
@@ -55,6 +162,19 @@ public class ProcessHelper {
         List<ThreadInfo> threads = new ArrayList<>();
         Log.d(TAG, "Getting threads for PID: " + pid);
         
+        // 优先取 native 线程表：只读取新线程的线程名
+        synchronized (threadSnapshot) {
+            if (threadSnapshot.sampleNames(new int[]{pid})) {
+                for (int i = 0; i < threadSnapshot.count(); i++) {
+                    String name = threadSnapshot.ruleName(i);
+                    int tid = threadSnapshot.tid(i);
+                    threads.add(new ThreadInfo(tid, name.isEmpty() ? "Thread-" + tid : name));
+                }
+                Log.i(TAG, "Found " + threads.size() + " threads for PID " + pid);
+                return threads;
+            }
+        }
+        
         try {
             // 使用awk一次性获取所有线程ID和名称，避免for循环+cat导致大量fork
             String result = RootHelper.executeRootCommand(
@@ -150,41 +270,44 @@ public class ProcessHelper {
     public static void refreshThreadStats(int pid, List<ThreadInfo> threads) {
         if (threads == null || threads.isEmpty()) return;
         
+        // 优先取 native 线程表：没有运行过的线程不重读 stat
+        synchronized (threadSnapshot) {
+            if (threadSnapshot.sample(new int[]{pid})) {
+                for (ThreadInfo thread : threads) {
+                    int index = threadSnapshot.indexOf(thread.getTid());
+                    if (index >= 0 && threadSnapshot.processor(index) >= 0) {
+                        thread.setRunningCpu(threadSnapshot.processor(index));
+                    }
+                }
+                return;
+            }
+        }
+        
         try {
+            // tid -> 线程信息，流式输出每一行直接更新
+            java.util.Map<Integer, ThreadInfo> byTid = new java.util.HashMap<>();
+            for (ThreadInfo thread : threads) {
+                byTid.put(thread.getTid(), thread);
+            }
+            LineFields fields = new LineFields();
+            
             // 使用awk一次性读取所有线程的stat文件，获取运行核心
-            String result = RootHelper.executeRootCommand(
+            RootHelper.executeRootCommandStreaming(
                 "ls /proc/" + pid + "/task 2>/dev/null | awk -v pid=" + pid + " '{" +
                 "tid=$1; stat_file=\"/proc/\"pid\"/task/\"tid\"/stat\"; " +
                 "if ((getline stat_line < stat_file) > 0) { " +
                 "  n=split(stat_line, f, \" \"); " +
                 "  if (n >= 39) print tid\"|\"f[39]; " +
                 "} close(stat_file); " +
-                "}'");
-            
-            if (result != null && !result.trim().isEmpty()) {
-                // 构建tid到cpu的映射
-                java.util.Map<Integer, Integer> tidToCpu = new java.util.HashMap<>();
-                for (String line : result.trim().split("\n")) {
-                    String[] parts = line.split("\\|");
-                    if (parts.length >= 2) {
-                        try {
-                            int tid = Integer.parseInt(parts[0].trim());
-                            int cpu = Integer.parseInt(parts[1].trim());
-                            tidToCpu.put(tid, cpu);
-                        } catch (NumberFormatException e) {
-                            // 忽略
-                        }
-                    }
-                }
-                
-                // 更新线程信息
-                for (ThreadInfo thread : threads) {
-                    Integer cpu = tidToCpu.get(thread.getTid());
-                    if (cpu != null) {
+                "}'",
+                line -> {
+                    fields.reset(line, '|');
+                    ThreadInfo thread = byTid.get(fields.getInt(0, -1));
+                    int cpu = fields.getInt(1, -1);
+                    if (thread != null && cpu >= 0) {
                         thread.setRunningCpu(cpu);
                     }
-                }
-            }
+                });
         } catch (Exception e) {
             Log.e(TAG, "Failed to refresh thread stats: " + e.getMessage());
         }
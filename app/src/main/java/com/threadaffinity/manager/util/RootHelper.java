@@ -1,9 +1,15 @@
 package com.threadaffinity.manager.util;
 
+import android.content.Context;
 import android.util.Log;
+import com.threadaffinity.manager.NativeHelper;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Root权限辅助类
@@ -22,6 +28,22 @@ public class RootHelper {
         return hasRoot;
     }
 
+    /**
+     * 确保 Native 层的特权辅助进程已启动
+     * JNI 的亲和性设置和命令执行都走该进程，不再回调 Java 层 shell
+     * 已运行时直接返回，之后进程意外退出由 Native 层限频重启
+     * @return 辅助进程是否在运行
+     */
+    public static boolean ensureAffinityHelper(Context context) {
+        if (NativeHelper.isHelperAlive()) {
+            return true;
+        }
+        String helperPath = context.getApplicationInfo().nativeLibraryDir + "/libaffinity_helper.so";
+        boolean started = NativeHelper.startHelper(helperPath);
+        Log.i(TAG, "Affinity helper " + (started ? "started" : "unavailable") + ": " + helperPath);
+        return started;
+    }
+
     /**
      * 执行Root命令
      */
@@ -30,24 +52,126 @@ public class RootHelper {
     }
     
     /**
-     * 异步执行Root命令（不等待结果，用于长时间运行的后台任务）
+     * 流式执行Root命令，输出逐行交给 handler（大输出时使用，避免拼出整个字符串）
+     * @return 命令是否完整执行结束
+     */
+    public static boolean executeRootCommandStreaming(String command, ShellSession.LineHandler handler) {
+        return RootShell.executeStreaming(command, handler, 5000);
+    }
+    
+    /**
+     * 批量执行Root命令（一次写入，结果按顺序一一对应，失败的条目为 null）
+     */
+    public static List<String> executeRootCommands(List<String> commands) {
+        return RootShell.executeBatch(commands);
+    }
+    
+    /**
+     * 批量设置线程亲和性
+     * 启用自建 cpuset 放置（{@link CpusetPlacement}）时，掩码对应核心分组的线程只需写一次 tasks
+     * 首次修改的线程先在 {@link AffinityJournal} 记录原始状态，停止时还原
+     * @return 每个线程的结果码（NativeHelper.AFFINITY_*）
+     */
+    public static int[] setThreadAffinityBatch(int[] tids, long[] masks) {
+        return setThreadAffinityBatch(tids, masks, null);
+    }
+
+    /**
+     * 批量设置线程亲和性，调用方已读过当前掩码时传入，记录原始状态时不必再读
+     * @param current 与 tids 对应的当前掩码，null 时自行读取
      */
-    public static void executeRootCommandAsync(String command) {
-        new Thread(() -> {
+    public static int[] setThreadAffinityBatch(int[] tids, long[] masks, long[] current) {
+        AffinityJournal.record(tids, current, masks);
+        int[] codes;
+        if (CpusetPlacement.isEnabled() && NativeHelper.isHelperAlive()) {
+            codes = CpusetPlacement.apply(tids, masks);
+        } else {
+            codes = setThreadAffinityBatchDirect(tids, masks);
+        }
+        AffinityJournal.forgetExited(tids, codes);
+        return codes;
+    }
+
+    /**
+     * 批量设置线程亲和性（移入 top-app + sched_setaffinity），不经过 cpuset 分组
+     * 特权辅助进程可用时走 NativeHelper.setThreadAffinities（一次 native 调用）；
+     * 否则每个线程一条 cpuset + taskset 命令，所有线程一次写入 shell
+     */
+    static int[] setThreadAffinityBatchDirect(int[] tids, long[] masks) {
+        if (NativeHelper.isHelperAlive()) {
+            int[] codes = NativeHelper.setThreadAffinities(tids, masks);
+            if (codes != null) {
+                return codes;
+            }
+        }
+        List<String> commands = new ArrayList<>(tids.length);
+        for (int i = 0; i < tids.length; i++) {
+            commands.add("echo " + tids[i] + " > /dev/cpuset/top-app/tasks 2>/dev/null; " +
+                "taskset -p " + Long.toHexString(masks[i]) + " " + tids[i] + " 2>&1");
+        }
+        List<String> results = executeRootCommands(commands);
+        int[] codes = new int[tids.length];
+        for (int i = 0; i < tids.length; i++) {
+            String result = results.get(i);
+            if (result == null || result.isEmpty()) {
+                codes[i] = NativeHelper.AFFINITY_FAILED;
+            } else if (result.contains("No such")) {
+                codes[i] = NativeHelper.AFFINITY_NO_SUCH_THREAD;
+            } else if (result.contains("Invalid")) {
+                codes[i] = NativeHelper.AFFINITY_INVALID_MASK;
+            } else if (result.contains("failed") || result.contains("error")) {
+                codes[i] = NativeHelper.AFFINITY_FAILED;
+            } else {
+                codes[i] = NativeHelper.AFFINITY_OK;
+            }
+        }
+        return codes;
+    }
+    
+    /**
+     * 批量读取线程当前生效的亲和性
+     * 特权辅助进程可用时走 sched_getaffinity，否则一条命令读取所有线程的 Cpus_allowed
+     * @return 与 tids 对应的掩码，读取失败（线程已退出等）为 0
+     */
+    public static long[] getThreadAffinityBatch(int[] tids) {
+        if (NativeHelper.isHelperAlive()) {
+            long[] masks = NativeHelper.getThreadAffinities(tids);
+            if (masks != null) {
+                return masks;
+            }
+        }
+        long[] masks = new long[tids.length];
+        if (tids.length == 0) return masks;
+        // /proc/<tid>/status 对非主线程同样可用；输出形如 "1234/status:Cpus_allowed:\tff"
+        StringBuilder cmd = new StringBuilder("cd /proc && grep -H Cpus_allowed: ");
+        for (int tid : tids) {
+            cmd.append(tid).append("/status ");
+        }
+        cmd.append("2>/dev/null");
+        String result = executeRootCommand(cmd.toString());
+        if (result == null) return masks;
+        Map<Integer, Long> byTid = new HashMap<>();
+        for (String line : result.split("\n")) {
+            int slash = line.indexOf('/');
+            int tab = line.lastIndexOf(':');
+            if (slash <= 0 || tab < 0) continue;
             try {
-                Process process = Runtime.getRuntime().exec("su");
-                java.io.DataOutputStream os = new java.io.DataOutputStream(process.getOutputStream());
-                os.writeBytes(command + "\n");
-                os.writeBytes("exit\n");
-                os.flush();
-                // 不等待结果，让进程在后台运行
-                Log.d(TAG, "Async root command started: " + command.substring(0, Math.min(50, command.length())));
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to execute async root command: " + e.getMessage());
+                int tid = Integer.parseInt(line.substring(0, slash));
+                // 超过 32 核时按逗号分组，这里只取低 64 位
+                String hex = line.substring(tab + 1).trim().replace(",", "");
+                if (hex.length() > 16) hex = hex.substring(hex.length() - 16);
+                byTid.put(tid, Long.parseUnsignedLong(hex, 16));
+            } catch (NumberFormatException e) {
+                // 忽略
             }
-        }).start();
+        }
+        for (int i = 0; i < tids.length; i++) {
+            Long mask = byTid.get(tids[i]);
+            masks[i] = mask != null ? mask : 0;
+        }
+        return masks;
     }
-
+    
     /**
      * 直接读取CPU频率（不需要root）
      */
@@ -0,0 +1,328 @@
+package com.threadaffinity.manager.util;
+
+import android.util.Log;
+import com.threadaffinity.manager.NativeHelper;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 长时间运行的 Root 后台任务管理（如音量键监听循环）
+ *
+ * - 每个任务由一个 su 进程托管，任务脚本在独立的进程组中运行，停止时整组 kill，不留孤儿进程
+ * - 任务进程的命令行带标记 {@link #JOB_MARKER}，服务启动时可以按标记回收上次遗留的任务
+ * - 支持重启策略（带指数退避）和 CPU 时间统计（整个进程组）
+ */
+public class RootJobManager {
+    private static final String TAG = "RootJobManager";
+    static final String JOB_MARKER = "ta_job_";
+    private static final String PGID_TOKEN = "___JOB_PGID___";
+    private static final long RESTART_BACKOFF_MIN_MS = 1000;
+    private static final long RESTART_BACKOFF_MAX_MS = 60000;
+    private static final long STABLE_RUN_MS = 60000; // 运行超过该时间视为稳定，退避时间复位
+
+    /** 重启策略 */
+    public enum RestartPolicy {
+        NEVER,       // 退出后不重启
+        ON_FAILURE,  // 非 0 退出时重启
+        ALWAYS       // 除非主动停止，否则总是重启
+    }
+
+    /** 任务状态 */
+    public enum State { STARTING, RUNNING, BACKOFF, STOPPED, EXITED }
+
+    /**
+     * 任务句柄
+     */
+    public static final class Job {
+        private final String name;
+        private final String script;
+        private final RestartPolicy policy;
+        private volatile State state = State.STARTING;
+        private volatile Process process;
+        private volatile int pgid = -1;
+        private volatile int lastExitCode;
+        private volatile int restarts;
+        private volatile long startedAt;
+        private volatile boolean stopRequested;
+
+        private Job(String name, String script, RestartPolicy policy) {
+            this.name = name;
+            this.script = script;
+            this.policy = policy;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /** 任务进程组 ID，未运行时为 -1 */
+        public int getPgid() {
+            return pgid;
+        }
+
+        public int getRestarts() {
+            return restarts;
+        }
+
+        public int getLastExitCode() {
+            return lastExitCode;
+        }
+
+        public boolean isRunning() {
+            return state == State.RUNNING;
+        }
+
+        /**
+         * 停止任务（整个进程组），不再重启
+         */
+        public void stop() {
+            RootJobManager.stop(name);
+        }
+
+        /**
+         * 任务进程组累计 CPU 时间（毫秒），包括已退出的子进程
+         * 需要一次 root 命令，按需调用
+         */
+        public long cpuTimeMs() {
+            int pg = pgid;
+            if (pg <= 0) return 0;
+            // 组内进程的 utime+stime，加上组长已回收子进程的 cutime+cstime
+            // comm 可能包含空格和括号：先去掉最后一个 ") " 及之前的部分，f[1] 为 state（stat 第 3 个字段）
+            String out = RootHelper.executeRootCommand(
+                "awk '{s=$0; sub(/.*\\) /, \"\", s); split(s, f, \" \"); " +
+                "if (f[3]==" + pg + ") t+=f[12]+f[13]; if ($1==" + pg + ") t+=f[14]+f[15]} END {print t+0}' " +
+                "/proc/[0-9]*/stat 2>/dev/null");
+            if (out == null) return 0;
+            try {
+                return Long.parseLong(out.trim()) * 1000 / NativeHelper.clockTicksPerSecond();
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + " state=" + state + " pgid=" + pgid + " restarts=" + restarts
+                + " lastExit=" + lastExitCode + " policy=" + policy
+                + " uptime=" + (state == State.RUNNING ? (System.currentTimeMillis() - startedAt) / 1000 : 0) + "s";
+        }
+    }
+
+    private static final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * 启动任务；同名任务已在运行时直接返回已有句柄
+     * @param name 任务名（字母、数字、下划线），同时用作进程标记
+     * @param script shell 脚本
+     */
+    public static Job start(String name, String script, RestartPolicy policy) {
+        synchronized (jobs) {
+            Job existing = jobs.get(name);
+            if (existing != null && !existing.stopRequested
+                    && existing.state != State.EXITED && existing.state != State.STOPPED) {
+                return existing;
+            }
+            Job job = new Job(name, script, policy);
+            jobs.put(name, job);
+            Thread monitor = new Thread(() -> superviseLoop(job), "RootJob-" + name);
+            monitor.setDaemon(true);
+            monitor.start();
+            return job;
+        }
+    }
+
+    /**
+     * 停止指定任务
+     * @return 是否存在该任务
+     */
+    public static boolean stop(String name) {
+        Job job = jobs.remove(name);
+        if (job == null) return false;
+        job.stopRequested = true;
+        killGroup(job);
+        job.state = State.STOPPED;
+        Log.i(TAG, "Job stopped: " + name);
+        return true;
+    }
+
+    /**
+     * 停止所有任务
+     */
+    public static void stopAll() {
+        for (String name : new ArrayList<>(jobs.keySet())) {
+            stop(name);
+        }
+    }
+
+    public static Job find(String name) {
+        return jobs.get(name);
+    }
+
+    public static List<Job> list() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * 回收遗留任务：带标记但不属于当前托管任务的进程组全部 kill
+     * 在服务启动时调用，清理上次服务异常退出留下的循环脚本
+     * @return 回收的进程组数
+     */
+    public static int reapOrphans() {
+        // ta_job[_] 写法避免 grep 匹配到自身的命令行
+        String out = RootHelper.executeRootCommand(
+            "for d in /proc/[0-9]*; do grep -qa '" + JOB_MARKER.substring(0, JOB_MARKER.length() - 1) + "[_]' $d/cmdline 2>/dev/null " +
+            "&& cut -d' ' -f5 $d/stat 2>/dev/null; done");
+        if (out == null) return 0;
+        Set<Integer> managed = new HashSet<>();
+        for (Job job : jobs.values()) {
+            if (job.pgid > 0) managed.add(job.pgid);
+        }
+        Set<Integer> orphans = new HashSet<>();
+        for (String line : out.split("\n")) {
+            try {
+                int pg = Integer.parseInt(line.trim());
+                if (pg > 1 && !managed.contains(pg)) orphans.add(pg);
+            } catch (NumberFormatException e) {
+                // 忽略
+            }
+        }
+        if (orphans.isEmpty()) return 0;
+        StringBuilder cmd = new StringBuilder();
+        for (int pg : orphans) {
+            cmd.append("kill -9 -").append(pg).append(" 2>/dev/null; ");
+        }
+        RootHelper.executeRootCommand(cmd.toString());
+        Log.i(TAG, "Reaped " + orphans.size() + " orphan job groups: " + orphans);
+        return orphans.size();
+    }
+
+    /**
+     * 任务列表描述（调试用）
+     */
+    public static String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Job job : jobs.values()) {
+            sb.append(job).append(" cpu=").append(job.cpuTimeMs()).append("ms\n");
+        }
+        return sb.length() > 0 ? sb.toString() : "no root jobs\n";
+    }
+
+    /**
+     * 托管线程：启动任务、等待退出、按策略重启
+     */
+    private static void superviseLoop(Job job) {
+        long backoff = RESTART_BACKOFF_MIN_MS;
+        while (!job.stopRequested) {
+            job.state = State.STARTING;
+            int exitCode = runOnce(job);
+            job.lastExitCode = exitCode;
+            job.pgid = -1;
+            if (job.stopRequested) break;
+
+            boolean restart = job.policy == RestartPolicy.ALWAYS
+                || (job.policy == RestartPolicy.ON_FAILURE && exitCode != 0);
+            if (!restart) {
+                job.state = State.EXITED;
+                Log.i(TAG, "Job " + job.name + " exited: " + exitCode);
+                jobs.remove(job.name, job);
+                return;
+            }
+            if (System.currentTimeMillis() - job.startedAt > STABLE_RUN_MS) {
+                backoff = RESTART_BACKOFF_MIN_MS;
+            }
+            job.state = State.BACKOFF;
+            Log.w(TAG, "Job " + job.name + " exited (" + exitCode + "), restarting in " + backoff + "ms");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                break;
+            }
+            backoff = Math.min(backoff * 2, RESTART_BACKOFF_MAX_MS);
+            job.restarts++;
+        }
+        job.state = State.STOPPED;
+    }
+
+    /**
+     * 运行一次任务并等待其结束
+     * su 进程中的 shell 把任务放到独立进程组后台运行，输出进程组 ID，再 wait 到任务结束
+     * @return 任务退出码，启动失败返回 -1
+     */
+    private static int runOnce(Job job) {
+        Process p;
+        try {
+            p = new ProcessBuilder(RootShell.shellCommand()).redirectErrorStream(true).start();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start job " + job.name + ": " + e.getMessage());
+            return -1;
+        }
+        job.process = p;
+        job.startedAt = System.currentTimeMillis();
+        try {
+            // sh -c 的 $0 设为标记，出现在任务进程的命令行中；有 setsid 时用新会话，否则用 set -m 的作业控制分组
+            String quoted = "'" + job.script.replace("'", "'\\''") + "'";
+            String launcher =
+                "if command -v setsid >/dev/null 2>&1; then " +
+                "setsid sh -c " + quoted + " " + JOB_MARKER + job.name + " </dev/null >/dev/null 2>&1 & " +
+                "else set -m; sh -c " + quoted + " " + JOB_MARKER + job.name + " </dev/null >/dev/null 2>&1 & fi\n" +
+                "echo " + PGID_TOKEN + " $!\n" +
+                "wait $!\n" +
+                "exit $?\n";
+            OutputStream os = p.getOutputStream();
+            os.write(launcher.getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            os.close();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(PGID_TOKEN)) {
+                    try {
+                        job.pgid = Integer.parseInt(line.substring(PGID_TOKEN.length()).trim());
+                        job.state = State.RUNNING;
+                        Log.i(TAG, "Job " + job.name + " running, pgid=" + job.pgid);
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Bad pgid line: " + line);
+                    }
+                    if (job.stopRequested) killGroup(job);
+                }
+            }
+            return p.waitFor();
+        } catch (IOException e) {
+            Log.e(TAG, "Job " + job.name + " IO error: " + e.getMessage());
+            p.destroy();
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            p.destroy();
+            return -1;
+        } finally {
+            job.process = null;
+        }
+    }
+
+    /**
+     * kill 整个任务进程组，并结束托管的 su 进程
+     */
+    private static void killGroup(Job job) {
+        int pg = job.pgid;
+        if (pg > 1) {
+            RootHelper.executeRootCommand("kill -9 -" + pg + " 2>/dev/null");
+        }
+        Process p = job.process;
+        if (p != null) p.destroy();
+    }
+}
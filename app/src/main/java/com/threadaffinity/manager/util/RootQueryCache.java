@@ -0,0 +1,218 @@
+package com.threadaffinity.manager.util;
+
+import android.util.Log;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * 幂等 Root 查询的缓存（pidof、进程存活检查、dumpsys 列表等）
+ *
+ * - 按命令字符串缓存输出，每条命令各自指定有效期
+ * - 单飞合并：同一命令同时只执行一次，并发的调用方等待同一个结果
+ * - 进程退出时按 pid 失效：pidof 的输出 pid 和命令中 /proc/<pid>/ 引用的 pid 都会关联到缓存项
+ * - 执行失败（返回 null）不缓存
+ * - 写入时顺带清理过期项（最多每 {@link #SWEEP_INTERVAL_MS} 一次），按 pid 的命令不会一直累积
+ */
+public class RootQueryCache {
+    private static final String TAG = "RootQueryCache";
+    private static final long SWEEP_INTERVAL_MS = 10000;
+
+    private static final class Entry {
+        final String value;
+        final long expiresAt;
+        final int[] pids;
+
+        Entry(String value, long expiresAt, int[] pids) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.pids = pids;
+        }
+
+        boolean references(int pid) {
+            for (int p : pids) {
+                if (p == pid) return true;
+            }
+            return false;
+        }
+    }
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong coalesced = new AtomicLong();
+    private static final AtomicLong invalidations = new AtomicLong();
+    private static final AtomicLong expired = new AtomicLong();
+    private static final AtomicLong nextSweepAt = new AtomicLong();
+
+    /**
+     * 执行查询命令（JVM 单元测试中替换）
+     */
+    interface Runner {
+        /** @return 命令输出，失败返回 null */
+        String run(String command);
+    }
+
+    private static volatile Runner runner = command -> RootHelper.executeRootCommand(command);
+    private static volatile LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * 替换命令执行和时钟（JVM 单元测试中使用）
+     */
+    static void setRunner(Runner r, LongSupplier c) {
+        runner = r;
+        clock = c;
+        nextSweepAt.set(0);
+    }
+
+    /**
+     * 查询命令输出，有效期内直接返回缓存
+     * @param ttlMs 缓存有效期（毫秒）
+     * @return 命令输出，失败返回 null
+     */
+    public static String query(String command, long ttlMs) {
+        Entry entry = entries.get(command);
+        if (entry != null && clock.getAsLong() < entry.expiresAt) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> running = inFlight.putIfAbsent(command, mine);
+        if (running != null) {
+            // 已有线程在执行同一命令，等待它的结果
+            coalesced.incrementAndGet();
+            try {
+                return running.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+
+        misses.incrementAndGet();
+        String value = null;
+        try {
+            value = runner.run(command);
+            if (value != null) {
+                long now = clock.getAsLong();
+                entries.put(command, new Entry(value, now + ttlMs, referencedPids(command, value)));
+                sweepExpired(now);
+            }
+        } finally {
+            inFlight.remove(command, mine);
+            mine.complete(value);
+        }
+        return value;
+    }
+
+    /**
+     * 移除过期项；距上次清理不足 SWEEP_INTERVAL_MS 时直接返回，只有一个线程执行
+     */
+    private static void sweepExpired(long now) {
+        long due = nextSweepAt.get();
+        if (now < due || !nextSweepAt.compareAndSet(due, now + SWEEP_INTERVAL_MS)) {
+            return;
+        }
+        int removed = 0;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            // 按值移除：清理期间被重新写入的新项保留
+            if (now >= e.getValue().expiresAt && entries.remove(e.getKey(), e.getValue())) {
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            expired.addAndGet(removed);
+        }
+    }
+
+    /**
+     * 使单条命令的缓存失效
+     */
+    public static void invalidate(String command) {
+        if (entries.remove(command) != null) {
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * 进程退出：移除所有与该 pid 关联的缓存项
+     */
+    public static void onProcessDied(int pid) {
+        if (pid <= 0) return;
+        int removed = 0;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            if (it.next().references(pid)) {
+                it.remove();
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            invalidations.addAndGet(removed);
+            Log.d(TAG, "Process " + pid + " died, invalidated " + removed + " entries");
+        }
+    }
+
+    /**
+     * 清空缓存
+     */
+    public static void clear() {
+        entries.clear();
+    }
+
+    /**
+     * 命中统计（调试用）
+     */
+    public static String describe() {
+        long h = hits.get();
+        long total = h + misses.get() + coalesced.get();
+        return "queryCache entries=" + entries.size() + " hits=" + h + " misses=" + misses.get()
+            + " coalesced=" + coalesced.get() + " invalidations=" + invalidations.get()
+            + " expired=" + expired.get()
+            + " saved=" + (total > 0 ? (h + coalesced.get()) * 100 / total : 0) + "%";
+    }
+
+    /**
+     * 缓存项关联的 pid：命令中的 /proc/<pid>/，以及 pidof 输出的 pid
+     */
+    private static int[] referencedPids(String command, String output) {
+        int[] buffer = new int[8];
+        int count = 0;
+        int idx = 0;
+        while ((idx = command.indexOf("/proc/", idx)) >= 0) {
+            idx += 6;
+            int pid = parsePositive(command, idx);
+            if (pid > 0 && count < buffer.length) buffer[count++] = pid;
+        }
+        if (command.startsWith("pidof ")) {
+            int i = 0;
+            int len = output.length();
+            while (i < len && count < buffer.length) {
+                while (i < len && !Character.isDigit(output.charAt(i))) i++;
+                int pid = parsePositive(output, i);
+                if (pid > 0) buffer[count++] = pid;
+                while (i < len && Character.isDigit(output.charAt(i))) i++;
+            }
+        }
+        int[] pids = new int[count];
+        System.arraycopy(buffer, 0, pids, 0, count);
+        return pids;
+    }
+
+    private static int parsePositive(String s, int start) {
+        int value = 0;
+        int i = start;
+        while (i < s.length() && Character.isDigit(s.charAt(i)) && value < 100000000) {
+            value = value * 10 + (s.charAt(i) - '0');
+            i++;
+        }
+        return i > start ? value : -1;
+    }
+}
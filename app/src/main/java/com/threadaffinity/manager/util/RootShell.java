@@ -1,170 +1,124 @@
 package com.threadaffinity.manager.util;
 
 import android.util.Log;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.InputStreamReader;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * 持久化Root Shell - 单实例，大缓冲区
+ * 持久化Root Shell - 静态入口
+ * 命令分发到 {@link RootShellPool} 中的多个会话，互不相关的调用方可以并行执行
  * 支持自动重连和错误恢复
  */
 public class RootShell {
     private static final String TAG = "RootShell";
-    private static final String END_TOKEN = "___END___";
-    private static final int BUFFER_SIZE = 12 * 1024 * 1024; // 12MB 缓冲区
-    private static final int MAX_CONSECUTIVE_FAILURES = 3; // 连续失败次数阈值
+    private static final int DEFAULT_POOL_SIZE = 3; // 统计/帧率/线程采样/亲和性循环并行所需的会话数
+    private static final long DEFAULT_BATCH_TIMEOUT_MS = 10000;
     
-    private static Process process;
-    private static DataOutputStream stdin;
-    private static BufferedReader stdout;
     private static final Object lock = new Object();
-    private static volatile boolean initialized = false;
-    private static AtomicInteger consecutiveFailures = new AtomicInteger(0);
-    private static long lastSuccessTime = 0;
+    private static String[] shellCommand = {"su"};
+    private static int poolSize = DEFAULT_POOL_SIZE;
+    private static RootShellPool pool;
     
     /**
-     * 初始化Shell
+     * 设置启动 shell 的命令（默认 su）
+     * 在 Linux 上测试时可以指定为 sh
      */
-    private static boolean init() {
+    public static void setShellCommand(String... command) {
         synchronized (lock) {
-            if (initialized && isAlive()) {
-                return true;
-            }
-            
+            shellCommand = command.clone();
             close();
-            
-            try {
-                Log.i(TAG, "Initializing root shell...");
-                process = Runtime.getRuntime().exec("su");
-                stdin = new DataOutputStream(process.getOutputStream());
-                // 使用大缓冲区
-                stdout = new BufferedReader(new InputStreamReader(process.getInputStream()), BUFFER_SIZE);
-                initialized = true;
-                consecutiveFailures.set(0);
-                lastSuccessTime = System.currentTimeMillis();
-                Log.i(TAG, "Root shell initialized with " + BUFFER_SIZE + " bytes buffer");
-                return true;
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to init shell: " + e.getMessage());
-                return false;
-            }
         }
     }
     
-    private static boolean isAlive() {
-        if (process == null) return false;
-        try {
-            process.exitValue();
-            return false;
-        } catch (IllegalThreadStateException e) {
-            return true;
+    /**
+     * 当前启动 shell 的命令（RootJobManager 用同一命令启动后台任务）
+     */
+    static String[] shellCommand() {
+        synchronized (lock) {
+            return shellCommand.clone();
         }
     }
     
     /**
-     * 执行命令
+     * 设置会话池大小（下次初始化时生效）
      */
-    public static String execute(String command, long timeoutMs) {
+    public static void setPoolSize(int size) {
         synchronized (lock) {
-            // 检查是否需要重新初始化
-            if (!init()) {
-                Log.e(TAG, "Failed to init shell for command: " + command);
-                return null;
-            }
-            
-            // 如果连续失败次数过多，尝试重新初始化
-            if (consecutiveFailures.get() >= MAX_CONSECUTIVE_FAILURES) {
-                Log.w(TAG, "Too many consecutive failures, reinitializing shell...");
-                close();
-                if (!init()) {
-                    return null;
-                }
-            }
-            
-            try {
-                StringBuilder output = new StringBuilder(4096);
-                long token = System.nanoTime();
-                String endMarker = END_TOKEN + token;
-                
-                // 发送命令
-                stdin.writeBytes(command + "\n");
-                stdin.writeBytes("echo '" + endMarker + "'\n");
-                stdin.flush();
-                
-                // 读取输出
-                char[] buffer = new char[8192];
-                StringBuilder lineBuffer = new StringBuilder();
-                long deadline = System.currentTimeMillis() + timeoutMs;
-                boolean foundMarker = false;
-                
-                while (System.currentTimeMillis() < deadline) {
-                    if (stdout.ready()) {
-                        int read = stdout.read(buffer);
-                        if (read > 0) {
-                            lineBuffer.append(buffer, 0, read);
-                            
-                            // 检查是否包含结束标记
-                            int endIdx = lineBuffer.indexOf(endMarker);
-                            if (endIdx >= 0) {
-                                output.append(lineBuffer.substring(0, endIdx));
-                                foundMarker = true;
-                                break;
-                            }
-                        }
-                    } else {
-                        Thread.sleep(2);
-                    }
-                }
-                
-                // 如果没找到结束标记
-                if (!foundMarker) {
-                    if (lineBuffer.length() > 0) {
-                        int endIdx = lineBuffer.indexOf(endMarker);
-                        if (endIdx >= 0) {
-                            output.append(lineBuffer.substring(0, endIdx));
-                            foundMarker = true;
-                        } else {
-                            // 超时，返回已读取的内容，但标记为失败
-                            Log.w(TAG, "Command timeout, partial output: " + lineBuffer.length() + " chars");
-                            output.append(lineBuffer);
-                            consecutiveFailures.incrementAndGet();
-                        }
-                    } else {
-                        Log.w(TAG, "Command timeout with no output");
-                        consecutiveFailures.incrementAndGet();
-                    }
-                }
-                
-                if (foundMarker) {
-                    // 成功，重置失败计数
-                    consecutiveFailures.set(0);
-                    lastSuccessTime = System.currentTimeMillis();
-                }
-                
-                return output.toString();
-            } catch (Exception e) {
-                Log.e(TAG, "Execute failed: " + e.getMessage());
-                consecutiveFailures.incrementAndGet();
-                
-                // 如果是 IO 异常，关闭 shell 以便下次重新初始化
-                if (e instanceof java.io.IOException) {
-                    Log.w(TAG, "IO exception, closing shell for reinit");
-                    close();
-                }
-                
-                return null;
+            poolSize = Math.max(1, size);
+            close();
+        }
+    }
+    
+    /**
+     * 获取会话池（不存在时创建）
+     */
+    public static RootShellPool pool() {
+        synchronized (lock) {
+            if (pool == null) {
+                Log.i(TAG, "Initializing root shell pool...");
+                pool = new RootShellPool(poolSize, shellCommand);
             }
+            return pool;
         }
     }
     
+    /**
+     * 执行命令（共享会话；当前线程持有租约时使用租用的会话）
+     */
+    public static String execute(String command, long timeoutMs) {
+        return pool().execute(command, timeoutMs);
+    }
+    
+    /**
+     * 流式执行命令：输出每到一行就交给 handler，调用方边读边解析，不保留完整输出
+     * handler 在读取线程上调用，收到的 CharSequence 只在本次调用内有效
+     * @return 命令是否完整执行结束
+     */
+    public static boolean executeStreaming(String command, ShellSession.LineHandler handler, long timeoutMs) {
+        return pool().executeStreaming(command, handler, timeoutMs);
+    }
+    
+    /**
+     * 批量执行命令：所有命令一次写入同一个会话，结果按顺序一一对应
+     * @return 各命令的输出，失败或超时的条目为 null
+     */
+    public static List<String> executeBatch(List<String> commands) {
+        return executeBatch(commands, DEFAULT_BATCH_TIMEOUT_MS);
+    }
+    
+    /**
+     * 批量执行命令
+     * @param timeoutMs 整批的超时时间
+     */
+    public static List<String> executeBatch(List<String> commands, long timeoutMs) {
+        return pool().executeBatch(commands, timeoutMs);
+    }
+    
+    /**
+     * 流水线提交命令，不等待结果
+     * 多个 submit 可以连续发出，结果通过各自的 Future 返回（失败时以 IOException 异常完成）
+     * @param timeoutMs 截止时间，到期后 Future 以 CommandTimeoutException 失败；
+     *                  超时或 cancel() 后该命令迟到的输出会被丢弃，不影响后续命令
+     */
+    public static CompletableFuture<ShellSession.Result> submit(String command, long timeoutMs) {
+        return pool().submit(command, timeoutMs);
+    }
+    
+    /**
+     * 独占租用一个会话，租约期间当前线程的所有命令都走该会话
+     * 用法: try (RootShellPool.Lease lease = RootShell.acquire(1000)) { ... }
+     * @return 租约，超时返回 null（try-with-resources 可以安全处理 null）
+     */
+    public static RootShellPool.Lease acquire(long waitMs) {
+        return pool().acquire(waitMs);
+    }
+    
     /**
      * 检查 Shell 是否健康
      */
     public static boolean isHealthy() {
         synchronized (lock) {
-            return initialized && isAlive() && consecutiveFailures.get() < MAX_CONSECUTIVE_FAILURES;
+            return pool != null && pool.isHealthy();
         }
     }
     
@@ -172,7 +126,9 @@ public class RootShell {
      * 获取上次成功执行的时间
      */
     public static long getLastSuccessTime() {
-        return lastSuccessTime;
+        synchronized (lock) {
+            return pool != null ? pool.getLastSuccessTime() : 0;
+        }
     }
     
     /**
@@ -180,14 +136,11 @@ public class RootShell {
      */
     public static void close() {
         synchronized (lock) {
-            initialized = false;
-            try { if (stdin != null) { stdin.writeBytes("exit\n"); stdin.flush(); stdin.close(); } } catch (Exception e) {}
-            try { if (stdout != null) stdout.close(); } catch (Exception e) {}
-            try { if (process != null) process.destroy(); } catch (Exception e) {}
-            stdin = null;
-            stdout = null;
-            process = null;
-            Log.i(TAG, "Root shell closed");
+            if (pool != null) {
+                pool.close();
+                pool = null;
+                Log.i(TAG, "Root shell closed");
+            }
         }
     }
 }
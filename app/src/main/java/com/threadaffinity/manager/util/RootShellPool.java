@@ -0,0 +1,476 @@
+package com.threadaffinity.manager.util;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Root Shell 会话池
+ *
+ * 维护固定数量的持久化 su 会话，互不相关的调用方（统计、帧率、线程采样、亲和性循环）
+ * 可以并行执行命令，而不是排队等待同一把全局锁。
+ *
+ * 两种使用方式：
+ * - 共享：{@link #execute} / {@link #submit} / {@link #executeBatch} 选择在途请求最少的会话
+ * - 独占：{@link #acquire} 租用一个会话，租约期间当前线程的所有命令（包括 JNI 回调）都走该会话
+ *
+ * 命令超时不会导致会话重启：超时请求的迟到输出由会话按请求ID丢弃，
+ * 只有会话进程退出、连续 IO 失败或命令卡住过久时才重连。
+ *
+ * 每次执行都按当前线程标签和命令类别记入 {@link ShellStats}。
+ */
+public class RootShellPool {
+    private static final String TAG = "RootShellPool";
+    private static final int MAX_CONSECUTIVE_FAILURES = 3; // 连续失败次数阈值（不含超时）
+    private static final long STALL_RESTART_MS = 30000;    // 超时的命令卡住超过该时间才重启会话
+    private static final int STALLED_LOAD_PENALTY = 1000;  // 有卡住命令的会话尽量不再分配请求
+    private static final String BATCH_CLASS = "batch";      // 批量执行在统计中的命令类别
+
+    /**
+     * 池中的单个会话及其健康状态
+     */
+    static final class PooledSession {
+        final int index;
+        final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+        volatile ShellSession session;
+        volatile boolean leased;
+        volatile long lastSuccessTime;
+        volatile int reconnects;
+
+        PooledSession(int index) {
+            this.index = index;
+        }
+
+        boolean isHealthy() {
+            ShellSession s = session;
+            return s != null && s.isAlive() && consecutiveFailures.get() < MAX_CONSECUTIVE_FAILURES;
+        }
+    }
+
+    /**
+     * 独占会话租约，必须在获取它的线程上关闭
+     */
+    public final class Lease implements AutoCloseable {
+        private final PooledSession pooled;
+        private final Lease previous;
+        private boolean closed;
+
+        private Lease(PooledSession pooled, Lease previous) {
+            this.pooled = pooled;
+            this.previous = previous;
+        }
+
+        /**
+         * 在租用的会话上执行命令
+         */
+        public String execute(String command, long timeoutMs) {
+            return RootShellPool.this.executeOn(pooled, command, timeoutMs);
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            currentLease.set(previous);
+            synchronized (RootShellPool.this) {
+                pooled.leased = false;
+                RootShellPool.this.notifyAll();
+            }
+        }
+    }
+
+    private final String[] shellCommand;
+    private final PooledSession[] sessions;
+    private final AtomicInteger nextIndex = new AtomicInteger(0);
+    private final ThreadLocal<Lease> currentLease = new ThreadLocal<>();
+    private volatile boolean closed = false;
+
+    public RootShellPool(int size, String... shellCommand) {
+        if (size < 1) size = 1;
+        this.shellCommand = shellCommand.clone();
+        this.sessions = new PooledSession[size];
+        for (int i = 0; i < size; i++) {
+            sessions[i] = new PooledSession(i);
+        }
+        Log.i(TAG, "Pool created: size=" + size);
+    }
+
+    public int size() {
+        return sessions.length;
+    }
+
+    /**
+     * 共享方式执行命令
+     * 当前线程持有租约时使用租用的会话，否则选择在途请求最少的未租用会话
+     */
+    public String execute(String command, long timeoutMs) {
+        return executeOn(select(), command, timeoutMs);
+    }
+
+    /**
+     * 流水线提交一条命令，立即返回 Future
+     * @param timeoutMs 截止时间，到期后 Future 以 CommandTimeoutException 失败
+     */
+    public CompletableFuture<ShellSession.Result> submit(String command, long timeoutMs) {
+        final long start = System.nanoTime();
+        final String tag = ShellStats.currentTag();
+        final String commandClass = ShellStats.commandClass(command);
+        PooledSession ps = select();
+        ShellSession session = ensureSession(ps);
+        if (session == null) {
+            recordStats(tag, commandClass, start, System.nanoTime(), 0, ShellStats.Outcome.FAILED);
+            CompletableFuture<ShellSession.Result> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("no shell session available"));
+            return failed;
+        }
+        CompletableFuture<ShellSession.Result> future = session.submit(command, timeoutMs);
+        final long submitted = System.nanoTime();
+        future.whenComplete((result, error) -> recordStats(tag, commandClass, start, submitted,
+            result != null ? result.bytes : 0, outcomeOf(error)));
+        return future;
+    }
+
+    /**
+     * 流式执行命令：输出按行交给 handler（在读取线程上调用）
+     * @return 命令是否完整执行结束（与退出码无关）
+     */
+    public boolean executeStreaming(String command, final ShellSession.LineHandler handler, long timeoutMs) {
+        if (closed) return false;
+        long start = System.nanoTime();
+        String tag = ShellStats.currentTag();
+        String commandClass = ShellStats.commandClass(command);
+        PooledSession ps = select();
+        ShellSession session = ensureSession(ps);
+        if (session == null) {
+            recordStats(tag, commandClass, start, System.nanoTime(), 0, ShellStats.Outcome.FAILED);
+            return false;
+        }
+        // 统计输出字节数（逐行按 UTF-8 编码累加，含换行；超时时也有已读取的部分）
+        final long[] bytes = new long[1];
+        ShellSession.LineHandler counting = line -> {
+            bytes[0] += ShellStats.utf8Length(line) + 1;
+            handler.onLine(line);
+        };
+        CompletableFuture<ShellSession.Result> future = session.submitStreaming(command, counting, timeoutMs);
+        long submitted = System.nanoTime();
+        try {
+            ShellSession.await(future);
+            recordStats(tag, commandClass, start, submitted, bytes[0], ShellStats.Outcome.OK);
+            recordSuccess(ps);
+            return true;
+        } catch (ShellSession.CommandTimeoutException e) {
+            recordStats(tag, commandClass, start, submitted, bytes[0], ShellStats.Outcome.TIMEOUT);
+            Log.w(TAG, "Session " + ps.index + " streaming command timed out: " + e.getMessage());
+            return false;
+        } catch (IOException e) {
+            recordStats(tag, commandClass, start, submitted, bytes[0], ShellStats.Outcome.FAILED);
+            recordFailure(ps, e);
+            return false;
+        }
+    }
+
+    /**
+     * 一次写入执行多条命令，结果与命令一一对应（失败的条目为 null）
+     */
+    public List<String> executeBatch(List<String> commands, long timeoutMs) {
+        List<String> outputs = new ArrayList<>(commands.size());
+        if (commands.isEmpty() || closed) {
+            for (int i = 0; i < commands.size(); i++) outputs.add(null);
+            return outputs;
+        }
+        long start = System.nanoTime();
+        String tag = ShellStats.currentTag();
+        PooledSession ps = select();
+        ShellSession session = ensureSession(ps);
+        if (session == null) {
+            recordStats(tag, BATCH_CLASS, start, System.nanoTime(), 0, ShellStats.Outcome.FAILED);
+            for (int i = 0; i < commands.size(); i++) outputs.add(null);
+            return outputs;
+        }
+        // 每条命令单独收集结果：超时的条目为 null，不影响同批其它命令
+        int timedOut = 0;
+        int failed = 0;
+        long bytes = 0;
+        List<CompletableFuture<ShellSession.Result>> futures = session.submitBatch(commands, timeoutMs);
+        long submitted = System.nanoTime();
+        for (CompletableFuture<ShellSession.Result> f : futures) {
+            try {
+                ShellSession.Result result = ShellSession.await(f);
+                bytes += result.bytes;
+                outputs.add(result.output);
+            } catch (IOException e) {
+                outputs.add(null);
+                if (e instanceof ShellSession.CommandTimeoutException) {
+                    timedOut++;
+                } else {
+                    failed++;
+                    recordFailure(ps, e);
+                }
+            }
+        }
+        // 整批记为一次 "batch" 类别的执行
+        recordStats(tag, BATCH_CLASS, start, submitted, bytes, failed > 0 ? ShellStats.Outcome.FAILED
+            : timedOut > 0 ? ShellStats.Outcome.TIMEOUT : ShellStats.Outcome.OK);
+        if (timedOut > 0) {
+            Log.w(TAG, "Session " + ps.index + " batch: " + timedOut + "/" + commands.size() + " commands timed out");
+        }
+        if (timedOut < commands.size()) {
+            recordSuccess(ps);
+        }
+        return outputs;
+    }
+
+    /**
+     * 选择执行会话：租约优先，否则选在途请求最少的未租用会话
+     */
+    private PooledSession select() {
+        Lease lease = currentLease.get();
+        if (lease != null) {
+            return lease.pooled;
+        }
+        int start = nextIndex.getAndIncrement() & Integer.MAX_VALUE;
+        PooledSession best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int i = 0; i < sessions.length; i++) {
+            PooledSession ps = sessions[(start + i) % sessions.length];
+            if (ps.leased) continue;
+            int load = load(ps);
+            if (load < bestLoad) {
+                best = ps;
+                bestLoad = load;
+                if (load == 0) break;
+            }
+        }
+        return best != null ? best : sessions[start % sessions.length];
+    }
+
+    /**
+     * 独占租用一个会话（阻塞直到有会话可用或超时）
+     * 至少保留一个会话给共享调用方，因此最多同时存在 size-1 个租约（size 为 1 时除外）
+     * 已在该会话上排队的共享请求会先执行完，之后的共享请求不再分配到该会话
+     * @return 租约，超时返回 null
+     */
+    public Lease acquire(long waitMs) {
+        long start = System.nanoTime();
+        Lease existing = currentLease.get();
+        long deadline = System.currentTimeMillis() + waitMs;
+        int maxLeases = sessions.length > 1 ? sessions.length - 1 : 1;
+        while (true) {
+            synchronized (this) {
+                long remaining = deadline - System.currentTimeMillis();
+                int leased = 0;
+                for (PooledSession ps : sessions) {
+                    if (ps.leased) leased++;
+                }
+                if (leased < maxLeases) {
+                    PooledSession best = null;
+                    for (PooledSession ps : sessions) {
+                        if (ps.leased) continue;
+                        if (best == null || load(ps) < load(best)) best = ps;
+                    }
+                    if (best != null) {
+                        best.leased = true;
+                        Lease lease = new Lease(best, existing);
+                        currentLease.set(lease);
+                        ShellStats.recordLeaseWait(System.nanoTime() - start);
+                        return lease;
+                    }
+                }
+                if (remaining <= 0) {
+                    Log.w(TAG, "acquire timed out after " + waitMs + "ms");
+                    return null;
+                }
+                // 租约释放时会被唤醒
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+    }
+
+    /**
+     * 会话负载：在途请求数，有卡住的命令时加上惩罚值
+     */
+    private static int load(PooledSession ps) {
+        ShellSession s = ps.session;
+        if (s == null) return 0;
+        return s.inFlight() + (s.abandonedCount() > 0 ? STALLED_LOAD_PENALTY : 0);
+    }
+
+    /**
+     * 在指定会话上执行
+     */
+    private String executeOn(PooledSession ps, String command, long timeoutMs) {
+        if (closed) return null;
+        long start = System.nanoTime();
+        String tag = ShellStats.currentTag();
+        String commandClass = ShellStats.commandClass(command);
+        ShellSession session = ensureSession(ps);
+        if (session == null) {
+            recordStats(tag, commandClass, start, System.nanoTime(), 0, ShellStats.Outcome.FAILED);
+            return null;
+        }
+        CompletableFuture<ShellSession.Result> future = session.submit(command, timeoutMs);
+        long submitted = System.nanoTime();
+        try {
+            ShellSession.Result result = ShellSession.await(future);
+            recordStats(tag, commandClass, start, submitted, result.bytes, ShellStats.Outcome.OK);
+            recordSuccess(ps);
+            return result.output;
+        } catch (ShellSession.CommandTimeoutException e) {
+            // 超时只放弃该请求，会话继续使用
+            recordStats(tag, commandClass, start, submitted, 0, ShellStats.Outcome.TIMEOUT);
+            Log.w(TAG, "Session " + ps.index + " command timed out: " + e.getMessage());
+            return null;
+        } catch (IOException e) {
+            recordStats(tag, commandClass, start, submitted, 0, ShellStats.Outcome.FAILED);
+            recordFailure(ps, e);
+            return null;
+        }
+    }
+
+    /**
+     * 记录一次执行的统计
+     * @param start 调用开始时间
+     * @param submitted 请求写出完成的时间（之前的部分计为等待时间）
+     */
+    private static void recordStats(String tag, String commandClass, long start, long submitted,
+                                    long bytes, ShellStats.Outcome outcome) {
+        ShellStats.record(tag, commandClass, System.nanoTime() - start, submitted - start, bytes, outcome);
+    }
+
+    private static ShellStats.Outcome outcomeOf(Throwable error) {
+        if (error == null) return ShellStats.Outcome.OK;
+        Throwable cause = error instanceof CompletionException && error.getCause() != null
+            ? error.getCause() : error;
+        return cause instanceof ShellSession.CommandTimeoutException
+            ? ShellStats.Outcome.TIMEOUT : ShellStats.Outcome.FAILED;
+    }
+
+    private void recordSuccess(PooledSession ps) {
+        ps.consecutiveFailures.set(0);
+        ps.lastSuccessTime = System.currentTimeMillis();
+    }
+
+    private void recordFailure(PooledSession ps, IOException e) {
+        // IO 异常说明会话已断开，下次使用时重连
+        int failures = ps.consecutiveFailures.incrementAndGet();
+        Log.e(TAG, "Session " + ps.index + " execute failed (" + failures + "): " + e.getMessage());
+    }
+
+    /**
+     * 获取可用的会话，不存在或已断开时重连
+     * 只锁住该会话：其它会话的调用方不必等待 su 启动
+     */
+    private ShellSession ensureSession(PooledSession ps) {
+        if (closed) return null;
+        ShellSession session = ps.session;
+        if (isUsable(ps, session)) {
+            return session;
+        }
+        synchronized (ps) {
+            if (closed) return null;
+            // 等锁期间可能已被其它线程重连
+            session = ps.session;
+            if (isUsable(ps, session)) {
+                return session;
+            }
+            long stalledSince = session != null ? session.stalledSince() : 0;
+            if (stalledSince != 0) {
+                Log.w(TAG, "Session " + ps.index + " stalled for " + (System.currentTimeMillis() - stalledSince) + "ms");
+            }
+            boolean reinit = session != null;
+            if (reinit) {
+                Log.w(TAG, "Session " + ps.index + " unhealthy, reconnecting...");
+                session.close();
+                ps.reconnects++;
+            }
+            session = new ShellSession(shellCommand);
+            if (!session.start()) {
+                Log.e(TAG, "Failed to start session " + ps.index);
+                ps.session = null;
+                return null;
+            }
+            if (closed) {
+                // 启动期间池已关闭
+                session.close();
+                return null;
+            }
+            ShellStats.recordSessionStart(reinit);
+            ps.session = session;
+            ps.consecutiveFailures.set(0);
+            ps.lastSuccessTime = System.currentTimeMillis();
+            return session;
+        }
+    }
+
+    private static boolean isUsable(PooledSession ps, ShellSession session) {
+        if (session == null || !session.isAlive() || ps.consecutiveFailures.get() >= MAX_CONSECUTIVE_FAILURES) {
+            return false;
+        }
+        long stalledSince = session.stalledSince();
+        return stalledSince == 0 || System.currentTimeMillis() - stalledSince <= STALL_RESTART_MS;
+    }
+
+    /**
+     * 是否至少有一个健康的会话
+     */
+    public boolean isHealthy() {
+        for (PooledSession ps : sessions) {
+            if (ps.isHealthy()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 所有会话中最近一次成功执行的时间
+     */
+    public long getLastSuccessTime() {
+        long last = 0;
+        for (PooledSession ps : sessions) {
+            last = Math.max(last, ps.lastSuccessTime);
+        }
+        return last;
+    }
+
+    /**
+     * 各会话健康状态描述（调试用）
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (PooledSession ps : sessions) {
+            sb.append("session[").append(ps.index).append("] alive=")
+              .append(ps.session != null && ps.session.isAlive())
+              .append(" leased=").append(ps.leased)
+              .append(" failures=").append(ps.consecutiveFailures.get())
+              .append(" abandoned=").append(ps.session != null ? ps.session.abandonedCount() : 0)
+              .append(" discarded=").append(ps.session != null ? ps.session.discardedFrameCount() : 0)
+              .append(" reconnects=").append(ps.reconnects)
+              .append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 关闭池中所有会话
+     */
+    public void close() {
+        closed = true;
+        for (PooledSession ps : sessions) {
+            ShellSession s;
+            synchronized (ps) {
+                s = ps.session;
+                ps.session = null;
+            }
+            if (s != null) s.close();
+        }
+        Log.i(TAG, "Pool closed");
+    }
+}
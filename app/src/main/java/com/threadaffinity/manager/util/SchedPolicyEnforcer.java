@@ -0,0 +1,125 @@
+package com.threadaffinity.manager.util;
+
+import android.util.Log;
+import com.threadaffinity.manager.NativeHelper;
+import com.threadaffinity.manager.model.ThreadPolicy;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 调度参数（策略/nice/uclamp）检查与写入，和亲和性在同一轮检查中执行
+ *
+ * 每轮一次批量读取，只写入与规则不一致的线程；写入后用辅助进程回读的参数校验。
+ * 第一次改写前在 {@link AffinityJournal} 记录原值，服务停止时还原。
+ * sched_setattr 没有 shell 命令可替代，特权辅助进程不可用时跳过。
+ */
+public class SchedPolicyEnforcer {
+    private static final String TAG = "SchedPolicyEnforcer";
+
+    private static final AtomicLong passes = new AtomicLong();
+    private static final AtomicLong totalChecked = new AtomicLong();
+    private static final AtomicLong totalDrifted = new AtomicLong();
+    private static final AtomicLong totalRewritten = new AtomicLong();
+    private static final AtomicLong totalFailed = new AtomicLong();
+    private static final Set<Integer> reportedFailures = new HashSet<>(); // 校验失败只记一次日志
+    private static volatile boolean uclampSupported = true;
+    private static volatile AffinityEnforcer.PassStats lastPass;
+
+    /**
+     * 检查并写入调度参数
+     * @param policies 与 tids 对应的规则
+     */
+    public static synchronized AffinityEnforcer.PassStats enforce(int[] tids, ThreadPolicy[] policies) {
+        if (tids.length == 0 || !NativeHelper.isHelperAlive()) {
+            return new AffinityEnforcer.PassStats(0, 0, 0, 0);
+        }
+        final int n = NativeHelper.SCHED_PARAM_COUNT;
+        int[] current = NativeHelper.getThreadSched(tids);
+        if (current == null) {
+            return new AffinityEnforcer.PassStats(0, 0, 0, 0);
+        }
+
+        int[][] wanted = new int[tids.length][];
+        int[] driftTids = new int[tids.length];
+        int[] driftIndex = new int[tids.length];
+        int checked = 0;
+        int drifted = 0;
+        for (int i = 0; i < tids.length; i++) {
+            if (current[i * n] == 0) continue; // 线程已退出
+            checked++;
+            wanted[i] = policies[i].toParams();
+            if (uclampSupported && (wanted[i][0] & (NativeHelper.SCHED_FIELD_UCLAMP_MIN | NativeHelper.SCHED_FIELD_UCLAMP_MAX)) != 0
+                    && (current[i * n] & NativeHelper.SCHED_FIELD_UCLAMP_MIN) == 0) {
+                uclampSupported = false;
+                Log.w(TAG, "Kernel does not support uclamp, uclamp rules ignored");
+            }
+            if (!ThreadPolicy.matches(wanted[i], current, i * n)) {
+                driftTids[drifted] = tids[i];
+                driftIndex[drifted++] = i;
+            }
+        }
+
+        int rewritten = 0;
+        int failed = 0;
+        if (drifted > 0) {
+            int[] writeTids = new int[drifted];
+            int[] writeParams = new int[drifted * n];
+            int[] original = new int[drifted * n];
+            for (int k = 0; k < drifted; k++) {
+                int i = driftIndex[k];
+                writeTids[k] = driftTids[k];
+                System.arraycopy(wanted[i], 0, writeParams, k * n, n);
+                System.arraycopy(current, i * n, original, k * n, n);
+            }
+            // 先记录原值再写入
+            AffinityJournal.recordSched(writeTids, original);
+            int[] result = NativeHelper.setThreadSched(writeTids, writeParams);
+            if (result == null) {
+                failed = drifted;
+            } else {
+                for (int k = 0; k < drifted; k++) {
+                    int base = k * (n + 1);
+                    int code = result[base];
+                    if (code == NativeHelper.AFFINITY_NO_SUCH_THREAD) continue;
+                    int[] actual = new int[n];
+                    System.arraycopy(result, base + 1, actual, 0, n);
+                    int[] want = new int[n];
+                    System.arraycopy(writeParams, k * n, want, 0, n);
+                    if (code == NativeHelper.AFFINITY_OK && actual[0] != 0 && ThreadPolicy.matches(want, actual, 0)) {
+                        rewritten++;
+                        reportedFailures.remove(writeTids[k]);
+                    } else {
+                        failed++;
+                        if (reportedFailures.add(writeTids[k])) {
+                            Log.w(TAG, "Sched params not applied (code " + code + "): tid=" + writeTids[k]
+                                + " want=[" + ThreadPolicy.describe(want, 0) + "] actual=["
+                                + (actual[0] != 0 ? ThreadPolicy.describe(actual, 0) : "?") + "]");
+                        }
+                    }
+                }
+            }
+        }
+        if (reportedFailures.size() > 4096) reportedFailures.clear();
+
+        AffinityEnforcer.PassStats stats = new AffinityEnforcer.PassStats(checked, drifted, rewritten, failed);
+        passes.incrementAndGet();
+        totalChecked.addAndGet(checked);
+        totalDrifted.addAndGet(drifted);
+        totalRewritten.addAndGet(rewritten);
+        totalFailed.addAndGet(failed);
+        lastPass = stats;
+        return stats;
+    }
+
+    /**
+     * 统计信息（调试用）
+     */
+    public static String describe() {
+        AffinityEnforcer.PassStats last = lastPass;
+        return "sched passes=" + passes.get() + " checked=" + totalChecked.get()
+            + " drifted=" + totalDrifted.get() + " rewritten=" + totalRewritten.get()
+            + " failed=" + totalFailed.get() + " uclamp=" + (uclampSupported ? "yes" : "unsupported")
+            + " last=[" + (last != null ? last.toString() : "none") + "]";
+    }
+}
@@ -0,0 +1,22 @@
+package com.threadaffinity.manager.util;
+
+import android.util.Log;
+
+/**
+ * Shell 会话的日志输出
+ * 默认转发到 android.util.Log；JVM 单元测试中通过 {@link ShellSession#setLogger} 替换，
+ * 使 ShellSession 不直接依赖 Android 框架
+ */
+public interface ShellLogger {
+    void d(String tag, String message);
+    void i(String tag, String message);
+    void w(String tag, String message);
+    void e(String tag, String message);
+
+    ShellLogger ANDROID = new ShellLogger() {
+        @Override public void d(String tag, String message) { Log.d(tag, message); }
+        @Override public void i(String tag, String message) { Log.i(tag, message); }
+        @Override public void w(String tag, String message) { Log.w(tag, message); }
+        @Override public void e(String tag, String message) { Log.e(tag, message); }
+    };
+}
@@ -0,0 +1,658 @@
+package com.threadaffinity.manager.util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个持久化 Shell 会话 - 长度帧协议
+ *
+ * 每条命令的输出由 shell 先捕获，再以帧的形式写回：
+ * <pre>
+ *   \n___FRAME___ &lt;请求ID&gt; &lt;退出码&gt; &lt;字节数&gt;\n&lt;正文&gt;
+ * </pre>
+ * 读取线程按帧头给出的字节数阻塞读取正文，再按请求ID分发给对应的 Future，
+ * 因此可以一次写入多条命令（流水线），结果仍按命令各自返回。
+ * 大输出可以使用流式帧（{@link #submitStreaming}）：输出不经 shell 捕获，
+ * 读取线程边读边按行交给处理器，不在内存中保留完整输出。
+ * 超时或被取消的请求只会被标记为放弃，其迟到的帧由读取线程按ID丢弃，
+ * 不会串到后续命令的结果里，也不需要重启 shell。
+ * 启动命令可配置（默认 su），在 Linux 上可直接用 sh 测试。
+ */
+public class ShellSession {
+    private static final String TAG = "ShellSession";
+    static final String FRAME_TOKEN = "___FRAME___";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // 会话初始化脚本：
+    // 1. LC_ALL=C / set +U 保证 ${#var} 按字节计数
+    // 2. __put 只用内建命令输出（mksh 用 print，其它 shell 用 printf），避免 fork 和参数长度限制
+    private static final String PRELUDE =
+        "export LC_ALL=C\n" +
+        "if [ -n \"$KSH_VERSION\" ]; then set +U; __put() { print -rn -- \"$1\"; }; " +
+        "else __put() { printf '%s' \"$1\"; }; fi\n";
+
+    private static volatile ShellLogger logger = ShellLogger.ANDROID;
+
+    /**
+     * 替换日志输出（JVM 单元测试中使用）
+     */
+    public static void setLogger(ShellLogger l) {
+        logger = l;
+    }
+
+    // 所有会话共用的超时定时器
+    private static final ScheduledThreadPoolExecutor TIMER = createTimer();
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "ShellSession-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * 命令在截止时间内没有返回
+     */
+    public static class CommandTimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public CommandTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 流式输出的行处理器
+     * 在读取线程上调用；line 是复用的视图，只在本次调用内有效，需要保留时请 toString()
+     * {@link #executeStreaming} 返回或抛出异常（包括超时）后不会再被调用，也没有仍在执行的调用，
+     * 因此处理器可以直接修改调用方的非线程安全状态
+     */
+    public interface LineHandler {
+        void onLine(CharSequence line);
+    }
+
+    /**
+     * 单条命令的执行结果
+     */
+    public static final class Result {
+        public final long id;
+        public final int exitStatus;
+        public final String output;
+        /** 输出的字节数（UTF-8 编码，即帧中读取的字节数；流式帧为逐行读取的字节数） */
+        public final long bytes;
+
+        Result(long id, int exitStatus, String output, long bytes) {
+            this.id = id;
+            this.exitStatus = exitStatus;
+            this.output = output;
+            this.bytes = bytes;
+        }
+    }
+
+    private final String[] shellCommand;
+    private final Object writeLock = new Object();
+    private final Map<Long, CompletableFuture<Result>> pending = new ConcurrentHashMap<>();
+    // 已放弃（超时/取消）但响应帧尚未到达的请求：ID -> 放弃时间
+    private final Map<Long, Long> abandoned = new ConcurrentHashMap<>();
+    private final AtomicLong discardedFrames = new AtomicLong();
+    private final Map<Long, LineHandler> streamHandlers = new ConcurrentHashMap<>();
+    // 流式帧结束行带会话随机数，命令输出无法伪造
+    private final String endToken = "___END_" + Long.toHexString(new java.util.Random().nextLong() & Long.MAX_VALUE) + "___";
+    private final byte[] endTokenBytes = (endToken + " ").getBytes(StandardCharsets.UTF_8);
+    private volatile Process process;
+    private OutputStream stdin;
+    private InputStream stdout;
+    private long nextRequestId = 1;
+
+    public ShellSession(String... shellCommand) {
+        this.shellCommand = shellCommand.clone();
+    }
+
+    /**
+     * 启动 shell 进程和读取线程（已启动且存活时直接返回）
+     */
+    public boolean start() {
+        synchronized (writeLock) {
+            if (isAlive()) {
+                return true;
+            }
+            closeLocked();
+            try {
+                Process p = new ProcessBuilder(shellCommand).start();
+                process = p;
+                stdin = p.getOutputStream();
+                stdout = p.getInputStream();
+                stdin.write(PRELUDE.getBytes(StandardCharsets.UTF_8));
+                stdin.flush();
+                final InputStream in = stdout;
+                Thread reader = new Thread(() -> readLoop(p, in), "ShellSession-reader");
+                reader.setDaemon(true);
+                reader.start();
+                // stderr 不进入帧协议（避免伪造帧头），但必须持续读走，否则管道写满后 shell 会阻塞
+                final InputStream err = p.getErrorStream();
+                Thread drain = new Thread(() -> drainErrors(err), "ShellSession-stderr");
+                drain.setDaemon(true);
+                drain.start();
+                logger.i(TAG, "Shell started: " + java.util.Arrays.toString(shellCommand));
+                return true;
+            } catch (IOException e) {
+                logger.e(TAG, "Failed to start shell: " + e.getMessage());
+                closeLocked();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 检查 shell 进程是否存活
+     */
+    public boolean isAlive() {
+        Process p = process;
+        if (p == null) return false;
+        try {
+            p.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * 已提交但尚未收到响应的请求数
+     */
+    public int inFlight() {
+        return pending.size();
+    }
+
+    /**
+     * 已放弃但迟到帧尚未到达的请求数（大于 0 说明会话上有命令卡住）
+     */
+    public int abandonedCount() {
+        return abandoned.size();
+    }
+
+    /**
+     * 最早一个仍未返回的已放弃请求的放弃时间，没有时返回 0
+     */
+    public long stalledSince() {
+        long oldest = 0;
+        for (Long t : abandoned.values()) {
+            if (oldest == 0 || t < oldest) oldest = t;
+        }
+        return oldest;
+    }
+
+    /**
+     * 累计丢弃的迟到帧数
+     */
+    public long discardedFrameCount() {
+        return discardedFrames.get();
+    }
+
+    /**
+     * 提交一条命令，不等待结果
+     * @param timeoutMs 截止时间，到期后 Future 以 CommandTimeoutException 失败；0 表示不限
+     * @return 可取消的 Future，取消或超时后迟到的输出会被丢弃
+     */
+    public CompletableFuture<Result> submit(String command, long timeoutMs) {
+        List<String> single = new ArrayList<>(1);
+        single.add(command);
+        return submitBatch(single, timeoutMs).get(0);
+    }
+
+    /**
+     * 一次写入提交多条命令，每条命令各自对应一个 Future
+     * @param timeoutMs 整批的截止时间；0 表示不限
+     */
+    public List<CompletableFuture<Result>> submitBatch(List<String> commands, long timeoutMs) {
+        return submitEncoded(commands, null, timeoutMs);
+    }
+
+    /**
+     * 提交一条流式命令：输出每到一行就交给 handler，不在内存中累积
+     * @return 命令结束时完成的 Future（Result.output 为空字符串）
+     */
+    public CompletableFuture<Result> submitStreaming(String command, LineHandler handler, long timeoutMs) {
+        List<String> single = new ArrayList<>(1);
+        single.add(command);
+        return submitEncoded(single, handler, timeoutMs).get(0);
+    }
+
+    /**
+     * 执行流式命令并等待其结束
+     */
+    public Result executeStreaming(String command, LineHandler handler, long timeoutMs) throws IOException {
+        return await(submitStreaming(command, handler, timeoutMs));
+    }
+
+    private List<CompletableFuture<Result>> submitEncoded(List<String> commands, LineHandler handler, long timeoutMs) {
+        List<CompletableFuture<Result>> futures = new ArrayList<>(commands.size());
+        synchronized (writeLock) {
+            if (!isAlive()) {
+                for (int i = 0; i < commands.size(); i++) {
+                    CompletableFuture<Result> f = new CompletableFuture<>();
+                    f.completeExceptionally(new IOException("shell not running"));
+                    futures.add(f);
+                }
+                return futures;
+            }
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(commands.size() * 256);
+            for (String command : commands) {
+                long id = nextRequestId++;
+                CompletableFuture<Result> f = new CompletableFuture<>();
+                pending.put(id, f);
+                if (handler != null) {
+                    streamHandlers.put(id, handler);
+                }
+                track(id, f, timeoutMs);
+                futures.add(f);
+                byte[] encoded = handler != null
+                    ? encodeStreamRequest(id, command, endToken)
+                    : encodeRequest(id, command);
+                payload.write(encoded, 0, encoded.length);
+            }
+            try {
+                payload.writeTo(stdin);
+                stdin.flush();
+            } catch (IOException e) {
+                logger.e(TAG, "Write failed: " + e.getMessage());
+                closeLocked();
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * 设置截止时间，并在 Future 异常结束（超时/取消/会话关闭）时把请求转入放弃列表
+     */
+    private void track(long id, CompletableFuture<Result> f, long timeoutMs) {
+        final ScheduledFuture<?> timer = timeoutMs > 0
+            ? TIMER.schedule(() -> f.completeExceptionally(
+                  new CommandTimeoutException("timeout after " + timeoutMs + "ms")),
+                  timeoutMs, TimeUnit.MILLISECONDS)
+            : null;
+        f.whenComplete((result, error) -> {
+            if (timer != null) timer.cancel(false);
+            if (error != null && pending.remove(id, f) && isAlive()) {
+                abandoned.put(id, System.currentTimeMillis());
+            }
+        });
+    }
+
+    /**
+     * 执行命令并等待其响应帧
+     * @return 执行结果；超时抛出 CommandTimeoutException（会话继续可用），IO 错误抛出 IOException
+     */
+    public Result execute(String command, long timeoutMs) throws IOException {
+        return await(submit(command, timeoutMs));
+    }
+
+    /**
+     * 一次写入执行多条命令，按顺序返回各自的结果
+     * @param timeoutMs 整批的超时时间
+     */
+    public List<Result> executeBatch(List<String> commands, long timeoutMs) throws IOException {
+        List<Result> results = new ArrayList<>(commands.size());
+        for (CompletableFuture<Result> f : submitBatch(commands, timeoutMs)) {
+            results.add(await(f));
+        }
+        return results;
+    }
+
+    /**
+     * 等待 Future 完成（截止时间由定时器保证）
+     * 返回前等待读取线程上正在执行的行处理器结束，见 {@link #deliver}
+     */
+    static Result await(CompletableFuture<Result> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (CancellationException e) {
+            throw new IOException("cancelled");
+        } catch (InterruptedException e) {
+            // 等待方被中断：放弃该请求，迟到的帧会被丢弃
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } finally {
+            // Future 已完成，之后不会再分发；这里只等待正在执行的那一次
+            synchronized (future) {}
+        }
+    }
+
+    /**
+     * 将命令包装为会产生一个响应帧的 shell 片段
+     */
+    static byte[] encodeRequest(long id, String command) {
+        StringBuilder sb = new StringBuilder(command.length() + 192);
+        // 输出先捕获到变量中；子 shell 退出时（包括命令自己 exit）由 EXIT trap 追加 x，以保留输出的结尾换行
+        sb.append("__o=$( trap 'echo x' EXIT; eval ");
+        appendQuoted(sb, command);
+        sb.append(" </dev/null ); __r=$?; __o=${__o%x}\n");
+        sb.append("__put \"\n").append(FRAME_TOKEN).append(' ').append(id)
+          .append(" $__r ${#__o}\n$__o\"\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 以单引号字符串追加命令，交给 eval 在子 shell 中解析：
+     * 命令本身的语法错误（如引号不配对）只让 eval 失败，不会吞掉后面的帧尾
+     */
+    private static void appendQuoted(StringBuilder sb, String command) {
+        sb.append('\'');
+        for (int i = 0; i < command.length(); i++) {
+            char c = command.charAt(i);
+            if (c == '\'') sb.append("'\\''");
+            else sb.append(c);
+        }
+        sb.append('\'');
+    }
+
+    /**
+     * 将命令包装为流式帧：帧头长度为 -1，命令输出直接写出，最后以结束行收尾
+     * <pre>
+     *   \n___FRAME___ &lt;请求ID&gt; -1 -1\n&lt;原始输出&gt;\n___END_&lt;会话随机数&gt;___ &lt;请求ID&gt; &lt;退出码&gt;\n
+     * </pre>
+     */
+    static byte[] encodeStreamRequest(long id, String command, String endToken) {
+        StringBuilder sb = new StringBuilder(command.length() + 160);
+        sb.append("__put \"\n").append(FRAME_TOKEN).append(' ').append(id).append(" -1 -1\n\"\n");
+        sb.append("( eval ");
+        appendQuoted(sb, command);
+        sb.append(" ) </dev/null; __r=$?\n");
+        sb.append("__put \"\n").append(endToken).append(' ').append(id).append(" $__r\n\"\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 读取线程：逐帧读取并按请求ID完成对应的 Future
+     */
+    private void readLoop(Process p, InputStream in) {
+        FrameReader reader = new FrameReader(in);
+        try {
+            while (true) {
+                String header = reader.readLine();
+                if (!header.startsWith(FRAME_TOKEN + " ")) {
+                    // 帧头之前的杂散输出
+                    continue;
+                }
+                String[] parts = header.split(" ");
+                if (parts.length < 4) {
+                    continue;
+                }
+                long id;
+                int status;
+                int length;
+                try {
+                    id = Long.parseLong(parts[1]);
+                    status = Integer.parseInt(parts[2]);
+                    length = Integer.parseInt(parts[3]);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (length < 0) {
+                    readStream(reader, id);
+                    continue;
+                }
+                byte[] body = new byte[length];
+                reader.readFully(body);
+                CompletableFuture<Result> f = pending.remove(id);
+                if (f == null) {
+                    discardLate(id, length);
+                    continue;
+                }
+                f.complete(new Result(id, status, new String(body, StandardCharsets.UTF_8), length));
+            }
+        } catch (IOException e) {
+            logger.i(TAG, "Reader stopped: " + e.getMessage());
+        } finally {
+            // 进程已退出或流已关闭：所有未完成的请求失败
+            p.destroy();
+            if (process == p) {
+                failPending(new IOException("shell closed"));
+            }
+        }
+    }
+
+    /**
+     * 读取并丢弃 shell 的 stderr（调试日志中保留），进程退出时结束
+     */
+    private static void drainErrors(InputStream err) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(err, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                logger.d(TAG, "stderr: " + line);
+            }
+        } catch (IOException e) {
+            // 进程已关闭
+        }
+    }
+
+    /**
+     * 读取一个流式帧：逐行交给处理器，直到结束行
+     * 命令输出以换行结尾时，结束行前注入的换行会多出一个空行，需要去掉
+     */
+    private void readStream(FrameReader reader, long id) throws IOException {
+        LineHandler handler = streamHandlers.remove(id);
+        CompletableFuture<Result> f = pending.get(id);
+        int emptyLines = 0;
+        long bytes = 0;
+        int status;
+        while (true) {
+            int n = reader.readLineBytes();
+            status = reader.parseEndLine(endTokenBytes, id);
+            if (status != Integer.MIN_VALUE) {
+                break;
+            }
+            bytes += n + 1;
+            if (n == 0) {
+                emptyLines++;
+                continue;
+            }
+            for (; emptyLines > 0; emptyLines--) {
+                deliver(handler, f, "");
+            }
+            if (handler != null && f != null && !f.isDone()) {
+                deliver(handler, f, reader.decodeLine(n));
+            }
+        }
+        for (; emptyLines > 1; emptyLines--) {
+            deliver(handler, f, "");
+        }
+        CompletableFuture<Result> done = pending.remove(id);
+        if (done == null) {
+            discardLate(id, bytes);
+            return;
+        }
+        done.complete(new Result(id, status, "", bytes));
+    }
+
+    /**
+     * 把一行交给处理器：持有 Future 的锁并在锁内检查是否已完成，
+     * 超时/取消后等待方在 {@link #await} 中取同一把锁，保证返回后处理器不会与调用方并发修改状态
+     */
+    private static void deliver(LineHandler handler, CompletableFuture<Result> f, CharSequence line) {
+        if (handler == null || f == null) return;
+        synchronized (f) {
+            if (f.isDone()) return;
+            try {
+                handler.onLine(line);
+            } catch (RuntimeException e) {
+                // 处理器异常：请求失败，剩余输出继续读取但不再分发
+                f.completeExceptionally(new IOException("line handler failed: " + e, e));
+            }
+        }
+    }
+
+    private void discardLate(long id, long length) {
+        // 已超时或取消的请求的迟到输出，丢弃
+        if (abandoned.remove(id) != null) {
+            discardedFrames.incrementAndGet();
+            logger.d(TAG, "Discarded late frame: id=" + id + " (" + length + " bytes)");
+        } else {
+            logger.w(TAG, "Discarding frame with no pending request: id=" + id);
+        }
+    }
+
+    /**
+     * 帧读取辅助类（每个读取线程一个实例）
+     * 自带读缓冲区，行数据和解码结果都复用同一块内存
+     */
+    private static final class FrameReader {
+        private final InputStream in;
+        private final byte[] buf = new byte[READ_BUFFER_SIZE];
+        private int pos;
+        private int limit;
+        private byte[] line = new byte[256];
+        private int lineLength;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private CharBuffer chars = CharBuffer.allocate(256);
+
+        FrameReader(InputStream in) {
+            this.in = in;
+        }
+
+        private boolean fill() throws IOException {
+            int n = in.read(buf, 0, buf.length);
+            if (n <= 0) return false;
+            pos = 0;
+            limit = n;
+            return true;
+        }
+
+        /**
+         * 读取一行到内部缓冲区（不含换行符）
+         * @return 行的字节数
+         */
+        int readLineBytes() throws IOException {
+            int len = 0;
+            while (true) {
+                if (pos == limit && !fill()) throw new EOFException("shell closed");
+                int start = pos;
+                while (pos < limit && buf[pos] != '\n') pos++;
+                int chunk = pos - start;
+                if (len + chunk > line.length) {
+                    byte[] grown = new byte[Math.max(line.length * 2, len + chunk)];
+                    System.arraycopy(line, 0, grown, 0, len);
+                    line = grown;
+                }
+                System.arraycopy(buf, start, line, len, chunk);
+                len += chunk;
+                if (pos < limit) {
+                    pos++; // 跳过换行符
+                    lineLength = len;
+                    return len;
+                }
+            }
+        }
+
+        String readLine() throws IOException {
+            int n = readLineBytes();
+            return new String(line, 0, n, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * 将最近读取的一行解码为字符，返回的视图在读取下一行前有效
+         */
+        CharSequence decodeLine(int n) {
+            ByteBuffer bytes = ByteBuffer.wrap(line, 0, n);
+            if (chars.capacity() < n) {
+                chars = CharBuffer.allocate(Math.max(n, chars.capacity() * 2));
+            }
+            chars.clear();
+            decoder.reset();
+            decoder.decode(bytes, chars, true);
+            decoder.flush(chars);
+            chars.flip();
+            return chars;
+        }
+
+        /**
+         * 最近读取的一行是否为指定请求的结束行
+         * @return 退出码；不是结束行时返回 Integer.MIN_VALUE
+         */
+        int parseEndLine(byte[] endToken, long id) {
+            int n = endToken.length;
+            // 结束行很短，长度明显不符时直接跳过
+            if (lineLength < n + 3) return Integer.MIN_VALUE;
+            for (int i = 0; i < n; i++) {
+                if (line[i] != endToken[i]) return Integer.MIN_VALUE;
+            }
+            String[] parts = new String(line, n, lineLength - n, StandardCharsets.UTF_8).trim().split(" ");
+            try {
+                if (parts.length == 2 && Long.parseLong(parts[0]) == id) {
+                    return Integer.parseInt(parts[1]);
+                }
+            } catch (NumberFormatException e) {
+                // 不是结束行
+            }
+            return Integer.MIN_VALUE;
+        }
+
+        void readFully(byte[] dst) throws IOException {
+            int off = 0;
+            while (off < dst.length) {
+                if (pos == limit && !fill()) throw new EOFException("shell closed mid-frame");
+                int n = Math.min(limit - pos, dst.length - off);
+                System.arraycopy(buf, pos, dst, off, n);
+                pos += n;
+                off += n;
+            }
+        }
+    }
+
+    private void failPending(IOException error) {
+        for (Long id : pending.keySet()) {
+            CompletableFuture<Result> f = pending.remove(id);
+            if (f != null) f.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * 关闭会话
+     */
+    public void close() {
+        synchronized (writeLock) {
+            closeLocked();
+        }
+    }
+
+    private void closeLocked() {
+        try { if (stdin != null) { stdin.write("exit\n".getBytes(StandardCharsets.UTF_8)); stdin.flush(); stdin.close(); } } catch (Exception e) {}
+        try { if (process != null) process.destroy(); } catch (Exception e) {}
+        stdin = null;
+        stdout = null;
+        process = null;
+        failPending(new IOException("shell closed"));
+        abandoned.clear();
+        streamHandlers.clear();
+    }
+}
@@ -0,0 +1,315 @@
+package com.threadaffinity.manager.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Root 命令耗时统计
+ *
+ * 按调用方标签（调度任务名）和命令类别（命令的第一个词）分别记录：
+ * 延迟直方图、等待会话时间、输出字节数、超时和失败次数。
+ * 另外记录会话重建次数和租约等待时间，用于找出占用监控预算的采样任务。
+ *
+ * 调度任务用 {@link #tagged} 包装后，任务线程上的所有 RootShell 调用都记到该标签下。
+ */
+public final class ShellStats {
+    private static final String UNTAGGED = "untagged";
+    private static final int MAX_CLASS_LENGTH = 24;
+
+    /** 命令结果 */
+    public enum Outcome { OK, TIMEOUT, FAILED }
+
+    private static final ThreadLocal<String> currentTag = new ThreadLocal<>();
+    private static final ConcurrentHashMap<String, Metrics> byTag = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Metrics> byCommand = new ConcurrentHashMap<>();
+    private static final LatencyHistogram leaseWait = new LatencyHistogram();
+    private static final AtomicLong sessionStarts = new AtomicLong();
+    private static final AtomicLong reinitializations = new AtomicLong();
+    private static volatile long sinceMs = System.currentTimeMillis();
+
+    private ShellStats() {
+    }
+
+    /**
+     * 包装任务：执行期间当前线程的 Root 命令记到 tag 下
+     */
+    public static Runnable tagged(final String tag, final Runnable task) {
+        return () -> {
+            String previous = setTag(tag);
+            try {
+                task.run();
+            } finally {
+                setTag(previous);
+            }
+        };
+    }
+
+    /**
+     * 设置当前线程的标签
+     * @return 之前的标签（用于恢复）
+     */
+    public static String setTag(String tag) {
+        String previous = currentTag.get();
+        if (tag == null) {
+            currentTag.remove();
+        } else {
+            currentTag.set(tag);
+        }
+        return previous;
+    }
+
+    /**
+     * 当前线程的标签，未设置时为 "untagged"
+     */
+    public static String currentTag() {
+        String tag = currentTag.get();
+        return tag != null ? tag : UNTAGGED;
+    }
+
+    /**
+     * 命令类别：第一个词去掉路径，如 "/system/bin/cat /proc/x" -> "cat"
+     */
+    static String commandClass(String command) {
+        if (command == null) return "?";
+        int start = 0;
+        int len = command.length();
+        while (start < len && command.charAt(start) == ' ') start++;
+        int end = start;
+        while (end < len) {
+            char c = command.charAt(end);
+            if (c == ' ' || c == ';' || c == '|' || c == '&' || c == '\n' || c == '>' || c == '<') break;
+            end++;
+        }
+        int slash = command.lastIndexOf('/', end - 1);
+        if (slash >= start) start = slash + 1;
+        if (end - start > MAX_CLASS_LENGTH) end = start + MAX_CLASS_LENGTH;
+        return start < end ? command.substring(start, end) : "?";
+    }
+
+    /**
+     * 字符序列按 UTF-8 编码的字节数（不创建字节数组）
+     */
+    static long utf8Length(CharSequence s) {
+        long length = 0;
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 记录一次命令执行（tag 为提交时的线程标签）
+     * @param latencyNanos 从调用到得到结果的总耗时
+     * @param waitNanos 获取会话并写出请求的耗时（含锁等待和会话重建）
+     * @param bytes 输出字节数（UTF-8）
+     */
+    static void record(String tag, String commandClass, long latencyNanos, long waitNanos,
+                       long bytes, Outcome outcome) {
+        metrics(byTag, tag).record(latencyNanos, waitNanos, bytes, outcome);
+        metrics(byCommand, commandClass).record(latencyNanos, waitNanos, bytes, outcome);
+    }
+
+    static void recordLeaseWait(long nanos) {
+        leaseWait.record(nanos / 1000);
+    }
+
+    /**
+     * 记录会话启动；reinit 为 true 表示替换了一个已失效的会话
+     */
+    static void recordSessionStart(boolean reinit) {
+        sessionStarts.incrementAndGet();
+        if (reinit) reinitializations.incrementAndGet();
+    }
+
+    private static Metrics metrics(ConcurrentHashMap<String, Metrics> map, String key) {
+        Metrics m = map.get(key);
+        if (m == null) {
+            Metrics created = new Metrics();
+            Metrics existing = map.putIfAbsent(key, created);
+            m = existing != null ? existing : created;
+        }
+        return m;
+    }
+
+    /**
+     * 清空所有统计
+     */
+    public static void reset() {
+        byTag.clear();
+        byCommand.clear();
+        leaseWait.reset();
+        sessionStarts.set(0);
+        reinitializations.set(0);
+        sinceMs = System.currentTimeMillis();
+    }
+
+    /**
+     * 生成文本报告，各表按总耗时降序
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        long elapsed = Math.max(1, System.currentTimeMillis() - sinceMs);
+        sb.append("=== Root shell stats (")
+          .append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date(sinceMs)))
+          .append(", ").append(elapsed / 1000).append("s) ===\n");
+        sb.append("sessionStarts=").append(sessionStarts.get())
+          .append(" reinitializations=").append(reinitializations.get())
+          .append(" leaseWait ").append(leaseWait.summary()).append('\n');
+        appendTable(sb, "by task", byTag, elapsed);
+        appendTable(sb, "by command", byCommand, elapsed);
+        return sb.toString();
+    }
+
+    private static void appendTable(StringBuilder sb, String title, Map<String, Metrics> map, long elapsedMs) {
+        List<Map.Entry<String, Metrics>> entries = new ArrayList<>(map.entrySet());
+        Collections.sort(entries, (a, b) -> Long.compare(b.getValue().totalNanos.get(), a.getValue().totalNanos.get()));
+        sb.append("--- ").append(title).append(" ---\n");
+        for (Map.Entry<String, Metrics> e : entries) {
+            Metrics m = e.getValue();
+            long totalMs = m.totalNanos.get() / 1000000;
+            sb.append(String.format(Locale.US, "%-24s n=%d total=%dms (%.1f%%) latency %s wait %s bytes=%d timeouts=%d failures=%d\n",
+                e.getKey(), m.latency.count(), totalMs, totalMs * 100.0 / elapsedMs,
+                m.latency.summary(), m.wait.summary(), m.bytes.get(), m.timeouts.get(), m.failures.get()));
+        }
+    }
+
+    /**
+     * 把报告写入文件
+     * @return 是否写入成功
+     */
+    public static boolean dump(File file) {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            w.write(report());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 单个标签/命令类别的统计
+     */
+    static final class Metrics {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram wait = new LatencyHistogram();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong timeouts = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+
+        void record(long latencyNanos, long waitNanos, long byteCount, Outcome outcome) {
+            latency.record(latencyNanos / 1000);
+            wait.record(waitNanos / 1000);
+            totalNanos.addAndGet(latencyNanos);
+            bytes.addAndGet(byteCount);
+            if (outcome == Outcome.TIMEOUT) {
+                timeouts.incrementAndGet();
+            } else if (outcome == Outcome.FAILED) {
+                failures.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 对数-线性分桶的延迟直方图（HDR 风格，单位微秒）
+     * 小于 32 的值每个值一个桶，之后每个 2 的幂区间分 16 个桶，相对误差不超过 1/16
+     * 记录无锁，可以在多个线程上并发调用
+     */
+    public static final class LatencyHistogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int LINEAR = SUB_BUCKETS * 2;
+        private static final int FIRST_EXPONENT = SUB_BITS + 1;
+        private static final int BUCKETS = LINEAR + (63 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        static int bucketOf(long value) {
+            if (value < LINEAR) return (int) Math.max(0, value);
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+            return LINEAR + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < LINEAR) return bucket;
+            int exponent = (bucket - LINEAR) / SUB_BUCKETS + FIRST_EXPONENT;
+            int sub = (bucket - LINEAR) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+
+        public void record(long micros) {
+            counts.incrementAndGet(bucketOf(micros));
+            total.incrementAndGet();
+            long current;
+            while (micros > (current = max.get())) {
+                if (max.compareAndSet(current, micros)) break;
+            }
+        }
+
+        public long count() {
+            return total.get();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * 百分位值（桶上界，不超过最大值）
+         * @param percentile 0-100
+         */
+        public long percentile(double percentile) {
+            long n = total.get();
+            if (n == 0) return 0;
+            long target = Math.max(1, (long) Math.ceil(n * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= target) return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        public void reset() {
+            for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+            total.set(0);
+            max.set(0);
+        }
+
+        /**
+         * 摘要：p50/p90/p99/max（毫秒）
+         */
+        public String summary() {
+            return String.format(Locale.US, "p50=%.1f p90=%.1f p99=%.1f max=%.1fms",
+                percentile(50) / 1000.0, percentile(90) / 1000.0, percentile(99) / 1000.0, max() / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.threadaffinity.manager.util;
+
+import com.threadaffinity.manager.NativeHelper;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 全系统线程占用排行：{@link NativeHelper#sampleSystemTop} 写入 direct ByteBuffer 的结果
+ *
+ * 缓冲区布局（本机字节序，与 helper_protocol.h 一致）:
+ *   头部 32 字节: 线程数, 进程数, 线程名数, 本次读取的线程数, 记录表线程数, flags, 遍历耗时（纳秒）
+ *   线程 40 字节: tid, tgid, 运行占比, 等待占比, processor, state, 保留, comm[16]
+ *   分组 36 字节: id, 线程数, 占比最高的 tid, 运行占比, 等待占比, name[16]（先按进程，再按线程名）
+ * 占比以一个核心为 100，都按从高到低排序。
+ *
+ * 辅助进程遍历所有 /proc/<pid>/task/<tid>，每个线程只读 schedstat，线程名只在第一次看到时读取；
+ * 遍历超出预算时下次从停止的位置继续，没有轮到的线程沿用上次的占比。
+ */
+public class SystemTopSnapshot {
+    public static final int PROCESSES = 0;
+    public static final int NAMES = 1;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int THREAD_SIZE = 40;
+    private static final int GROUP_SIZE = 36;
+    private static final int FLAG_HAS_SCHEDSTAT = 1; // helper::kSampleHasSchedstat
+
+    private ByteBuffer buffer;
+    private int limit;
+    private int threadCount;
+    private int processCount;
+    private int nameCount;
+    private final byte[] nameBytes = new byte[16];
+
+    /**
+     * 排行数量为 limit 时需要的缓冲区大小
+     */
+    public static int bufferSize(int limit) {
+        return HEADER_SIZE + limit * (THREAD_SIZE + 2 * GROUP_SIZE);
+    }
+
+    /**
+     * 采样一次，覆盖上一次的内容
+     * @param pids [本 App pid, 排除的 pid...]
+     * @param limit 每种排行的数量上限
+     * @param budgetMs 遍历预算（毫秒）
+     * @return 是否成功（失败时排行为空）
+     */
+    public boolean sample(int[] pids, int limit, int budgetMs) {
+        if (buffer == null || limit > this.limit) {
+            buffer = ByteBuffer.allocateDirect(bufferSize(limit)).order(ByteOrder.nativeOrder());
+            this.limit = limit;
+        }
+        int size = NativeHelper.sampleSystemTop(pids, limit, budgetMs, buffer);
+        if (size < HEADER_SIZE) {
+            threadCount = 0;
+            processCount = 0;
+            nameCount = 0;
+            return false;
+        }
+        threadCount = buffer.getInt(0);
+        processCount = buffer.getInt(4);
+        nameCount = buffer.getInt(8);
+        return true;
+    }
+
+    public int threadCount() { return threadCount; }
+    public int tasksScanned() { return buffer.getInt(12); }
+    public int tasksTracked() { return buffer.getInt(16); }
+    public long scanNs() { return buffer.getLong(24); }
+
+    /**
+     * 占比是否来自 schedstat（否则由节拍换算，没有等待占比）
+     */
+    public boolean hasSchedstat() {
+        return (buffer.getInt(20) & FLAG_HAS_SCHEDSTAT) != 0;
+    }
+
+    private static int threadOffset(int index) {
+        return HEADER_SIZE + index * THREAD_SIZE;
+    }
+
+    public int threadTid(int index) { return buffer.getInt(threadOffset(index)); }
+    public int threadTgid(int index) { return buffer.getInt(threadOffset(index) + 4); }
+    public float threadRun(int index) { return buffer.getFloat(threadOffset(index) + 8); }
+    public float threadWait(int index) { return buffer.getFloat(threadOffset(index) + 12); }
+    public int threadProcessor(int index) { return buffer.getInt(threadOffset(index) + 16); }
+    public char threadState(int index) { return (char) (buffer.get(threadOffset(index) + 20) & 0xFF); }
+    public String threadName(int index) { return readName(threadOffset(index) + 24); }
+
+    /**
+     * 线程记录中 tid 所在的下标
+     * @return 不在排行中返回 -1
+     */
+    public int indexOfThread(int tid) {
+        for (int i = 0; i < threadCount; i++) {
+            if (threadTid(i) == tid) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param kind {@link #PROCESSES} 或 {@link #NAMES}
+     */
+    public int groupCount(int kind) {
+        return kind == PROCESSES ? processCount : nameCount;
+    }
+
+    private int groupOffset(int kind, int index) {
+        int base = HEADER_SIZE + threadCount * THREAD_SIZE;
+        if (kind == NAMES) base += processCount * GROUP_SIZE;
+        return base + index * GROUP_SIZE;
+    }
+
+    /**
+     * 按进程: tgid；按线程名: 线程都属于同一进程时为其 tgid，否则为 0（本 App 的线程合并为一组，id 为本 App pid）
+     */
+    public int groupId(int kind, int index) { return buffer.getInt(groupOffset(kind, index)); }
+    public int groupThreads(int kind, int index) { return buffer.getInt(groupOffset(kind, index) + 4); }
+    public int groupTopTid(int kind, int index) { return buffer.getInt(groupOffset(kind, index) + 8); }
+    public float groupRun(int kind, int index) { return buffer.getFloat(groupOffset(kind, index) + 12); }
+    public float groupWait(int kind, int index) { return buffer.getFloat(groupOffset(kind, index) + 16); }
+    public String groupName(int kind, int index) { return readName(groupOffset(kind, index) + 20); }
+
+    private String readName(int offset) {
+        int length = 0;
+        while (length < nameBytes.length) {
+            byte b = buffer.get(offset + length);
+            if (b == 0) break;
+            nameBytes[length++] = b;
+        }
+        return new String(nameBytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,288 @@
+package com.threadaffinity.manager.util;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * 线程名规则匹配器（不区分大小写），规则键支持三种写法:
+ *   "RenderThread"     精确匹配
+ *   "PoolThread_*"     通配符，'*' 匹配任意个字符，'?' 匹配一个字符
+ *   "re:Thread-\d+"    正则（整个线程名匹配）
+ *
+ * 优先级: 精确 > 通配符（字面字符多的优先）> 正则；同级按规则键排序靠前的优先。
+ * 所有通配符编译成一个按需构造的 DFA，所有正则合并成一个 Pattern，
+ * 每个线程名只扫描一遍，不需要逐条规则比较；结果按线程名缓存。
+ */
+public final class ThreadNameMatcher<V> {
+    private static final String TAG = "ThreadNameMatcher";
+    public static final String REGEX_PREFIX = "re:";
+    private static final int MAX_DFA_STATES = 4096;
+    private static final int MAX_CACHED_NAMES = 4096;
+    private static final Object NO_MATCH = new Object();
+
+    private final Map<String, V> rules;
+    private final Map<String, V> exact = new HashMap<>();
+
+    // 通配符：按优先级排列，拼接成一个数组，位置编号 = globStart[g] + 模式内下标
+    private final List<V> globValues = new ArrayList<>();
+    private char[] globChars = new char[0];
+    private int[] globOwner = new int[0];   // 位置 -> 所属通配符
+    private int[] globEnd = new int[0];     // 通配符 -> 结束位置（到达即匹配）
+    private final Map<BitSet, State> states = new HashMap<>();
+    private State start;
+
+    // 正则：合并为 (?:(r0)|(r1)|...)，regexGroups[i] 为第 i 条正则外层分组的编号
+    private final List<V> regexValues = new ArrayList<>();
+    private Pattern regex;
+    private int[] regexGroups;
+
+    private final Map<String, Object> cache = new HashMap<>();
+
+    /**
+     * DFA 状态：当前可能处在的通配符位置集合
+     */
+    private static final class State {
+        final BitSet positions;
+        final int accept; // 匹配的通配符（优先级最高的），无则 -1
+        final State[] ascii = new State[128];
+        Map<Character, State> other;
+
+        State(BitSet positions, int accept) {
+            this.positions = positions;
+            this.accept = accept;
+        }
+    }
+
+    /**
+     * @param rules 规则键 -> 值，原样保存（{@link #getRules()}）
+     */
+    public ThreadNameMatcher(Map<String, V> rules) {
+        this.rules = rules != null ? rules : Collections.<String, V>emptyMap();
+        List<String> globs = new ArrayList<>();
+        List<String> regexes = new ArrayList<>();
+        Map<String, V> globRules = new HashMap<>();
+        Map<String, V> regexRules = new LinkedHashMap<>();
+        for (Map.Entry<String, V> entry : sortedEntries(this.rules)) {
+            String key = entry.getKey();
+            if (key == null || entry.getValue() == null) continue;
+            if (isRegex(key)) {
+                regexes.add(key);
+                regexRules.put(key, entry.getValue());
+            } else if (isGlob(key)) {
+                globs.add(key);
+                globRules.put(key, entry.getValue());
+            } else {
+                String lower = key.toLowerCase();
+                if (!exact.containsKey(lower)) exact.put(lower, entry.getValue());
+            }
+        }
+        // 字面字符多的通配符更具体，排序稳定，同级保持规则键顺序
+        Collections.sort(globs, (a, b) -> literalCount(b) - literalCount(a));
+        for (String glob : globs) globValues.add(globRules.get(glob));
+        compileGlobs(globs);
+        compileRegexes(regexes, regexRules);
+    }
+
+    private static <V> List<Map.Entry<String, V>> sortedEntries(Map<String, V> rules) {
+        List<Map.Entry<String, V>> entries = new ArrayList<>(rules.entrySet());
+        Collections.sort(entries, (a, b) -> {
+            if (a.getKey() == null || b.getKey() == null) return a.getKey() == null ? (b.getKey() == null ? 0 : 1) : -1;
+            return String.CASE_INSENSITIVE_ORDER.compare(a.getKey(), b.getKey());
+        });
+        return entries;
+    }
+
+    public static boolean isRegex(String key) {
+        return key.regionMatches(true, 0, REGEX_PREFIX, 0, REGEX_PREFIX.length());
+    }
+
+    public static boolean isGlob(String key) {
+        return !isRegex(key) && (key.indexOf('*') >= 0 || key.indexOf('?') >= 0);
+    }
+
+    /**
+     * 是否为通配符或正则（非精确线程名）
+     */
+    public static boolean isPattern(String key) {
+        return key != null && (isRegex(key) || isGlob(key));
+    }
+
+    private static int literalCount(String glob) {
+        int count = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?') count++;
+        }
+        return count;
+    }
+
+    private void compileGlobs(List<String> globs) {
+        int total = 0;
+        for (String glob : globs) total += glob.length() + 1;
+        globChars = new char[total];
+        globOwner = new int[total];
+        globEnd = new int[globs.size()];
+        int[] globStart = new int[globs.size()];
+        int pos = 0;
+        for (int g = 0; g < globs.size(); g++) {
+            String glob = globs.get(g);
+            globStart[g] = pos;
+            for (int i = 0; i < glob.length(); i++) {
+                globChars[pos] = Character.toLowerCase(glob.charAt(i));
+                globOwner[pos++] = g;
+            }
+            globEnd[g] = pos;
+            globChars[pos] = 0;
+            globOwner[pos++] = g;
+        }
+        BitSet initial = new BitSet(total);
+        for (int g = 0; g < globs.size(); g++) addClosure(initial, globStart[g]);
+        start = intern(initial);
+    }
+
+    private void compileRegexes(List<String> regexes, Map<String, V> regexRules) {
+        StringBuilder combined = new StringBuilder("(?:");
+        List<Integer> groups = new ArrayList<>();
+        int group = 1;
+        for (String key : regexes) {
+            String body = key.substring(REGEX_PREFIX.length());
+            int ownGroups;
+            try {
+                ownGroups = Pattern.compile(body).matcher("").groupCount();
+            } catch (PatternSyntaxException e) {
+                Log.w(TAG, "Bad regex rule " + key + ": " + e.getDescription());
+                continue;
+            }
+            if (body.matches(".*\\\\([1-9]|k<).*")) {
+                // 合并后分组编号会变，不支持反向引用
+                Log.w(TAG, "Regex rule with back-reference ignored: " + key);
+                continue;
+            }
+            if (!groups.isEmpty()) combined.append('|');
+            combined.append('(').append(body).append(')');
+            groups.add(group);
+            regexValues.add(regexRules.get(key));
+            group += ownGroups + 1;
+        }
+        if (groups.isEmpty()) return;
+        combined.append(')');
+        regex = Pattern.compile(combined.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        regexGroups = new int[groups.size()];
+        for (int i = 0; i < regexGroups.length; i++) regexGroups[i] = groups.get(i);
+    }
+
+    /**
+     * 加入位置及其 '*' 可跳过到达的位置
+     */
+    private void addClosure(BitSet set, int pos) {
+        while (!set.get(pos)) {
+            set.set(pos);
+            if (globChars[pos] != '*') return;
+            pos++;
+        }
+    }
+
+    private State intern(BitSet positions) {
+        State state = states.get(positions);
+        if (state != null) return state;
+        int accept = -1;
+        for (int g = 0; g < globEnd.length; g++) {
+            if (positions.get(globEnd[g])) {
+                accept = g; // 编号即优先级
+                break;
+            }
+        }
+        state = new State(positions, accept);
+        if (states.size() < MAX_DFA_STATES) states.put(positions, state);
+        return state;
+    }
+
+    private State step(State state, char c) {
+        State next = c < 128 ? state.ascii[c] : (state.other != null ? state.other.get(c) : null);
+        if (next != null) return next;
+        BitSet positions = new BitSet(globChars.length);
+        for (int pos = state.positions.nextSetBit(0); pos >= 0; pos = state.positions.nextSetBit(pos + 1)) {
+            if (pos == globEnd[globOwner[pos]]) continue;
+            char p = globChars[pos];
+            if (p == '*') {
+                addClosure(positions, pos);
+            } else if (p == '?' || p == c) {
+                addClosure(positions, pos + 1);
+            }
+        }
+        next = intern(positions);
+        if (states.size() < MAX_DFA_STATES) {
+            if (c < 128) {
+                state.ascii[c] = next;
+            } else {
+                if (state.other == null) state.other = new HashMap<>();
+                state.other.put(c, next);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * 查找线程名对应的值
+     * @return 没有匹配的规则返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V get(String name) {
+        if (name == null) return null;
+        Object cached = cache.get(name);
+        if (cached != null) return cached == NO_MATCH ? null : (V) cached;
+        V value = lookup(name);
+        if (cache.size() >= MAX_CACHED_NAMES) cache.clear();
+        cache.put(name, value != null ? value : NO_MATCH);
+        return value;
+    }
+
+    private V lookup(String name) {
+        String lower = name.toLowerCase();
+        V value = exact.get(lower);
+        if (value != null) return value;
+        if (!globValues.isEmpty()) {
+            State state = start;
+            for (int i = 0; i < lower.length() && !state.positions.isEmpty(); i++) {
+                state = step(state, lower.charAt(i));
+            }
+            if (state.accept >= 0) return globValues.get(state.accept);
+        }
+        if (regex != null) {
+            Matcher m = regex.matcher(name);
+            if (m.matches()) {
+                for (int i = 0; i < regexGroups.length; i++) {
+                    if (m.start(regexGroups[i]) >= 0) return regexValues.get(i);
+                }
+            }
+        }
+        return null;
+    }
+
+    public boolean isEmpty() {
+        return exact.isEmpty() && globValues.isEmpty() && regexValues.isEmpty();
+    }
+
+    /**
+     * 通配符/正则规则数量
+     */
+    public int patternCount() {
+        return globValues.size() + regexValues.size();
+    }
+
+    /**
+     * 原始规则
+     */
+    public Map<String, V> getRules() {
+        return rules;
+    }
+}
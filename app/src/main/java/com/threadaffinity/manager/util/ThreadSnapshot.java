@@ -0,0 +1,228 @@
+package com.threadaffinity.manager.util;
+
+import com.threadaffinity.manager.NativeHelper;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 线程采样快照：{@link NativeHelper#sampleThreads} 写入 direct ByteBuffer 的定长记录，
+ * 按绝对位置读取，采样和读取都不创建对象
+ *
+ * 缓冲区布局（本机字节序，与 native-lib.cpp 一致）:
+ *   头部 32 字节: 线程数, 记录长度, 线程名表代数, 线程名表大小, 出生数, 退出数, 采样时间（CLOCK_MONOTONIC 纳秒）
+ *   记录 72 字节: tid, tgid, utime, stime, startTime, processor, commId, state, flags,
+ *                 runtimeNs, waitNs, timeslices（来自 schedstat）
+ * 记录按 tid 排序，可以用 {@link #indexOf} 在上一次的快照中查找同一线程。
+ * 线程名只以编号出现，编号 -> String 在这里缓存，出现新名称时才向 native 层补充；
+ * 每个快照记下采样时的名称表代数，名称表在其他快照采样时重建后，旧快照的编号不再查名称
+ * （返回空字符串），重新采样即恢复。
+ *
+ * native 层按进程保存线程表（thread_sampler.cpp 的 TaskTracker），已知线程只在运行过时才重读 stat；
+ * {@link #sampleNames} 只要线程名，已知线程不读任何文件，适合按线程名匹配规则的循环。
+ *
+ * 占用率用 {@link #runtimeNs} 和 {@link #timestampNs} 的差值计算（纳秒精度，不依赖 CLK_TCK 和墙上时钟）；
+ * 内核没有 schedstat 时 runtimeNs 由节拍按实际 CLK_TCK 换算，{@link #waitNs} 不可用。
+ */
+public class ThreadSnapshot {
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 72;
+    private static final int FLAG_HAS_SCHEDSTAT = 1; // helper::kSampleHasSchedstat
+    private static final int INITIAL_RECORDS = 512;
+
+    // 线程名缓存（所有快照共用，与 native 层的名称表同步）
+    private static String[] names = new String[256];
+    private static String[] ruleNames = new String[256]; // 去掉空白字符的线程名（按需生成）
+    private static int nameCount;
+    private static int nameGeneration;
+
+    private ByteBuffer buffer = allocate(INITIAL_RECORDS);
+    private int count;
+    private int generation; // 采样时的线程名表代数
+    private int births;
+    private int deaths;
+    private long timestampNs;
+
+    private static ByteBuffer allocate(int records) {
+        return ByteBuffer.allocateDirect(HEADER_SIZE + records * RECORD_SIZE).order(ByteOrder.nativeOrder());
+    }
+
+    private int capacity() {
+        return (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    /**
+     * 采样进程的所有线程（含 CPU 时间和核心），覆盖上一次的内容
+     * @return 是否成功（失败时快照为空）
+     */
+    public boolean sample(int[] pids) {
+        return sample(pids, false);
+    }
+
+    /**
+     * 只采样线程列表和线程名（CPU 时间可能是旧值）
+     */
+    public boolean sampleNames(int[] pids) {
+        return sample(pids, true);
+    }
+
+    private boolean sample(int[] pids, boolean namesOnly) {
+        synchronized (ThreadSnapshot.class) {
+            int total = NativeHelper.sampleThreads(pids, buffer, namesOnly);
+            if (total > capacity()) {
+                // 缓冲区不够时扩大后重新采样，留出余量避免线程数波动时反复扩大
+                buffer = allocate(total + total / 4);
+                total = NativeHelper.sampleThreads(pids, buffer, namesOnly);
+            }
+            if (total < 0) {
+                count = 0;
+                generation = 0;
+                births = 0;
+                deaths = 0;
+                timestampNs = 0;
+                return false;
+            }
+            count = Math.min(total, capacity());
+            generation = buffer.getInt(8);
+            births = buffer.getInt(16);
+            deaths = buffer.getInt(20);
+            timestampNs = buffer.getLong(24);
+            syncNames(buffer.getInt(8), buffer.getInt(12));
+            return true;
+        }
+    }
+
+    private static void syncNames(int generation, int size) {
+        if (generation != nameGeneration) {
+            nameGeneration = generation;
+            nameCount = 0;
+        }
+        if (size <= nameCount) return;
+        byte[] packed = NativeHelper.getCommNames(generation, nameCount);
+        if (packed == null) return;
+        int position = 0;
+        while (position < packed.length) {
+            int length = packed[position++] & 0xff;
+            length = Math.min(length, packed.length - position);
+            if (nameCount == names.length) {
+                names = java.util.Arrays.copyOf(names, names.length * 2);
+                ruleNames = java.util.Arrays.copyOf(ruleNames, names.length);
+            }
+            // 与 SystemTopSnapshot 一致按 UTF-8 解码，非法字节替换为 U+FFFD
+            names[nameCount] = new String(packed, position, length, StandardCharsets.UTF_8);
+            ruleNames[nameCount] = null;
+            nameCount++;
+            position += length;
+        }
+    }
+
+    public int count() {
+        return count;
+    }
+
+    /**
+     * 与同一进程上一次同类采样相比新出现的线程数（tid 复用也计入）
+     */
+    public int births() {
+        return births;
+    }
+
+    /**
+     * 与同一进程上一次同类采样相比已退出的线程数
+     */
+    public int deaths() {
+        return deaths;
+    }
+
+    /**
+     * 采样时间（CLOCK_MONOTONIC 纳秒），与另一次采样相减得到间隔
+     */
+    public long timestampNs() {
+        return timestampNs;
+    }
+
+    private static int offset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    public int tid(int index) { return buffer.getInt(offset(index)); }
+    public int tgid(int index) { return buffer.getInt(offset(index) + 4); }
+    public long utime(int index) { return buffer.getLong(offset(index) + 8); }
+    public long stime(int index) { return buffer.getLong(offset(index) + 16); }
+    public long startTime(int index) { return buffer.getLong(offset(index) + 24); }
+    public int processor(int index) { return buffer.getInt(offset(index) + 32); }
+    public int commId(int index) { return buffer.getInt(offset(index) + 36); }
+    public char state(int index) { return (char) buffer.getInt(offset(index) + 40); }
+    public long runtimeNs(int index) { return buffer.getLong(offset(index) + 48); }
+    public long waitNs(int index) { return buffer.getLong(offset(index) + 56); }
+    public long timeslices(int index) { return buffer.getLong(offset(index) + 64); }
+
+    /**
+     * 运行时间、等待时间和时间片数是否来自 schedstat（否则只有换算的运行时间）
+     */
+    public boolean hasSchedstat(int index) {
+        return (buffer.getInt(offset(index) + 44) & FLAG_HAS_SCHEDSTAT) != 0;
+    }
+
+    /**
+     * utime + stime（时钟节拍）
+     */
+    public long cpuTime(int index) {
+        int base = offset(index);
+        return buffer.getLong(base + 8) + buffer.getLong(base + 16);
+    }
+
+    /**
+     * 线程名（名称表已重建时为空字符串）
+     */
+    public String name(int index) {
+        return commName(commId(index));
+    }
+
+    /**
+     * 去掉空白字符的线程名（与规则中的线程名一致，名称表已重建时为空字符串）
+     */
+    public String ruleName(int index) {
+        int id = commId(index);
+        synchronized (ThreadSnapshot.class) {
+            if (generation != nameGeneration || id < 0 || id >= nameCount) return "";
+            String name = ruleNames[id];
+            if (name == null) {
+                name = names[id].replaceAll("\\s", "");
+                ruleNames[id] = name;
+            }
+            return name;
+        }
+    }
+
+    /**
+     * 本快照中线程名编号对应的名称；未知编号、或名称表在采样后已重建（编号属于旧代数）时返回空字符串
+     */
+    public String commName(int commId) {
+        synchronized (ThreadSnapshot.class) {
+            if (generation != nameGeneration) return "";
+            return commId >= 0 && commId < nameCount ? names[commId] : "";
+        }
+    }
+
+    /**
+     * 二分查找线程
+     * @return 记录下标，不存在返回 -1
+     */
+    public int indexOf(int tid) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = tid(mid);
+            if (value < tid) {
+                low = mid + 1;
+            } else if (value > tid) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,267 @@
+package com.threadaffinity.manager.util;
+
+import java.util.Arrays;
+
+/**
+ * 线程统计表：tid -> 槽位用开放寻址的 int 表，每个槽位的计数器放在并行的基本类型数组里
+ *
+ * 每轮采样的用法:
+ *   long interval = table.beginSample(now);
+ *   int slot = table.update(tid, startTime, runtime, wait);   // 每个线程一次
+ *   long delta = table.delta(slot);                           // 与上一轮的差值，新线程为 -1
+ *   table.endSample();                                        // 释放本轮没有出现的线程
+ * 线程按代数标记本轮是否出现，退出的线程在 endSample 时释放，槽位放回空闲栈复用；
+ * 表只在线程数超过容量时扩大，稳定状态下采样不创建对象。
+ * 可选每个线程保留最近 historyLength 次占用率（环形），用于平均值/峰值。
+ * 非线程安全，每个采样循环使用自己的表。
+ */
+public final class ThreadStatsTable {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int historyLength;
+
+    // tid -> 槽位 + 1（0 为空），线性探测，容量为 2 的幂，负载不超过一半
+    private int[] index;
+
+    // 槽位（并行数组）
+    private int[] tids;         // 0 表示空闲
+    private long[] startTimes;  // 线程启动时间，变化说明 tid 被复用
+    private long[] counters;    // 上次的累计运行时间（单位由调用方决定）
+    private long[] waits;       // 上次的累计等待时间，-1 为未知
+    private long[] deltas;      // 本轮与上次的差值，-1 为新线程
+    private long[] waitDeltas;
+    private int[] stamps;       // 最近一次出现的代数
+    private float[] history;    // 槽位 * historyLength
+    private int[] historyCount; // 已写入的次数（取模得到下一个写入位置）
+
+    private int[] freeSlots;
+    private int freeCount;
+    private int slotCount;      // 用过的最大槽位数
+    private int size;
+    private int generation;
+    private long lastTimestamp;
+
+    /**
+     * @param historyLength 每个线程保留的占用率个数，0 表示不保留
+     */
+    public ThreadStatsTable(int historyLength) {
+        this.historyLength = Math.max(0, historyLength);
+        index = new int[INITIAL_CAPACITY * 2];
+        allocateSlots(INITIAL_CAPACITY);
+        freeSlots = new int[INITIAL_CAPACITY];
+    }
+
+    private void allocateSlots(int capacity) {
+        tids = tids == null ? new int[capacity] : Arrays.copyOf(tids, capacity);
+        startTimes = startTimes == null ? new long[capacity] : Arrays.copyOf(startTimes, capacity);
+        counters = counters == null ? new long[capacity] : Arrays.copyOf(counters, capacity);
+        waits = waits == null ? new long[capacity] : Arrays.copyOf(waits, capacity);
+        deltas = deltas == null ? new long[capacity] : Arrays.copyOf(deltas, capacity);
+        waitDeltas = waitDeltas == null ? new long[capacity] : Arrays.copyOf(waitDeltas, capacity);
+        stamps = stamps == null ? new int[capacity] : Arrays.copyOf(stamps, capacity);
+        history = history == null ? new float[capacity * historyLength] : Arrays.copyOf(history, capacity * historyLength);
+        historyCount = historyCount == null ? new int[capacity] : Arrays.copyOf(historyCount, capacity);
+    }
+
+    private static int hash(int tid) {
+        int h = tid * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * 开始一轮采样
+     * @param timestamp 本轮的时间（单位由调用方决定）
+     * @return 与上一轮的时间差，第一轮返回 0
+     */
+    public long beginSample(long timestamp) {
+        generation++;
+        long interval = lastTimestamp != 0 ? timestamp - lastTimestamp : 0;
+        lastTimestamp = timestamp;
+        return interval;
+    }
+
+    /**
+     * 记录线程本轮的累计值（同一轮内每个线程只调用一次）
+     * @param startTime 线程启动时间，未知时传 0
+     * @param counter 累计运行时间
+     * @param wait 累计等待时间，未知时传 -1
+     * @return 槽位，用于读取差值和历史
+     */
+    public int update(int tid, long startTime, long counter, long wait) {
+        int mask = index.length - 1;
+        int pos = hash(tid) & mask;
+        int slot = -1;
+        while (index[pos] != 0) {
+            int candidate = index[pos] - 1;
+            if (tids[candidate] == tid) {
+                slot = candidate;
+                break;
+            }
+            pos = (pos + 1) & mask;
+        }
+
+        if (slot >= 0 && startTimes[slot] == startTime) {
+            deltas[slot] = counter - counters[slot];
+            waitDeltas[slot] = wait >= 0 && waits[slot] >= 0 ? wait - waits[slot] : -1;
+        } else {
+            if (slot < 0) {
+                slot = insert(tid);
+            }
+            // 新线程或 tid 被复用：没有可比较的上一次，历史清空
+            startTimes[slot] = startTime;
+            deltas[slot] = -1;
+            waitDeltas[slot] = -1;
+            historyCount[slot] = 0;
+        }
+        counters[slot] = counter;
+        waits[slot] = wait;
+        stamps[slot] = generation;
+        return slot;
+    }
+
+    private int insert(int tid) {
+        if ((size + 1) * 2 > index.length) {
+            rehash(index.length * 2);
+        }
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (slotCount == tids.length) {
+                allocateSlots(tids.length * 2);
+            }
+            slot = slotCount++;
+        }
+        tids[slot] = tid;
+        int mask = index.length - 1;
+        int pos = hash(tid) & mask;
+        while (index[pos] != 0) pos = (pos + 1) & mask;
+        index[pos] = slot + 1;
+        size++;
+        return slot;
+    }
+
+    private void rehash(int length) {
+        index = new int[length];
+        int mask = length - 1;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (tids[slot] == 0) continue;
+            int pos = hash(tids[slot]) & mask;
+            while (index[pos] != 0) pos = (pos + 1) & mask;
+            index[pos] = slot + 1;
+        }
+    }
+
+    /**
+     * 结束一轮采样，释放本轮没有出现的线程
+     * @return 释放的线程数
+     */
+    public int endSample() {
+        int removed = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (tids[slot] != 0 && stamps[slot] != generation) {
+                remove(slot);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private void remove(int slot) {
+        int mask = index.length - 1;
+        int pos = hash(tids[slot]) & mask;
+        while (index[pos] != slot + 1) pos = (pos + 1) & mask;
+        // 向后移动删除：把后面探测链上的元素前移，不留墓碑
+        int next = (pos + 1) & mask;
+        while (index[next] != 0) {
+            int home = hash(tids[index[next] - 1]) & mask;
+            if (((next - home) & mask) >= ((next - pos) & mask)) {
+                index[pos] = index[next];
+                pos = next;
+            }
+            next = (next + 1) & mask;
+        }
+        index[pos] = 0;
+        tids[slot] = 0;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeCount++] = slot;
+        size--;
+    }
+
+    /**
+     * 本轮累计运行时间与上次的差值，新线程为 -1
+     */
+    public long delta(int slot) {
+        return deltas[slot];
+    }
+
+    /**
+     * 本轮累计等待时间与上次的差值，新线程或未知时为 -1
+     */
+    public long waitDelta(int slot) {
+        return waitDeltas[slot];
+    }
+
+    /**
+     * 写入本轮的占用率（historyLength 为 0 时忽略）
+     */
+    public void pushUsage(int slot, float usage) {
+        if (historyLength == 0) return;
+        history[slot * historyLength + historyCount[slot] % historyLength] = usage;
+        historyCount[slot]++;
+    }
+
+    /**
+     * 已保留的占用率个数（不超过 historyLength）
+     */
+    public int historySize(int slot) {
+        return Math.min(historyCount[slot], historyLength);
+    }
+
+    public float averageUsage(int slot) {
+        int n = historySize(slot);
+        if (n == 0) return 0;
+        float sum = 0;
+        int base = slot * historyLength;
+        for (int i = 0; i < n; i++) sum += history[base + i];
+        return sum / n;
+    }
+
+    public float peakUsage(int slot) {
+        int n = historySize(slot);
+        float peak = 0;
+        int base = slot * historyLength;
+        for (int i = 0; i < n; i++) peak = Math.max(peak, history[base + i]);
+        return peak;
+    }
+
+    /**
+     * 查找线程的槽位
+     * @return 不存在返回 -1
+     */
+    public int slotOf(int tid) {
+        int mask = index.length - 1;
+        int pos = hash(tid) & mask;
+        while (index[pos] != 0) {
+            int slot = index[pos] - 1;
+            if (tids[slot] == tid) return slot;
+            pos = (pos + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(index, 0);
+        Arrays.fill(tids, 0, slotCount, 0);
+        slotCount = 0;
+        freeCount = 0;
+        size = 0;
+        lastTimestamp = 0;
+    }
+}
@@ -0,0 +1,135 @@
+package com.threadaffinity.manager.util;
+
+import com.threadaffinity.manager.model.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 同名线程合并：按线程名编号累加占用率，选出前 N 个
+ *
+ * 累加用复用的基本类型数组，只为选中的线程名创建 ThreadInfo。
+ * 线程名编号可以来自 {@link ThreadSnapshot#commId}（{@link #top(ThreadSnapshot, int)} 用该快照的名称表），
+ * 也可以用 {@link #idOf} 为字符串分配（{@link #topByName(int)}）。
+ * 非线程安全，每个采样循环使用自己的实例。
+ */
+public final class ThreadUsageRanking {
+    private static final int MAX_NAMES = 4096; // 字符串编号超过后在一轮结束时重建
+
+    private float[] usage = new float[256];
+    private float[] wait = new float[256];
+    private int[] threads = new int[256];
+    private int[] tids = new int[256];
+    private int[] cpus = new int[256];
+    private int[] touched = new int[256];
+    private int touchedCount;
+
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    /**
+     * 字符串线程名的编号（同一实例内稳定，直到编号数超过上限后重建）
+     */
+    public int idOf(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * 累加一个线程
+     * @param waitUsage 运行队列等待占比，未知为 -1
+     * @param runningCpu 运行核心，未知为 -1
+     */
+    public void add(int id, int tid, float cpuUsage, float waitUsage, int runningCpu) {
+        add(id, tid, cpuUsage, waitUsage, runningCpu, 1);
+    }
+
+    /**
+     * 累加已经合并过的若干个线程
+     * @param threadCount 这些线程的个数
+     */
+    public void add(int id, int tid, float cpuUsage, float waitUsage, int runningCpu, int threadCount) {
+        if (id >= threads.length) grow(id + 1);
+        if (threads[id] == 0) {
+            touched[touchedCount++] = id;
+            usage[id] = 0;
+            wait[id] = -1;
+            tids[id] = tid;
+            cpus[id] = runningCpu;
+        } else if (cpuUsage > 0 && runningCpu >= 0) {
+            cpus[id] = runningCpu;
+        }
+        usage[id] += cpuUsage;
+        if (waitUsage >= 0) wait[id] = Math.max(wait[id], 0) + waitUsage;
+        threads[id] += threadCount;
+    }
+
+    /**
+     * 放弃本轮的累加（采样失败时）
+     */
+    public void reset() {
+        for (int k = 0; k < touchedCount; k++) {
+            threads[touched[k]] = 0;
+        }
+        touchedCount = 0;
+        if (names.size() > MAX_NAMES) {
+            names.clear();
+            nameIds.clear();
+        }
+    }
+
+    private void grow(int size) {
+        int length = Math.max(size, threads.length * 2);
+        usage = Arrays.copyOf(usage, length);
+        wait = Arrays.copyOf(wait, length);
+        threads = Arrays.copyOf(threads, length);
+        tids = Arrays.copyOf(tids, length);
+        cpus = Arrays.copyOf(cpus, length);
+        touched = Arrays.copyOf(touched, length);
+    }
+
+    /**
+     * 按占用率选出前 limit 个（线程名来自编号所属的快照），并清空本轮的累加
+     */
+    public List<ThreadInfo> top(ThreadSnapshot snapshot, int limit) {
+        return collect(limit, snapshot);
+    }
+
+    /**
+     * 同 {@link #top}，线程名来自 {@link #idOf}
+     */
+    public List<ThreadInfo> topByName(int limit) {
+        return collect(limit, null);
+    }
+
+    private List<ThreadInfo> collect(int limit, ThreadSnapshot snapshot) {
+        List<ThreadInfo> result = new ArrayList<>(Math.min(limit, touchedCount));
+        for (int k = 0; k < touchedCount && result.size() < limit; k++) {
+            int best = k;
+            for (int j = k + 1; j < touchedCount; j++) {
+                if (usage[touched[j]] > usage[touched[best]]) best = j;
+            }
+            int id = touched[best];
+            touched[best] = touched[k];
+            touched[k] = id;
+
+            String name = snapshot != null ? snapshot.commName(id) : (id < names.size() ? names.get(id) : "");
+            if (name.isEmpty()) continue;
+            ThreadInfo info = new ThreadInfo(tids[id], name);
+            info.setCpuUsage(usage[id]);
+            info.setWaitUsage(wait[id]);
+            info.setRunningCpu(cpus[id]);
+            info.setSameNameCount(threads[id]);
+            result.add(info);
+        }
+        reset();
+        return result;
+    }
+}
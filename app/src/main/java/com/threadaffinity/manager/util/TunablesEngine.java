@@ -0,0 +1,304 @@
+package com.threadaffinity.manager.util;
+
+import android.content.Context;
+import android.util.Log;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.threadaffinity.manager.model.TunableProfile;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 内核参数引擎：按 JSON 配置设置调度/调频参数，服务停止时恢复原值
+ *
+ * - 配置优先读取 files/tunables.json，不存在时使用内置的 assets/tunables_default.json
+ * - 每轮一条命令读取所有存在的路径，只写入与目标值不同的参数；不存在的路径直接跳过
+ * - 首次读取的原值保存到 files/tunables_snapshot.json，服务异常退出后下次启动仍能恢复
+ * - 写入后值仍不对（被内核或厂商服务拒绝）连续多次的参数不再写入
+ */
+public class TunablesEngine {
+    private static final String TAG = "TunablesEngine";
+    private static final String PROFILE_FILE = "tunables.json";
+    private static final String DEFAULT_PROFILE_ASSET = "tunables_default.json";
+    private static final String SNAPSHOT_FILE = "tunables_snapshot.json";
+    private static final int MAX_WRITE_FAILURES = 3;
+    private static final Gson gson = new Gson();
+
+    private static volatile TunablesEngine active; // 最近启动的引擎（调试命令读取）
+
+    /**
+     * 展开后的单个参数
+     */
+    private static final class Target {
+        final String value;
+        final boolean chmod;
+
+        Target(String value, boolean chmod) {
+            this.value = value;
+            this.chmod = chmod;
+        }
+    }
+
+    private final Context context;
+    private TunableProfile profile;
+    private Map<String, Target> targets = new LinkedHashMap<>();
+    private final Map<String, String> snapshot = new LinkedHashMap<>();
+    private final Set<String> missing = new HashSet<>();
+    private final Set<String> written = new HashSet<>();
+    private final Map<String, Integer> failures = new HashMap<>();
+    private boolean stopped;
+    private long passes;
+    private long writes;
+
+    public TunablesEngine(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * 加载配置并展开分组路径
+     * @return 检查周期（毫秒）
+     */
+    public synchronized long load() {
+        active = this;
+        profile = readProfile();
+        targets = resolve(profile);
+        Map<String, String> saved = readSnapshot();
+        if (!saved.isEmpty()) {
+            // 上次未恢复就退出：保存的才是真正的原值
+            snapshot.putAll(saved);
+            written.addAll(saved.keySet());
+            Log.i(TAG, "Loaded unrestored snapshot: " + saved.size() + " values");
+        }
+        Log.i(TAG, "Profile " + profile.getName() + ": " + targets.size() + " tunables");
+        return Math.max(profile.getVerifyIntervalMs(), 1000);
+    }
+
+    private TunableProfile readProfile() {
+        File custom = new File(context.getFilesDir(), PROFILE_FILE);
+        if (custom.exists()) {
+            try (Reader reader = new FileReader(custom)) {
+                TunableProfile loaded = gson.fromJson(reader, TunableProfile.class);
+                if (loaded != null) return loaded;
+            } catch (Exception e) {
+                Log.e(TAG, "Bad profile " + custom + ", using default: " + e.getMessage());
+            }
+        }
+        try (Reader reader = new InputStreamReader(context.getAssets().open(DEFAULT_PROFILE_ASSET),
+                StandardCharsets.UTF_8)) {
+            return gson.fromJson(reader, TunableProfile.class);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read default profile: " + e.getMessage());
+            return new TunableProfile();
+        }
+    }
+
+    /**
+     * 展开 {cpu} / {cores}：按 CpuInfo 的核心分组生成每个分组的路径
+     */
+    private static Map<String, Target> resolve(TunableProfile profile) {
+        Map<String, Target> result = new LinkedHashMap<>();
+        List<CpuInfo.CoreGroup> groups = CpuInfo.getInstance().getCoreGroups();
+        for (TunableProfile.Entry entry : profile.getTunables()) {
+            if (entry.getPath() == null || entry.getValue() == null) continue;
+            if (!entry.getPath().contains("{cpu}")) {
+                result.put(entry.getPath(), new Target(entry.getValue(), entry.isChmod()));
+                continue;
+            }
+            for (int i = 0; i < groups.size(); i++) {
+                if ("first".equals(entry.getClusters()) && i != 0) continue;
+                if ("rest".equals(entry.getClusters()) && i == 0) continue;
+                CpuInfo.CoreGroup group = groups.get(i);
+                String path = entry.getPath().replace("{cpu}", String.valueOf(group.startCore));
+                String value = entry.getValue().replace("{cores}", String.valueOf(group.getCoreCount()));
+                result.put(path, new Target(value, entry.isChmod()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 读取当前值，写入不同的参数（定时调用）
+     */
+    public synchronized void apply() {
+        if (stopped || targets.isEmpty()) return;
+        passes++;
+        Map<String, String> current = readValues(targets.keySet());
+        if (current == null) return;
+
+        boolean snapshotChanged = false;
+        Map<String, String> toWrite = new LinkedHashMap<>();
+        for (Map.Entry<String, Target> entry : targets.entrySet()) {
+            String path = entry.getKey();
+            String value = current.get(path);
+            if (value == null) {
+                if (missing.add(path)) Log.d(TAG, "Not present: " + path);
+                continue;
+            }
+            missing.remove(path);
+            if (!snapshot.containsKey(path)) {
+                snapshot.put(path, value);
+                snapshotChanged = true;
+            }
+            Integer failed = failures.get(path);
+            if (!value.equals(entry.getValue().value) && (failed == null || failed < MAX_WRITE_FAILURES)) {
+                toWrite.put(path, entry.getValue().value);
+            }
+        }
+        if (snapshotChanged) saveSnapshot();
+        if (toWrite.isEmpty()) return;
+
+        Map<String, String> after = writeValues(toWrite);
+        for (Map.Entry<String, String> entry : toWrite.entrySet()) {
+            String path = entry.getKey();
+            written.add(path);
+            writes++;
+            if (after != null && entry.getValue().equals(after.get(path))) {
+                failures.remove(path);
+            } else {
+                Integer failed = failures.get(path);
+                int count = failed == null ? 1 : failed + 1;
+                failures.put(path, count);
+                if (count == MAX_WRITE_FAILURES) {
+                    Log.w(TAG, "Giving up on " + path + " (reads back " + (after != null ? after.get(path) : null) + ")");
+                }
+            }
+        }
+        Log.d(TAG, "Tunables rewritten: " + toWrite.keySet());
+    }
+
+    /**
+     * 恢复所有写入过的参数的原值（服务停止时调用），之后不再应用
+     */
+    public synchronized void restore() {
+        stopped = true;
+        Map<String, String> original = new LinkedHashMap<>();
+        for (String path : written) {
+            String value = snapshot.get(path);
+            if (value != null && !value.isEmpty()) original.put(path, value);
+        }
+        if (!original.isEmpty()) {
+            Map<String, String> after = writeValues(original);
+            int restored = 0;
+            for (Map.Entry<String, String> entry : original.entrySet()) {
+                if (after != null && entry.getValue().equals(after.get(entry.getKey()))) restored++;
+            }
+            Log.i(TAG, "Restored " + restored + "/" + original.size() + " tunables");
+        }
+        written.clear();
+        new File(context.getFilesDir(), SNAPSHOT_FILE).delete();
+    }
+
+    /**
+     * 一条命令读取所有存在的路径，输出 "路径\t值"
+     * @return 路径 -> 值（不存在的路径不在结果中），命令失败返回 null
+     */
+    private static Map<String, String> readValues(Set<String> paths) {
+        StringBuilder cmd = new StringBuilder();
+        for (String path : paths) {
+            String p = quote(path);
+            cmd.append("[ -e ").append(p).append(" ] && printf '%s\\t%s\\n' ").append(p)
+               .append(" \"$(head -n1 ").append(p).append(" 2>/dev/null)\"; ");
+        }
+        cmd.append("true");
+        String out = RootHelper.executeRootCommand(cmd.toString());
+        return out != null ? parseValues(out) : null;
+    }
+
+    /**
+     * 一条命令写入所有参数并回读
+     */
+    private Map<String, String> writeValues(Map<String, String> values) {
+        StringBuilder cmd = new StringBuilder();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            String p = quote(entry.getKey());
+            Target target = targets.get(entry.getKey());
+            if (target != null && target.chmod) {
+                cmd.append("chmod 644 ").append(p).append(" 2>/dev/null; ");
+            }
+            cmd.append("echo ").append(quote(entry.getValue())).append(" > ").append(p).append(" 2>/dev/null; ")
+               .append("printf '%s\\t%s\\n' ").append(p)
+               .append(" \"$(head -n1 ").append(p).append(" 2>/dev/null)\"; ");
+        }
+        cmd.append("true");
+        String out = RootHelper.executeRootCommand(cmd.toString());
+        return out != null ? parseValues(out) : null;
+    }
+
+    private static Map<String, String> parseValues(String out) {
+        Map<String, String> values = new HashMap<>();
+        for (String line : out.split("\n")) {
+            int tab = line.indexOf('\t');
+            if (tab <= 0) continue;
+            values.put(line.substring(0, tab), line.substring(tab + 1).trim());
+        }
+        return values;
+    }
+
+    private static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    private Map<String, String> readSnapshot() {
+        File file = new File(context.getFilesDir(), SNAPSHOT_FILE);
+        if (!file.exists()) return new HashMap<>();
+        try (Reader reader = new FileReader(file)) {
+            Map<String, String> saved = gson.fromJson(reader, new TypeToken<Map<String, String>>() {}.getType());
+            return saved != null ? saved : new HashMap<String, String>();
+        } catch (Exception e) {
+            Log.w(TAG, "Bad snapshot file: " + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+
+    private void saveSnapshot() {
+        File file = new File(context.getFilesDir(), SNAPSHOT_FILE);
+        try (FileWriter writer = new FileWriter(file)) {
+            gson.toJson(snapshot, writer);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 当前状态（调试用）
+     */
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("profile=").append(profile != null ? profile.getName() : "none")
+          .append(" tunables=").append(targets.size()).append(" missing=").append(missing.size())
+          .append(" passes=").append(passes).append(" writes=").append(writes)
+          .append(" stopped=").append(stopped).append('\n');
+        for (Map.Entry<String, Target> entry : targets.entrySet()) {
+            String path = entry.getKey();
+            sb.append("  ").append(path).append(" want=").append(entry.getValue().value);
+            if (missing.contains(path)) {
+                sb.append(" (missing)");
+            } else {
+                sb.append(" orig=").append(snapshot.get(path));
+                Integer failed = failures.get(path);
+                if (failed != null) sb.append(" failures=").append(failed);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 最近启动的引擎状态，没有时返回说明文字（调试用）
+     */
+    public static String describeActive() {
+        TunablesEngine engine = active;
+        return engine != null ? engine.describe() : "tunables engine not started\n";
+    }
+}
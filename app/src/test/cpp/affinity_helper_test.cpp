@@ -0,0 +1,193 @@
+// 辅助进程协议的主机测试：以普通用户直接启动辅助进程（launcher 为空），只操作本进程的线程
+// 用法: affinity_helper_test <affinity_helper 可执行文件路径>
+
+#include "helper_client.h"
+#include "host_test.h"
+
+#include <errno.h>
+#include <fcntl.h>
+#include <sched.h>
+#include <stdlib.h>
+#include <sys/syscall.h>
+#include <unistd.h>
+#include <algorithm>
+#include <atomic>
+#include <string>
+#include <thread>
+#include <vector>
+
+static int currentTid() {
+    return static_cast<int>(syscall(SYS_gettid));
+}
+
+static uint64_t kernelMask(int tid) {
+    cpu_set_t set;
+    CPU_ZERO(&set);
+    if (sched_getaffinity(tid, sizeof(set), &set) != 0) return 0;
+    uint64_t mask = 0;
+    for (int cpu = 0; cpu < 64; cpu++) {
+        if (CPU_ISSET(cpu, &set)) mask |= 1ULL << cpu;
+    }
+    return mask;
+}
+
+static void testAffinity(HelperClient& helper) {
+    int tid = currentTid();
+    uint64_t original = kernelMask(tid);
+    CHECK(original != 0);
+
+    uint64_t mask = 0;
+    CHECK_EQ(0, helper.getAffinity(tid, &mask));
+    CHECK_EQ(original, mask);
+
+    // 只保留最低的一个核心，写入后内核中的掩码应一致
+    uint64_t single = original & (~original + 1);
+    CHECK_EQ(0, helper.setAffinity(tid, single));
+    CHECK_EQ(single, kernelMask(tid));
+    CHECK_EQ(0, helper.setAffinity(tid, original));
+    CHECK_EQ(original, kernelMask(tid));
+
+    // 错误按 -errno 返回：空掩码由内核拒绝，线程不存在
+    CHECK_EQ(-EINVAL, helper.setAffinity(tid, 0));
+    CHECK_EQ(-ESRCH, helper.getAffinity(0x3fffffff, &mask));
+}
+
+static void testProcfs(HelperClient& helper) {
+    std::atomic<bool> stop(false);
+    std::atomic<int> workerTid(0);
+    std::thread worker([&] {
+        workerTid = currentTid();
+        while (!stop.load()) usleep(1000);
+    });
+    while (workerTid.load() == 0) usleep(1000);
+
+    std::vector<int> tids;
+    CHECK_EQ(0, helper.listTasks(getpid(), &tids));
+    CHECK(std::find(tids.begin(), tids.end(), currentTid()) != tids.end());
+    CHECK(std::find(tids.begin(), tids.end(), workerTid.load()) != tids.end());
+    stop = true;
+    worker.join();
+
+    char path[] = "/tmp/helper_test_XXXXXX";
+    int fd = mkstemp(path);
+    CHECK(fd >= 0);
+    close(fd);
+    std::string content;
+    CHECK_EQ(0, helper.writeFile(path, "0-3\n"));
+    CHECK_EQ(0, helper.readFile(path, &content));
+    CHECK(content == "0-3\n");
+    unlink(path);
+    CHECK(helper.readFile(path, &content) == -ENOENT);
+}
+
+static void testCpusetMove(HelperClient& helper) {
+    // 临时目录模拟 cpuset：移动即写入 <dir>/tasks
+    char dir[] = "/tmp/helper_cpuset_XXXXXX";
+    CHECK(mkdtemp(dir) != nullptr);
+    std::string tasks = std::string(dir) + "/tasks";
+    int fd = open(tasks.c_str(), O_WRONLY | O_CREAT, 0644);
+    CHECK(fd >= 0);
+    close(fd);
+
+    std::string content;
+    CHECK_EQ(0, helper.moveToCpuset(currentTid(), dir));
+    CHECK_EQ(0, helper.readFile(tasks, &content));
+    CHECK(atoi(content.c_str()) == currentTid());
+    unlink(tasks.c_str());
+    CHECK(helper.moveToCpuset(currentTid(), dir) < 0);
+    rmdir(dir);
+}
+
+static void testBatch(HelperClient& helper) {
+    int tid = currentTid();
+    uint64_t original = kernelMask(tid);
+    // 不存在的线程只让对应的一项失败
+    int tids[3] = {tid, 0x3fffffff, tid};
+    uint64_t masks[3] = {original, original, original};
+    int statuses[3] = {1, 1, 1};
+    CHECK_EQ(0, helper.setAffinityBatch(tids, masks, 3, "", statuses));
+    CHECK_EQ(0, statuses[0]);
+    CHECK_EQ(-ESRCH, statuses[1]);
+    CHECK_EQ(0, statuses[2]);
+    CHECK_EQ(original, kernelMask(tid));
+
+    uint64_t read[3] = {0, 0, 0};
+    CHECK_EQ(0, helper.getAffinityBatch(tids, 3, read, statuses));
+    CHECK_EQ(original, read[0]);
+    CHECK_EQ(-ESRCH, statuses[1]);
+    CHECK_EQ(0, read[1]);
+    CHECK_EQ(original, read[2]);
+}
+
+static void testSchedKeepsResetOnFork(HelperClient& helper) {
+    // 在单独的线程上改 nice，不影响测试主线程
+    std::thread worker([&] {
+        int tid = currentTid();
+        struct sched_param param = {};
+        CHECK_EQ(0, sched_setscheduler(tid, SCHED_OTHER | SCHED_RESET_ON_FORK, &param));
+
+        helper::SchedParams want = {};
+        want.fields = helper::kSchedFieldNice;
+        want.nice = 5; // 普通用户只能调高 nice
+        helper::SchedParams actual = {};
+        int status = 1;
+        CHECK_EQ(0, helper.setSchedBatch(&tid, &want, 1, &actual, &status));
+        CHECK_EQ(0, status);
+        CHECK_EQ(5, actual.nice);
+        CHECK((sched_getscheduler(tid) & SCHED_RESET_ON_FORK) != 0);
+    });
+    worker.join();
+}
+
+static void testExec(HelperClient& helper) {
+    std::string out;
+    int exitStatus = -1;
+    CHECK_EQ(0, helper.exec("echo hello; exit 3", &out, 2000, &exitStatus));
+    CHECK(out == "hello\n");
+    CHECK_EQ(3, exitStatus);
+    // 命令超时后通道仍可用
+    CHECK_EQ(-ETIMEDOUT, helper.exec("sleep 5", &out, 200, &exitStatus));
+    CHECK_EQ(0, helper.exec("echo again", &out, 2000, &exitStatus));
+    CHECK(out == "again\n");
+
+    // 慢命令在执行通道上运行，主通道的亲和性请求不用等它
+    std::atomic<bool> done(false);
+    std::thread slow([&] {
+        std::string slowOut;
+        int slowStatus = -1;
+        helper.exec("sleep 1", &slowOut, 2000, &slowStatus);
+        done = true;
+    });
+    usleep(200 * 1000);
+    uint64_t mask = 0;
+    CHECK_EQ(0, helper.getAffinity(currentTid(), &mask));
+    CHECK(!done.load());
+    slow.join();
+}
+
+int main(int argc, char** argv) {
+    if (argc < 2) {
+        fprintf(stderr, "usage: %s <affinity_helper>\n", argv[0]);
+        return 2;
+    }
+    HelperClient& helper = HelperClient::getInstance();
+    // 没有调用过 start() 时执行通道不知道辅助进程路径
+    std::string out;
+    int exitStatus = -1;
+    CHECK_EQ(-ENOTCONN, helper.exec("true", &out, 2000, &exitStatus));
+    CHECK(helper.start(argv[1], ""));
+    CHECK(helper.isRunning());
+    if (helper.isRunning()) {
+        testAffinity(helper);
+        testProcfs(helper);
+        testCpusetMove(helper);
+        testBatch(helper);
+        testSchedKeepsResetOnFork(helper);
+        testExec(helper);
+    }
+    helper.stop();
+    CHECK(!helper.isRunning());
+    uint64_t mask = 0;
+    CHECK(helper.getAffinity(currentTid(), &mask) != 0);
+    return finish("affinity_helper_test");
+}
@@ -0,0 +1,133 @@
+// cpuset 分组后端的主机测试：在临时目录中模拟 cgroup v1（带/不带 cpuset. 前缀）和 v2 的目录结构
+
+#include "cpuset_backend.h"
+#include "host_test.h"
+
+#include <errno.h>
+#include <fcntl.h>
+#include <stdlib.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include <string>
+
+static std::string makeRoot() {
+    char path[] = "/tmp/cpuset_test_XXXXXX";
+    CHECK(mkdtemp(path) != nullptr);
+    return path;
+}
+
+static void writeFile(const std::string& path, const std::string& text) {
+    int fd = open(path.c_str(), O_WRONLY | O_CREAT | O_TRUNC, 0644);
+    CHECK(fd >= 0);
+    if (fd < 0) return;
+    CHECK(write(fd, text.data(), text.size()) == static_cast<ssize_t>(text.size()));
+    close(fd);
+}
+
+static std::string readFile(const std::string& path) {
+    int fd = open(path.c_str(), O_RDONLY);
+    if (fd < 0) return "<missing>";
+    std::string text;
+    char buf[256];
+    ssize_t n;
+    while ((n = read(fd, buf, sizeof(buf))) > 0) text.append(buf, n);
+    close(fd);
+    return text;
+}
+
+static bool isDir(const std::string& path) {
+    struct stat st;
+    return stat(path.c_str(), &st) == 0 && S_ISDIR(st.st_mode);
+}
+
+static void removeTree(const std::string& root) {
+    std::string command = "rm -rf '" + root + "'";
+    CHECK(system(command.c_str()) == 0);
+}
+
+static void testV1(const std::string& prefix) {
+    std::string root = makeRoot();
+    writeFile(root + "/" + prefix + "cpus", "0-7\n");
+    writeFile(root + "/" + prefix + "mems", "0\n");
+
+    CpusetBackend backend;
+    CHECK_EQ(0, backend.open(root));
+    CHECK_EQ(CpusetBackend::LAYOUT_V1, backend.layout());
+
+    CHECK_EQ(0, backend.ensureGroup("ta_small", "0-3"));
+    CHECK(isDir(root + "/ta_small"));
+    CHECK(readFile(root + "/ta_small/" + prefix + "cpus") == "0-3");
+    // 子 cpuset 的 mems 沿用根目录，否则无法加入任务
+    CHECK(readFile(root + "/ta_small/" + prefix + "mems") == "0");
+
+    // 放置一次写一个 tid，追加到 tasks
+    CHECK_EQ(0, backend.place("ta_small", 101));
+    CHECK_EQ(0, backend.place("ta_small", 102));
+    CHECK(readFile(root + "/ta_small/tasks") == "101\n102\n");
+
+    // 修改整组核心只写 cpus，已有的 tasks 不变；已存在的分组复用
+    CHECK_EQ(0, backend.ensureGroup("ta_small", "0-2"));
+    CHECK(readFile(root + "/ta_small/" + prefix + "cpus") == "0-2");
+    CHECK(readFile(root + "/ta_small/tasks") == "101\n102\n");
+
+    removeTree(root);
+}
+
+static void testV2() {
+    std::string root = makeRoot();
+    writeFile(root + "/cgroup.controllers", "cpuset cpu io memory\n");
+
+    CpusetBackend backend;
+    CHECK_EQ(0, backend.open(root));
+    CHECK_EQ(CpusetBackend::LAYOUT_V2, backend.layout());
+    CHECK(readFile(root + "/cgroup.subtree_control") == "+cpuset");
+
+    CHECK_EQ(0, backend.ensureGroup("ta_large", "4-7"));
+    // 线程级放置需要线程模式子组
+    CHECK(readFile(root + "/ta_large/cgroup.type") == "threaded");
+    CHECK(readFile(root + "/ta_large/cpuset.cpus") == "4-7");
+
+    CHECK_EQ(0, backend.place("ta_large", 201));
+    CHECK(readFile(root + "/ta_large/cgroup.threads") == "201\n");
+    CHECK(readFile(root + "/ta_large/tasks") == "<missing>");
+
+    removeTree(root);
+}
+
+static void testErrors() {
+    CpusetBackend backend;
+    // 未打开时拒绝操作
+    CHECK_EQ(-ENOTCONN, backend.ensureGroup("ta_small", "0-3"));
+    CHECK_EQ(-ENOTCONN, backend.place("ta_small", 1));
+
+    std::string root = makeRoot();
+    // 目录存在但不是 cpuset
+    CHECK_EQ(-ENOTSUP, backend.open(root));
+    CHECK_EQ(CpusetBackend::LAYOUT_NONE, backend.layout());
+    CHECK_EQ(-ENOENT, backend.open(root + "/missing"));
+
+    writeFile(root + "/cpus", "0-7\n");
+    CHECK_EQ(0, backend.open(root));
+    // 分组名不能穿越目录
+    CHECK_EQ(-EINVAL, backend.ensureGroup("../escape", "0"));
+    CHECK_EQ(-EINVAL, backend.ensureGroup("", "0"));
+    CHECK_EQ(-EINVAL, backend.place("a/b", 1));
+    CHECK(!isDir(root + "/../escape"));
+
+    // 切换根目录后重新识别布局
+    std::string v2 = makeRoot();
+    writeFile(v2 + "/cgroup.controllers", "cpuset\n");
+    CHECK_EQ(0, backend.open(v2));
+    CHECK_EQ(CpusetBackend::LAYOUT_V2, backend.layout());
+
+    removeTree(root);
+    removeTree(v2);
+}
+
+int main() {
+    testV1("cpuset.");
+    testV1("");  // Android noprefix 挂载
+    testV2();
+    testErrors();
+    return finish("cpuset_backend_test");
+}
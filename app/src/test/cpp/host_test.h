@@ -0,0 +1,30 @@
+#ifndef HOST_TEST_H
+#define HOST_TEST_H
+
+#include <cstdio>
+
+// 主机测试的断言：失败时打印位置并计数，main 返回失败数
+static int g_failures = 0;
+
+#define CHECK(cond) do { \
+    if (!(cond)) { \
+        fprintf(stderr, "%s:%d: CHECK failed: %s\n", __FILE__, __LINE__, #cond); \
+        ++g_failures; \
+    } \
+} while (0)
+
+#define CHECK_EQ(expected, actual) do { \
+    long long e_ = (long long)(expected), a_ = (long long)(actual); \
+    if (e_ != a_) { \
+        fprintf(stderr, "%s:%d: CHECK_EQ failed: %s == %s (%lld vs %lld)\n", \
+                __FILE__, __LINE__, #expected, #actual, e_, a_); \
+        ++g_failures; \
+    } \
+} while (0)
+
+static int finish(const char* name) {
+    fprintf(stderr, "%s: %s (%d failures)\n", name, g_failures == 0 ? "PASS" : "FAIL", g_failures);
+    return g_failures == 0 ? 0 : 1;
+}
+
+#endif // HOST_TEST_H
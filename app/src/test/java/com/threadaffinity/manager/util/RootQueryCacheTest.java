@@ -0,0 +1,116 @@
+package com.threadaffinity.manager.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * RootQueryCache 测试：用可控的时钟和假的命令执行，检查有效期、失败不缓存、过期清理和单飞合并
+ */
+public class RootQueryCacheTest {
+    private final AtomicLong now = new AtomicLong(1000);
+    private final AtomicInteger runs = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        RootQueryCache.clear();
+        RootQueryCache.setRunner(command -> {
+            runs.incrementAndGet();
+            return "out:" + command;
+        }, now::get);
+    }
+
+    @After
+    public void tearDown() {
+        RootQueryCache.clear();
+    }
+
+    @Test
+    public void entryExpiresAfterTtl() {
+        assertEquals("out:pidof a", RootQueryCache.query("pidof a", 100));
+        now.addAndGet(99);
+        assertEquals("out:pidof a", RootQueryCache.query("pidof a", 100));
+        assertEquals(1, runs.get());
+
+        now.addAndGet(1);
+        assertEquals("out:pidof a", RootQueryCache.query("pidof a", 100));
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void failuresAreNotCached() {
+        RootQueryCache.setRunner(command -> {
+            runs.incrementAndGet();
+            return null;
+        }, now::get);
+        assertEquals(null, RootQueryCache.query("pidof b", 10000));
+        assertEquals(null, RootQueryCache.query("pidof b", 10000));
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void invalidateForcesRerun() {
+        RootQueryCache.query("pidof c", 10000);
+        RootQueryCache.invalidate("pidof c");
+        RootQueryCache.query("pidof c", 10000);
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void expiredEntriesAreSweptOnInsert() {
+        RootQueryCache.query("ls /proc/1/stat", 10);
+        RootQueryCache.query("ls /proc/2/stat", 10);
+        assertTrue(RootQueryCache.describe().contains("entries=2 "));
+        // 清理间隔过后的下一次写入移除过期项
+        now.addAndGet(60000);
+        RootQueryCache.query("ls /proc/3/stat", 10);
+        assertTrue(RootQueryCache.describe().contains("entries=1 "));
+    }
+
+    @Test
+    public void concurrentQueriesRunOnce() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        RootQueryCache.setRunner(command -> {
+            runs.incrementAndGet();
+            entered.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "slow";
+        }, now::get);
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            results.add(pool.submit(() -> RootQueryCache.query("dumpsys slow", 10000)));
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            // 第一个调用还在执行时，其余调用都等待同一个结果
+            for (int i = 0; i < 7; i++) {
+                results.add(pool.submit(() -> RootQueryCache.query("dumpsys slow", 10000)));
+            }
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("slow", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, runs.get());
+    }
+}
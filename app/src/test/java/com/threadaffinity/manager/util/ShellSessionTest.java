@@ -0,0 +1,193 @@
+package com.threadaffinity.manager.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * ShellSession 长度帧协议测试：用 /bin/sh 代替 su，在主机 JVM 上运行
+ */
+public class ShellSessionTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private ShellSession session;
+
+    @BeforeClass
+    public static void quietLogger() {
+        ShellSession.setLogger(new ShellLogger() {
+            @Override public void d(String tag, String message) {}
+            @Override public void i(String tag, String message) {}
+            @Override public void w(String tag, String message) {}
+            @Override public void e(String tag, String message) {}
+        });
+    }
+
+    @Before
+    public void setUp() {
+        session = new ShellSession("/bin/sh");
+        assertTrue(session.start());
+    }
+
+    @After
+    public void tearDown() {
+        session.close();
+    }
+
+    @Test
+    public void outputIsFramedExactly() throws IOException {
+        assertEquals("hello\n", session.execute("echo hello", TIMEOUT_MS).output);
+        // 没有结尾换行、空输出、只有换行
+        assertEquals("abc", session.execute("printf abc", TIMEOUT_MS).output);
+        assertEquals("", session.execute("true", TIMEOUT_MS).output);
+        assertEquals("\n\n", session.execute("printf '\\n\\n'", TIMEOUT_MS).output);
+    }
+
+    @Test
+    public void largeOutputKeepsEveryByte() throws IOException {
+        String output = session.execute("i=0; while [ $i -lt 20000 ]; do echo line$i; i=$((i+1)); done",
+            TIMEOUT_MS).output;
+        String[] lines = output.split("\n");
+        assertEquals(20000, lines.length);
+        assertEquals("line0", lines[0]);
+        assertEquals("line19999", lines[19999]);
+    }
+
+    @Test
+    public void multiByteOutputIsCountedInBytes() throws IOException {
+        ShellSession.Result result = session.execute("echo 线程亲和性", TIMEOUT_MS);
+        assertEquals("线程亲和性\n", result.output);
+        // 统计用的是编码后的字节数，与帧长度一致
+        assertEquals(16, result.bytes);
+        assertEquals(16, ShellStats.utf8Length(result.output));
+        assertEquals(4, ShellStats.utf8Length("\uD83D\uDE00"));
+    }
+
+    @Test
+    public void exitStatusIsReported() throws IOException {
+        assertEquals(0, session.execute("true", TIMEOUT_MS).exitStatus);
+        assertEquals(1, session.execute("false", TIMEOUT_MS).exitStatus);
+        assertEquals(42, session.execute("sh -c 'exit 42'", TIMEOUT_MS).exitStatus);
+        // exit 只结束命令所在的子 shell，会话继续可用
+        ShellSession.Result result = session.execute("echo before; exit 7", TIMEOUT_MS);
+        assertEquals(7, result.exitStatus);
+        assertEquals("before\n", result.output);
+        assertEquals("ok\n", session.execute("echo ok", TIMEOUT_MS).output);
+    }
+
+    @Test
+    public void stderrIsDrainedAndKeptOutOfFrames() throws IOException {
+        // stderr 超过管道缓冲区也不会让 shell 阻塞；伪造的帧头写到 stderr 不会被当作帧
+        String command = "i=0; while [ $i -lt 20000 ]; do echo err$i >&2; i=$((i+1)); done; "
+            + "echo '" + ShellSession.FRAME_TOKEN + " 2 0 4' >&2; echo out";
+        assertEquals("out\n", session.execute(command, TIMEOUT_MS).output);
+        assertEquals("next\n", session.execute("echo next", TIMEOUT_MS).output);
+    }
+
+    @Test
+    public void syntaxErrorStillProducesFrame() throws IOException {
+        // 引号不配对只让这条命令失败，帧尾照常输出
+        assertTrue(session.execute("echo 'unbalanced", TIMEOUT_MS).exitStatus != 0);
+        assertEquals("ok\n", session.execute("echo ok", TIMEOUT_MS).output);
+        assertEquals("it's\n", session.execute("echo \"it's\"", TIMEOUT_MS).output);
+    }
+
+    @Test
+    public void forgedDelimitersStayInBody() throws IOException {
+        String forged = "\n" + ShellSession.FRAME_TOKEN + " 1000 0 3\nabc\n";
+        assertEquals(forged, session.execute("printf '%s' '" + forged + "'", TIMEOUT_MS).output);
+
+        // 伪造的帧头带着下一个请求的ID，也只是正文
+        String next = ShellSession.FRAME_TOKEN + " 3 0 5";
+        assertEquals(next + "\nfake\n", session.execute("echo '" + next + "'; echo fake", TIMEOUT_MS).output);
+        assertEquals("third\n", session.execute("echo third", TIMEOUT_MS).output);
+    }
+
+    @Test
+    public void batchResultsMatchCommands() throws IOException {
+        List<ShellSession.Result> results = session.executeBatch(
+            Arrays.asList("echo 1", "false", "echo 3"), TIMEOUT_MS);
+        assertEquals("1\n", results.get(0).output);
+        assertEquals(1, results.get(1).exitStatus);
+        assertEquals("3\n", results.get(2).output);
+    }
+
+    @Test
+    public void forgedHeaderCannotCompleteLaterRequest() throws IOException {
+        // 流水线中第一条命令输出第二条命令的帧头，第二条仍拿到自己的输出
+        List<ShellSession.Result> results = session.executeBatch(Arrays.asList(
+            "echo '" + ShellSession.FRAME_TOKEN + " 2 0 5'; echo fake",
+            "echo second"), TIMEOUT_MS);
+        assertEquals(ShellSession.FRAME_TOKEN + " 2 0 5\nfake\n", results.get(0).output);
+        assertEquals("second\n", results.get(1).output);
+    }
+
+    @Test
+    public void streamingDeliversLinesAndStatus() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        ShellSession.Result result = session.executeStreaming(
+            "echo one; echo; echo three; sh -c 'exit 3'", line -> lines.add(line.toString()), TIMEOUT_MS);
+        assertEquals(3, result.exitStatus);
+        assertEquals(Arrays.asList("one", "", "three"), lines);
+        // 没有结尾换行的最后一行也会交给处理器
+        lines.clear();
+        session.executeStreaming("printf 'a\\nb'", line -> lines.add(line.toString()), TIMEOUT_MS);
+        assertEquals(Arrays.asList("a", "b"), lines);
+    }
+
+    @Test
+    public void forgedEndLineDoesNotEndStream() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        ShellSession.Result result = session.executeStreaming(
+            "echo a; echo '___END_0___ 1 0'; echo b", line -> lines.add(line.toString()), TIMEOUT_MS);
+        assertEquals(0, result.exitStatus);
+        assertEquals(Arrays.asList("a", "___END_0___ 1 0", "b"), lines);
+        assertEquals("after\n", session.execute("echo after", TIMEOUT_MS).output);
+    }
+
+    @Test
+    public void lateFrameIsDiscarded() throws Exception {
+        try {
+            session.execute("sleep 1; echo late", 100);
+            fail("expected timeout");
+        } catch (ShellSession.CommandTimeoutException expected) {
+            // 会话继续可用
+        }
+        assertEquals(1, session.abandonedCount());
+        // 下一条命令排在迟到的帧之后，拿到的是自己的输出
+        assertEquals("next\n", session.execute("echo next", TIMEOUT_MS).output);
+        assertEquals(1, session.discardedFrameCount());
+        assertEquals(0, session.abandonedCount());
+        assertTrue(session.isAlive());
+    }
+
+    @Test
+    public void cancelledRequestIsDiscarded() throws Exception {
+        CompletableFuture<ShellSession.Result> f = session.submit("sleep 0.3; echo cancelled", 0);
+        f.cancel(false);
+        assertEquals("after\n", session.execute("echo after", TIMEOUT_MS).output);
+        assertEquals(1, session.discardedFrameCount());
+    }
+
+    @Test
+    public void closedSessionFailsRequests() {
+        session.close();
+        assertFalse(session.isAlive());
+        try {
+            session.execute("echo x", TIMEOUT_MS);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            // shell not running
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.threadaffinity.manager.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * ThreadNameMatcher 规则匹配测试：精确/通配符/正则的优先级、大小写、整名匹配、重叠通配符
+ */
+public class ThreadNameMatcherTest {
+
+    private static ThreadNameMatcher<String> matcher(String... keys) {
+        Map<String, String> rules = new HashMap<>();
+        for (String key : keys) rules.put(key, key);
+        return new ThreadNameMatcher<>(rules);
+    }
+
+    @Test
+    public void exactBeatsGlobBeatsRegex() {
+        ThreadNameMatcher<String> m = matcher("RenderThread", "Render*", "re:Render.*");
+        assertEquals("RenderThread", m.get("RenderThread"));
+        assertEquals("Render*", m.get("RenderWorker"));
+
+        ThreadNameMatcher<String> noExact = matcher("Render*", "re:Render.*");
+        assertEquals("Render*", noExact.get("RenderThread"));
+
+        ThreadNameMatcher<String> onlyRegex = matcher("re:Render.*");
+        assertEquals("re:Render.*", onlyRegex.get("RenderThread"));
+    }
+
+    @Test
+    public void matchingIgnoresCase() {
+        ThreadNameMatcher<String> m = matcher("RenderThread", "poolthread_*", "re:thread-\\d+");
+        assertEquals("RenderThread", m.get("renderthread"));
+        assertEquals("RenderThread", m.get("RENDERTHREAD"));
+        assertEquals("poolthread_*", m.get("PoolThread_3"));
+        assertEquals("re:thread-\\d+", m.get("Thread-12"));
+    }
+
+    @Test
+    public void globsAndRegexesMatchTheWholeName() {
+        ThreadNameMatcher<String> m = matcher("Render*", "*Worker", "re:Thread");
+        assertEquals(null, m.get("xRenderThread"));
+        assertEquals(null, m.get("WorkerPool"));
+        assertEquals("*Worker", m.get("AsyncWorker"));
+        // 正则需要匹配整个线程名
+        assertEquals(null, m.get("ThreadX"));
+        assertEquals(null, m.get("MyThread"));
+        assertEquals("re:Thread", m.get("thread"));
+    }
+
+    @Test
+    public void questionMarkMatchesOneCharacter() {
+        ThreadNameMatcher<String> m = matcher("Job-?");
+        assertEquals("Job-?", m.get("Job-1"));
+        assertEquals(null, m.get("Job-"));
+        assertEquals(null, m.get("Job-12"));
+    }
+
+    @Test
+    public void moreSpecificGlobWins() {
+        ThreadNameMatcher<String> m = matcher("Pool*", "PoolThread_*", "*");
+        assertEquals("PoolThread_*", m.get("PoolThread_7"));
+        assertEquals("Pool*", m.get("PoolWorker"));
+        assertEquals("*", m.get("main"));
+        // 字面字符一样多时按规则键排序靠前的优先
+        ThreadNameMatcher<String> tie = matcher("ab*", "a*c");
+        assertEquals("a*c", tie.get("abc"));
+        assertEquals("ab*", tie.get("abd"));
+    }
+
+    @Test
+    public void overlappingStarsMatchAnywhere() {
+        ThreadNameMatcher<String> m = matcher("*gl*thread*", "*binder*");
+        assertEquals("*gl*thread*", m.get("GLThread 21"));
+        assertEquals("*gl*thread*", m.get("xglyyThreadz"));
+        assertEquals("*binder*", m.get("Binder:1234_2"));
+        assertEquals(null, m.get("threadgl"));
+    }
+
+    @Test
+    public void regexGroupsMapToTheirRule() {
+        // 合并后的正则中每条规则自己的分组不影响规则编号
+        ThreadNameMatcher<String> m = matcher("re:(ab)+z", "re:c(d)(e)?", "re:f");
+        assertEquals("re:(ab)+z", m.get("ababz"));
+        assertEquals("re:c(d)(e)?", m.get("cd"));
+        assertEquals("re:c(d)(e)?", m.get("cde"));
+        assertEquals("re:f", m.get("F"));
+        assertEquals(null, m.get("abz1"));
+    }
+
+    @Test
+    public void nonAsciiNamesUseTheDfa() {
+        ThreadNameMatcher<String> m = matcher("渲染线*", "*线程");
+        assertEquals("渲染线*", m.get("渲染线程"));
+        assertEquals("*线程", m.get("工作线程"));
+        assertEquals(null, m.get("工作"));
+    }
+
+    @Test
+    public void cachedLookupsStayConsistent() {
+        ThreadNameMatcher<String> m = matcher("Render*", "re:Job-\\d+");
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Render*", m.get("RenderThread"));
+            assertEquals("re:Job-\\d+", m.get("Job-4"));
+            assertEquals(null, m.get("main"));
+        }
+        assertEquals(null, m.get(null));
+    }
+
+    @Test
+    public void classifiesRuleKeys() {
+        assertTrue(ThreadNameMatcher.isPattern("Pool*"));
+        assertTrue(ThreadNameMatcher.isPattern("Job-?"));
+        assertTrue(ThreadNameMatcher.isPattern("RE:.*"));
+        assertFalse(ThreadNameMatcher.isPattern("RenderThread"));
+        assertFalse(ThreadNameMatcher.isGlob("re:a*"));
+
+        ThreadNameMatcher<String> m = matcher("RenderThread", "Pool*", "re:x");
+        assertEquals(2, m.patternCount());
+        assertFalse(m.isEmpty());
+        assertTrue(new ThreadNameMatcher<String>(null).isEmpty());
+    }
+}
@@ -0,0 +1,189 @@
+package com.threadaffinity.manager.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * ThreadStatsTable 测试：开放寻址的插入/删除/扩容、按代数释放、tid 复用、占用率环形历史，
+ * 以及与 HashMap 模型的随机对比
+ */
+public class ThreadStatsTableTest {
+    private static final float EPSILON = 1e-5f;
+
+    @Test
+    public void deltasAreRelativeToPreviousRound() {
+        ThreadStatsTable table = new ThreadStatsTable(0);
+        assertEquals(0, table.beginSample(1000));
+        int slot = table.update(42, 7, 100, 10);
+        assertEquals(-1, table.delta(slot));
+        assertEquals(-1, table.waitDelta(slot));
+        table.endSample();
+
+        assertEquals(500, table.beginSample(1500));
+        slot = table.update(42, 7, 160, 25);
+        assertEquals(60, table.delta(slot));
+        assertEquals(15, table.waitDelta(slot));
+        table.endSample();
+
+        // 等待时间未知时没有差值
+        table.beginSample(2000);
+        slot = table.update(42, 7, 170, -1);
+        assertEquals(10, table.delta(slot));
+        assertEquals(-1, table.waitDelta(slot));
+    }
+
+    @Test
+    public void reusedTidStartsOver() {
+        ThreadStatsTable table = new ThreadStatsTable(4);
+        table.beginSample(1);
+        int slot = table.update(42, 7, 100, 0);
+        table.pushUsage(slot, 50f);
+        table.endSample();
+
+        // 启动时间变化：同一个 tid 已是另一个线程
+        table.beginSample(2);
+        slot = table.update(42, 9, 5, 0);
+        assertEquals(-1, table.delta(slot));
+        assertEquals(0, table.historySize(slot));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void threadsMissingFromRoundAreReleased() {
+        ThreadStatsTable table = new ThreadStatsTable(0);
+        table.beginSample(1);
+        table.update(1, 0, 0, -1);
+        table.update(2, 0, 0, -1);
+        table.update(3, 0, 0, -1);
+        assertEquals(0, table.endSample());
+        assertEquals(3, table.size());
+
+        table.beginSample(2);
+        table.update(1, 0, 0, -1);
+        table.update(3, 0, 0, -1);
+        assertEquals(1, table.endSample());
+        assertEquals(2, table.size());
+        assertEquals(-1, table.slotOf(2));
+        assertTrue(table.slotOf(1) >= 0);
+        assertTrue(table.slotOf(3) >= 0);
+
+        // 释放的槽位被复用，不再增长
+        table.beginSample(3);
+        table.update(1, 0, 0, -1);
+        table.update(3, 0, 0, -1);
+        assertTrue(table.update(4, 0, 0, -1) < 3);
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    public void growsPastInitialCapacity() {
+        ThreadStatsTable table = new ThreadStatsTable(2);
+        table.beginSample(1);
+        for (int tid = 1; tid <= 5000; tid++) {
+            table.pushUsage(table.update(tid, tid, tid, -1), tid);
+        }
+        table.endSample();
+        assertEquals(5000, table.size());
+        for (int tid = 1; tid <= 5000; tid++) {
+            int slot = table.slotOf(tid);
+            assertTrue(slot >= 0);
+            assertEquals(tid, table.averageUsage(slot), EPSILON);
+        }
+        assertEquals(-1, table.slotOf(5001));
+    }
+
+    @Test
+    public void usageHistoryIsARing() {
+        ThreadStatsTable table = new ThreadStatsTable(3);
+        table.beginSample(1);
+        int slot = table.update(10, 0, 0, -1);
+        table.pushUsage(slot, 1f);
+        assertEquals(1, table.historySize(slot));
+        table.pushUsage(slot, 2f);
+        table.pushUsage(slot, 3f);
+        table.pushUsage(slot, 9f);
+        // 最早的 1 被覆盖
+        assertEquals(3, table.historySize(slot));
+        assertEquals((2f + 3f + 9f) / 3, table.averageUsage(slot), EPSILON);
+        assertEquals(9f, table.peakUsage(slot), EPSILON);
+
+        ThreadStatsTable noHistory = new ThreadStatsTable(0);
+        noHistory.beginSample(1);
+        slot = noHistory.update(10, 0, 0, -1);
+        noHistory.pushUsage(slot, 5f);
+        assertEquals(0, noHistory.historySize(slot));
+        assertEquals(0f, noHistory.averageUsage(slot), EPSILON);
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        ThreadStatsTable table = new ThreadStatsTable(0);
+        table.beginSample(100);
+        table.update(1, 0, 5, -1);
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(-1, table.slotOf(1));
+        assertEquals(0, table.beginSample(200));
+        assertEquals(-1, table.delta(table.update(1, 0, 9, -1)));
+    }
+
+    /**
+     * 随机的线程出现/退出/复用，与 HashMap 模型逐轮对比
+     */
+    @Test
+    public void matchesHashMapModel() {
+        Random random = new Random(20240601);
+        ThreadStatsTable table = new ThreadStatsTable(0);
+        // tid -> {启动时间, 累计值}
+        Map<Integer, long[]> model = new HashMap<>();
+        // tid 取自较小的范围并带相同的低位，制造探测链上的冲突和向后移动删除
+        int[] universe = new int[3000];
+        for (int i = 0; i < universe.length; i++) {
+            universe[i] = random.nextBoolean() ? (i + 1) << 10 : i + 1;
+        }
+
+        for (int round = 1; round <= 300; round++) {
+            table.beginSample(round);
+            Map<Integer, long[]> seen = new HashMap<>();
+            int count = random.nextInt(universe.length);
+            for (int k = 0; k < count; k++) {
+                int tid = universe[random.nextInt(universe.length)];
+                if (seen.containsKey(tid)) continue;
+                long[] previous = model.get(tid);
+                long start = previous != null && random.nextInt(20) != 0 ? previous[0] : random.nextInt(1000);
+                long counter = (previous != null ? previous[1] : 0) + random.nextInt(100);
+                int slot = table.update(tid, start, counter, -1);
+
+                long expected = previous != null && previous[0] == start ? counter - previous[1] : -1;
+                assertEquals(expected, table.delta(slot));
+                seen.put(tid, new long[] {start, counter});
+            }
+            int removed = table.endSample();
+
+            int expectedRemoved = 0;
+            for (Integer tid : model.keySet()) {
+                if (!seen.containsKey(tid)) expectedRemoved++;
+            }
+            assertEquals(expectedRemoved, removed);
+            model = seen;
+            assertEquals(model.size(), table.size());
+
+            Set<Integer> checked = new HashSet<>();
+            List<Integer> sample = new ArrayList<>();
+            for (int i = 0; i < 200; i++) sample.add(universe[random.nextInt(universe.length)]);
+            for (int tid : sample) {
+                if (!checked.add(tid)) continue;
+                assertEquals(model.containsKey(tid), table.slotOf(tid) >= 0);
+            }
+        }
+    }
+}